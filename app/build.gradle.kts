@@ -305,6 +305,11 @@ android {
 
     testOptions {
         unitTests.isIncludeAndroidResources = true
+        unitTests.all {
+            if (!project.hasProperty("runBenchmarks")) {
+                useJUnit { excludeCategories("org.thoughtcrime.securesms.util.Benchmark") }
+            }
+        }
     }
 
     lint {
@@ -453,6 +458,7 @@ dependencies {
     testImplementation(libs.robolectric.shadows.multidex)
     testImplementation(libs.conscrypt.openjdk.uber)
     testImplementation(libs.turbine)
+    testImplementation(libs.okhttp.mockwebserver)
 
     implementation(platform(libs.androidx.compose.bom))
     testImplementation(platform(libs.androidx.compose.bom))
@@ -0,0 +1,155 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.ContentValues
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.serialization.json.Json
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentState
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.DatabaseSecret
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import java.io.ByteArrayInputStream
+import java.io.File
+import kotlin.random.Random
+
+/**
+ * Runs on a device as SQLCipher's native library can't be loaded on the JVM.
+ */
+@RunWith(AndroidJUnit4::class)
+class AttachmentDeduplicationTest {
+
+    private val context: Context = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var helper: SQLCipherOpenHelper
+    private lateinit var attachmentDatabase: AttachmentDatabase
+
+    @Before
+    fun setUp() {
+        System.loadLibrary("sqlcipher")
+        context.deleteDatabase(DATABASE_NAME)
+        helper = SQLCipherOpenHelper(context, DATABASE_NAME, DatabaseSecret(Random.nextBytes(32)), { Json })
+        attachmentDatabase = AttachmentDatabase(
+            context,
+            { helper },
+            AttachmentSecret(Random.nextBytes(32), Random.nextBytes(32), Random.nextBytes(32))
+        )
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+        context.deleteDatabase(DATABASE_NAME)
+    }
+
+    @Test
+    fun identical_content_reuses_the_data_file() {
+        val first = insertAttachment(CONTENT)
+        val second = insertAttachment(CONTENT)
+        val other = insertAttachment(byteArrayOf(4, 5, 6))
+
+        assertEquals(dataFile(first), dataFile(second))
+        assertNotEquals(dataFile(first), dataFile(other))
+        assertTrue(dataFile(first)!!.exists())
+        assertEquals(CONTENT.toList(), attachmentDatabase.getAttachmentStream(second, 0).readBytes().toList())
+    }
+
+    @Test
+    fun shared_data_file_is_deleted_with_its_last_reference() {
+        val first = insertAttachment(CONTENT)
+        val second = insertAttachment(CONTENT)
+        val file = dataFile(first)!!
+
+        attachmentDatabase.deleteAttachment(first)
+        assertTrue(file.exists())
+        assertEquals(CONTENT.toList(), attachmentDatabase.getAttachmentStream(second, 0).readBytes().toList())
+
+        attachmentDatabase.deleteAttachment(second)
+        assertFalse(file.exists())
+    }
+
+    @Test
+    fun deduplicating_existing_data_merges_duplicates() {
+        val first = insertAttachment(CONTENT)
+        val second = insertAttachment(byteArrayOf(4, 5, 6))
+        val copy = File(dataFile(first)!!.parentFile, "copy.mms")
+        dataFile(first)!!.copyTo(copy)
+        // As if both were written before content hashing, with their own copy of the same content
+        helper.writableDatabase.execSQL("UPDATE part SET ${AttachmentDatabase.DATA_HASH} = NULL")
+        helper.writableDatabase.update(
+            AttachmentDatabase.TABLE_NAME,
+            ContentValues().apply {
+                put(AttachmentDatabase.DATA, copy.absolutePath)
+                put(AttachmentDatabase.DATA_RANDOM, dataRandom(first))
+            },
+            "${AttachmentDatabase.ROW_ID} = ?",
+            arrayOf(second.rowId.toString())
+        )
+
+        val report = attachmentDatabase.deduplicateExistingData()
+
+        assertEquals(2, report.filesScanned)
+        assertEquals(1, report.filesRemoved)
+        assertEquals(dataFile(first), dataFile(second))
+        assertEquals(1, listOf(copy, dataFile(first)!!).count { it.exists() })
+        assertEquals(CONTENT.toList(), attachmentDatabase.getAttachmentStream(second, 0).readBytes().toList())
+        assertEquals(0, attachmentDatabase.deduplicateExistingData().filesScanned)
+    }
+
+    @Test
+    fun unreadable_data_files_are_retried() {
+        val attachment = insertAttachment(CONTENT)
+        val file = dataFile(attachment)!!
+        val moved = File(file.parentFile, "moved.mms")
+        file.renameTo(moved)
+        helper.writableDatabase.execSQL("UPDATE part SET ${AttachmentDatabase.DATA_HASH} = NULL")
+
+        assertEquals(1, attachmentDatabase.deduplicateExistingData().filesScanned)
+        assertNull(dataHash(attachment))
+
+        moved.renameTo(file)
+
+        assertEquals(1, attachmentDatabase.deduplicateExistingData().filesScanned)
+        assertEquals(32, dataHash(attachment)!!.size)
+    }
+
+    private fun insertAttachment(content: ByteArray): AttachmentId {
+        val uniqueId = Random.nextLong(Long.MAX_VALUE)
+        val rowId = helper.writableDatabase.insert(AttachmentDatabase.TABLE_NAME, null, ContentValues().apply {
+            put(AttachmentDatabase.MMS_ID, 1)
+            put(AttachmentDatabase.UNIQUE_ID, uniqueId)
+            put(AttachmentDatabase.CONTENT_TYPE, "application/octet-stream")
+            put(AttachmentDatabase.TRANSFER_STATE, AttachmentState.PENDING.value)
+        })
+        val attachmentId = AttachmentId(rowId, uniqueId)
+        attachmentDatabase.insertAttachmentsForPlaceholder(1, attachmentId, ByteArrayInputStream(content))
+        return attachmentId
+    }
+
+    private fun dataFile(attachmentId: AttachmentId): File? = column(attachmentId, AttachmentDatabase.DATA) { getString(0)?.let(::File) }
+
+    private fun dataRandom(attachmentId: AttachmentId): ByteArray? = column(attachmentId, AttachmentDatabase.DATA_RANDOM) { getBlob(0) }
+
+    private fun dataHash(attachmentId: AttachmentId): ByteArray? = column(attachmentId, AttachmentDatabase.DATA_HASH) { getBlob(0) }
+
+    private fun <T> column(attachmentId: AttachmentId, column: String, read: android.database.Cursor.() -> T?): T? {
+        return helper.readableDatabase.rawQuery(
+            "SELECT $column FROM ${AttachmentDatabase.TABLE_NAME} WHERE ${AttachmentDatabase.ROW_ID} = ?",
+            attachmentId.rowId
+        ).use { cursor -> if (cursor.moveToFirst() && !cursor.isNull(0)) cursor.read() else null }
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "attachment-deduplication-test.db"
+        private val CONTENT = byteArrayOf(1, 2, 3)
+    }
+}
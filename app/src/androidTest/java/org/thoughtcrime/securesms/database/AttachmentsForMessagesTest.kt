@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.MatrixCursor
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.serialization.json.Json
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentState
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.DatabaseSecret
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import kotlin.random.Random
+
+/**
+ * Runs the part query of [AttachmentDatabase.getAttachmentsForMessages] on a device, as SQLCipher's
+ * native library can't be loaded on the JVM.
+ */
+@RunWith(AndroidJUnit4::class)
+class AttachmentsForMessagesTest {
+
+    private val context: Context = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var helper: SQLCipherOpenHelper
+    private lateinit var attachmentDatabase: AttachmentDatabase
+
+    @Before
+    fun setUp() {
+        System.loadLibrary("sqlcipher")
+        context.deleteDatabase(DATABASE_NAME)
+        helper = SQLCipherOpenHelper(context, DATABASE_NAME, DatabaseSecret(Random.nextBytes(32)), { Json })
+        attachmentDatabase = AttachmentDatabase(
+            context,
+            { helper },
+            AttachmentSecret(Random.nextBytes(32), Random.nextBytes(32), Random.nextBytes(32))
+        )
+    }
+
+    @After
+    fun tearDown() {
+        helper.close()
+        context.deleteDatabase(DATABASE_NAME)
+    }
+
+    @Test
+    fun attachments_are_grouped_by_message_in_row_order() {
+        val first = listOf(insertAttachment(mmsId = 1), insertAttachment(mmsId = 1), insertAttachment(mmsId = 1))
+        val second = listOf(insertAttachment(mmsId = 2))
+        insertAttachment(mmsId = 3)
+
+        val result = attachmentDatabase.getAttachmentsForMessages(listOf(2L, 1L, 4L))
+
+        assertEquals(2, result.size())
+        assertEquals(first, result[1L]!!.map { it.attachmentId })
+        assertEquals(second, result[2L]!!.map { it.attachmentId })
+        assertTrue(result[1L]!!.all { it.mmsId == 1L && it.contentType == CONTENT_TYPE })
+        assertNull(result[3L])
+        assertNull(result[4L])
+    }
+
+    @Test
+    fun no_messages_loads_nothing() {
+        insertAttachment(mmsId = 1)
+
+        assertEquals(0, attachmentDatabase.getAttachmentsForMessages(emptyList()).size())
+    }
+
+    @Test
+    fun paged_cursor_reads_the_attachments_of_every_row() {
+        val rowCount = PagedAttachmentCursor.PAGE_SIZE * 2 + 5
+        val expected = (1L..rowCount).associateWith { mmsId ->
+            List((mmsId % 3).toInt()) { insertAttachment(mmsId) }
+        }
+        val cursor = MatrixCursor(arrayOf(MmsSmsColumns.ID, MmsSmsDatabase.TRANSPORT))
+        expected.keys.forEach { cursor.addRow(arrayOf<Any>(it, MmsSmsDatabase.MMS_TRANSPORT)) }
+
+        PagedAttachmentCursor(cursor, attachmentDatabase).use { paged ->
+            while (paged.moveToNext()) {
+                val mmsId = paged.getLong(0)
+                assertEquals("message $mmsId", expected[mmsId], paged.attachments.map { it.attachmentId })
+            }
+        }
+    }
+
+    private fun insertAttachment(mmsId: Long): AttachmentId {
+        val uniqueId = Random.nextLong(Long.MAX_VALUE)
+        val rowId = helper.writableDatabase.insert(AttachmentDatabase.TABLE_NAME, null, ContentValues().apply {
+            put(AttachmentDatabase.MMS_ID, mmsId)
+            put(AttachmentDatabase.UNIQUE_ID, uniqueId)
+            put(AttachmentDatabase.CONTENT_TYPE, CONTENT_TYPE)
+            put(AttachmentDatabase.TRANSFER_STATE, AttachmentState.DONE.value)
+        })
+        return AttachmentId(rowId, uniqueId)
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "attachments-for-messages-test.db"
+        private const val CONTENT_TYPE = "image/jpeg"
+    }
+}
@@ -0,0 +1,121 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.serialization.json.Json
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.session.libsignal.utilities.Snode
+import org.thoughtcrime.securesms.crypto.DatabaseSecret
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import org.thoughtcrime.securesms.util.AppVisibilityManager
+import kotlin.random.Random
+
+/**
+ * Runs on a device as SQLCipher's native library can't be loaded on the JVM.
+ */
+@RunWith(AndroidJUnit4::class)
+class LokiAPIDatabaseTest {
+
+    private val context: Context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val scope = CoroutineScope(SupervisorJob())
+    private lateinit var helper: SQLCipherOpenHelper
+
+    private val snodes = (1..9).map { Snode("https://10.0.0.$it", 443, Snode.KeySet("ed$it", "x$it"), Snode.Version.ZERO) }
+
+    @Before
+    fun setUp() {
+        System.loadLibrary("sqlcipher")
+        context.deleteDatabase(DATABASE_NAME)
+        helper = SQLCipherOpenHelper(context, DATABASE_NAME, DatabaseSecret(Random.nextBytes(32)), { Json })
+    }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+        helper.close()
+        context.deleteDatabase(DATABASE_NAME)
+    }
+
+    /**
+     * A new instance has nothing in memory, so it reads everything from disk.
+     */
+    private fun newDatabase() = LokiAPIDatabase(context, { helper }, scope, AppVisibilityManager(scope))
+
+    @Test
+    fun network_state_is_read_back_after_a_flush() {
+        val database = newDatabase()
+        database.setSnodePool(snodes.toSet())
+        database.setOnionRequestPaths(listOf(snodes.take(3), snodes.drop(3).take(3)))
+        database.setSwarm(PUBLIC_KEY, snodes.takeLast(3).toSet())
+        database.setLastMessageHashValue(snodes[0], PUBLIC_KEY, "hash", namespace = 0)
+
+        assertEquals(emptySet<Snode>(), newDatabase().getSnodePool())
+
+        database.flushNetworkState()
+
+        val reloaded = newDatabase()
+        assertEquals(snodes.toSet(), reloaded.getSnodePool())
+        assertEquals(listOf(snodes.take(3), snodes.drop(3).take(3)), reloaded.getOnionRequestPaths())
+        assertEquals(snodes.takeLast(3).toSet(), reloaded.getSwarm(PUBLIC_KEY))
+        assertEquals("hash", reloaded.getLastMessageHashValue(snodes[0], PUBLIC_KEY, namespace = 0))
+        assertEquals(snodes[0].publicKeySet, reloaded.getSnodePool().first { it == snodes[0] }.publicKeySet)
+    }
+
+    @Test
+    fun cleared_network_state_is_removed_from_disk() {
+        val database = newDatabase()
+        database.setSnodePool(snodes.toSet())
+        database.setOnionRequestPaths(listOf(snodes.take(3)))
+        database.setLastMessageHashValue(snodes[0], PUBLIC_KEY, "hash", namespace = 0)
+        database.setLastMessageHashValue(snodes[0], PUBLIC_KEY, "other hash", namespace = 2)
+        database.setLastMessageHashValue(snodes[0], OTHER_PUBLIC_KEY, "hash", namespace = 0)
+        database.flushNetworkState()
+
+        database.clearSnodePool()
+        database.clearOnionRequestPaths()
+        database.clearLastMessageHashesByNamespaces(2)
+        database.clearLastMessageHashes(OTHER_PUBLIC_KEY)
+        database.flushNetworkState()
+
+        val reloaded = newDatabase()
+        assertEquals(emptySet<Snode>(), reloaded.getSnodePool())
+        assertEquals(emptyList<List<Snode>>(), reloaded.getOnionRequestPaths())
+        assertEquals("hash", reloaded.getLastMessageHashValue(snodes[0], PUBLIC_KEY, namespace = 0))
+        assertNull(reloaded.getLastMessageHashValue(snodes[0], PUBLIC_KEY, namespace = 2))
+        assertNull(reloaded.getLastMessageHashValue(snodes[0], OTHER_PUBLIC_KEY, namespace = 0))
+    }
+
+    @Test
+    fun a_failed_flush_is_written_by_the_next_one() {
+        val database = newDatabase()
+        database.setLastMessageHashValue(snodes[0], PUBLIC_KEY, "hash", namespace = 0)
+        // Moving the table away makes the whole transaction fail
+        helper.writableDatabase.execSQL("ALTER TABLE snode_pool RENAME TO snode_pool_away")
+        database.setSnodePool(snodes.toSet())
+
+        database.flushNetworkState()
+        assertNull(newDatabase().getLastMessageHashValue(snodes[0], PUBLIC_KEY, namespace = 0))
+
+        helper.writableDatabase.execSQL("ALTER TABLE snode_pool_away RENAME TO snode_pool")
+        database.flushNetworkState()
+
+        val reloaded = newDatabase()
+        assertEquals(snodes.toSet(), reloaded.getSnodePool())
+        assertEquals("hash", reloaded.getLastMessageHashValue(snodes[0], PUBLIC_KEY, namespace = 0))
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "loki-api-database-test.db"
+        private val PUBLIC_KEY = "05" + "aa".repeat(32)
+        private val OTHER_PUBLIC_KEY = "05" + "bb".repeat(32)
+    }
+}
@@ -34,7 +34,6 @@ interface MessageDataProvider {
     fun getSignalAttachmentPointer(attachmentId: Long): SignalServiceAttachmentPointer?
     fun setAttachmentState(attachmentState: AttachmentState, attachmentId: AttachmentId, messageID: Long)
     fun insertAttachment(messageId: Long, attachmentId: AttachmentId, stream : InputStream)
-    fun updateAudioAttachmentDuration(attachmentId: AttachmentId, durationMs: Long, threadId: Long)
     fun isOutgoingMessage(id: MessageId): Boolean
     fun isDeletedMessage(id: MessageId): Boolean
     fun handleSuccessfulAttachmentUpload(attachmentId: Long, attachmentStream: SignalServiceAttachmentStream, attachmentKey: ByteArray, uploadResult: UploadResult)
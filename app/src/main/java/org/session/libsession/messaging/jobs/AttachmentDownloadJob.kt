@@ -16,13 +16,12 @@ import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.snode.OnionRequestAPI
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.Address
-import org.session.libsession.utilities.DecodedAudio
 import org.session.libsession.utilities.DownloadUtilities
-import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsignal.streams.AttachmentCipherInputStream
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.Log
+import org.thoughtcrime.securesms.database.AttachmentDatabase
 import org.thoughtcrime.securesms.database.RecipientRepository
 import org.thoughtcrime.securesms.database.model.MessageId
 import java.io.File
@@ -37,6 +36,7 @@ class AttachmentDownloadJob @AssistedInject constructor(
     private val storage: StorageProtocol,
     private val messageDataProvider: MessageDataProvider,
     private val recipientRepository: RecipientRepository,
+    private val attachmentDatabase: AttachmentDatabase,
 ) : Job {
     override var delegate: JobDelegate? = null
     override var id: String? = null
@@ -183,18 +183,8 @@ class AttachmentDownloadJob @AssistedInject constructor(
             messageDataProvider.insertAttachment(mmsMessageId, attachment.attachmentId, inputStream)
             if (attachment.contentType.startsWith("audio/")) {
                 // process the duration
-                    try {
-                        InputStreamMediaDataSource(getInputStream(tempFile, attachment)).use { mediaDataSource ->
-                            val durationMs = (DecodedAudio.create(mediaDataSource).totalDurationMicroseconds / 1000.0).toLong()
-                            messageDataProvider.updateAudioAttachmentDuration(
-                                attachment.attachmentId,
-                                durationMs,
-                                threadID
-                            )
-                        }
-                    } catch (e: Exception) {
-                        Log.e("Loki", "Couldn't process audio attachment", e)
-                    }
+                attachmentDatabase.updateAttachmentAudioDuration(attachment.attachmentId)
+                    ?: Log.e("Loki", "Couldn't process audio attachment")
             }
             Log.d("AttachmentDownloadJob", "deleting tempfile")
             tempFile.delete()
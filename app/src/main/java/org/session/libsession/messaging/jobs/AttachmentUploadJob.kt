@@ -19,8 +19,6 @@ import org.session.libsession.messaging.sending_receiving.MessageSender
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.Address
-import org.session.libsession.utilities.DecodedAudio
-import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsession.utilities.UploadResult
 import org.session.libsignal.messages.SignalServiceAttachmentStream
 import org.session.libsignal.streams.AttachmentCipherOutputStream
@@ -31,6 +29,7 @@ import org.session.libsignal.streams.PlaintextOutputStreamFactory
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.PushAttachmentData
 import org.session.libsignal.utilities.Util
+import org.thoughtcrime.securesms.database.AttachmentDatabase
 import org.thoughtcrime.securesms.database.ThreadDatabase
 
 class AttachmentUploadJob @AssistedInject constructor(
@@ -42,6 +41,7 @@ class AttachmentUploadJob @AssistedInject constructor(
     private val messageDataProvider: MessageDataProvider,
     private val messageSendJobFactory: MessageSendJob.Factory,
     private val threadDatabase: ThreadDatabase,
+    private val attachmentDatabase: AttachmentDatabase,
 ) : Job {
     override var delegate: JobDelegate? = null
     override var id: String? = null
@@ -133,17 +133,12 @@ class AttachmentUploadJob @AssistedInject constructor(
 
         // We don't need to calculate the duration for voice notes, as they will have it set already.
         if (attachment.contentType.startsWith("audio/") && !attachment.voiceNote) {
-            try {
-                val inputStream = messageDataProvider.getAttachmentStream(attachmentID)!!.inputStream!!
-                InputStreamMediaDataSource(inputStream).use { mediaDataSource ->
-                    val durationMS = (DecodedAudio.create(mediaDataSource).totalDurationMicroseconds / 1000.0).toLong()
-                    Log.d(TAG, "Audio attachment duration calculated as: $durationMS ms")
-                    messageDataProvider.getDatabaseAttachment(attachmentID)?.attachmentId?.let { attachmentId ->
-                        messageDataProvider.updateAudioAttachmentDuration(attachmentId, durationMS, threadID.toLong())
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e("Loki", "Couldn't process audio attachment", e)
+            val durationMS = messageDataProvider.getDatabaseAttachment(attachmentID)?.attachmentId
+                ?.let(attachmentDatabase::updateAttachmentAudioDuration)
+            if (durationMS != null) {
+                Log.d(TAG, "Audio attachment duration calculated as: $durationMS ms")
+            } else {
+                Log.e("Loki", "Couldn't process audio attachment")
             }
         }
 
@@ -137,14 +137,12 @@ class BatchMessageReceiveJob @AssistedInject constructor(
 
         val contactConfigTimestamp = configFactory.getConfigTimestamp(UserConfigType.CONTACTS, publicKey)
 
-        return configFactory.withUserConfigs { configs ->
-            message.groupPublicKey == null && // not a group
-                    message.openGroupServerMessageID == null && // not a community
-                    // not marked as hidden
-                    configs.contacts.get(message.senderOrSync)?.priority == ConfigBase.PRIORITY_HIDDEN &&
-                    // the message's sentTimestamp is earlier than the sentTimestamp of the last config
-                    message.sentTimestamp!! < contactConfigTimestamp
-        }
+        return message.groupPublicKey == null && // not a group
+                message.openGroupServerMessageID == null && // not a community
+                // not marked as hidden
+                configFactory.userConfigsSnapshot().contacts[message.senderOrSync]?.priority == ConfigBase.PRIORITY_HIDDEN &&
+                // the message's sentTimestamp is earlier than the sentTimestamp of the last config
+                message.sentTimestamp!! < contactConfigTimestamp
     }
 
     suspend fun executeAsync(dispatcherName: String) {
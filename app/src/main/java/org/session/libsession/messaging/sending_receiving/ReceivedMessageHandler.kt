@@ -278,7 +278,7 @@ class ReceivedMessageHandler @Inject constructor(
 
         // update notification
         if (!messageToDelete.isOutgoing) {
-            notificationManager.updateNotification(context)
+            notificationManager.updateNotification(context, messageToDelete.threadId, false)
         }
 
         return messageIdToDelete
@@ -2,8 +2,6 @@ package org.session.libsession.messaging.sending_receiving.attachments
 
 data class DatabaseAttachmentAudioExtras(
     val attachmentId: AttachmentId,
-    /** Small amount of normalized audio byte samples to visualise the content (e.g. draw waveform). */
-    val visualSamples: ByteArray,
     /** Duration of the audio track in milliseconds. May be [DURATION_UNDEFINED] when it is not known. */
     val durationMs: Long = DURATION_UNDEFINED) {
 
@@ -12,4 +12,6 @@ interface MessageNotifier {
     fun updateNotification(context: Context, threadId: Long, signal: Boolean)
     fun updateNotification(context: Context, signal: Boolean, reminderCount: Int)
     fun clearReminder(context: Context)
+    /** Called when the user dismisses notifications, which marks their messages as notified. */
+    fun onNotificationsDismissed()
 }
@@ -12,7 +12,6 @@ import org.session.libsession.snode.OnionRequestAPI
 import org.session.libsession.snode.OnionResponse
 import org.session.libsession.snode.Version
 import org.session.libsession.snode.utilities.asyncPromise
-import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.Device
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.utilities.JsonUtil
@@ -60,7 +59,7 @@ object PushRegistryV1 {
         val body =  JsonUtil.toJson(parameters).toRequestBody("application/json".toMediaType())
         val request = Request.Builder().url(url).post(body).build()
 
-        sendOnionRequest(request).await().checkError()
+        sendOnionRequest(request).checkError()
         Log.d(TAG, "registerV1 success")
     }
 
@@ -76,7 +75,7 @@ object PushRegistryV1 {
             val url = "${server.url}/unregister"
             val body = JsonUtil.toJson(parameters).toRequestBody("application/json".toMediaType())
             val request = Request.Builder().url(url).post(body).build()
-            sendOnionRequest(request).await().checkError()
+            sendOnionRequest(request).checkError()
             Log.d(TAG, "unregisterV1 success")
         }
     }
@@ -111,7 +110,6 @@ object PushRegistryV1 {
 
         retryWithUniformInterval(MAX_RETRY_COUNT) {
             sendOnionRequest(request)
-                .await()
                 .checkError()
         }
     }
@@ -122,7 +120,7 @@ object PushRegistryV1 {
         }
     }
 
-    private fun sendOnionRequest(request: Request): Promise<OnionResponse, Exception> = OnionRequestAPI.sendOnionRequest(
+    private suspend fun sendOnionRequest(request: Request): OnionResponse = OnionRequestAPI.sendOnionRequestSuspend(
         request,
         server.url,
         server.publicKey,
@@ -31,15 +31,14 @@ import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveParameters
-import org.session.libsession.snode.RawResponse
 import org.session.libsession.snode.SnodeAPI
+import org.session.libsession.snode.model.RetrieveMessageResponse
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.ConfigFactoryProtocol
 import org.session.libsession.utilities.ConfigMessage
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsession.utilities.UserConfigType
 import org.session.libsignal.database.LokiAPIDatabaseProtocol
-import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.Snode
 import org.thoughtcrime.securesms.util.AppVisibilityManager
@@ -124,7 +123,6 @@ class Poller @AssistedInject constructor(
             preferences.migratedToMultiPartConfig = true
         }
 
-        val pollPool = hashSetOf<Snode>() // pollPool is the list of snodes we can use while rotating snodes from our swarm
         var retryScalingFactor = 1.0f // We increment the retry interval by NEXT_RETRY_MULTIPLIER times this value, which we bump on each failure
 
         var scheduledNextPoll = 0L
@@ -166,17 +164,8 @@ class Poller @AssistedInject constructor(
             var pollDelay = RETRY_INTERVAL_MS
             collector.emit(PollState.Polling)
             try {
-                // check if the polling pool is empty
-                if (pollPool.isEmpty()) {
-                    // if it is empty, fill it with the snodes from our swarm
-                    pollPool.addAll(SnodeAPI.getSwarm(userPublicKey).await())
-                }
-
-                // randomly get a snode from the pool
-                val currentNode = pollPool.random()
-
-                // remove that snode from the pool
-                pollPool.remove(currentNode)
+                // Stick to the same swarm member for as long as it stays healthy
+                val currentNode = SnodeAPI.getSingleTargetSnode(userPublicKey).await()
 
                 poll(currentNode, pollOnlyUserProfileConfig)
                 retryScalingFactor = 1f
@@ -208,8 +197,8 @@ class Poller @AssistedInject constructor(
         }
     }
 
-    private fun processPersonalMessages(snode: Snode, rawMessages: RawResponse) {
-        val messages = SnodeAPI.parseRawMessagesResponse(rawMessages, snode, userPublicKey)
+    private fun processPersonalMessages(snode: Snode, response: RetrieveMessageResponse) {
+        val messages = SnodeAPI.parseRetrievedMessages(response.messages.filterNotNull(), snode, userPublicKey)
         val parameters = messages.map { (envelope, serverHash) ->
             MessageReceiveParameters(envelope.toByteArray(), serverHash = serverHash)
         }
@@ -221,25 +210,24 @@ class Poller @AssistedInject constructor(
         }
     }
 
-    private fun processConfig(snode: Snode, rawMessages: RawResponse, forConfig: UserConfigType) {
-        Log.d(TAG, "Received ${rawMessages.size} messages for $forConfig")
-        val messages = rawMessages["messages"] as? List<*>
+    private fun processConfig(snode: Snode, response: RetrieveMessageResponse, forConfig: UserConfigType) {
+        val messages = response.messages.filterNotNull()
+        Log.d(TAG, "Received ${messages.size} messages for $forConfig")
         val namespace = forConfig.namespace
-        val processed = if (!messages.isNullOrEmpty()) {
-            SnodeAPI.updateLastMessageHashValueIfPossible(snode, userPublicKey, messages, namespace)
+        val processed = if (messages.isNotEmpty()) {
+            SnodeAPI.updateLastMessageHash(snode, userPublicKey, messages, namespace)
             SnodeAPI.removeDuplicates(
                 publicKey = userPublicKey,
                 messages = messages,
-                messageHashGetter = { (it as? Map<*, *>)?.get("hash") as? String },
+                messageHashGetter = { it.hash },
                 namespace = namespace,
                 updateStoredHashes = true
-            ).mapNotNull { rawMessageAsJSON ->
-                rawMessageAsJSON as Map<*, *> // removeDuplicates should have ensured this is always a map
-                val hashValue = rawMessageAsJSON["hash"] as? String ?: return@mapNotNull null
-                val b64EncodedBody = rawMessageAsJSON["data"] as? String ?: return@mapNotNull null
-                val timestamp = rawMessageAsJSON["t"] as? Long ?: SnodeAPI.nowWithOffset
-                val body = Base64.decode(b64EncodedBody)
-                ConfigMessage(data = body, hash = hashValue, timestamp = timestamp)
+            ).map { message ->
+                ConfigMessage(
+                    data = message.data,
+                    hash = message.hash,
+                    timestamp = message.timestamp ?: SnodeAPI.nowWithOffset
+                )
             }
         } else emptyList()
 
@@ -280,7 +268,7 @@ class Poller @AssistedInject constructor(
                         snode = snode,
                         publicKey = userPublicKey,
                         request = request,
-                        responseType = Map::class.java
+                        responseType = RetrieveMessageResponse::class.java
                     )
                 }
             }
@@ -314,7 +302,7 @@ class Poller @AssistedInject constructor(
 
                     this.async {
                         type to runCatching {
-                            SnodeAPI.sendBatchRequest(snode, userPublicKey, request, Map::class.java)
+                            SnodeAPI.sendBatchRequest(snode, userPublicKey, request, RetrieveMessageResponse::class.java)
                         }
                     }
                 }
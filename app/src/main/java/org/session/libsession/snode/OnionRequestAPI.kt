@@ -1,5 +1,7 @@
 package org.session.libsession.snode
 
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
@@ -9,7 +11,7 @@ import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
-import nl.komponents.kovenant.Deferred
+import kotlinx.coroutines.withContext
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.all
 import nl.komponents.kovenant.deferred
@@ -17,13 +19,17 @@ import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.functional.map
 import okhttp3.Request
 import org.session.libsession.messaging.file_server.FileServerApi
+import org.session.libsession.snode.utilities.HealthTracker
+import org.session.libsession.snode.utilities.OnionRequestMetrics
+import org.session.libsession.snode.utilities.SparePathPool
 import org.session.libsession.snode.utilities.asyncPromise
+import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.AESGCM
-import org.session.libsession.utilities.AESGCM.EncryptionResult
 import org.session.libsession.utilities.getBodyForOnionRequest
 import org.session.libsession.utilities.getHeadersForOnionRequest
 import org.session.libsignal.crypto.secureRandom
 import org.session.libsignal.crypto.secureRandomOrNull
+import org.session.libsignal.crypto.secureWeightedRandom
 import org.session.libsignal.database.LokiAPIDatabaseProtocol
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.ByteArraySlice
@@ -31,10 +37,12 @@ import org.session.libsignal.utilities.ByteArraySlice.Companion.view
 import org.session.libsignal.utilities.ForkInfo
 import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.LatencyHistogram
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.Snode
-import org.session.libsignal.utilities.recover
-import org.session.libsignal.utilities.toHexString
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 private typealias Path = List<Snode>
 
@@ -47,8 +55,27 @@ object OnionRequestAPI {
     private var buildPathsPromise: Promise<List<Path>, Exception>? = null
     private val database: LokiAPIDatabaseProtocol
         get() = SnodeModule.shared.storage
-    private val pathFailureCount = mutableMapOf<Path, Int>()
-    private val snodeFailureCount = mutableMapOf<Snode, Int>()
+    private val pathHealth = HealthTracker<Path>()
+    private val snodeFailureCount = ConcurrentHashMap<Snode, Int>()
+    @Volatile
+    private var lastProactivePathRebuild = 0L
+    private val sparePaths = SparePathPool(
+        targetCount = sparePathCount,
+        scope = GlobalScope,
+        isUsable = { it in SnodeAPI.snodePool },
+        buildPath = { excludedSnodes -> buildSparePath(excludedSnodes + paths.value.flatten()) }
+    )
+    private val lastPathFailure = AtomicLong(0L)
+
+    /**
+     * Time between a path being dropped and the next onion request succeeding.
+     */
+    val pathRecoveryTime = LatencyHistogram()
+
+    /**
+     * Outcomes, hop counts and latencies of the onion requests sent.
+     */
+    val requestMetrics = OnionRequestMetrics()
 
     var guardSnodes = setOf<Snode>()
 
@@ -66,6 +93,7 @@ object OnionRequestAPI {
             mutablePaths
                 .drop(1) // Drop the first result where it just comes from the db
                 .collectLatest {
+                pathHealth.retainAll(it)
                 if (it.isEmpty()) {
                     database.clearOnionRequestPaths()
                 } else {
@@ -97,6 +125,46 @@ object OnionRequestAPI {
      * The number of paths to maintain.
      */
     const val targetPathCount = 2 // A main path and a backup path for the case where the target snode is in the main path
+    /**
+     * The latency assumed for a path that hasn't completed a request yet.
+     */
+    private const val defaultPathLatencyMs = 1_000.0
+    /**
+     * The number of requests a path needs to have completed before it can be judged as degraded.
+     */
+    private const val pathDegradationMinSamples = 5
+    /**
+     * A path is degraded when it's this many times slower than the best other path...
+     */
+    private const val pathDegradationLatencyFactor = 3.0
+    /**
+     * ...and slower than this in absolute terms.
+     */
+    private const val pathDegradationMinLatencyMs = 2_000.0
+    /**
+     * A path is also degraded when its error rate goes above this.
+     */
+    private const val pathDegradationErrorRate = 0.5
+    /**
+     * Only requests whose body and response together are smaller than this are used as latency samples,
+     * the round trip of larger ones is dominated by the transfer rather than by the path.
+     */
+    internal const val maxLatencySampleBytes = 16 * 1024
+    /**
+     * The minimum time between two proactive path rebuilds.
+     */
+    private const val proactivePathRebuildIntervalMs = 60_000L
+    /**
+     * The number of guard snodes tested while looking for the guard of a spare path.
+     */
+    private const val spareGuardSnodeAttempts = 3
+    /**
+     * The number of ready-to-use paths kept in memory on top of `targetPathCount`, so that a failed
+     * path can be replaced without waiting for a new one to be built. Spare paths aren't persisted.
+     * Read from the preferences once, as every spare path costs a guard snode test and some memory.
+     */
+    val sparePathCount: Int
+        get() = SnodeModule.shared.sparePathCount
     // endregion
 
     class HTTPRequestFailedBlindingRequiredException(statusCode: Int, json: Map<*, *>, destination: String): HTTPRequestFailedAtDestinationException(statusCode, json, destination)
@@ -105,9 +173,9 @@ object OnionRequestAPI {
     class InsufficientSnodesException : Exception("Couldn't find enough snodes to build a path.")
 
     private data class OnionBuildingResult(
+        val path: Path,
         val guardSnode: Snode,
-        val finalEncryptionResult: EncryptionResult,
-        val destinationSymmetricKey: ByteArray
+        val onion: OnionRequestEncryption.Onion
     )
 
     internal sealed class Destination(val description: String) {
@@ -134,13 +202,14 @@ object OnionRequestAPI {
      * Finds `targetGuardSnodeCount` guard snodes to use for path building. The returned promise errors out if not
      * enough (reliable) snodes are available.
      */
-    private fun getGuardSnodes(reusableGuardSnodes: List<Snode>): Promise<Set<Snode>, Exception> {
-        if (guardSnodes.count() >= targetGuardSnodeCount) {
-            return Promise.of(guardSnodes)
+    private fun getGuardSnodes(reusableGuardSnodes: List<Snode>, excludedGuardSnodes: Set<Snode>): Promise<Set<Snode>, Exception> {
+        val currentGuardSnodes = guardSnodes.minus(excludedGuardSnodes)
+        if (currentGuardSnodes.count() >= targetGuardSnodeCount) {
+            return Promise.of(currentGuardSnodes)
         } else {
             Log.d("Loki", "Populating guard snode cache.")
             return SnodeAPI.getRandomSnode().bind { // Just used to populate the snode pool
-                var unusedSnodes = SnodeAPI.snodePool.minus(reusableGuardSnodes)
+                var unusedSnodes = SnodeAPI.snodePool.minus(reusableGuardSnodes).minus(excludedGuardSnodes)
                 val reusableGuardSnodeCount = reusableGuardSnodes.count()
                 if (unusedSnodes.count() < (targetGuardSnodeCount - reusableGuardSnodeCount)) { throw InsufficientSnodesException() }
                 fun getGuardSnode(): Promise<Snode, Exception> {
@@ -170,15 +239,17 @@ object OnionRequestAPI {
     /**
      * Builds and returns `targetPathCount` paths. The returned promise errors out if not
      * enough (reliable) snodes are available.
+     *
+     * `excludedGuardSnodes` won't be picked as guard snodes for the new paths.
      */
-    private fun buildPaths(reusablePaths: List<Path>): Promise<List<Path>, Exception> {
+    private fun buildPaths(reusablePaths: List<Path>, excludedGuardSnodes: Set<Snode> = emptySet()): Promise<List<Path>, Exception> {
         val existingBuildPathsPromise = buildPathsPromise
         if (existingBuildPathsPromise != null) { return existingBuildPathsPromise }
         Log.d("Loki", "Building onion request paths.")
         val promise = SnodeAPI.getRandomSnode().bind { // Just used to populate the snode pool
             val reusableGuardSnodes = reusablePaths.map { it[0] }
-            getGuardSnodes(reusableGuardSnodes).map { guardSnodes ->
-                var unusedSnodes = SnodeAPI.snodePool.minus(guardSnodes).minus(reusablePaths.flatten())
+            getGuardSnodes(reusableGuardSnodes, excludedGuardSnodes).map { guardSnodes ->
+                var unusedSnodes = SnodeAPI.snodePool.minus(guardSnodes).minus(reusablePaths.flatten()).minus(excludedGuardSnodes)
                 val reusableGuardSnodeCount = reusableGuardSnodes.count()
                 val pathSnodeCount = (targetGuardSnodeCount - reusableGuardSnodeCount) * pathSize - (targetGuardSnodeCount - reusableGuardSnodeCount)
                 if (unusedSnodes.count() < pathSnodeCount) { throw InsufficientSnodesException() }
@@ -199,17 +270,58 @@ object OnionRequestAPI {
                 paths
             }
         }
-        promise.success { buildPathsPromise = null }
+        promise.success {
+            buildPathsPromise = null
+            sparePaths.fill()
+        }
         promise.fail { buildPathsPromise = null }
         buildPathsPromise = promise
         return promise
     }
 
+    /**
+     * Builds a spare path that doesn't go through `excludedSnodes`. Like regular paths, only the
+     * guard snode of a spare path is tested.
+     */
+    private suspend fun buildSparePath(excludedSnodes: Set<Snode>): Path {
+        SnodeAPI.getRandomSnode().await() // Just used to populate the snode pool
+        var unusedSnodes = SnodeAPI.snodePool.minus(excludedSnodes)
+        var guardSnode: Snode? = null
+        for (attempt in 0 until spareGuardSnodeAttempts) {
+            if (unusedSnodes.count() < pathSize) { throw InsufficientSnodesException() }
+            val candidate = unusedSnodes.secureRandom()
+            unusedSnodes = unusedSnodes.minus(candidate)
+            try {
+                testSnode(candidate).await()
+                guardSnode = candidate
+                break
+            } catch (exception: Exception) {
+                Log.d("Loki", "Spare guard snode $candidate failed testing: ${exception.message}.")
+            }
+        }
+        if (guardSnode == null) { throw InsufficientSnodesException() }
+        // Don't test path snodes as this would reveal the user's IP to them
+        return listOf(guardSnode) + (0 until (pathSize - 1)).map {
+            unusedSnodes.secureRandom().also { unusedSnodes = unusedSnodes.minus(it) }
+        }
+    }
+
+    /**
+     * Fills the missing paths with spare ones. Returns true if there are `targetPathCount` paths afterwards.
+     */
+    private fun topUpPathsFromSpares(): Boolean {
+        val currentPaths = mutablePaths.value
+        val paths = sparePaths.promote(currentPaths, targetPathCount)
+        if (paths != currentPaths) { mutablePaths.value = paths }
+        return paths.count() >= targetPathCount
+    }
+
     /**
      * Returns a `Path` to be used for building an onion request. Builds new paths as needed.
      */
     private fun getPath(snodeToExclude: Snode?): Promise<Path, Exception> {
         if (pathSize < 1) { throw Exception("Can't build path of size zero.") }
+        topUpPathsFromSpares()
         val paths = this.paths.value
         val guardSnodes = mutableSetOf<Snode>()
         if (paths.isNotEmpty()) {
@@ -220,11 +332,13 @@ object OnionRequestAPI {
         }
         OnionRequestAPI.guardSnodes = guardSnodes
         fun getPath(paths: List<Path>): Path {
-            return if (snodeToExclude != null) {
-                paths.filter { !it.contains(snodeToExclude) }.secureRandom()
+            val candidates = if (snodeToExclude != null) {
+                paths.filter { !it.contains(snodeToExclude) }
             } else {
-                paths.secureRandom()
+                paths
             }
+            // Favour the healthier path while still sending some traffic over the others
+            return candidates.secureWeightedRandom { 1.0 / pathHealth.score(it, defaultPathLatencyMs) }
         }
         when {
             paths.count() >= targetPathCount -> {
@@ -256,7 +370,7 @@ object OnionRequestAPI {
         // We repair the path here because we can do it sync. In the case where we drop a whole
         // path we leave the re-building up to getPath() because re-building the path in that case
         // is async.
-        snodeFailureCount[snode] = 0
+        snodeFailureCount.remove(snode)
         val oldPaths = mutablePaths.value.toMutableList()
         val pathIndex = oldPaths.indexOfFirst { it.contains(snode) }
         if (pathIndex == -1) { return }
@@ -274,154 +388,187 @@ object OnionRequestAPI {
     }
 
     private fun dropPath(path: Path) {
-        pathFailureCount[path] = 0
+        pathHealth.remove(path)
         val paths = mutablePaths.value.toMutableList()
         val pathIndex = paths.indexOf(path)
         if (pathIndex == -1) { return }
         paths.removeAt(pathIndex)
         mutablePaths.value = paths
+        lastPathFailure.compareAndSet(0L, System.currentTimeMillis())
+        // Swap a spare in straight away rather than waiting for getPath() to rebuild one
+        topUpPathsFromSpares()
+    }
+
+    /**
+     * Replaces `path` in the background if it has become much slower or less reliable than the
+     * other paths, before it fails often enough to be dropped. The path keeps being used until
+     * its replacement is ready.
+     */
+    private fun rebuildPathIfDegraded(path: Path) {
+        val paths = mutablePaths.value
+        if (paths.count() < targetPathCount || buildPathsPromise != null) { return }
+        val stats = pathHealth[path] ?: return
+        if (stats.sampleCount < pathDegradationMinSamples) { return }
+        val latency = stats.latencyMs ?: return
+        val bestOtherLatency = paths.asSequence()
+            .filter { it != path }
+            .mapNotNull { pathHealth[it]?.latencyMs }
+            .minOrNull() ?: return
+        val isSlow = latency > pathDegradationMinLatencyMs && latency > bestOtherLatency * pathDegradationLatencyFactor
+        if (!isSlow && stats.errorRate < pathDegradationErrorRate) { return }
+        val now = System.currentTimeMillis()
+        if (now - lastProactivePathRebuild < proactivePathRebuildIntervalMs) { return }
+        lastProactivePathRebuild = now
+        val otherPaths = paths - listOf(path)
+        val sparePath = sparePaths.take(otherPaths)
+        if (sparePath != null) {
+            Log.d("Loki", "Replacing degraded onion request path: $path ($stats) with spare path: $sparePath.")
+            pathHealth.remove(path)
+            mutablePaths.value = otherPaths + listOf(sparePath)
+        } else {
+            Log.d("Loki", "Rebuilding degraded onion request path: $path ($stats).")
+            buildPaths(otherPaths, excludedGuardSnodes = setOf(path.first()))
+        }
+    }
+
+    /**
+     * The health of each current path, in the order of [paths].
+     */
+    fun getPathStats(): List<Pair<Path, HealthTracker.Stats?>> {
+        return paths.value.map { it to pathHealth[it] }
+    }
+
+    /**
+     * The spare paths that are ready to replace a failing path.
+     */
+    fun getSparePaths(): List<Path> = sparePaths.paths
+
+    /**
+     * The path most likely to be used for the next request, if any.
+     */
+    fun getPreferredPath(): Path? {
+        return paths.value.minByOrNull { pathHealth.score(it, defaultPathLatencyMs) }
     }
 
     /**
      * Builds an onion around `payload` and returns the result.
      */
-    private fun buildOnionForDestination(
+    private suspend fun buildOnionForDestination(
         payload: ByteArray,
         destination: Destination,
         version: Version
-    ): Promise<OnionBuildingResult, Exception> {
-        lateinit var guardSnode: Snode
-        lateinit var destinationSymmetricKey: ByteArray // Needed by LokiAPI to decrypt the response sent back by the destination
-        lateinit var encryptionResult: EncryptionResult
+    ): OnionBuildingResult {
         val snodeToExclude = when (destination) {
             is Destination.Snode -> destination.snode
             is Destination.Server -> null
         }
-        return getPath(snodeToExclude).map { path ->
-            guardSnode = path.first()
-            // Encrypt in reverse order, i.e. the destination first
-            OnionRequestEncryption.encryptPayloadForDestination(payload, destination, version).let { r ->
-                destinationSymmetricKey = r.symmetricKey
-                // Recursively encrypt the layers of the onion (again in reverse order)
-                encryptionResult = r
-                @Suppress("NAME_SHADOWING") var path = path
-                var rhs = destination
-                fun addLayer(): EncryptionResult {
-                    return if (path.isEmpty()) {
-                        encryptionResult
-                    } else {
-                        val lhs = Destination.Snode(path.last())
-                        path = path.dropLast(1)
-                        OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult).let { r ->
-                            encryptionResult = r
-                            rhs = lhs
-                            addLayer()
-                        }
-                    }
-                }
-                addLayer()
-            }
-        }.map { OnionBuildingResult(guardSnode, encryptionResult, destinationSymmetricKey) }
+        val path = getPath(snodeToExclude).await()
+        return OnionBuildingResult(
+            path = path,
+            guardSnode = path.first(),
+            onion = OnionRequestEncryption.buildOnion(payload, destination, path, version)
+        )
     }
 
     /**
      * Sends an onion request to `destination`. Builds new paths as needed.
+     *
+     * The request runs in the calling coroutine, so cancelling it cancels the request.
      */
-    private fun sendOnionRequest(
+    private suspend fun sendOnionRequestSuspend(
         destination: Destination,
         payload: ByteArray,
         version: Version
-    ): Promise<OnionResponse, Exception> {
-        val deferred = deferred<OnionResponse, Exception>()
-        var guardSnode: Snode? = null
-        buildOnionForDestination(payload, destination, version).success { result ->
-            guardSnode = result.guardSnode
-            val nonNullGuardSnode = result.guardSnode
-            val url = "${nonNullGuardSnode.address}:${nonNullGuardSnode.port}/onion_req/v2"
-            val finalEncryptionResult = result.finalEncryptionResult
-            val onion = finalEncryptionResult.ciphertext
-            if (destination is Destination.Server && onion.count().toDouble() > 0.75 * FileServerApi.MAX_FILE_SIZE.toDouble()) {
-                Log.d("Loki", "Approaching request size limit: ~${onion.count()} bytes.")
+    ): OnionResponse = withContext(Dispatchers.Default) {
+        val result = buildOnionForDestination(payload, destination, version)
+        val guardSnode = result.guardSnode
+        val url = "${guardSnode.address}:${guardSnode.port}/onion_req/v2"
+        val body = result.onion.body
+        if (destination is Destination.Server && body.size.toDouble() > 0.75 * FileServerApi.MAX_FILE_SIZE.toDouble()) {
+            Log.d("Loki", "Approaching request size limit: ~${body.size} bytes.")
+        }
+        val startTime = System.currentTimeMillis()
+        try {
+            val response = HTTP.execute(HTTP.Verb.POST, url, body)
+            val endTime = System.currentTimeMillis()
+            val onionResponse = decodeResponse(response, result.onion.destinationSymmetricKey, destination, version)
+            // Only a response that decoded cleanly counts for the path, a failed one is handled below
+            val latencySample = (endTime - startTime).takeIf { body.size + response.size <= maxLatencySampleBytes }
+            pathHealth.recordSuccess(result.path, latencySample)
+            val pathFailureTime = lastPathFailure.getAndSet(0L)
+            if (pathFailureTime != 0L) { pathRecoveryTime.record(endTime - pathFailureTime) }
+            rebuildPathIfDegraded(result.path)
+            val destinationType = when (destination) {
+                is Destination.Snode -> OnionRequestMetrics.DestinationType.SNODE
+                is Destination.Server -> OnionRequestMetrics.DestinationType.SERVER
             }
-            @Suppress("NAME_SHADOWING") val parameters = mapOf(
-                "ephemeral_key" to finalEncryptionResult.ephemeralPublicKey.toHexString()
-            )
-            val body: ByteArray
-            try {
-                body = OnionRequestEncryption.encode(onion, parameters)
-            } catch (exception: Exception) {
-                return@success deferred.reject(exception)
+            requestMetrics.onCompleted(destinationType, latencyMs = System.currentTimeMillis() - startTime)
+            onionResponse
+        } catch (e: CancellationException) {
+            requestMetrics.onCancelled()
+            throw e
+        } catch (exception: Exception) {
+            requestMetrics.onFailed()
+            if (exception is HTTP.HTTPRequestFailedException) {
+                handleRequestFailure(exception, result.path, guardSnode, destination)
             }
-            val destinationSymmetricKey = result.destinationSymmetricKey
-            GlobalScope.launch {
-                try {
-                    val response = HTTP.execute(HTTP.Verb.POST, url, body)
-                    handleResponse(response, destinationSymmetricKey, destination, version, deferred)
-                } catch (exception: Exception) {
-                    deferred.reject(exception)
+            throw exception
+        }
+    }
+
+    private fun handleRequestFailure(
+        exception: HTTP.HTTPRequestFailedException,
+        requestPath: Path,
+        guardSnode: Snode,
+        destination: Destination
+    ) {
+        // The path may have been repaired by dropSnode since the request was sent
+        val path = requestPath.takeIf { it in paths.value }
+            ?: paths.value.firstOrNull { it.contains(guardSnode) }
+
+        fun handleUnspecificError() {
+            if (path == null) { return }
+            val pathFailureCount = pathHealth.recordFailure(path)
+            if (pathFailureCount >= pathFailureThreshold) {
+                dropGuardSnode(guardSnode)
+                path.forEach { snode ->
+                    @Suppress("ThrowableNotThrown")
+                    SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, null) // Intentionally don't throw
                 }
+                dropPath(path)
+            } else {
+                rebuildPathIfDegraded(path)
             }
-        }.fail { exception ->
-            deferred.reject(exception)
         }
-        val promise = deferred.promise
-        promise.fail { exception ->
-            if (exception is HTTP.HTTPRequestFailedException) {
-                val checkedGuardSnode = guardSnode
-                val path =
-                    if (checkedGuardSnode == null) null
-                    else paths.value.firstOrNull { it.contains(checkedGuardSnode) }
-
-                fun handleUnspecificError() {
-                    if (path == null) { return }
-                    var pathFailureCount = OnionRequestAPI.pathFailureCount[path] ?: 0
-                    pathFailureCount += 1
-                    if (pathFailureCount >= pathFailureThreshold) {
-                        guardSnode?.let { dropGuardSnode(it) }
-                        path.forEach { snode ->
-                            @Suppress("ThrowableNotThrown")
-                            SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, null) // Intentionally don't throw
-                        }
-                        dropPath(path)
-                    } else {
-                        OnionRequestAPI.pathFailureCount[path] = pathFailureCount
-                    }
-                }
-                val json = exception.json
-                val message = json?.get("result") as? String
-                val prefix = "Next node not found: "
-                if (message != null && message.startsWith(prefix)) {
-                    val ed25519PublicKey = message.substringAfter(prefix)
-                    val snode = path?.firstOrNull { it.publicKeySet!!.ed25519Key == ed25519PublicKey }
-                    if (snode != null) {
-                        var snodeFailureCount = OnionRequestAPI.snodeFailureCount[snode] ?: 0
-                        snodeFailureCount += 1
-                        if (snodeFailureCount >= snodeFailureThreshold) {
-                            @Suppress("ThrowableNotThrown")
-                            SnodeAPI.handleSnodeError(exception.statusCode, json, snode, null) // Intentionally don't throw
-                            try {
-                                dropSnode(snode)
-                            } catch (exception: Exception) {
-                                handleUnspecificError()
-                            }
-                        } else {
-                            OnionRequestAPI.snodeFailureCount[snode] = snodeFailureCount
-                        }
-                    } else {
+        val json = exception.json
+        val message = json?.get("result") as? String
+        val prefix = "Next node not found: "
+        if (message != null && message.startsWith(prefix)) {
+            val ed25519PublicKey = message.substringAfter(prefix)
+            val snode = path?.firstOrNull { it.publicKeySet!!.ed25519Key == ed25519PublicKey }
+            if (snode != null) {
+                val snodeFailureCount = OnionRequestAPI.snodeFailureCount.merge(snode, 1, Int::plus)!!
+                if (snodeFailureCount >= snodeFailureThreshold) {
+                    @Suppress("ThrowableNotThrown")
+                    SnodeAPI.handleSnodeError(exception.statusCode, json, snode, null) // Intentionally don't throw
+                    try {
+                        dropSnode(snode)
+                    } catch (exception: Exception) {
                         handleUnspecificError()
                     }
-                } else if (destination is Destination.Server && exception.statusCode == 400) {
-                    Log.d("Loki","Destination server returned code ${exception.statusCode} with message: $message")
-                } else if (message == "Loki Server error") {
-                    Log.d("Loki", "message was $message")
-                } else if (exception.statusCode == 404) {
-                    // 404 is probably file server missing a file, don't rebuild path or mark a snode as bad here
-                } else { // Only drop snode/path if not receiving above two exception cases
-                    handleUnspecificError()
                 }
+            } else {
+                handleUnspecificError()
             }
+        } else if (destination is Destination.Server && exception.statusCode == 400) {
+            Log.d("Loki","Destination server returned code ${exception.statusCode} with message: $message")
+        } else if (message == "Loki Server error") {
+            Log.d("Loki", "message was $message")
+        } else if (exception.statusCode == 404) {
+            // 404 is probably file server missing a file, don't rebuild path or mark a snode as bad here
+        } else { // Only drop snode/path if not receiving above two exception cases
+            handleUnspecificError()
         }
-        return promise
     }
     // endregion
 
@@ -429,49 +576,92 @@ object OnionRequestAPI {
     /**
      * Sends an onion request to `snode`. Builds new paths as needed.
      */
-    internal fun sendOnionRequest(
+    internal suspend fun sendOnionRequestSuspend(
         method: Snode.Method,
         parameters: Map<*, *>,
         snode: Snode,
         version: Version,
         publicKey: String? = null
-    ): Promise<OnionResponse, Exception> {
+    ): OnionResponse {
         val payload = mapOf(
             "method" to method.rawValue,
             "params" to parameters
         )
         val payloadData = JsonUtil.toJson(payload).toByteArray()
-        return sendOnionRequest(Destination.Snode(snode), payloadData, version).recover { exception ->
-            val error = when (exception) {
-                is HTTPRequestFailedAtDestinationException -> SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, publicKey)
-                is HTTP.HTTPRequestFailedException -> SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, publicKey)
-                else -> null
+        val startTime = System.currentTimeMillis()
+        try {
+            val response = sendOnionRequestSuspend(Destination.Snode(snode), payloadData, version)
+            if (publicKey != null) {
+                // The round trip goes through the whole path, and only small requests say how fast the snode is
+                val latencySample = (System.currentTimeMillis() - startTime)
+                    .takeIf { payloadData.size + (response.body?.len ?: 0) <= maxLatencySampleBytes }
+                SnodeAPI.swarmSelector.recordSuccess(snode, latencySample)
             }
+            return response
+        } catch (exception: HTTP.HTTPRequestFailedException) {
+            // Also covers HTTPRequestFailedAtDestinationException, and timeouts and transport failures as status 0
+            val error = SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, publicKey)
             if (error != null) { throw error }
             throw exception
+        } catch (exception: CancellationException) {
+            throw exception
+        } catch (exception: InsufficientSnodesException) {
+            // The request never left the device, it says nothing about the snode
+            throw exception
+        } catch (exception: Exception) {
+            // E.g. a response that couldn't be decrypted or parsed
+            if (publicKey != null) { SnodeAPI.swarmSelector.recordFailure(snode) }
+            throw exception
         }
     }
 
+    /**
+     * Promise based version of [sendOnionRequestSuspend], which can't be cancelled.
+     */
+    internal fun sendOnionRequest(
+        method: Snode.Method,
+        parameters: Map<*, *>,
+        snode: Snode,
+        version: Version,
+        publicKey: String? = null
+    ): Promise<OnionResponse, Exception> = GlobalScope.asyncPromise {
+        sendOnionRequestSuspend(method, parameters, snode, version, publicKey)
+    }
+
     /**
      * Sends an onion request to `server`. Builds new paths as needed.
-     *
-     * `publicKey` is the hex encoded public key of the user the call is associated with. This is needed for swarm cache maintenance.
      */
-    fun sendOnionRequest(
+    suspend fun sendOnionRequestSuspend(
         request: Request,
         server: String,
         x25519PublicKey: String,
         version: Version = Version.V4
-    ): Promise<OnionResponse, Exception> {
+    ): OnionResponse {
         val url = request.url
         val payload = generatePayload(request, server, version)
         val destination = Destination.Server(url.host, version.value, x25519PublicKey, url.scheme, url.port)
-        return sendOnionRequest(destination, payload, version).recover { exception ->
+        try {
+            return sendOnionRequestSuspend(destination, payload, version)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (exception: Exception) {
             Log.d("Loki", "Couldn't reach server: $url due to error: $exception.")
             throw exception
         }
     }
 
+    /**
+     * Promise based version of [sendOnionRequestSuspend], which can't be cancelled.
+     */
+    fun sendOnionRequest(
+        request: Request,
+        server: String,
+        x25519PublicKey: String,
+        version: Version = Version.V4
+    ): Promise<OnionResponse, Exception> = GlobalScope.asyncPromise {
+        sendOnionRequestSuspend(request, server, x25519PublicKey, version)
+    }
+
     private fun generatePayload(request: Request, server: String, version: Version): ByteArray {
         val headers = request.getHeadersForOnionRequest().toMutableMap()
         val url = request.url
@@ -493,14 +683,16 @@ object OnionRequestAPI {
             )
             val requestData = JsonUtil.toJson(requestPayload).toByteArray()
             val prefixData = "l${requestData.size}:".toByteArray(Charsets.US_ASCII)
-            val suffixData = "e".toByteArray(Charsets.US_ASCII)
-            if (request.body != null) {
-                val bodyData = if (body is ByteArray) body else body.toString().toByteArray()
-                val bodyLengthData = "${bodyData.size}:".toByteArray(Charsets.US_ASCII)
-                prefixData + requestData + bodyLengthData + bodyData + suffixData
-            } else {
-                prefixData + requestData + suffixData
-            }
+            val bodyData = if (request.body == null) null else if (body is ByteArray) body else body.toString().toByteArray()
+            val bodyLengthData = bodyData?.let { "${it.size}:".toByteArray(Charsets.US_ASCII) }
+            // Bencoded as `l123:json456:bodye`, written straight into the payload as the body can be large
+            val payloadSize = prefixData.size + requestData.size + (bodyLengthData?.size ?: 0) + (bodyData?.size ?: 0) + 1
+            ByteBuffer.allocate(payloadSize)
+                .put(prefixData)
+                .put(requestData)
+                .apply { if (bodyData != null) put(bodyLengthData!!).put(bodyData) }
+                .put('e'.code.toByte())
+                .array()
         } else {
             val payload = mapOf(
                 "body" to body,
@@ -512,146 +704,135 @@ object OnionRequestAPI {
         }
     }
 
-    private fun handleResponse(
+    private fun decodeResponse(
         response: ByteArray,
         destinationSymmetricKey: ByteArray,
         destination: Destination,
-        version: Version,
-        deferred: Deferred<OnionResponse, Exception>
-    ) {
+        version: Version
+    ): OnionResponse {
         if (version == Version.V4) {
-            try {
-                if (response.size <= AESGCM.ivSize) return deferred.reject(Exception("Invalid response"))
-                // The data will be in the form of `l123:jsone` or `l123:json456:bodye` so we need to break the data into
-                // parts to properly process it
-                val plaintext = AESGCM.decrypt(response, symmetricKey = destinationSymmetricKey)
-                if (!byteArrayOf(plaintext.first()).contentEquals("l".toByteArray())) return deferred.reject(Exception("Invalid response"))
-                val infoSepIdx = plaintext.indexOfFirst { byteArrayOf(it).contentEquals(":".toByteArray()) }
-                val infoLenSlice = plaintext.slice(1 until infoSepIdx)
-                val infoLength = infoLenSlice.toByteArray().toString(Charsets.US_ASCII).toIntOrNull()
-                if (infoLenSlice.size <= 1 || infoLength == null) return deferred.reject(Exception("Invalid response"))
-                val infoStartIndex = "l$infoLength".length + 1
-                val infoEndIndex = infoStartIndex + infoLength
-                val info = plaintext.slice(infoStartIndex until infoEndIndex)
-                val responseInfo = JsonUtil.fromJson(info.toByteArray(), Map::class.java)
-                when (val statusCode = responseInfo["code"].toString().toInt()) {
-                    // Custom handle a clock out of sync error (v4 returns '425' but included the '406' just in case)
-                    406, 425 -> {
-                        @Suppress("NAME_SHADOWING")
-                        val exception = HTTPRequestFailedAtDestinationException(
-                            statusCode,
-                            mapOf("result" to "Your clock is out of sync with the service node network."),
-                            destination.description
-                        )
-                        return deferred.reject(exception)
-                    }
-                    // Handle error status codes
-                    !in 200..299 -> {
-                        val responseBody = if (destination is Destination.Server && statusCode == 400) plaintext.getBody(infoLength, infoEndIndex) else null
-                        val requireBlinding = "Invalid authentication: this server requires the use of blinded ids"
-                        val exception = if (responseBody != null && responseBody.decodeToString() == requireBlinding) {
-                            HTTPRequestFailedBlindingRequiredException(400, responseInfo, destination.description)
-                        } else HTTPRequestFailedAtDestinationException(
-                            statusCode,
-                            responseInfo,
-                            destination.description
-                        )
-
-                        return deferred.reject(exception)
-                    }
+            if (response.size <= AESGCM.ivSize) throw Exception("Invalid response")
+            // The data will be in the form of `l123:jsone` or `l123:json456:bodye` so we need to break the data into
+            // parts to properly process it
+            val plaintext = AESGCM.decrypt(response, symmetricKey = destinationSymmetricKey)
+            if (!byteArrayOf(plaintext.first()).contentEquals("l".toByteArray())) throw Exception("Invalid response")
+            val infoSepIdx = plaintext.indexOfFirst { byteArrayOf(it).contentEquals(":".toByteArray()) }
+            val infoLenSlice = plaintext.slice(1 until infoSepIdx)
+            val infoLength = infoLenSlice.toByteArray().toString(Charsets.US_ASCII).toIntOrNull()
+            if (infoLenSlice.size <= 1 || infoLength == null) throw Exception("Invalid response")
+            val infoStartIndex = "l$infoLength".length + 1
+            val infoEndIndex = infoStartIndex + infoLength
+            val info = plaintext.slice(infoStartIndex until infoEndIndex)
+            val responseInfo = JsonUtil.fromJson(info.toByteArray(), Map::class.java)
+            when (val statusCode = responseInfo["code"].toString().toInt()) {
+                // Custom handle a clock out of sync error (v4 returns '425' but included the '406' just in case)
+                406, 425 -> {
+                    throw HTTPRequestFailedAtDestinationException(
+                        statusCode,
+                        mapOf("result" to "Your clock is out of sync with the service node network."),
+                        destination.description
+                    )
+                }
+                // Handle error status codes
+                !in 200..299 -> {
+                    val responseBody = if (destination is Destination.Server && statusCode == 400) plaintext.getBody(infoLength, infoEndIndex) else null
+                    val requireBlinding = "Invalid authentication: this server requires the use of blinded ids"
+                    throw if (responseBody != null && responseBody.decodeToString() == requireBlinding) {
+                        HTTPRequestFailedBlindingRequiredException(400, responseInfo, destination.description)
+                    } else HTTPRequestFailedAtDestinationException(
+                        statusCode,
+                        responseInfo,
+                        destination.description
+                    )
                 }
+            }
 
-                val responseBody = plaintext.getBody(infoLength, infoEndIndex)
+            val responseBody = plaintext.getBody(infoLength, infoEndIndex)
 
-                // If there is no data in the response, i.e. only `l123:jsone`, then just return the ResponseInfo
-                if (responseBody.isEmpty()) {
-                    return deferred.resolve(OnionResponse(responseInfo, null))
-                }
-                return deferred.resolve(OnionResponse(responseInfo, responseBody))
-            } catch (exception: Exception) {
-                deferred.reject(exception)
+            // If there is no data in the response, i.e. only `l123:jsone`, then just return the ResponseInfo
+            if (responseBody.isEmpty()) {
+                return OnionResponse(responseInfo, null)
             }
+            return OnionResponse(responseInfo, responseBody)
         } else {
             val json = try {
                 JsonUtil.fromJson(response, Map::class.java)
             } catch (exception: Exception) {
                 mapOf( "result" to response.decodeToString())
             }
-            val base64EncodedIVAndCiphertext = json["result"] as? String ?: return deferred.reject(Exception("Invalid JSON"))
+            val base64EncodedIVAndCiphertext = json["result"] as? String ?: throw Exception("Invalid JSON")
             val ivAndCiphertext = Base64.decode(base64EncodedIVAndCiphertext)
+            val plaintext = AESGCM.decrypt(
+                ivAndCiphertext,
+                symmetricKey = destinationSymmetricKey
+            )
+            @Suppress("NAME_SHADOWING") val json: Map<*, *>
+            val statusCode: Int
             try {
-                val plaintext = AESGCM.decrypt(
-                    ivAndCiphertext,
-                    symmetricKey = destinationSymmetricKey
-                )
-                try {
-                    @Suppress("NAME_SHADOWING") val json =
-                        JsonUtil.fromJson(plaintext.toString(Charsets.UTF_8), Map::class.java)
-                    val statusCode = json["status_code"] as? Int ?: json["status"] as Int
-                    when {
-                        statusCode == 406 -> {
-                            @Suppress("NAME_SHADOWING")
-                            val body =
-                                mapOf("result" to "Your clock is out of sync with the service node network.")
-                            val exception = HTTPRequestFailedAtDestinationException(
-                                statusCode,
-                                body,
-                                destination.description
-                            )
-                            return deferred.reject(exception)
+                json = JsonUtil.fromJson(plaintext.toString(Charsets.UTF_8), Map::class.java)
+                statusCode = json["status_code"] as? Int ?: json["status"] as Int
+            } catch (exception: Exception) {
+                throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+            }
+            when {
+                statusCode == 406 -> {
+                    @Suppress("NAME_SHADOWING")
+                    val body =
+                        mapOf("result" to "Your clock is out of sync with the service node network.")
+                    throw HTTPRequestFailedAtDestinationException(
+                        statusCode,
+                        body,
+                        destination.description
+                    )
+                }
+                json["body"] != null -> {
+                    @Suppress("NAME_SHADOWING")
+                    val body = try {
+                        if (json["body"] is Map<*, *>) {
+                            json["body"] as Map<*, *>
+                        } else {
+                            val bodyAsString = json["body"] as String
+                            JsonUtil.fromJson(bodyAsString, Map::class.java)
                         }
-                        json["body"] != null -> {
-                            @Suppress("NAME_SHADOWING")
-                            val body = if (json["body"] is Map<*, *>) {
-                                json["body"] as Map<*, *>
-                            } else {
-                                val bodyAsString = json["body"] as String
-                                JsonUtil.fromJson(bodyAsString, Map::class.java)
-                            }
+                    } catch (exception: Exception) {
+                        throw Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}.")
+                    }
 
-                            if (body.containsKey("hf")) {
-                                @Suppress("UNCHECKED_CAST")
-                                val currentHf = body["hf"] as List<Int>
-                                if (currentHf.size < 2) {
-                                    Log.e("Loki", "Response contains fork information but doesn't have a hard and soft number")
-                                } else {
-                                    val hf = currentHf[0]
-                                    val sf = currentHf[1]
-                                    val newForkInfo = ForkInfo(hf, sf)
-                                    if (newForkInfo > SnodeAPI.forkInfo) {
-                                        SnodeAPI.forkInfo = ForkInfo(hf,sf)
-                                    } else if (newForkInfo < SnodeAPI.forkInfo) {
-                                        Log.w("Loki", "Got a new snode info fork version that was $newForkInfo, less than current known ${SnodeAPI.forkInfo}")
-                                    }
-                                }
-                            }
-                            if (statusCode != 200) {
-                                val exception = HTTPRequestFailedAtDestinationException(
-                                    statusCode,
-                                    body,
-                                    destination.description
-                                )
-                                return deferred.reject(exception)
-                            }
-                            deferred.resolve(OnionResponse(body, JsonUtil.toJson(body).toByteArray().view()))
-                        }
-                        else -> {
-                            if (statusCode != 200) {
-                                val exception = HTTPRequestFailedAtDestinationException(
-                                    statusCode,
-                                    json,
-                                    destination.description
-                                )
-                                return deferred.reject(exception)
+                    if (body.containsKey("hf")) {
+                        @Suppress("UNCHECKED_CAST")
+                        val currentHf = body["hf"] as List<Int>
+                        if (currentHf.size < 2) {
+                            Log.e("Loki", "Response contains fork information but doesn't have a hard and soft number")
+                        } else {
+                            val hf = currentHf[0]
+                            val sf = currentHf[1]
+                            val newForkInfo = ForkInfo(hf, sf)
+                            if (newForkInfo > SnodeAPI.forkInfo) {
+                                SnodeAPI.forkInfo = ForkInfo(hf,sf)
+                            } else if (newForkInfo < SnodeAPI.forkInfo) {
+                                Log.w("Loki", "Got a new snode info fork version that was $newForkInfo, less than current known ${SnodeAPI.forkInfo}")
                             }
-                            deferred.resolve(OnionResponse(json, JsonUtil.toJson(json).toByteArray().view()))
                         }
                     }
-                } catch (exception: Exception) {
-                    deferred.reject(Exception("Invalid JSON: ${plaintext.toString(Charsets.UTF_8)}."))
+                    if (statusCode != 200) {
+                        throw HTTPRequestFailedAtDestinationException(
+                            statusCode,
+                            body,
+                            destination.description
+                        )
+                    }
+                    return OnionResponse(body, JsonUtil.toJson(body).toByteArray().view())
+                }
+                else -> {
+                    if (statusCode != 200) {
+                        throw HTTPRequestFailedAtDestinationException(
+                            statusCode,
+                            json,
+                            destination.description
+                        )
+                    }
+                    return OnionResponse(json, JsonUtil.toJson(json).toByteArray().view())
                 }
-            } catch (exception: Exception) {
-                deferred.reject(exception)
             }
         }
     }
@@ -1,85 +1,144 @@
 package org.session.libsession.snode
 
+import androidx.annotation.VisibleForTesting
 import org.session.libsession.snode.OnionRequestAPI.Destination
 import org.session.libsession.utilities.AESGCM
-import org.session.libsession.utilities.AESGCM.EncryptionResult
 import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.Snode
 import org.session.libsignal.utilities.toHexString
-import java.nio.Buffer
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
 
 object OnionRequestEncryption {
 
-    internal fun encode(ciphertext: ByteArray, json: Map<*, *>): ByteArray {
-        // The encoding of V2 onion requests looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |
-        val jsonAsData = JsonUtil.toJson(json).toByteArray()
-        val ciphertextSize = ciphertext.size
-        val buffer = ByteBuffer.allocate(Int.SIZE_BYTES)
-        buffer.order(ByteOrder.LITTLE_ENDIAN)
-        buffer.putInt(ciphertextSize)
-        val ciphertextSizeAsData = ByteArray(buffer.capacity())
-        // Casting here avoids an issue where this gets compiled down to incorrect byte code. See
-        // https://github.com/eclipse/jetty.project/issues/3244 for more info
-        (buffer as Buffer).position(0)
-        buffer.get(ciphertextSizeAsData)
-        return ciphertextSizeAsData + ciphertext + jsonAsData
-    }
+    /**
+     * An onion request ready to be sent to the guard snode of its path.
+     *
+     * @param body The encoded outermost layer.
+     * @param destinationSymmetricKey Needed to decrypt the response sent back by the destination.
+     */
+    internal class Onion(val body: ByteArray, val destinationSymmetricKey: ByteArray)
 
     /**
-     * Encrypts `payload` for `destination` and returns the result. Use this to build the core of an onion request.
+     * One encryption of an onion request.
+     *
+     * @param json The json appended to what this layer encrypts, or null to encrypt it as is.
      */
-    internal fun encryptPayloadForDestination(
+    @VisibleForTesting
+    internal class Layer(val symmetricKey: ByteArray, val json: ByteArray?)
+
+    /**
+     * Builds an onion around `payload` for `destination`, to be sent through `path`.
+     */
+    internal fun buildOnion(
         payload: ByteArray,
         destination: Destination,
+        path: List<Snode>,
         version: Version
-    ): EncryptionResult {
-        val plaintext = if (version == Version.V4) {
-            payload
-        } else {
+    ): Onion {
+        // Encrypt in reverse order, i.e. the destination first
+        val destinationKey = AESGCM.generateEphemeralKey(destination.x25519Key)
+        val layers = ArrayList<Layer>(path.size + 1)
+        layers += Layer(
+            symmetricKey = destinationKey.symmetricKey,
             // Wrapping isn't needed for file server or open group onion requests
-            when (destination) {
-                is Destination.Snode -> encode(payload, mapOf("headers" to ""))
-                is Destination.Server -> payload
+            json = if (version != Version.V4 && destination is Destination.Snode) {
+                JsonUtil.toJson(mapOf("headers" to "")).toByteArray()
+            } else {
+                null
             }
+        )
+
+        var previousEphemeralPublicKey = destinationKey.ephemeralPublicKey
+        var rhs = destination
+        for (snode in path.asReversed()) {
+            val lhs = Destination.Snode(snode)
+            val key = AESGCM.generateEphemeralKey(lhs.x25519Key)
+            val json = hopPayload(rhs)
+            json["ephemeral_key"] = previousEphemeralPublicKey.toHexString()
+            layers += Layer(key.symmetricKey, JsonUtil.toJson(json).toByteArray())
+
+            previousEphemeralPublicKey = key.ephemeralPublicKey
+            rhs = lhs
         }
-        val x25519PublicKey = when (destination) {
-            is Destination.Snode -> destination.snode.publicKeySet!!.x25519Key
-            is Destination.Server -> destination.x25519PublicKey
-        }
-        return AESGCM.encrypt(plaintext, x25519PublicKey)
+
+        val finalJson = JsonUtil.toJson(mapOf("ephemeral_key" to previousEphemeralPublicKey.toHexString())).toByteArray()
+        return Onion(layOut(payload, layers, finalJson), destinationKey.symmetricKey)
     }
 
     /**
-     * Encrypts the previous encryption result (i.e. that of the hop after this one) for this hop. Use this to build the layers of an onion request.
+     * Encrypts `payload` with every layer in turn, the first layer being the innermost one.
+     *
+     * The encoding of a layer looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |.
+     * As the sizes of all the layers are known up front, the whole onion is laid out in one buffer and each
+     * layer is encrypted in place, instead of copying the ciphertext of a layer into the next one.
      */
-    internal fun encryptHop(lhs: Destination, rhs: Destination, previousEncryptionResult: EncryptionResult): EncryptionResult {
-        val payload: MutableMap<String, Any> = when (rhs) {
-            is Destination.Snode -> {
-                mutableMapOf("destination" to rhs.snode.publicKeySet!!.ed25519Key)
-            }
+    @VisibleForTesting
+    internal fun layOut(payload: ByteArray, layers: List<Layer>, finalJson: ByteArray): ByteArray {
+        // Where the ciphertext of each layer starts, from the outside in
+        val ciphertextOffsets = IntArray(layers.size)
+        var offset = Int.SIZE_BYTES
+        for (i in layers.indices.reversed()) {
+            ciphertextOffsets[i] = offset
+            offset += AESGCM.ivSize + if (layers[i].json != null) Int.SIZE_BYTES else 0
+        }
+        val payloadOffset = offset
 
-            is Destination.Server -> {
-                mutableMapOf(
-                    "host" to rhs.host,
-                    "target" to rhs.target,
-                    "method" to "POST",
-                    "protocol" to rhs.scheme,
-                    "port" to rhs.port
-                )
-            }
+        // The size of what each layer encrypts and of the result, from the inside out
+        val plaintextSizes = IntArray(layers.size)
+        val ciphertextSizes = IntArray(layers.size)
+        var innerSize = payload.size
+        for (i in layers.indices) {
+            plaintextSizes[i] = innerSize + (layers[i].json?.let { Int.SIZE_BYTES + it.size } ?: 0)
+            ciphertextSizes[i] = AESGCM.ivSize + plaintextSizes[i] + AESGCM.tagSize
+            innerSize = ciphertextSizes[i]
         }
-        payload["ephemeral_key"] = previousEncryptionResult.ephemeralPublicKey.toHexString()
-        val x25519PublicKey = when (lhs) {
-            is Destination.Snode -> {
-                lhs.snode.publicKeySet!!.x25519Key
-            }
 
-            is Destination.Server -> {
-                lhs.x25519PublicKey
-            }
+        val buffer = ByteArray(Int.SIZE_BYTES + innerSize + finalJson.size)
+        writeSize(buffer, 0, innerSize)
+        finalJson.copyInto(buffer, Int.SIZE_BYTES + innerSize)
+
+        for (i in layers.indices) {
+            val json = layers[i].json ?: continue
+            val plaintextOffset = ciphertextOffsets[i] + AESGCM.ivSize
+            val layerInnerSize = if (i == 0) payload.size else ciphertextSizes[i - 1]
+            writeSize(buffer, plaintextOffset, layerInnerSize)
+            json.copyInto(buffer, plaintextOffset + Int.SIZE_BYTES + layerInnerSize)
+        }
+        payload.copyInto(buffer, payloadOffset)
+
+        for (i in layers.indices) {
+            AESGCM.encryptInPlace(buffer, ciphertextOffsets[i], plaintextSizes[i], layers[i].symmetricKey)
+        }
+
+        return buffer
+    }
+
+    private fun hopPayload(rhs: Destination): MutableMap<String, Any> = when (rhs) {
+        is Destination.Snode -> {
+            mutableMapOf("destination" to rhs.snode.publicKeySet!!.ed25519Key)
+        }
+
+        is Destination.Server -> {
+            mutableMapOf(
+                "host" to rhs.host,
+                "target" to rhs.target,
+                "method" to "POST",
+                "protocol" to rhs.scheme,
+                "port" to rhs.port
+            )
         }
-        val plaintext = encode(previousEncryptionResult.ciphertext, payload)
-        return AESGCM.encrypt(plaintext, x25519PublicKey)
+    }
+
+    private val Destination.x25519Key: String
+        get() = when (this) {
+            is Destination.Snode -> snode.publicKeySet!!.x25519Key
+            is Destination.Server -> x25519PublicKey
+        }
+
+    private fun writeSize(buffer: ByteArray, offset: Int, size: Int) {
+        // Sizes are little endian
+        buffer[offset] = size.toByte()
+        buffer[offset + 1] = (size ushr 8).toByte()
+        buffer[offset + 2] = (size ushr 16).toByte()
+        buffer[offset + 3] = (size ushr 24).toByte()
     }
 }
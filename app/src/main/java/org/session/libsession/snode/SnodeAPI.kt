@@ -12,6 +12,7 @@ import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.job
 import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.selects.onTimeout
@@ -27,7 +28,9 @@ import nl.komponents.kovenant.unwrap
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.snode.model.BatchResponse
+import org.session.libsession.snode.model.RetrieveMessageResponse
 import org.session.libsession.snode.model.StoreMessageResponse
+import org.session.libsession.snode.utilities.SwarmSnodeSelector
 import org.session.libsession.snode.utilities.asyncPromise
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.snode.utilities.retrySuspendAsPromise
@@ -35,7 +38,6 @@ import org.session.libsession.utilities.Environment
 import org.session.libsession.utilities.mapValuesNotNull
 import org.session.libsession.utilities.toByteArray
 import org.session.libsignal.crypto.secureRandom
-import org.session.libsignal.crypto.shuffledRandom
 import org.session.libsignal.database.LokiAPIDatabaseProtocol
 import org.session.libsignal.protos.SignalServiceProtos
 import org.session.libsignal.utilities.AccountId
@@ -50,6 +52,7 @@ import org.session.libsignal.utilities.prettifiedDescription
 import org.session.libsignal.utilities.retryIfNeeded
 import org.session.libsignal.utilities.retryWithUniformInterval
 import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.collections.component1
 import kotlin.collections.component2
 import kotlin.collections.set
@@ -61,6 +64,11 @@ object SnodeAPI {
 
     private var snodeFailureCount: MutableMap<Snode, Int> = mutableMapOf()
 
+    /**
+     * Picks the swarm member that requests for each swarm go to, from the latency and errors of past requests.
+     */
+    val swarmSelector = SwarmSnodeSelector()
+
     // the  list of "generic" nodes we use to make non swarm specific api calls
     internal var snodePool: Set<Snode>
         get() = database.getSnodePool()
@@ -138,6 +146,7 @@ object SnodeAPI {
         publicKey: String? = null,
         version: Version = Version.V3
     ): RawResponsePromise = when {
+        // The onion request records how the snode fared with the swarm selector
         useOnionRequests -> OnionRequestAPI.sendOnionRequest(method, parameters, snode, version, publicKey).map {
             JsonUtil.fromJson(it.body ?: throw Error.Generic, Map::class.java)
         }
@@ -156,7 +165,10 @@ object SnodeAPI {
         }.fail { e ->
             when (e) {
                 is HTTP.HTTPRequestFailedException -> handleSnodeError(e.statusCode, e.json, snode, publicKey)
-                else -> Log.d("Loki", "Unhandled exception: $e.")
+                else -> {
+                    if (publicKey != null) swarmSelector.recordFailure(snode)
+                    Log.d("Loki", "Unhandled exception: $e.")
+                }
             }
         }
     }
@@ -170,7 +182,7 @@ object SnodeAPI {
         version: Version = Version.V3
     ): Res = when {
         useOnionRequests -> {
-            val resp = OnionRequestAPI.sendOnionRequest(method, parameters, snode, version, publicKey).await()
+            val resp = OnionRequestAPI.sendOnionRequestSuspend(method, parameters, snode, version, publicKey)
             JsonUtil.fromJson(resp.body ?: throw Error.Generic, responseClass)
         }
 
@@ -238,9 +250,11 @@ object SnodeAPI {
         }
     }
 
+    /**
+     * The member of the swarm of [publicKey] to send the next request for it to, see [SwarmSnodeSelector].
+     */
     fun getSingleTargetSnode(publicKey: String): Promise<Snode, Exception> {
-        // SecureRandom should be cryptographically secure
-        return getSwarm(publicKey).map { it.shuffledRandom().random() }
+        return getSwarm(publicKey).map { swarmSelector.select(publicKey, it) }
     }
 
     // Public API
@@ -616,6 +630,17 @@ object SnodeAPI {
 
                 if (batch != null) {
                     launch batch@{
+                        // Stop sending the batch once every request in it has been given up on
+                        val batchJob = coroutineContext.job
+                        val closedCallbacks = AtomicInteger()
+                        for (req in batch) {
+                            req.callback.invokeOnClose {
+                                if (closedCallbacks.incrementAndGet() == batch.size) {
+                                    batchJob.cancel()
+                                }
+                            }
+                        }
+
                         val snode = batch.first().snode
                         val responses = try {
                             getBatchResponse(
@@ -624,6 +649,8 @@ object SnodeAPI {
                                 requests = batch.map { it.request },
                                 sequence = false
                             )
+                        } catch (e: CancellationException) {
+                            throw e
                         } catch (e: Exception) {
                             for (req in batch) {
                                 runCatching {
@@ -971,6 +998,41 @@ object SnodeAPI {
             )
         } ?: listOf()
 
+    /**
+     * Typed counterpart of [parseRawMessagesResponse], for messages read as a [RetrieveMessageResponse].
+     */
+    fun parseRetrievedMessages(
+        messages: List<RetrieveMessageResponse.Message>,
+        snode: Snode,
+        publicKey: String,
+        namespace: Int = 0,
+        updateLatestHash: Boolean = true,
+        updateStoredHashes: Boolean = true,
+        decrypt: ((ByteArray) -> Pair<ByteArray, AccountId>?)? = null
+    ): List<Pair<SignalServiceProtos.Envelope, String?>> {
+        if (updateLatestHash) updateLastMessageHash(snode, publicKey, messages, namespace)
+        val envelopes = messages.mapNotNull { message ->
+            try {
+                parseEnvelope(message.data, decrypt) to message.hash
+            } catch (e: Exception) {
+                Log.d("Loki", "Failed to unwrap data for message: ${message.hash}.", e)
+                null
+            }
+        }
+        return removeDuplicates(
+            publicKey = publicKey,
+            messages = envelopes,
+            messageHashGetter = { it.second },
+            namespace = namespace,
+            updateStoredHashes = updateStoredHashes
+        )
+    }
+
+    fun updateLastMessageHash(snode: Snode, publicKey: String, messages: List<RetrieveMessageResponse.Message>, namespace: Int) {
+        val lastMessage = messages.lastOrNull() ?: return
+        database.setLastMessageHashValue(snode, publicKey, lastMessage.hash, namespace)
+    }
+
     fun updateLastMessageHashValueIfPossible(snode: Snode, publicKey: String, rawMessages: List<*>, namespace: Int) {
         val lastMessageAsJSON = rawMessages.lastOrNull() as? Map<*, *>
         val hashValue = lastMessageAsJSON?.get("hash") as? String
@@ -1025,13 +1087,7 @@ object SnodeAPI {
             val data = base64EncodedData?.let { Base64.decode(it) }
             if (data != null) {
                 try {
-                    if (decrypt != null) {
-                        val (decrypted, sender) = decrypt(data)!!
-                        val envelope = SignalServiceProtos.Envelope.parseFrom(decrypted).toBuilder()
-                        envelope.source = sender.hexString
-                        Pair(envelope.build(), rawMessageAsJSON["hash"] as? String)
-                    }
-                    else Pair(MessageWrapper.unwrap(data), rawMessageAsJSON["hash"] as? String)
+                    Pair(parseEnvelope(data, decrypt), rawMessageAsJSON["hash"] as? String)
                 } catch (e: Exception) {
                     Log.d("Loki", "Failed to unwrap data for message: ${rawMessage.prettifiedDescription()}.", e)
                     null
@@ -1043,6 +1099,15 @@ object SnodeAPI {
         }
     }
 
+    private fun parseEnvelope(data: ByteArray, decrypt: ((ByteArray)->Pair<ByteArray, AccountId>?)?): SignalServiceProtos.Envelope {
+        if (decrypt == null) return MessageWrapper.unwrap(data)
+
+        val (decrypted, sender) = decrypt(data)!!
+        val envelope = SignalServiceProtos.Envelope.parseFrom(decrypted).toBuilder()
+        envelope.source = sender.hexString
+        return envelope.build()
+    }
+
     @Suppress("UNCHECKED_CAST")
     private fun parseDeletions(userPublicKey: String, timestamp: Long, rawResponse: RawResponse): Map<String, Boolean> =
         (rawResponse["swarm"] as? Map<String, Any>)?.mapValuesNotNull { (hexSnodePublicKey, rawJSON) ->
@@ -1070,6 +1135,7 @@ object SnodeAPI {
     // Error Handling
     internal fun handleSnodeError(statusCode: Int, json: Map<*, *>?, snode: Snode, publicKey: String? = null): Throwable? = runCatching {
         fun handleBadSnode() {
+            if (publicKey != null) swarmSelector.recordFailure(snode)
             val oldFailureCount = snodeFailureCount[snode] ?: 0
             val newFailureCount = oldFailureCount + 1
             snodeFailureCount[snode] = newFailureCount
@@ -15,6 +15,7 @@ class SnodeModule @Inject constructor(
     prefs: TextSecurePreferences,
 ) {
     val environment: Environment = prefs.getEnvironment()
+    val sparePathCount: Int = prefs.getSparePathCount().coerceAtLeast(0)
 
     companion object {
         lateinit var sharedLazy: Lazy<SnodeModule>
@@ -1,41 +1,139 @@
 package org.session.libsession.snode.model
 
-import android.util.Base64
 import com.fasterxml.jackson.annotation.JsonCreator
 import com.fasterxml.jackson.annotation.JsonProperty
-import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationContext
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
-import com.fasterxml.jackson.databind.util.StdConverter
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 
 data class StoreMessageResponse @JsonCreator constructor(
     @JsonProperty("hash") val hash: String,
     @JsonProperty("t") val timestamp: Long,
 )
 
-class RetrieveMessageResponse @JsonCreator constructor(
-    @JsonProperty("messages")
-    // Apply converter to the element so that if one of the message fails to deserialize, it will
-    // be a null value instead of failing the whole list.
-    @JsonDeserialize(contentConverter = RetrieveMessageConverter::class)
+/**
+ * The response to a retrieve request, read field by field so that the payload of each message
+ * is decoded from its Base64 text straight into its byte array.
+ *
+ * Retrieve responses arrive inside batch responses, whose bodies are already parsed into a tree,
+ * so the text of each field is read from that tree.
+ */
+@JsonDeserialize(using = RetrieveMessageDeserializer::class)
+class RetrieveMessageResponse(
+    // A message that fails to deserialize is a null value instead of failing the whole list.
     val messages: List<Message?>,
 ) {
     class Message(
         val hash: String,
         val timestamp: Long?,
+        val expiry: Long?,
         val data: ByteArray,
     )
 }
 
-internal class RetrieveMessageConverter : StdConverter<JsonNode, RetrieveMessageResponse.Message?>() {
-    override fun convert(value: JsonNode?): RetrieveMessageResponse.Message? {
-        value ?: return null
+internal class RetrieveMessageDeserializer : StdDeserializer<RetrieveMessageResponse>(RetrieveMessageResponse::class.java) {
+    override fun deserialize(p: JsonParser, ctxt: DeserializationContext): RetrieveMessageResponse {
+        if (!p.isExpectedStartObjectToken) {
+            return ctxt.handleUnexpectedToken(RetrieveMessageResponse::class.java, p) as RetrieveMessageResponse
+        }
 
-        val hash = value.get("hash")?.asText()?.takeIf { it.isNotEmpty() } ?: return null
-        val timestamp = value.get("t")?.asLong()?.takeIf { it > 0 }
-        val data = runCatching {
-            Base64.decode(value.get("data")?.asText().orEmpty(), Base64.DEFAULT)
-        }.getOrNull() ?: return null
+        var messages = emptyList<RetrieveMessageResponse.Message?>()
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            if (p.nextToken() == JsonToken.START_ARRAY && name == "messages") {
+                messages = readMessages(p)
+            } else {
+                p.skipChildren()
+            }
+        }
+        return RetrieveMessageResponse(messages)
+    }
+
+    private fun readMessages(p: JsonParser): List<RetrieveMessageResponse.Message?> {
+        val messages = ArrayList<RetrieveMessageResponse.Message?>()
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+            messages += if (p.currentToken() == JsonToken.START_OBJECT) {
+                readMessage(p)
+            } else {
+                p.skipChildren()
+                null
+            }
+        }
+        return messages
+    }
+
+    private fun readMessage(p: JsonParser): RetrieveMessageResponse.Message? {
+        var hash: String? = null
+        var timestamp: Long? = null
+        var expiry: Long? = null
+        var data: ByteArray? = null
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            val name = p.currentName()
+            val token = p.nextToken()
+            when {
+                name == "hash" && token == JsonToken.VALUE_STRING -> hash = p.text
+                name == "t" && token == JsonToken.VALUE_NUMBER_INT -> timestamp = p.longValue
+                name == "expiration" && token == JsonToken.VALUE_NUMBER_INT -> expiry = p.longValue
+                name == "data" && token == JsonToken.VALUE_STRING -> data = decodeBase64(p.text)
+                else -> p.skipChildren()
+            }
+        }
+
+        if (hash.isNullOrEmpty() || data == null) return null
+        return RetrieveMessageResponse.Message(
+            hash = hash,
+            timestamp = timestamp?.takeIf { it > 0 },
+            expiry = expiry?.takeIf { it > 0 },
+            data = data
+        )
+    }
+}
 
-        return RetrieveMessageResponse.Message(hash, timestamp, data)
+private val BASE64_VALUES = IntArray(128) { -1 }.also { values ->
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".forEachIndexed { index, c ->
+        values[c.code] = index
     }
-}
\ No newline at end of file
+}
+
+private fun base64Value(c: Char): Int = if (c.code < BASE64_VALUES.size) BASE64_VALUES[c.code] else -1
+
+/**
+ * Decodes standard Base64, ignoring whitespace and tolerating missing padding like
+ * `android.util.Base64.DEFAULT` does, or returns null if [text] isn't valid Base64.
+ */
+internal fun decodeBase64(text: CharSequence): ByteArray? {
+    // Count the digits first so that the result is allocated once, at its exact size
+    var digits = 0
+    var padding = 0
+    for (i in 0 until text.length) {
+        val c = text[i]
+        when {
+            c == '=' -> padding++
+            base64Value(c) >= 0 -> if (padding > 0) return null else digits++
+            c.isWhitespace() -> Unit
+            else -> return null
+        }
+    }
+    if (padding > 2 || digits % 4 == 1) return null
+
+    val result = ByteArray(digits / 4 * 3 + maxOf(0, digits % 4 - 1))
+    var bits = 0
+    var bitCount = 0
+    var offset = 0
+    for (i in 0 until text.length) {
+        val value = base64Value(text[i])
+        if (value < 0) continue
+
+        bits = (bits shl 6) or value
+        bitCount += 6
+        if (bitCount >= 8) {
+            bitCount -= 8
+            result[offset++] = (bits shr bitCount).toByte()
+            bits = bits and ((1 shl bitCount) - 1)
+        }
+    }
+    return result
+}
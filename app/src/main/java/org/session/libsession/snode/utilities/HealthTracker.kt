@@ -0,0 +1,102 @@
+package org.session.libsession.snode.utilities
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks the health of network endpoints (onion paths, snodes...) as exponentially weighted
+ * moving averages of their round trip latency and error rate.
+ *
+ * All methods are thread safe.
+ */
+class HealthTracker<K : Any>(
+    private val latencyWeight: Double = DEFAULT_LATENCY_WEIGHT,
+    private val errorWeight: Double = DEFAULT_ERROR_WEIGHT,
+) {
+    data class Stats(
+        /** Latency EWMA in milliseconds, or null if no successful request has been recorded yet. */
+        val latencyMs: Double?,
+        /** Error rate EWMA in the range [0..1]. */
+        val errorRate: Double,
+        val successCount: Long,
+        /** Failures since the last [HealthTracker.resetFailures]. */
+        val failureCount: Int,
+    ) {
+        val sampleCount: Long get() = successCount + failureCount
+
+        override fun toString(): String {
+            val latency = latencyMs?.let { "${it.toLong()}ms" } ?: "?"
+            return "latency=$latency errors=${(errorRate * 100).toInt()}% ok=$successCount failed=$failureCount"
+        }
+    }
+
+    private val entries = ConcurrentHashMap<K, Stats>()
+
+    /**
+     * @param latencyMs the round trip of the request, or null if it isn't representative of the
+     * endpoint's latency (e.g. dominated by a large transfer), in which case only the success counts.
+     */
+    fun recordSuccess(key: K, latencyMs: Long?) {
+        entries.compute(key) { _, stats ->
+            val current = stats ?: EMPTY
+            current.copy(
+                latencyMs = when {
+                    latencyMs == null -> current.latencyMs
+                    current.latencyMs == null -> latencyMs.toDouble()
+                    else -> current.latencyMs + latencyWeight * (latencyMs - current.latencyMs)
+                },
+                errorRate = current.errorRate * (1 - errorWeight),
+                successCount = current.successCount + 1,
+            )
+        }
+    }
+
+    /**
+     * @return the number of failures recorded for [key] since it was last reset.
+     */
+    fun recordFailure(key: K): Int {
+        return entries.compute(key) { _, stats ->
+            val current = stats ?: EMPTY
+            current.copy(
+                errorRate = current.errorRate + errorWeight * (1 - current.errorRate),
+                failureCount = current.failureCount + 1,
+            )
+        }!!.failureCount
+    }
+
+    fun resetFailures(key: K) {
+        entries.computeIfPresent(key) { _, stats -> stats.copy(failureCount = 0) }
+    }
+
+    operator fun get(key: K): Stats? = entries[key]
+
+    fun remove(key: K) {
+        entries.remove(key)
+    }
+
+    /**
+     * Drops the stats of every key not in [keys].
+     */
+    fun retainAll(keys: Collection<K>) {
+        entries.keys.retainAll(keys.toSet())
+    }
+
+    /**
+     * Expected cost of using [key], lower is better: the latency EWMA inflated by the error rate.
+     * Keys without any latency sample are assumed to be as good as [defaultLatencyMs].
+     */
+    fun score(key: K, defaultLatencyMs: Double): Double {
+        val stats = entries[key] ?: return defaultLatencyMs
+        val latency = stats.latencyMs ?: defaultLatencyMs
+        return latency.coerceAtLeast(1.0) * (1 + ERROR_PENALTY * stats.errorRate)
+    }
+
+    companion object {
+        private const val DEFAULT_LATENCY_WEIGHT = 0.3
+        private const val DEFAULT_ERROR_WEIGHT = 0.2
+
+        // An endpoint failing every request is treated as this many times slower than its latency
+        private const val ERROR_PENALTY = 9.0
+
+        private val EMPTY = Stats(latencyMs = null, errorRate = 0.0, successCount = 0, failureCount = 0)
+    }
+}
@@ -0,0 +1,55 @@
+package org.session.libsession.snode.utilities
+
+import org.session.libsignal.utilities.LatencyHistogram
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counts how onion requests end, and how long the completed ones took by kind of destination.
+ * Requests to servers such as the file server carry much larger payloads than the ones to snodes,
+ * so their latencies are kept apart.
+ */
+class OnionRequestMetrics {
+    private val failed = AtomicLong()
+    private val cancelled = AtomicLong()
+
+    /**
+     * Time from sending a request to the guard snode to decoding the response of the destination.
+     */
+    private val latencies = DestinationType.entries.associateWith { LatencyHistogram() }
+
+    fun onCompleted(destination: DestinationType, latencyMs: Long) {
+        latencies.getValue(destination).record(latencyMs)
+    }
+
+    fun onFailed() {
+        failed.incrementAndGet()
+    }
+
+    fun onCancelled() {
+        cancelled.incrementAndGet()
+    }
+
+    fun snapshot(): Snapshot {
+        return Snapshot(
+            failed = failed.get(),
+            cancelled = cancelled.get(),
+            latencies = latencies.mapValues { (_, latency) -> latency.snapshot() }
+        )
+    }
+
+    enum class DestinationType { SNODE, SERVER }
+
+    data class Snapshot(
+        val failed: Long,
+        val cancelled: Long,
+        val latencies: Map<DestinationType, LatencyHistogram.Snapshot>,
+    ) {
+        val completed: Long
+            get() = latencies.values.sumOf { it.count }
+
+        override fun toString(): String {
+            return "completed=$completed failed=$failed cancelled=$cancelled " +
+                latencies.entries.joinToString(" ") { (destination, latency) -> "${destination.name.lowercase()}: $latency" }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.session.libsession.snode.utilities
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Ready-to-use onion request paths kept on top of the active ones, so that a failed path can be
+ * replaced without waiting for a new one to be built. Spare paths aren't persisted.
+ *
+ * All methods are thread safe.
+ */
+class SparePathPool(
+    private val targetCount: Int,
+    private val scope: CoroutineScope,
+    /** Whether a snode of a spare path can still be used, e.g. it's still in the snode pool. */
+    private val isUsable: (Snode) -> Boolean,
+    /** Builds a new path that doesn't go through any of the given snodes. */
+    private val buildPath: suspend (excludedSnodes: Set<Snode>) -> List<Snode>,
+) {
+    private val mutablePaths = MutableStateFlow<List<List<Snode>>>(emptyList())
+    private val isBuilding = AtomicBoolean(false)
+
+    val paths: List<List<Snode>> get() = mutablePaths.value
+
+    /**
+     * Builds spare paths in the background until there are `targetCount` of them.
+     */
+    fun fill() {
+        if (mutablePaths.value.count() >= targetCount) { return }
+        if (!isBuilding.compareAndSet(false, true)) { return }
+        scope.launch {
+            try {
+                while (mutablePaths.value.count() < targetCount) {
+                    val sparePath = buildPath(mutablePaths.value.flatten().toSet())
+                    Log.d("Loki", "Built spare onion request path: $sparePath.")
+                    mutablePaths.update { it + listOf(sparePath) }
+                }
+            } catch (exception: CancellationException) {
+                throw exception
+            } catch (exception: Exception) {
+                Log.d("Loki", "Couldn't build spare onion request path: ${exception.message}.")
+            } finally {
+                isBuilding.set(false)
+            }
+        }
+    }
+
+    /**
+     * Removes and returns a spare path that doesn't go through any snode of `activePaths`, if
+     * there's one. Spare paths that can't be used anymore are discarded along the way, and the
+     * pool is refilled in the background.
+     *
+     * Spare paths sharing a snode with `activePaths` are discarded on purpose rather than kept for
+     * later: a shared snode is a common point of failure for both paths, and keeping them would
+     * hold the pool at `targetCount` with paths that can't be promoted. Their replacements are
+     * built around the current active paths, so they don't overlap them.
+     */
+    fun take(activePaths: List<List<Snode>>): List<Snode>? {
+        val usedSnodes = activePaths.flatten().toSet()
+        while (true) {
+            val spares = mutablePaths.value
+            // Spares may have gone stale while waiting, e.g. a snode was dropped from the pool
+            val usable = spares.filter { spare -> spare.all { isUsable(it) && it !in usedSnodes } }
+            val sparePath = usable.firstOrNull()
+            val remaining = if (sparePath == null) usable else usable - listOf(sparePath)
+            if (mutablePaths.compareAndSet(spares, remaining)) {
+                if (remaining.count() < targetCount) { fill() }
+                return sparePath
+            }
+        }
+    }
+
+    /**
+     * Returns `activePaths` topped up to `count` paths with spare ones, as far as the pool allows.
+     */
+    fun promote(activePaths: List<List<Snode>>, count: Int): List<List<Snode>> {
+        var paths = activePaths
+        while (paths.count() < count) {
+            val sparePath = take(paths) ?: break
+            Log.d("Loki", "Using spare onion request path: $sparePath.")
+            paths = paths + listOf(sparePath)
+        }
+        return paths
+    }
+}
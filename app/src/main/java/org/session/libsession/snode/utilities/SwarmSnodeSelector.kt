@@ -0,0 +1,121 @@
+package org.session.libsession.snode.utilities
+
+import org.session.libsignal.crypto.secureWeightedRandom
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.Snode
+
+/**
+ * Picks the member of a swarm that requests for that swarm go to.
+ *
+ * Each swarm keeps a preferred snode for as long as it stays healthy, so that consecutive requests
+ * land on the snode their last message hashes were recorded against. As soon as the preferred snode
+ * fails twice in a row, or becomes much slower or less reliable than the other members, the next
+ * request fails over to another member, picked with a bias towards the healthiest.
+ *
+ * All methods are thread safe.
+ */
+class SwarmSnodeSelector(
+    private val health: HealthTracker<Snode> = HealthTracker(),
+) {
+    data class Selection(
+        val publicKey: String,
+        val snode: Snode,
+        val previous: Snode?,
+        val reason: String,
+        val timestampMs: Long,
+    ) {
+        override fun toString(): String {
+            val from = previous?.let { "${it.ip} -> " }.orEmpty()
+            return "${publicKey.take(8)}…: $from${snode.ip} ($reason)"
+        }
+    }
+
+    private val preferredSnodes = hashMapOf<String, Snode>()
+    private val recentSelections = ArrayDeque<Selection>()
+
+    /**
+     * The member of [swarm] to send the next request for [publicKey] to.
+     *
+     * @throws [NoSuchElementException] if [swarm] is empty
+     */
+    fun select(publicKey: String, swarm: Set<Snode>): Snode = synchronized(this) {
+        if (swarm.isEmpty()) throw NoSuchElementException("Empty swarm for $publicKey")
+
+        val preferred = preferredSnodes[publicKey]
+        val reason = when {
+            preferred == null -> "first request"
+            preferred !in swarm -> "left the swarm"
+            else -> degradation(preferred, swarm) ?: return@synchronized preferred
+        }
+
+        val candidates = (swarm - setOfNotNull(preferred)).ifEmpty { swarm }
+        val selected = candidates.secureWeightedRandom { 1.0 / health.score(it, DEFAULT_LATENCY_MS) }
+        preferredSnodes[publicKey] = selected
+        // Give the snode left behind a clean slate in case it's picked again, its error rate still counts against it
+        preferred?.let(health::resetFailures)
+
+        val selection = Selection(publicKey, selected, preferred, reason, System.currentTimeMillis())
+        if (preferred != null) Log.d("Loki", "Swarm snode failover: $selection")
+        if (recentSelections.size == MAX_RECENT_SELECTIONS) recentSelections.removeFirst()
+        recentSelections.addLast(selection)
+        selected
+    }
+
+    /**
+     * Why [snode] shouldn't take more requests for its swarm, or null if it's still healthy.
+     */
+    private fun degradation(snode: Snode, swarm: Set<Snode>): String? {
+        val stats = health[snode] ?: return null
+        if (stats.failureCount >= FAILOVER_FAILURE_COUNT) return "failed ${stats.failureCount} times in a row"
+        if (stats.sampleCount < MIN_SAMPLES) return null
+        if (stats.errorRate >= FAILOVER_ERROR_RATE) return "error rate ${(stats.errorRate * 100).toInt()}%"
+
+        val latency = stats.latencyMs ?: return null
+        val bestOtherLatency = swarm.asSequence()
+            .filter { it != snode }
+            .mapNotNull { health[it]?.latencyMs }
+            .minOrNull() ?: return null
+        if (latency > FAILOVER_MIN_LATENCY_MS && latency > bestOtherLatency * FAILOVER_LATENCY_FACTOR) {
+            return "latency ${latency.toLong()}ms against ${bestOtherLatency.toLong()}ms"
+        }
+        return null
+    }
+
+    /**
+     * @param latencyMs How long the request took, or null if it doesn't say how fast [snode] is,
+     * e.g. it was too large. The success still counts towards the error rate.
+     */
+    fun recordSuccess(snode: Snode, latencyMs: Long?) {
+        health.recordSuccess(snode, latencyMs)
+        health.resetFailures(snode)
+    }
+
+    fun recordFailure(snode: Snode) {
+        health.recordFailure(snode)
+    }
+
+    /**
+     * The snode currently preferred for each swarm, with its health.
+     */
+    fun getPreferredSnodes(): List<Triple<String, Snode, HealthTracker.Stats?>> = synchronized(this) {
+        preferredSnodes.map { (publicKey, snode) -> Triple(publicKey, snode, health[snode]) }
+    }
+
+    /**
+     * The latest changes of preferred snode, oldest first.
+     */
+    fun getRecentSelections(): List<Selection> = synchronized(this) { recentSelections.toList() }
+
+    companion object {
+        // The latency assumed for members that haven't answered a request yet
+        private const val DEFAULT_LATENCY_MS = 1000.0
+        private const val FAILOVER_FAILURE_COUNT = 2
+        // Don't judge a snode on error rate or latency before it has answered this many requests
+        private const val MIN_SAMPLES = 3
+        private const val FAILOVER_ERROR_RATE = 0.5
+        private const val FAILOVER_LATENCY_FACTOR = 2.0
+        // Below this, all members are considered fast enough and the preferred one is kept
+        private const val FAILOVER_MIN_LATENCY_MS = 500.0
+        private const val MAX_RECENT_SELECTIONS = 20
+    }
+}
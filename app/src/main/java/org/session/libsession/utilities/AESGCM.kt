@@ -18,6 +18,13 @@ import javax.crypto.spec.SecretKeySpec
 internal object AESGCM {
     internal val gcmTagSize = 128
     internal val ivSize = 12
+    internal val tagSize = gcmTagSize / 8
+
+    // Each thread keeps its own cipher to avoid creating one per operation. Every operation
+    // initialises it with its own key and IV, under CIPHER_LOCK like every other cipher use.
+    private val cipher = object : ThreadLocal<Cipher>() {
+        override fun initialValue(): Cipher = Cipher.getInstance("AES/GCM/NoPadding")
+    }
 
     internal data class EncryptionResult(
         internal val ciphertext: ByteArray,
@@ -25,6 +32,11 @@ internal object AESGCM {
         internal val ephemeralPublicKey: ByteArray
     )
 
+    internal data class EphemeralKey(
+        internal val symmetricKey: ByteArray,
+        internal val ephemeralPublicKey: ByteArray
+    )
+
     /**
      * Sync. Don't call from the main thread.
      */
@@ -35,8 +47,8 @@ internal object AESGCM {
         symmetricKey: ByteArray
     ): ByteArray {
         val iv = ivAndCiphertext.sliceArray(offset until (offset + ivSize))
+        val cipher = cipher.get()!!
         synchronized(CIPHER_LOCK) {
-            val cipher = Cipher.getInstance("AES/GCM/NoPadding")
             cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
             return cipher.doFinal(ivAndCiphertext, offset + ivSize, len - ivSize)
         }
@@ -57,8 +69,8 @@ internal object AESGCM {
      */
     fun encrypt(plaintext: ByteArraySlice, symmetricKey: ByteArray): ByteArray {
         val iv = Util.getSecretBytes(ivSize)
+        val cipher = cipher.get()!!
         synchronized(CIPHER_LOCK) {
-            val cipher = Cipher.getInstance("AES/GCM/NoPadding")
             cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
             return ByteUtil.combine(iv, cipher.doFinal(plaintext.data, plaintext.offset, plaintext.len))
         }
@@ -68,14 +80,41 @@ internal object AESGCM {
         encrypt(plaintext.view(), symmetricKey)
 
     /**
+     * Encrypts the [plaintextLength] bytes at `offset + ivSize` of [buffer] in place, writing the IV
+     * before them and the tag after them. The result has the same layout as the one of [encrypt].
+     *
      * Sync. Don't call from the main thread.
+     *
+     * @return The combined size of the IV, ciphertext and tag.
      */
-    internal fun encrypt(plaintext: ByteArray, hexEncodedX25519PublicKey: String): EncryptionResult {
+    internal fun encryptInPlace(buffer: ByteArray, offset: Int, plaintextLength: Int, symmetricKey: ByteArray): Int {
+        val iv = Util.getSecretBytes(ivSize)
+        System.arraycopy(iv, 0, buffer, offset, ivSize)
+        val cipher = cipher.get()!!
+        synchronized(CIPHER_LOCK) {
+            cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
+            // doFinal is copy-safe, so the output can overwrite its own input
+            return ivSize + cipher.doFinal(buffer, offset + ivSize, plaintextLength, buffer, offset + ivSize)
+        }
+    }
+
+    /**
+     * Sync. Don't call from the main thread.
+     */
+    internal fun generateEphemeralKey(hexEncodedX25519PublicKey: String): EphemeralKey {
         val x25519PublicKey = Hex.fromStringCondensed(hexEncodedX25519PublicKey)
         val ephemeralKeyPair = Curve25519.generateKeyPair()
         val symmetricKey = generateSymmetricKey(x25519PublicKey, ephemeralKeyPair.secretKey.data)
-        val ciphertext = encrypt(plaintext, symmetricKey)
-        return EncryptionResult(ciphertext, symmetricKey, ephemeralKeyPair.pubKey.data)
+        return EphemeralKey(symmetricKey, ephemeralKeyPair.pubKey.data)
+    }
+
+    /**
+     * Sync. Don't call from the main thread.
+     */
+    internal fun encrypt(plaintext: ByteArray, hexEncodedX25519PublicKey: String): EncryptionResult {
+        val key = generateEphemeralKey(hexEncodedX25519PublicKey)
+        val ciphertext = encrypt(plaintext, key.symmetricKey)
+        return EncryptionResult(ciphertext, key.symmetricKey, key.ephemeralPublicKey)
     }
 
 }
\ No newline at end of file
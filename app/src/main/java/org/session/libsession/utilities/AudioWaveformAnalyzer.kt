@@ -0,0 +1,326 @@
+package org.session.libsession.utilities
+
+import android.media.AudioFormat
+import android.media.MediaCodec
+import android.media.MediaDataSource
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMetadataRetriever
+import androidx.annotation.WorkerThread
+import java.io.IOException
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import kotlin.math.roundToInt
+import kotlin.math.sqrt
+
+/**
+ * Result of [AudioWaveformAnalyzer.analyze].
+ *
+ * @param durationMicroseconds duration of the first audio track, or -1 if it couldn't be determined.
+ * @param rms normalized RMS values as signed bytes, see [byteToNormalizedFloat].
+ */
+class AudioWaveform(
+    val durationMicroseconds: Long,
+    val rms: ByteArray,
+)
+
+/**
+ * Extracts the duration and waveform of audio files.
+ *
+ * Decoded PCM is never kept around: every output buffer of the decoder is folded straight into a
+ * [WaveformRmsAccumulator] and released, so memory usage doesn't depend on the audio length.
+ *
+ * Partially based on the old [Google's Ringdroid project]
+ * (https://github.com/google/ringdroid/blob/master/app/src/main/java/com/ringdroid/soundfile/SoundFile.java).
+ */
+object AudioWaveformAnalyzer {
+
+    private const val CODEC_TIMEOUT_US = 100L
+
+    /**
+     * Reads the duration of the first audio track from the container metadata without decoding
+     * any audio. Only if the container doesn't declare a duration the track gets decoded.
+     *
+     * @return the duration in microseconds, or -1 if it couldn't be determined.
+     */
+    @JvmStatic
+    @WorkerThread
+    @Throws(IOException::class)
+    fun readDurationMicroseconds(dataSource: MediaDataSource): Long {
+        val extractor = MediaExtractor().apply { setDataSource(dataSource) }
+        try {
+            val format = extractor.selectFirstAudioTrack()
+            // On some old APIs (23) this field might be missing.
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                return format.getLong(MediaFormat.KEY_DURATION)
+            }
+        } finally {
+            extractor.release()
+        }
+
+        val retriever = MediaMetadataRetriever()
+        val metadataDurationMs = try {
+            retriever.setDataSource(dataSource)
+            retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)?.toLongOrNull()
+        } finally {
+            retriever.release()
+        }
+        if (metadataDurationMs != null && metadataDurationMs > 0) {
+            return metadataDurationMs * 1000
+        }
+
+        return analyze(dataSource, maxFrames = 1).durationMicroseconds
+    }
+
+    /**
+     * Decodes the first audio track of [dataSource] and reduces it to at most [maxFrames]
+     * RMS values of the first channel.
+     */
+    @JvmStatic
+    @WorkerThread
+    @Throws(IOException::class)
+    fun analyze(dataSource: MediaDataSource, maxFrames: Int): AudioWaveform {
+        val extractor = MediaExtractor().apply { setDataSource(dataSource) }
+        return analyze(extractor, maxFrames)
+    }
+
+    private fun analyze(extractor: MediaExtractor, maxFrames: Int): AudioWaveform {
+        var codec: MediaCodec? = null
+        try {
+            val mediaFormat = extractor.selectFirstAudioTrack()
+            val mime = mediaFormat.getString(MediaFormat.KEY_MIME)!!
+            var channels = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            val sampleRate = mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+            val declaredDurationUs = if (mediaFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                mediaFormat.getLong(MediaFormat.KEY_DURATION)
+            } else {
+                -1L
+            }
+
+            // Expected total number of samples per channel.
+            val expectedNumSamples = if (declaredDurationUs >= 0) {
+                ((declaredDurationUs / 1000000f) * sampleRate + 0.5f).toLong()
+            } else {
+                -1L
+            }
+
+            val accumulator = WaveformRmsAccumulator(maxFrames, expectedNumSamples)
+
+            codec = MediaCodec.createDecoderByType(mime)
+            codec.configure(mediaFormat, null, null, 0)
+            codec.start()
+
+            // Check if the track is in PCM 16 bit encoding.
+            try {
+                val pcmEncoding = codec.outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING)
+                if (pcmEncoding != AudioFormat.ENCODING_PCM_16BIT) {
+                    throw IOException("Unsupported PCM encoding code: $pcmEncoding")
+                }
+            } catch (e: NullPointerException) {
+                // If KEY_PCM_ENCODING is not specified, means it's ENCODING_PCM_16BIT.
+            }
+
+            val info = MediaCodec.BufferInfo()
+            var doneReading = false
+            var firstSampleData = true
+
+            while (true) {
+                // Read data from file and feed it to the decoder input buffers.
+                val inputBufferIndex = if (doneReading) -1 else codec.dequeueInputBuffer(CODEC_TIMEOUT_US)
+                if (inputBufferIndex >= 0) {
+                    val sampleSize = extractor.readSampleData(codec.getInputBuffer(inputBufferIndex)!!, 0)
+                    if (firstSampleData && mime == "audio/mp4a-latm" && sampleSize == 2) {
+                        // For some reasons on some devices (e.g. the Samsung S3) you should not
+                        // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
+                        // crash. These two bytes do not contain music data but basic info on the
+                        // stream (e.g. channel configuration and sampling frequency), and skipping them
+                        // seems OK with other devices (MediaCodec has already been configured and
+                        // already knows these parameters).
+                        extractor.advance()
+                    } else if (sampleSize < 0) {
+                        // All samples have been read.
+                        codec.queueInputBuffer(
+                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                        )
+                        doneReading = true
+                    } else {
+                        codec.queueInputBuffer(inputBufferIndex, 0, sampleSize, extractor.sampleTime, 0)
+                        extractor.advance()
+                    }
+                    firstSampleData = false
+                }
+
+                // Fold the decoded output straight into the accumulator.
+                val outputBufferIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US)
+                if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    channels = codec.outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                } else if (outputBufferIndex >= 0) {
+                    if (info.size > 0) {
+                        val outputBuffer = codec.getOutputBuffer(outputBufferIndex)!!
+                        outputBuffer.position(info.offset)
+                        outputBuffer.limit(info.offset + info.size)
+                        accumulator.add(outputBuffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(), channels)
+                    }
+                    codec.releaseOutputBuffer(outputBufferIndex, false)
+                }
+
+                if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                    || (expectedNumSamples >= 0 && accumulator.numSamples >= expectedNumSamples)
+                ) {
+                    // We got all the decoded data from the decoder. Stop here.
+                    // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
+                    // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
+                    // won't do that for some files (e.g. with mono AAC files), in which case subsequent
+                    // calls to dequeueOutputBuffer may result in the application crashing, without
+                    // even an exception being thrown... Hence the second check.
+                    break
+                }
+            }
+
+            val durationUs = when {
+                declaredDurationUs >= 0 -> declaredDurationUs
+                sampleRate > 0 -> accumulator.numSamples * 1_000_000L / sampleRate
+                else -> -1L
+            }
+
+            return AudioWaveform(durationUs, accumulator.finish())
+        } finally {
+            extractor.release()
+            if (codec != null) {
+                runCatching { codec.stop() }
+                codec.release()
+            }
+        }
+    }
+
+    /**
+     * Finds and selects the first audio track present in the file.
+     */
+    private fun MediaExtractor.selectFirstAudioTrack(): MediaFormat {
+        for (trackIndex in 0 until trackCount) {
+            val format = getTrackFormat(trackIndex)
+            if (format.getString(MediaFormat.KEY_MIME)?.startsWith("audio/") == true) {
+                selectTrack(trackIndex)
+                return format
+            }
+        }
+
+        throw IOException("No audio track found in the data source.")
+    }
+}
+
+/**
+ * Reduces a stream of interleaved 16 bit PCM samples to at most [maxFrames] RMS values of the
+ * first channel, without retaining the samples.
+ *
+ * Samples are summed into buckets of equal size. The bucket size is derived from
+ * [expectedSamplesPerChannel] when known; if more samples than expected arrive (or the length is
+ * unknown) neighbouring buckets are merged pairwise and the bucket size doubles, so the memory
+ * used is bounded by `2 * maxFrames` buckets regardless of the input length.
+ */
+class WaveformRmsAccumulator(
+    private val maxFrames: Int,
+    expectedSamplesPerChannel: Long = -1L,
+) {
+    private val capacity = maxFrames.coerceAtLeast(1) * 2
+    private val squaredSums = DoubleArray(capacity)
+    private val counts = IntArray(capacity)
+
+    private var samplesPerBucket: Long = if (expectedSamplesPerChannel > 0) {
+        ((expectedSamplesPerChannel + maxFrames - 1) / maxFrames).coerceAtLeast(1)
+    } else {
+        1
+    }
+
+    /** Number of samples per channel folded in so far. */
+    var numSamples: Long = 0L
+        private set
+
+    fun add(samples: ShortBuffer, channels: Int) {
+        val start = samples.position()
+        val end = samples.limit()
+        var index = start
+        while (index < end) {
+            var bucket = numSamples / samplesPerBucket
+            if (bucket >= capacity) {
+                mergeBuckets()
+                bucket = numSamples / samplesPerBucket
+            }
+
+            val sample = samples.get(index).toDouble()
+            squaredSums[bucket.toInt()] += sample * sample
+            counts[bucket.toInt()]++
+
+            numSamples++
+            index += channels
+        }
+    }
+
+    private fun mergeBuckets() {
+        for (i in 0 until capacity / 2) {
+            squaredSums[i] = squaredSums[i * 2] + squaredSums[i * 2 + 1]
+            counts[i] = counts[i * 2] + counts[i * 2 + 1]
+        }
+        squaredSums.fill(0.0, capacity / 2, capacity)
+        counts.fill(0, capacity / 2, capacity)
+        samplesPerBucket *= 2
+    }
+
+    /**
+     * @return normalized RMS values as a signed byte array. If fewer samples than [maxFrames]
+     * were added, the result has one value per sample instead.
+     */
+    fun finish(): ByteArray {
+        val bucketCount = ((numSamples + samplesPerBucket - 1) / samplesPerBucket).toInt()
+        val numFrames = minOf(bucketCount, maxFrames)
+        val rmsValues = FloatArray(numFrames)
+
+        for (frame in 0 until numFrames) {
+            val from = (frame.toLong() * bucketCount / numFrames).toInt()
+            val to = ((frame + 1).toLong() * bucketCount / numFrames).toInt()
+
+            var sum = 0.0
+            var count = 0L
+            for (bucket in from until to) {
+                sum += squaredSums[bucket]
+                count += counts[bucket]
+            }
+            rmsValues[frame] = if (count > 0) sqrt(sum / count).toFloat() else 0f
+        }
+
+        normalizeArray(rmsValues)
+
+        // Convert normalized result to a signed byte array.
+        return ByteArray(numFrames) { normalizedFloatToByte(rmsValues[it]) }
+    }
+}
+
+/**
+ * Normalizes the array's values to [0..1] range.
+ */
+private fun normalizeArray(values: FloatArray) {
+    var maxValue = -Float.MAX_VALUE
+    var minValue = +Float.MAX_VALUE
+    values.forEach { value ->
+        if (value > maxValue) maxValue = value
+        if (value < minValue) minValue = value
+    }
+    val span = maxValue - minValue
+
+    if (span == 0f) {
+        values.indices.forEach { i -> values[i] = 0f }
+        return
+    }
+
+    values.indices.forEach { i -> values[i] = (values[i] - minValue) / span }
+}
+
+/** Turns a signed byte into a [0..1] float. */
+inline fun byteToNormalizedFloat(value: Byte): Float {
+    return (value + 128f) / 255f
+}
+
+/** Turns a [0..1] float into a signed byte. */
+inline fun normalizedFloatToByte(value: Float): Byte {
+    return (255f * value - 128f).roundToInt().toByte()
+}
@@ -34,6 +34,13 @@ interface ConfigFactoryProtocol {
     val configUpdateNotifications: Flow<ConfigUpdateNotification>
 
     fun <T> withUserConfigs(cb: (UserConfigs) -> T): T
+
+    /**
+     * @return the user configs as of their last change, rebuilt on the first call after a change.
+     * Prefer this over [withUserConfigs] for frequent reads.
+     */
+    fun userConfigsSnapshot(): UserConfigsSnapshot
+
     fun <T> withMutableUserConfigs(cb: (MutableUserConfigs) -> T): T
     fun mergeUserConfigs(userConfigType: UserConfigType, messages: List<ConfigMessage>)
 
@@ -113,16 +120,15 @@ enum class UserConfigType(val namespace: Int) {
     USER_GROUPS(Namespace.USER_GROUPS()),
 }
 
-val ConfigFactoryProtocol.currentUserName: String get() = withUserConfigs { it.userProfile.getName().orEmpty() }
-val ConfigFactoryProtocol.currentUserProfile: UserPic? get() = withUserConfigs { configs ->
-    configs.userProfile.getPic().takeIf { it.url.isNotBlank() }
-}
+val ConfigFactoryProtocol.currentUserName: String get() = userConfigsSnapshot().profile.name.orEmpty()
+val ConfigFactoryProtocol.currentUserProfile: UserPic? get() =
+    userConfigsSnapshot().profile.pic.takeIf { it.url.isNotBlank() }
 
 /**
  * Shortcut to get the group info for a closed group. Equivalent to: `withUserConfigs { it.userGroups.getClosedGroup(groupId) }`
  */
 fun ConfigFactoryProtocol.getGroup(groupId: AccountId): GroupInfo.ClosedGroupInfo? {
-    return withUserConfigs { it.userGroups.getClosedGroup(groupId.hexString) }
+    return userConfigsSnapshot().closedGroups[groupId.hexString]
 }
 
 /**
@@ -13,6 +13,7 @@ object StringSubstitutionConstants {
     const val CONVERSATION_COUNT_KEY: StringSubKey         = "conversation_count"
     const val CONVERSATION_NAME_KEY: StringSubKey          = "conversation_name"
     const val COUNT_KEY: StringSubKey                      = "count"
+    const val COUNTRY_KEY: StringSubKey                    = "country"
     const val DATE_KEY: StringSubKey                       = "date"
     const val DATE_TIME_KEY: StringSubKey                  = "date_time"
     const val DISAPPEARING_MESSAGES_TYPE_KEY: StringSubKey = "disappearing_messages_type"
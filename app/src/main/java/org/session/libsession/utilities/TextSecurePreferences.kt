@@ -200,6 +200,8 @@ interface TextSecurePreferences {
     fun setLastVersionCheck()
     fun getEnvironment(): Environment
     fun setEnvironment(value: Environment)
+    fun getSparePathCount(): Int
+    fun setSparePathCount(value: Int)
     fun hasSeenTokenPageNotification(): Boolean
     fun setHasSeenTokenPageNotification(value: Boolean)
     fun forcedShortTTL(): Boolean
@@ -222,6 +224,7 @@ interface TextSecurePreferences {
     var migratedToMultiPartConfig: Boolean
 
     var migratedDisappearingMessagesToMessageContent: Boolean
+    var backfilledSnippetSnapshots: Boolean
 
     var selectedActivityAliasName: String?
 
@@ -315,6 +318,7 @@ interface TextSecurePreferences {
         const val SELECTED_ACCENT_COLOR = "selected_accent_color"
         const val LAST_VERSION_CHECK = "pref_last_version_check"
         const val ENVIRONMENT = "debug_environment"
+        const val SPARE_PATH_COUNT = "debug_spare_path_count"
         const val MIGRATED_TO_GROUP_V2_CONFIG = "migrated_to_group_v2_config"
         const val MIGRATED_TO_DISABLING_KDF = "migrated_to_disabling_kdf"
         const val MIGRATED_TO_MULTIPART_CONFIG = "migrated_to_multi_part_config"
@@ -985,6 +989,10 @@ class AppTextSecurePreferences @Inject constructor(
         get() = getBooleanPreference("migrated_disappearing_messages_to_message_content", false)
         set(value) = setBooleanPreference("migrated_disappearing_messages_to_message_content", value)
 
+    override var backfilledSnippetSnapshots: Boolean
+        get() = getBooleanPreference("backfilled_snippet_snapshots", false)
+        set(value) = setBooleanPreference("backfilled_snippet_snapshots", value)
+
     override fun getConfigurationMessageSynced(): Boolean {
         return getBooleanPreference(TextSecurePreferences.CONFIGURATION_SYNCED, false)
     }
@@ -1485,6 +1493,14 @@ class AppTextSecurePreferences @Inject constructor(
         setStringPreference(ENVIRONMENT, value.name)
     }
 
+    override fun getSparePathCount(): Int {
+        return getIntegerPreference(TextSecurePreferences.SPARE_PATH_COUNT, 1)
+    }
+
+    override fun setSparePathCount(value: Int) {
+        setIntegerPreference(TextSecurePreferences.SPARE_PATH_COUNT, value)
+    }
+
     override fun setShownCallNotification(): Boolean {
         val previousValue = getBooleanPreference(SHOWN_CALL_NOTIFICATION, false)
         if (previousValue) return false
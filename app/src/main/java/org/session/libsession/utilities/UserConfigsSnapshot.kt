@@ -0,0 +1,57 @@
+package org.session.libsession.utilities
+
+import network.loki.messenger.libsession_util.util.BlindedContact
+import network.loki.messenger.libsession_util.util.Contact
+import network.loki.messenger.libsession_util.util.Conversation
+import network.loki.messenger.libsession_util.util.ExpiryMode
+import network.loki.messenger.libsession_util.util.GroupInfo
+import network.loki.messenger.libsession_util.util.UserPic
+
+/**
+ * The decoded content of the user configs at a point in time, see [ConfigFactoryProtocol.userConfigsSnapshot].
+ *
+ * Reading from a snapshot doesn't take the config lock or call into libsession, which makes it the
+ * better choice for code that reads the configs for every message or recipient. The objects in it
+ * must not be modified.
+ *
+ * @param version Increases every time the user configs are changed.
+ */
+class UserConfigsSnapshot(
+    val version: Long,
+    val profile: Profile,
+    /** Keyed by account id. */
+    val contacts: Map<String, Contact>,
+    val blindedContacts: List<BlindedContact>,
+    val groups: List<GroupInfo>,
+    val conversations: List<Conversation>,
+) {
+    /** Keyed by group account id. */
+    val closedGroups: Map<String, GroupInfo.ClosedGroupInfo> by lazy(LazyThreadSafetyMode.PUBLICATION) {
+        groups.asSequence()
+            .filterIsInstance<GroupInfo.ClosedGroupInfo>()
+            .associateBy { it.groupAccountId }
+    }
+
+    data class Profile(
+        val name: String?,
+        val pic: UserPic,
+        val ntsPriority: Long,
+        val ntsExpiry: ExpiryMode,
+    )
+
+    companion object {
+        fun of(version: Long, configs: UserConfigs) = UserConfigsSnapshot(
+            version = version,
+            profile = Profile(
+                name = configs.userProfile.getName(),
+                pic = configs.userProfile.getPic(),
+                ntsPriority = configs.userProfile.getNtsPriority(),
+                ntsExpiry = configs.userProfile.getNtsExpiry(),
+            ),
+            contacts = configs.contacts.all().associateBy { it.id },
+            blindedContacts = configs.contacts.allBlinded(),
+            groups = configs.userGroups.all(),
+            conversations = configs.convoInfoVolatile.all(),
+        )
+    }
+}
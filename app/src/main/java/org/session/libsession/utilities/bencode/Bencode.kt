@@ -1,169 +1,456 @@
 package org.session.libsession.utilities.bencode
 
-import java.util.LinkedList
+import org.session.libsignal.utilities.ByteArraySlice
+import org.session.libsignal.utilities.ByteArraySlice.Companion.view
+import java.io.OutputStream
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 object Bencode {
-    class Decoder(source: ByteArray) {
 
-        private val iterator = LinkedList<Byte>().apply {
-            addAll(source.asIterable())
-        }
+    /**
+     * Decodes bencoded elements one after the other from [source].
+     *
+     * An element is checked to be well formed as a whole when it's decoded, without allocating anything,
+     * so [decode] takes time linear in the size of the element even when little of it is read. Its content
+     * is only read when accessed: strings are views of [source] rather than copies, and lists and dicts
+     * find where their items are the first time they're read and decode each item once, as it's looked
+     * up. [source] must not be changed afterwards.
+     */
+    class Decoder(private val source: ByteArraySlice) {
+
+        constructor(source: ByteArray) : this(source.view())
+
+        private var position = source.offset
 
         /**
-         * Decode an element based on next marker assumed to be string/int/list/dict or return null
+         * Decode the next element, or return null if there is none or it's malformed
          */
         fun decode(): BencodeElement? {
-            val result = when (iterator.peek()?.toInt()?.toChar()) {
-                in NUMBERS -> decodeString()
-                INT_INDICATOR -> decodeInt()
-                LIST_INDICATOR -> decodeList()
-                DICT_INDICATOR -> decodeDict()
-                else -> {
-                    null
-                }
-            }
-            return result
+            val end = source.offset + source.len
+            val elementEnd = skipElement(source.data, position, end, depth = 0)
+            if (elementEnd < 0) return null
+
+            val start = position
+            position = elementEnd
+            return readElement(source.data, start, elementEnd)
         }
+    }
 
-        /**
-         * Decode a string element from iterator assumed to have structure `{length}:{data}`
-         */
-        private fun decodeString(): BencodeString? {
-            val lengthStrings = buildString {
-                while (iterator.isNotEmpty() && iterator.peek()?.toInt()?.toChar() != SEPARATOR) {
-                    append(iterator.pop().toInt().toChar())
-                }
-            }
-            iterator.pop() // drop `:`
-            val length = lengthStrings.toIntOrNull(10) ?: return null
-            val remaining = (0 until length).map { iterator.pop() }.toByteArray()
-            return BencodeString(remaining)
+    /**
+     * Encodes elements into a buffer that grows as needed and can be reused by calling [reset].
+     *
+     * Dict keys are written in the order of their bytes, as bencode requires. Lists and dicts that were
+     * decoded and never read are written back as they were decoded, without being re-encoded.
+     */
+    class Encoder(initialCapacity: Int = 256) {
+        private var buffer = ByteArray(initialCapacity)
+
+        var size = 0
+            private set
+
+        fun reset(): Encoder {
+            size = 0
+            return this
         }
 
-        /**
-         * Decode an int element from iterator assumed to have structure `i{int}e`
-         */
-        private fun decodeInt(): BencodeElement? {
-            iterator.pop() // drop `i`
-            val intString = buildString {
-                while (iterator.isNotEmpty() && iterator.peek()?.toInt()?.toChar() != END_INDICATOR) {
-                    append(iterator.pop().toInt().toChar())
+        fun write(element: BencodeElement): Encoder {
+            when (element) {
+                is BencodeString -> writeString(element.slice)
+                is BencodeInteger -> writeInteger(element.value)
+                is BencodeList -> {
+                    val values = element.values
+                    if (values is LazyBencodeList && !values.isRead) {
+                        writeRaw(values.encoded)
+                    } else {
+                        writeByte(LIST)
+                        values.forEach(::write)
+                        writeByte(END)
+                    }
+                }
+                is BencodeDict -> {
+                    val values = element.values
+                    if (values is LazyBencodeDict && !values.isRead) {
+                        writeRaw(values.encoded)
+                    } else {
+                        writeByte(DICT)
+                        values.entries
+                            .map { (key, value) -> key.encodeToByteArray() to value }
+                            .sortedWith { a, b -> compareBytes(a.first, b.first) }
+                            .forEach { (key, value) ->
+                                writeString(key.view())
+                                write(value)
+                            }
+                        writeByte(END)
+                    }
                 }
             }
-            val asInt = intString.toIntOrNull(10) ?: return null
-            iterator.pop() // drop `e`
-            return BencodeInteger(asInt)
+            return this
+        }
+
+        fun writeString(value: ByteArraySlice): Encoder {
+            writeDecimal(value.len.toLong())
+            writeByte(SEPARATOR)
+            writeRaw(value)
+            return this
+        }
+
+        fun writeInteger(value: Long): Encoder {
+            writeByte(INT)
+            writeDecimal(value)
+            writeByte(END)
+            return this
         }
 
         /**
-         * Decode a list element from iterator assumed to have structure `l{data}e`
+         * Copy of what has been encoded so far
          */
-        private fun decodeList(): BencodeElement {
-            iterator.pop() // drop `l`
-            val listElements = mutableListOf<BencodeElement>()
-            while (iterator.isNotEmpty() && iterator.peek()?.toInt()?.toChar() != END_INDICATOR) {
-                decode()?.let { nextElement ->
-                    listElements += nextElement
-                }
-            }
-            iterator.pop() // drop `e`
-            return BencodeList(listElements)
-        }
+        fun toByteArray(): ByteArray = buffer.copyOf(size)
 
         /**
-         * Decode a dict element from iterator assumed to have structure `d{data}e`
+         * View of what has been encoded so far, only valid until the encoder is reset or written to
          */
-        private fun decodeDict(): BencodeElement? {
-            iterator.pop() // drop `d`
-            val dictElements = mutableMapOf<String,BencodeElement>()
-            while (iterator.isNotEmpty() && iterator.peek()?.toInt()?.toChar() != END_INDICATOR) {
-                val key = decodeString() ?: return null
-                val value = decode() ?: return null
-                dictElements += key.value.decodeToString() to value
-            }
-            iterator.pop() // drop `e`
-            return BencodeDict(dictElements)
+        fun toSlice(): ByteArraySlice = if (size == 0) ByteArraySlice.EMPTY else buffer.view(0 until size)
+
+        fun writeTo(outputStream: OutputStream) {
+            outputStream.write(buffer, 0, size)
         }
 
-        companion object {
-            private val NUMBERS = arrayOf('0', '1', '2', '3', '4', '5', '6', '7', '8', '9')
-            private const val INT_INDICATOR = 'i'
-            private const val LIST_INDICATOR = 'l'
-            private const val DICT_INDICATOR = 'd'
-            private const val END_INDICATOR = 'e'
-            private const val SEPARATOR = ':'
+        private fun writeByte(byte: Byte) {
+            ensureCapacity(1)
+            buffer[size++] = byte
         }
 
-    }
+        private fun writeRaw(slice: ByteArraySlice) {
+            ensureCapacity(slice.len)
+            slice.data.copyInto(buffer, size, slice.offset, slice.offset + slice.len)
+            size += slice.len
+        }
 
+        private fun writeDecimal(value: Long) {
+            if (value < 0) writeByte(MINUS)
+
+            // Work on the negative value so that Long.MIN_VALUE doesn't overflow
+            var remaining = if (value < 0) value else -value
+            var digits = 1
+            var rest = remaining
+            while (rest <= -10) {
+                rest /= 10
+                digits++
+            }
+
+            ensureCapacity(digits)
+            var index = size + digits - 1
+            do {
+                buffer[index--] = (ZERO - remaining % 10).toByte()
+                remaining /= 10
+            } while (remaining != 0L)
+            size += digits
+        }
+
+        private fun ensureCapacity(extra: Int) {
+            if (size + extra > buffer.size) {
+                buffer = buffer.copyOf(maxOf(size + extra, buffer.size * 2))
+            }
+        }
+    }
 }
 
 sealed class BencodeElement {
-    abstract fun encode(): ByteArray
+    fun encode(): ByteArray = Bencode.Encoder().write(this).toByteArray()
 }
 
 fun String.bencode() = BencodeString(this.encodeToByteArray())
-fun Int.bencode() = BencodeInteger(this)
+fun Int.bencode() = BencodeInteger(this.toLong())
+fun Long.bencode() = BencodeInteger(this)
+
+/**
+ * A bencoded string, which is a view of the bytes it was decoded from.
+ */
+class BencodeString(val slice: ByteArraySlice) : BencodeElement() {
+
+    constructor(value: ByteArray) : this(value.view())
+
+    /**
+     * The bytes of this string: the array it was created with, or a copy when it's a view of a larger one.
+     */
+    val value: ByteArray
+        get() = if (slice.offset == 0 && slice.len == slice.data.size) slice.data else slice.copyToBytes()
 
-data class BencodeString(val value: ByteArray): BencodeElement() {
-    override fun encode(): ByteArray = buildString {
-        append(value.size.toString())
-        append(':')
-    }.toByteArray() + value
+    fun decodeToString(): String = slice.decodeToString()
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
-        if (javaClass != other?.javaClass) return false
+        if (other !is BencodeString) return false
+
+        return slice.len == other.slice.len &&
+            regionEquals(slice.data, slice.offset, other.slice.data, other.slice.offset, slice.len)
+    }
+
+    override fun hashCode(): Int {
+        var result = 1
+        for (i in slice.offset until slice.offset + slice.len) {
+            result = 31 * result + slice.data[i]
+        }
+        return result
+    }
+
+    override fun toString(): String = "BencodeString(${slice.len} bytes)"
+}
+
+data class BencodeInteger(val value: Long) : BencodeElement()
+
+data class BencodeList(val values: List<BencodeElement>) : BencodeElement() {
+
+    constructor(vararg values: BencodeElement) : this(values.toList())
+}
+
+data class BencodeDict(val values: Map<String, BencodeElement>) : BencodeElement() {
+
+    constructor(vararg values: Pair<String, BencodeElement>) : this(values.toMap())
+}
+
+/**
+ * The items of a decoded list, found the first time the list is read and then decoded one by one as
+ * they're accessed.
+ */
+private class LazyBencodeList(
+    private val data: ByteArray,
+    private val start: Int,
+    private val end: Int,
+) : AbstractList<BencodeElement>() {
+
+    // Where each item starts, followed by where the last one ends
+    private val offsets: IntArray by lazy {
+        var offsets = IntArray(8)
+        var count = 0
+        var position = start
+        while (true) {
+            if (count == offsets.size) offsets = offsets.copyOf(count * 2)
+            offsets[count++] = position
+            if (position == end) break
+            position = skipElement(data, position, end, depth = 0)
+        }
+        offsets.copyOf(count)
+    }
+
+    private val items: AtomicReferenceArray<BencodeElement?> by lazy { AtomicReferenceArray(size) }
+
+    @Volatile
+    var isRead = false
+        private set
 
-        other as BencodeString
+    /**
+     * The list as it was encoded
+     */
+    val encoded: ByteArraySlice
+        get() = data.view(start - 1..end)
 
-        if (!value.contentEquals(other.value)) return false
+    override val size: Int
+        get() = offsets.size - 1
 
-        return true
+    override fun get(index: Int): BencodeElement {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("Index $index is not within [0..$size)")
+
+        isRead = true
+        return items[index] ?: readElement(data, offsets[index], offsets[index + 1]).also { items[index] = it }
     }
+}
 
-    override fun hashCode(): Int {
-        return value.contentHashCode()
+/**
+ * The entries of a decoded dict, found the first time the dict is read. Looking up a key compares it with
+ * the encoded keys and only decodes the matching value, once.
+ */
+private class LazyBencodeDict(
+    private val data: ByteArray,
+    private val start: Int,
+    private val end: Int,
+) : AbstractMap<String, BencodeElement>() {
+
+    // Where each key starts and ends, followed by where its value ends, as it starts where the key ends
+    private val offsets: IntArray by lazy {
+        var offsets = IntArray(24)
+        var count = 0
+        var position = start
+        while (position < end) {
+            if (count == offsets.size) offsets = offsets.copyOf(count * 2)
+            val keyStart = stringBytesStart(data, position, end)
+            val keyEnd = keyStart + stringLength(data, position, keyStart)
+            position = skipElement(data, keyEnd, end, depth = 0)
+            offsets[count++] = keyStart
+            offsets[count++] = keyEnd
+            offsets[count++] = position
+        }
+        offsets.copyOf(count)
+    }
+
+    private val values: AtomicReferenceArray<BencodeElement?> by lazy { AtomicReferenceArray(offsets.size / 3) }
+
+    private val decoded = lazy {
+        isRead = true
+        val entries = LinkedHashMap<String, BencodeElement>()
+        for (index in 0 until values.length()) {
+            entries[data.decodeToString(offsets[index * 3], offsets[index * 3 + 1])] = valueAt(index)
+        }
+        entries
+    }
+
+    @Volatile
+    var isRead = false
+        private set
+
+    /**
+     * The dict as it was encoded
+     */
+    val encoded: ByteArraySlice
+        get() = data.view(start - 1..end)
+
+    override val entries: Set<Map.Entry<String, BencodeElement>>
+        get() = decoded.value.entries
+
+    override fun get(key: String): BencodeElement? {
+        if (decoded.isInitialized()) return decoded.value[key]
+
+        isRead = true
+        val keyBytes = key.encodeToByteArray()
+        val offsets = offsets
+        var index = 0
+        while (index * 3 < offsets.size) {
+            val keyStart = offsets[index * 3]
+            val keyEnd = offsets[index * 3 + 1]
+            if (keyEnd - keyStart == keyBytes.size && regionEquals(data, keyStart, keyBytes, 0, keyBytes.size)) {
+                return valueAt(index)
+            }
+            index++
+        }
+        return null
+    }
+
+    override fun containsKey(key: String): Boolean = get(key) != null
+
+    private fun valueAt(index: Int): BencodeElement {
+        return values[index] ?: readElement(data, offsets[index * 3 + 1], offsets[index * 3 + 2]).also { values[index] = it }
     }
 }
-data class BencodeInteger(val value: Int): BencodeElement() {
-    override fun encode(): ByteArray = buildString {
-        append('i')
-        append(value.toString())
-        append('e')
-    }.toByteArray()
+
+private const val INT: Byte = 0x69 // 'i'
+private const val LIST: Byte = 0x6C // 'l'
+private const val DICT: Byte = 0x64 // 'd'
+private const val END: Byte = 0x65 // 'e'
+private const val SEPARATOR: Byte = 0x3A // ':'
+private const val MINUS: Byte = 0x2D // '-'
+private const val ZERO = 0x30 // '0'
+
+private const val MAX_DEPTH = 256
+
+/**
+ * Read the element between [start] and [end], which must have been checked by [skipElement]
+ */
+private fun readElement(data: ByteArray, start: Int, end: Int): BencodeElement = when (data[start]) {
+    INT -> BencodeInteger(parseInteger(data, start + 1, end - 1))
+    LIST -> BencodeList(LazyBencodeList(data, start + 1, end - 1))
+    DICT -> BencodeDict(LazyBencodeDict(data, start + 1, end - 1))
+    else -> BencodeString(data.view(stringBytesStart(data, start, end) until end))
 }
-data class BencodeList(val values: List<BencodeElement>): BencodeElement() {
 
-    constructor(vararg values: BencodeElement) : this(values.toList())
+/**
+ * Check that the element at [start] is well formed and return where it ends, or -1 if it isn't
+ */
+private fun skipElement(data: ByteArray, start: Int, end: Int, depth: Int): Int {
+    if (start >= end) return -1
+
+    return when (data[start]) {
+        INT -> {
+            var position = start + 1
+            while (position < end && data[position] != END) position++
+            if (position < end && isValidInteger(data, start + 1, position)) position + 1 else -1
+        }
+
+        LIST, DICT -> {
+            if (depth >= MAX_DEPTH) return -1
 
-    override fun encode(): ByteArray = "l".toByteArray() +
-            values.fold(byteArrayOf()) { array, element -> array + element.encode() } +
-            "e".toByteArray()
+            val isDict = data[start] == DICT
+            var position = start + 1
+            while (position < end && data[position] != END) {
+                if (isDict) {
+                    position = skipString(data, position, end)
+                    if (position < 0) return -1
+                }
+                position = skipElement(data, position, end, depth + 1)
+                if (position < 0) return -1
+            }
+            if (position < end) position + 1 else -1
+        }
+
+        else -> skipString(data, start, end)
+    }
 }
-data class BencodeDict(val values: Map<String, BencodeElement>): BencodeElement() {
 
-    constructor(vararg values: Pair<String, BencodeElement>) : this(values.toMap())
+private fun skipString(data: ByteArray, start: Int, end: Int): Int {
+    val bytesStart = stringBytesStart(data, start, end)
+    if (bytesStart < 0) return -1
 
-    override fun encode(): ByteArray = "d".toByteArray() +
-            values.entries.fold(byteArrayOf()) { array, (key, value) ->
-                array + key.bencode().encode() + value.encode()
-            } + "e".toByteArray()
+    val length = stringLength(data, start, bytesStart)
+    return if (length <= end - bytesStart) bytesStart + length else -1
+}
 
-    override fun equals(other: Any?): Boolean {
-        if (this === other) return true
-        if (javaClass != other?.javaClass) return false
+/**
+ * Where the bytes of the string at [start] begin, or -1 if its `{length}:` prefix is malformed
+ */
+private fun stringBytesStart(data: ByteArray, start: Int, end: Int): Int {
+    var position = start
+    var length = 0L
+    while (position < end && data[position] - ZERO in 0..9) {
+        length = length * 10 + (data[position] - ZERO)
+        if (length > Int.MAX_VALUE) return -1
+        position++
+    }
+    return if (position > start && position < end && data[position] == SEPARATOR) position + 1 else -1
+}
 
-        other as BencodeDict
+private fun stringLength(data: ByteArray, start: Int, bytesStart: Int): Int {
+    var length = 0
+    for (i in start until bytesStart - 1) {
+        length = length * 10 + (data[i] - ZERO)
+    }
+    return length
+}
 
-        if (values != other.values) return false
+private fun isValidInteger(data: ByteArray, start: Int, end: Int): Boolean {
+    val negative = start < end && data[start] == MINUS
+    var position = if (negative) start + 1 else start
+    if (position >= end) return false
 
-        return true
+    // Accumulate negatively so that Long.MIN_VALUE can be read
+    var value = 0L
+    while (position < end) {
+        val digit = data[position] - ZERO
+        if (digit !in 0..9 || value < (Long.MIN_VALUE + digit) / 10) return false
+        value = value * 10 - digit
+        position++
     }
+    return negative || value != Long.MIN_VALUE
+}
 
-    override fun hashCode(): Int {
-        return values.hashCode()
+private fun parseInteger(data: ByteArray, start: Int, end: Int): Long {
+    val negative = data[start] == MINUS
+    var value = 0L
+    for (i in (if (negative) start + 1 else start) until end) {
+        value = value * 10 - (data[i] - ZERO)
     }
+    return if (negative) value else -value
+}
 
+private fun regionEquals(a: ByteArray, aOffset: Int, b: ByteArray, bOffset: Int, length: Int): Boolean {
+    for (i in 0 until length) {
+        if (a[aOffset + i] != b[bOffset + i]) return false
+    }
+    return true
+}
 
-}
\ No newline at end of file
+private fun compareBytes(a: ByteArray, b: ByteArray): Int {
+    for (i in 0 until minOf(a.size, b.size)) {
+        val comparison = (a[i].toInt() and 0xFF) - (b[i].toInt() and 0xFF)
+        if (comparison != 0) return comparison
+    }
+    return a.size - b.size
+}
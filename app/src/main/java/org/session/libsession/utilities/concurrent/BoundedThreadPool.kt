@@ -0,0 +1,155 @@
+package org.session.libsession.utilities.concurrent
+
+import android.os.Looper
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import org.session.libsignal.utilities.LatencyHistogram
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A fixed size thread pool with a bounded queue, which records how long tasks wait and run.
+ *
+ * When the queue is full, the submitting thread runs the task itself, which slows down whoever is
+ * producing work faster than the pool can take it. Some submitters are never made to run a task,
+ * the queue is allowed to grow past its bound for them instead:
+ * - the main thread,
+ * - the threads of the pool, as a task submitting follow-up work would otherwise run it nested,
+ * - [dispatcher], as a coroutine resumed inline would run on whatever thread resumed it.
+ *
+ * Idle threads are stopped after [KEEP_ALIVE_SECONDS], so an unused pool holds no threads.
+ */
+class BoundedThreadPool(
+    val name: String,
+    threadCount: Int,
+    queueCapacity: Int,
+    threadFactory: ThreadFactory,
+) : ThreadPoolExecutor(
+    threadCount,
+    threadCount,
+    KEEP_ALIVE_SECONDS,
+    TimeUnit.SECONDS,
+    BoundedQueue(queueCapacity),
+    threadFactory,
+    BackPressurePolicy,
+) {
+    private val callerRunCount = AtomicLong()
+    private val overflowCount = AtomicLong()
+
+    /**
+     * Time between a task being submitted and starting to run.
+     */
+    val queueLatency = LatencyHistogram()
+
+    /**
+     * Time a task took to run.
+     */
+    val runLatency = LatencyHistogram()
+
+    /**
+     * Runs coroutines on the pool. Its tasks are queued past the bound rather than run by the caller.
+     */
+    val dispatcher: CoroutineDispatcher = Executor { command -> super.execute(TimedTask(command, mayRunOnCaller = false)) }
+        .asCoroutineDispatcher()
+
+    init {
+        allowCoreThreadTimeOut(true)
+    }
+
+    override fun execute(command: Runnable) {
+        super.execute(TimedTask(command, mayRunOnCaller = true))
+    }
+
+    fun snapshot(): Snapshot {
+        return Snapshot(
+            name = name,
+            threads = poolSize,
+            maxThreads = maximumPoolSize,
+            active = activeCount,
+            queued = queue.size,
+            completed = completedTaskCount,
+            callerRuns = callerRunCount.get(),
+            overflows = overflowCount.get(),
+            queueLatency = queueLatency.snapshot(),
+            runLatency = runLatency.snapshot(),
+        )
+    }
+
+    data class Snapshot(
+        val name: String,
+        val threads: Int,
+        val maxThreads: Int,
+        val active: Int,
+        val queued: Int,
+        val completed: Long,
+        val callerRuns: Long,
+        val overflows: Long,
+        val queueLatency: LatencyHistogram.Snapshot,
+        val runLatency: LatencyHistogram.Snapshot,
+    ) {
+        override fun toString(): String {
+            return "$name: threads=$threads/$maxThreads active=$active queued=$queued completed=$completed " +
+                "callerRuns=$callerRuns overflows=$overflows wait: $queueLatency run: $runLatency"
+        }
+    }
+
+    private inner class TimedTask(private val task: Runnable, val mayRunOnCaller: Boolean) : Runnable {
+        private val submittedAt = System.nanoTime()
+
+        override fun run() {
+            val startedAt = System.nanoTime()
+            queueLatency.record(TimeUnit.NANOSECONDS.toMillis(startedAt - submittedAt))
+            val outerPool = currentPool.get()
+            currentPool.set(this@BoundedThreadPool)
+            try {
+                task.run()
+            } finally {
+                currentPool.set(outerPool)
+                runLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt))
+            }
+        }
+    }
+
+    /**
+     * Refuses new tasks past its capacity, so that the pool hands them to [BackPressurePolicy].
+     */
+    private class BoundedQueue(private val capacity: Int) : LinkedBlockingQueue<Runnable>() {
+        override fun offer(e: Runnable): Boolean = size < capacity && super.offer(e)
+
+        fun offerPastCapacity(e: Runnable): Boolean = super.offer(e)
+    }
+
+    private object BackPressurePolicy : RejectedExecutionHandler {
+        override fun rejectedExecution(r: Runnable, executor: ThreadPoolExecutor) {
+            val pool = executor as BoundedThreadPool
+            if (pool.isShutdown) {
+                Log.w(TAG, "${pool.name} is shut down, dropping task")
+            } else if (!(r as TimedTask).mayRunOnCaller ||
+                currentPool.get() === pool ||
+                Looper.myLooper() == Looper.getMainLooper()) {
+                pool.overflowCount.incrementAndGet()
+                (pool.queue as BoundedQueue).offerPastCapacity(r)
+            } else {
+                pool.callerRunCount.incrementAndGet()
+                r.run()
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "BoundedThreadPool"
+        private const val KEEP_ALIVE_SECONDS = 30L
+
+        /**
+         * The pool whose task the current thread is running, if any. A task run by its caller
+         * counts as running on the caller's pool, so a caller-run task doesn't nest further.
+         */
+        private val currentPool = ThreadLocal<BoundedThreadPool?>()
+    }
+}
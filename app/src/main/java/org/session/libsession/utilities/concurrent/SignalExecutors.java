@@ -2,6 +2,8 @@ package org.session.libsession.utilities.concurrent;
 
 import androidx.annotation.NonNull;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -10,11 +12,36 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import kotlinx.coroutines.CoroutineDispatcher;
+
 public class SignalExecutors {
 
-  public static final ExecutorService UNBOUNDED = Executors.newCachedThreadPool(new NumberedThreadFactory("signal-unbounded"));
-  public static final ExecutorService BOUNDED   = Executors.newFixedThreadPool(Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)), new NumberedThreadFactory("signal-bounded"));
-  public static final ExecutorService SERIAL    = Executors.newSingleThreadExecutor(new NumberedThreadFactory("signal-serial"));
+  private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Blocking disk and network work.
+   */
+  public static final BoundedThreadPool IO     = new BoundedThreadPool("signal-io", 16, 256, new NumberedThreadFactory("signal-io"));
+
+  /**
+   * Computations that never block, sized to the number of cores.
+   */
+  public static final BoundedThreadPool CPU    = new BoundedThreadPool("signal-cpu", Math.max(2, CPU_COUNT), 256, new NumberedThreadFactory("signal-cpu"));
+
+  /**
+   * Image and media decoding, kept small as each task can hold large buffers.
+   */
+  public static final BoundedThreadPool DECODE = new BoundedThreadPool("signal-decode", Math.max(1, Math.min(CPU_COUNT / 2, 4)), 64, new NumberedThreadFactory("signal-decode"));
+
+  public static final ExecutorService   SERIAL = Executors.newSingleThreadExecutor(new NumberedThreadFactory("signal-serial"));
+
+  public static final CoroutineDispatcher IO_DISPATCHER     = IO.getDispatcher();
+  public static final CoroutineDispatcher CPU_DISPATCHER    = CPU.getDispatcher();
+  public static final CoroutineDispatcher DECODE_DISPATCHER = DECODE.getDispatcher();
+
+  public static @NonNull List<BoundedThreadPool> getPools() {
+    return Arrays.asList(IO, CPU, DECODE);
+  }
 
   public static ExecutorService newCachedSingleThreadExecutor(final String name) {
     ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, name));
@@ -21,3 +21,23 @@ fun <T> Collection<T>.secureRandom(): T {
 }
 
 fun <T> Collection<T>.shuffledRandom(): List<T> = shuffled(SECURE_RANDOM)
+
+/**
+ * Uses `SecureRandom` to pick an element from this collection, with a probability proportional
+ * to its [weight]. Non-positive weights are never picked unless every weight is non-positive,
+ * in which case the pick is uniform.
+ *
+ * @throws [NullPointerException] if the [Collection] is empty
+ */
+fun <T> Collection<T>.secureWeightedRandom(weight: (T) -> Double): T {
+    val weights = map { weight(it).coerceAtLeast(0.0) }
+    val total = weights.sum()
+    if (total <= 0.0 || total.isNaN()) return secureRandom()
+
+    var target = SECURE_RANDOM.nextDouble() * total
+    for ((index, element) in withIndex()) {
+        target -= weights[index]
+        if (target < 0) return element
+    }
+    return last()
+}
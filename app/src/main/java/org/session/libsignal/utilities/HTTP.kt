@@ -1,27 +1,54 @@
 package org.session.libsignal.utilities
 
 import android.util.Log
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
+import kotlinx.coroutines.suspendCancellableCoroutine
 import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Dispatcher
+import okhttp3.Interceptor
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody
 import okhttp3.Response
 import org.session.libsignal.utilities.Util.SECURE_RANDOM
+import java.io.IOException
 import java.security.cert.X509Certificate
 import java.util.concurrent.TimeUnit
 import javax.net.ssl.SSLContext
 import javax.net.ssl.X509TrustManager
+import kotlin.coroutines.cancellation.CancellationException
+import kotlin.coroutines.resumeWithException
 
 
 object HTTP {
     var isConnectedToNetwork: (() -> Boolean) = { false }
 
-    private val seedNodeConnection by lazy {
+    /**
+     * Request counters and latencies of all calls made through this object.
+     */
+    val metrics = HttpMetrics()
+
+    /**
+     * Shared by every client below so that the concurrency limits apply across all of them.
+     * Limits are per host: a slow guard snode can only hold up its own share of requests.
+     */
+    private val dispatcher by lazy {
+        Dispatcher().apply {
+            maxRequests = MAX_CONCURRENT_REQUESTS
+            maxRequestsPerHost = MAX_CONCURRENT_REQUESTS_PER_HOST
+        }
+    }
 
+    private val baseConnection by lazy {
         OkHttpClient().newBuilder()
+            .dispatcher(dispatcher)
+            .addInterceptor(MetricsInterceptor(metrics))
+            .build()
+    }
+
+    private val seedNodeConnection by lazy {
+        baseConnection.newBuilder()
             .callTimeout(timeout, TimeUnit.SECONDS)
             .connectTimeout(timeout, TimeUnit.SECONDS)
             .readTimeout(timeout, TimeUnit.SECONDS)
@@ -39,7 +66,7 @@ object HTTP {
         }
         val sslContext = SSLContext.getInstance("SSL")
         sslContext.init(null, arrayOf( trustManager ), SECURE_RANDOM)
-        OkHttpClient().newBuilder()
+        baseConnection.newBuilder()
             .sslSocketFactory(sslContext.socketFactory, trustManager)
             .hostnameVerifier { _, _ -> true }
             .callTimeout(timeout, TimeUnit.SECONDS)
@@ -50,18 +77,8 @@ object HTTP {
     }
 
     private fun getDefaultConnection(timeout: Long): OkHttpClient {
-        // Snode to snode communication uses self-signed certificates but clients can safely ignore this
-        val trustManager = object : X509TrustManager {
-
-            override fun checkClientTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
-            override fun checkServerTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
-            override fun getAcceptedIssuers(): Array<X509Certificate> { return arrayOf() }
-        }
-        val sslContext = SSLContext.getInstance("SSL")
-        sslContext.init(null, arrayOf( trustManager ), SECURE_RANDOM)
-        return OkHttpClient().newBuilder()
-            .sslSocketFactory(sslContext.socketFactory, trustManager)
-            .hostnameVerifier { _, _ -> true }
+        // Derived from the default connection so the connection pool and dispatcher are shared
+        return defaultConnection.newBuilder()
             .callTimeout(timeout, TimeUnit.SECONDS)
             .connectTimeout(timeout, TimeUnit.SECONDS)
             .readTimeout(timeout, TimeUnit.SECONDS)
@@ -69,8 +86,17 @@ object HTTP {
             .build()
     }
 
+    /**
+     * Number of calls waiting for a free slot in the dispatcher.
+     */
+    val queuedCallsCount: Int
+        get() = dispatcher.queuedCallsCount()
+
     private const val timeout: Long = 120
 
+    private const val MAX_CONCURRENT_REQUESTS = 96
+    private const val MAX_CONCURRENT_REQUESTS_PER_HOST = 24
+
     open class HTTPRequestFailedException(
         val statusCode: Int,
         val json: Map<*, *>?,
@@ -83,14 +109,14 @@ object HTTP {
     }
 
     /**
-     * Sync. Don't call from the main thread.
+     * Suspends until the response has been read, without blocking the calling thread.
      */
     suspend fun execute(verb: Verb, url: String, timeout: Long = HTTP.timeout, useSeedNodeConnection: Boolean = false): ByteArray {
         return execute(verb = verb, url = url, body = null, timeout = timeout, useSeedNodeConnection = useSeedNodeConnection)
     }
 
     /**
-     * Sync. Don't call from the main thread.
+     * Suspends until the response has been read, without blocking the calling thread.
      */
     suspend fun execute(verb: Verb, url: String, parameters: Map<String, Any>?, timeout: Long = HTTP.timeout, useSeedNodeConnection: Boolean = false): ByteArray {
         return if (parameters != null) {
@@ -102,12 +128,13 @@ object HTTP {
     }
 
     /**
-     * Sync. Don't call from the main thread.
+     * Suspends until the response has been read, without blocking the calling thread.
      */
     suspend fun execute(verb: Verb, url: String, body: ByteArray?, timeout: Long = HTTP.timeout, useSeedNodeConnection: Boolean = false): ByteArray {
         val request = Request.Builder().url(url)
             .removeHeader("User-Agent").addHeader("User-Agent", "WhatsApp") // Set a fake value
             .removeHeader("Accept-Language").addHeader("Accept-Language", "en-us") // Set a fake value
+            .tag(EnqueueTime::class.java, EnqueueTime(System.nanoTime()))
         when (verb) {
             Verb.GET -> request.get()
             Verb.PUT, Verb.POST -> {
@@ -129,15 +156,10 @@ object HTTP {
                 }
                 useSeedNodeConnection -> seedNodeConnection
                 else -> defaultConnection
-            }.newCall(request.build()).await().use { response ->
-                when (val statusCode = response.code) {
-                    200 -> response.body!!.bytes()
-                    else -> {
-                        Log.d("Loki", "${verb.rawValue} request to $url failed with status code: $statusCode.")
-                        throw HTTPRequestFailedException(statusCode, null)
-                    }
-                }
-            }
+            }.newCall(request.build()).awaitBody(verb, url)
+        } catch (e: CancellationException) {
+            // The call has already been cancelled, let the cancellation propagate as is
+            throw e
         } catch (exception: Exception) {
             Log.d("Loki", "${verb.rawValue} request to $url failed due to error: ${exception.localizedMessage}.")
 
@@ -148,12 +170,55 @@ object HTTP {
         }
     }
 
-    @Suppress("OPT_IN_USAGE")
-    private val httpCallDispatcher = Dispatchers.IO.limitedParallelism(15)
+    /**
+     * Enqueues the call on the shared dispatcher and suspends until its body has been read.
+     * No thread is held by the caller while waiting, and cancelling the coroutine cancels the call.
+     */
+    private suspend fun Call.awaitBody(verb: Verb, url: String): ByteArray {
+        return suspendCancellableCoroutine { continuation ->
+            continuation.invokeOnCancellation { cancel() }
+
+            enqueue(object : Callback {
+                override fun onResponse(call: Call, response: Response) {
+                    val result = runCatching {
+                        response.use {
+                            when (val statusCode = it.code) {
+                                200 -> it.body.bytes()
+                                else -> {
+                                    Log.d("Loki", "${verb.rawValue} request to $url failed with status code: $statusCode.")
+                                    throw HTTPRequestFailedException(statusCode, null)
+                                }
+                            }
+                        }
+                    }
+                    continuation.resumeWith(result)
+                }
+
+                override fun onFailure(call: Call, e: IOException) {
+                    continuation.resumeWithException(e)
+                }
+            })
+        }
+    }
 
-    private suspend fun Call.await(): Response {
-        return withContext(httpCallDispatcher) {
-            execute()
+    private class EnqueueTime(val nanos: Long)
+
+    private class MetricsInterceptor(private val metrics: HttpMetrics) : Interceptor {
+        override fun intercept(chain: Interceptor.Chain): Response {
+            val request = chain.request()
+            val startNanos = System.nanoTime()
+            val queueDelayMs = request.tag(EnqueueTime::class.java)
+                ?.let { TimeUnit.NANOSECONDS.toMillis(startNanos - it.nanos) }
+
+            metrics.onRequestStarted(queueDelayMs)
+            try {
+                return chain.proceed(request)
+            } finally {
+                metrics.onRequestFinished(
+                    host = request.url.host,
+                    latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+                )
+            }
         }
     }
 }
@@ -0,0 +1,37 @@
+package org.session.libsignal.utilities
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Counters describing the requests going through [HTTP].
+ */
+class HttpMetrics {
+    private val inFlight = AtomicInteger()
+
+    /** Time between a call being enqueued and the dispatcher actually starting it. */
+    val queueDelay = LatencyHistogram()
+
+    private val hostLatencies = ConcurrentHashMap<String, LatencyHistogram>()
+
+    val inFlightCount: Int
+        get() = inFlight.get()
+
+    internal fun onRequestStarted(queueDelayMs: Long?) {
+        inFlight.incrementAndGet()
+        if (queueDelayMs != null) queueDelay.record(queueDelayMs)
+    }
+
+    internal fun onRequestFinished(host: String, latencyMs: Long) {
+        inFlight.decrementAndGet()
+        hostLatencies.getOrPut(host, ::LatencyHistogram).record(latencyMs)
+    }
+
+    fun hostLatencies(): Map<String, LatencyHistogram.Snapshot> =
+        hostLatencies.mapValues { it.value.snapshot() }
+
+    fun reset() {
+        queueDelay.reset()
+        hostLatencies.clear()
+    }
+}
@@ -0,0 +1,68 @@
+package org.session.libsignal.utilities
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A lock-free latency histogram with fixed, roughly logarithmic millisecond buckets.
+ *
+ * Recording is a couple of atomic increments, so it's cheap enough to be called for every
+ * network request. Percentiles are approximated by the upper bound of the bucket they fall in.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKET_UPPER_BOUNDS_MS.size + 1)
+    private val totalMs = AtomicLong()
+
+    fun record(latencyMs: Long) {
+        val ms = latencyMs.coerceAtLeast(0)
+        var bucket = BUCKET_UPPER_BOUNDS_MS.binarySearch(ms)
+        if (bucket < 0) bucket = -bucket - 1
+        counts.incrementAndGet(bucket)
+        totalMs.addAndGet(ms)
+    }
+
+    fun snapshot(): Snapshot {
+        val copy = LongArray(counts.length()) { counts.get(it) }
+        return Snapshot(copy, totalMs.get())
+    }
+
+    fun reset() {
+        for (i in 0 until counts.length()) counts.set(i, 0)
+        totalMs.set(0)
+    }
+
+    class Snapshot(private val counts: LongArray, private val totalMs: Long) {
+        val count: Long = counts.sum()
+
+        val meanMs: Long
+            get() = if (count == 0L) 0L else totalMs / count
+
+        /**
+         * @return the upper bound of the bucket containing the given percentile ([0..1]),
+         * or [Long.MAX_VALUE] if it lies in the overflow bucket.
+         */
+        fun percentileMs(percentile: Double): Long {
+            if (count == 0L) return 0L
+            val target = (count * percentile).toLong().coerceIn(1L, count)
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= target) {
+                    return BUCKET_UPPER_BOUNDS_MS.getOrElse(i) { Long.MAX_VALUE }
+                }
+            }
+            return Long.MAX_VALUE
+        }
+
+        override fun toString(): String {
+            fun Long.format() = if (this == Long.MAX_VALUE) ">${BUCKET_UPPER_BOUNDS_MS.last()}" else toString()
+            return "n=$count mean=${meanMs}ms p50≤${percentileMs(0.5).format()}ms p95≤${percentileMs(0.95).format()}ms"
+        }
+    }
+
+    companion object {
+        private val BUCKET_UPPER_BOUNDS_MS = longArrayOf(
+            10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000, 120_000
+        )
+    }
+}
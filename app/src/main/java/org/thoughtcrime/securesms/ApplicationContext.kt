@@ -18,7 +18,6 @@ package org.thoughtcrime.securesms
 import android.app.Application
 import android.content.Context
 import android.content.Intent
-import android.os.AsyncTask
 import android.os.Handler
 import android.os.HandlerThread
 import androidx.core.content.pm.ShortcutInfoCompat
@@ -50,6 +49,7 @@ import org.session.libsession.snode.SnodeModule
 import org.session.libsession.utilities.SSKEnvironment
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsession.utilities.TextSecurePreferences.Companion.pushSuffix
+import org.session.libsession.utilities.concurrent.SignalExecutors
 import org.session.libsignal.utilities.HTTP.isConnectedToNetwork
 import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.AppContext.configureKovenant
@@ -246,7 +246,7 @@ class ApplicationContext : Application(), DefaultLifecycleObserver, Configuratio
     }
 
     private fun initializeBlobProvider() {
-        AsyncTask.THREAD_POOL_EXECUTOR.execute {
+        SignalExecutors.IO.execute {
             BlobUtils.getInstance().onSessionStart(this)
         }
     }
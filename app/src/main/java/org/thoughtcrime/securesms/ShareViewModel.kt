@@ -114,7 +114,7 @@ class ShareViewModel @Inject constructor(
                 }
             }.sortedWith(
                 compareBy<ThreadRecord> { !it.recipient.isSelf } // NTS come first
-                    .thenByDescending { it.lastMessage?.timestamp } // then order by last message time
+                    .thenByDescending { it.lastMessageTimestamp } // then order by last message time
             ).map { thread ->
                 val recipient = thread.recipient
 
@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.attachments
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.launch
+import org.session.libsignal.utilities.Log
+import org.thoughtcrime.securesms.database.AttachmentDatabase
+import org.thoughtcrime.securesms.database.model.AttachmentDeduplicationReport
+import org.thoughtcrime.securesms.dependencies.ManagerScope
+import org.thoughtcrime.securesms.dependencies.OnAppStartupComponent
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Merges the attachment data files stored before they were content addressed, in the background.
+ * New attachments are deduplicated as they're written, so after the first run this only has to
+ * find out there's nothing left to hash.
+ */
+@Singleton
+class AttachmentDeduplicator @Inject constructor(
+    private val attachmentDatabase: AttachmentDatabase,
+    @param:ManagerScope private val scope: CoroutineScope,
+) : OnAppStartupComponent {
+
+    private val mutableLastReport = MutableStateFlow<AttachmentDeduplicationReport?>(null)
+
+    /**
+     * The report of the run since the app started, null until it's done.
+     */
+    val lastReport: StateFlow<AttachmentDeduplicationReport?> get() = mutableLastReport
+
+    override fun onPostAppStarted() {
+        scope.launch(Dispatchers.IO) {
+            try {
+                val report = attachmentDatabase.deduplicateExistingData()
+                if (report.filesScanned > 0) {
+                    Log.i(TAG, "Deduplicated attachments: $report")
+                }
+                mutableLastReport.value = report
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to deduplicate attachments", e)
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "AttachmentDeduplicator"
+    }
+}
@@ -9,7 +9,6 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentState
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
-import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachmentAudioExtras
 import org.session.libsession.messaging.sending_receiving.attachments.PointerAttachment
 import org.session.libsession.messaging.sending_receiving.attachments.SessionServiceAttachmentPointer
 import org.session.libsession.messaging.sending_receiving.attachments.SessionServiceAttachmentStream
@@ -108,21 +107,6 @@ class DatabaseAttachmentProvider(context: Context, helper: Provider<SQLCipherOpe
         attachmentDatabase.insertAttachmentsForPlaceholder(messageId, attachmentId, stream)
     }
 
-    override fun updateAudioAttachmentDuration(
-        attachmentId: AttachmentId,
-        durationMs: Long,
-        threadId: Long
-    ) {
-        val attachmentDb = DatabaseComponent.get(context).attachmentDatabase()
-        attachmentDb.setAttachmentAudioExtras(
-            DatabaseAttachmentAudioExtras(
-                attachmentId = attachmentId,
-                visualSamples = byteArrayOf(),
-                durationMs = durationMs
-            )
-        )
-    }
-
     override fun isOutgoingMessage(id: MessageId): Boolean {
         return if (id.mms) {
             DatabaseComponent.get(context).mmsDatabase().isOutgoingMessage(id.id)
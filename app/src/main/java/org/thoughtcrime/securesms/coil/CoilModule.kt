@@ -14,6 +14,7 @@ import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.components.SingletonComponent
+import org.session.libsession.utilities.concurrent.SignalExecutors
 
 @Module
 @InstallIn(SingletonComponent::class)
@@ -27,6 +28,9 @@ class CoilModule {
     ): ImageLoader {
         return ImageLoader.Builder(context)
             .crossfade(false)
+            // Fetching reads files and the network, decoding holds large bitmaps: each gets its pool
+            .fetcherCoroutineContext(SignalExecutors.IO_DISPATCHER)
+            .decoderCoroutineContext(SignalExecutors.DECODE_DISPATCHER)
             .diskCache(null)
             .memoryCache(
                 MemoryCache.Builder()
@@ -0,0 +1,68 @@
+package org.thoughtcrime.securesms.configs
+
+import org.session.libsession.utilities.Address
+
+/**
+ * The part of the user configs that [ConfigToDatabaseSync] writes into the database.
+ *
+ * @param readMarkers The last read timestamp of each conversation in the convo info volatile config.
+ */
+data class ConfigSyncState(
+    val conversations: Set<Address.Conversable>,
+    val readMarkers: Map<Address.Conversable, Long>,
+)
+
+/**
+ * What changed between two [ConfigSyncState]s, so that a sync only touches the affected rows.
+ *
+ * @param initial Whether there was no previous state, in which case everything must be synced.
+ */
+data class ConfigSyncChangeSet(
+    val initial: Boolean,
+    val addedConversations: Set<Address.Conversable>,
+    val removedConversations: Set<Address.Conversable>,
+    val changedReadMarkers: Map<Address.Conversable, Long>,
+) {
+    val conversationsChanged: Boolean
+        get() = initial || addedConversations.isNotEmpty() || removedConversations.isNotEmpty()
+
+    val isEmpty: Boolean
+        get() = !conversationsChanged && changedReadMarkers.isEmpty()
+
+    companion object {
+        fun between(previous: ConfigSyncState?, current: ConfigSyncState): ConfigSyncChangeSet {
+            if (previous == null) {
+                return ConfigSyncChangeSet(
+                    initial = true,
+                    addedConversations = current.conversations,
+                    removedConversations = emptySet(),
+                    changedReadMarkers = current.readMarkers,
+                )
+            }
+
+            val added = current.conversations - previous.conversations
+
+            return ConfigSyncChangeSet(
+                initial = false,
+                addedConversations = added,
+                removedConversations = previous.conversations - current.conversations,
+                // The read marker of a new conversation couldn't be applied before its thread existed
+                changedReadMarkers = current.readMarkers.filter { (address, lastRead) ->
+                    address in added || previous.readMarkers[address] != lastRead
+                },
+            )
+        }
+    }
+}
+
+/**
+ * The number of rows a sync touched.
+ */
+data class ConfigSyncStats(
+    val threadsCreated: Int,
+    val threadsDeleted: Int,
+    val readMarkersApplied: Int,
+) {
+    override fun toString(): String =
+        "created $threadsCreated threads, deleted $threadsDeleted threads, applied $readMarkersApplied read markers"
+}
@@ -5,12 +5,14 @@ import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.FlowPreview
 import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.flow.distinctUntilChanged
-import kotlinx.coroutines.flow.emptyFlow
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.onStart
 import kotlinx.coroutines.flow.take
@@ -59,6 +61,7 @@ import org.thoughtcrime.securesms.util.castAwayType
 import java.util.EnumSet
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
+import javax.inject.Singleton
 import kotlin.math.log
 
 private const val TAG = "ConfigToDatabaseSync"
@@ -68,7 +71,8 @@ private const val TAG = "ConfigToDatabaseSync"
  *
  * @see ConfigUploader For upload config system data into swarm automagically.
  */
-@OptIn(ExperimentalCoroutinesApi::class)
+@OptIn(ExperimentalCoroutinesApi::class, FlowPreview::class)
+@Singleton
 class ConfigToDatabaseSync @Inject constructor(
     @param:ApplicationContext private val context: Context,
     private val configFactory: ConfigFactoryProtocol,
@@ -91,6 +95,18 @@ class ConfigToDatabaseSync @Inject constructor(
     private val avatarCacheCleaner: AvatarCacheCleaner,
     @param:ManagerScope private val scope: CoroutineScope,
 ) : OnAppStartupComponent {
+    // Only accessed from the sync collector
+    private var lastSyncState: ConfigSyncState? = null
+
+    // Read markers of conversations that had no thread yet, retried on every sync. Only accessed
+    // from the sync collector.
+    private var unappliedReadMarkers: Set<Address.Conversable> = emptySet()
+
+    /** The rows touched by the most recent sync that changed anything. */
+    @Volatile
+    var lastSyncStats: ConfigSyncStats? = null
+        private set
+
     init {
         // Sync conversations from config -> database
         scope.launch {
@@ -103,18 +119,26 @@ class ConfigToDatabaseSync @Inject constructor(
                             configFactory.userConfigsChanged(EnumSet.of(UserConfigType.CONVO_INFO_VOLATILE))
                                 .castAwayType()
                                 .onStart { emit(Unit) }
-                                .map { _ -> configFactory.withUserConfigs { it.convoInfoVolatile.all() } },
-                            ::Pair
+                                .map { _ -> configFactory.userConfigsSnapshot().conversations.toReadMarkers() },
+                            ::ConfigSyncState
                         )
                     } else {
-                        emptyFlow()
+                        // Tells the collector to forget the state of the previous account
+                        flowOf(null)
                     }
                 }
                 .distinctUntilChanged()
-                .collectLatest { (conversations, convoInfo) ->
+                .debounce { state -> if (state == null) 0L else SYNC_DEBOUNCE_MILLIS }
+                .collectLatest { state ->
+                    if (state == null) {
+                        lastSyncState = null
+                        unappliedReadMarkers = emptySet()
+                        return@collectLatest
+                    }
+
                     try {
-                        ensureConversations(conversations)
-                        updateConvoVolatile(convoInfo)
+                        sync(ConfigSyncChangeSet.between(lastSyncState, state), state)
+                        lastSyncState = state
                     } catch (e: Exception) {
                         Log.e(TAG, "Error updating conversations from config", e)
                     }
@@ -122,7 +146,24 @@ class ConfigToDatabaseSync @Inject constructor(
         }
     }
 
-    private fun ensureConversations(addresses: Set<Address.Conversable>) {
+    private fun sync(changes: ConfigSyncChangeSet, state: ConfigSyncState) {
+        if (changes.isEmpty && unappliedReadMarkers.isEmpty()) return
+
+        val result = if (changes.conversationsChanged) ensureConversations(state.conversations) else null
+        // A thread may have been created since, e.g. by an incoming message
+        val retriedReadMarkers = state.readMarkers.filterKeys { it in unappliedReadMarkers }
+        val readMarkersApplied = updateReadMarkers(retriedReadMarkers + changes.changedReadMarkers)
+
+        val stats = ConfigSyncStats(
+            threadsCreated = result?.createdThreads?.size ?: 0,
+            threadsDeleted = result?.deletedThreads?.size ?: 0,
+            readMarkersApplied = readMarkersApplied,
+        )
+        lastSyncStats = stats
+        Log.d(TAG, "Synced config changes: $stats")
+    }
+
+    private fun ensureConversations(addresses: Set<Address.Conversable>): ThreadDatabase.EnsureThreadsResult {
         val result = threadDatabase.ensureThreads(addresses)
 
         if (result.deletedThreads.isNotEmpty()) {
@@ -177,6 +218,8 @@ class ConfigToDatabaseSync @Inject constructor(
                 }
             }
         }
+
+        return result
     }
 
     private fun pruneRecipientSettingsAndAvatars() {
@@ -351,31 +394,55 @@ class ConfigToDatabaseSync @Inject constructor(
         get() = this.slideDeck.slides.isNotEmpty() && !this.slideDeck.isVoiceNote
 
 
-    private fun updateConvoVolatile(convos: List<Conversation?>) {
-        for (conversation in convos.asSequence().filterNotNull()) {
-            val address: Address.Conversable = when (conversation) {
-                is Conversation.OneToOne -> Address.Standard(AccountId(conversation.accountId))
-                is Conversation.LegacyGroup -> Address.LegacyGroup(conversation.groupId)
-                is Conversation.Community -> Address.Community(serverUrl = conversation.baseCommunityInfo.baseUrl, room = conversation.baseCommunityInfo.room)
-                is Conversation.ClosedGroup -> Address.Group(AccountId(conversation.accountId)) // New groups will be managed bia libsession
-                is Conversation.BlindedOneToOne -> {
-                    // Not supported yet
-                    continue
+    private fun List<Conversation?>.toReadMarkers(): Map<Address.Conversable, Long> =
+        asSequence()
+            .filterNotNull()
+            .mapNotNull { conversation ->
+                val address: Address.Conversable = when (conversation) {
+                    is Conversation.OneToOne -> Address.Standard(AccountId(conversation.accountId))
+                    is Conversation.LegacyGroup -> Address.LegacyGroup(conversation.groupId)
+                    is Conversation.Community -> Address.Community(serverUrl = conversation.baseCommunityInfo.baseUrl, room = conversation.baseCommunityInfo.room)
+                    is Conversation.ClosedGroup -> Address.Group(AccountId(conversation.accountId)) // New groups will be managed bia libsession
+                    is Conversation.BlindedOneToOne -> {
+                        // Not supported yet
+                        return@mapNotNull null
+                    }
                 }
-            }
 
+                address to conversation.lastRead
+            }
+            .toMap()
+
+    /**
+     * Markers of conversations without a thread are kept in [unappliedReadMarkers] for the next sync.
+     *
+     * @return the number of threads whose read marker was moved.
+     */
+    private fun updateReadMarkers(readMarkers: Map<Address.Conversable, Long>): Int {
+        var applied = 0
+        val unapplied = hashSetOf<Address.Conversable>()
+
+        for ((address, lastRead) in readMarkers) {
             val threadId = threadDatabase.getThreadIdIfExistsFor(address)
 
-            if (threadId != -1L) {
-                if (conversation.lastRead > storage.getLastSeen(threadId)) {
-                    storage.markConversationAsRead(
-                        threadId,
-                        conversation.lastRead,
-                        force = true
-                    )
-                    storage.updateThread(threadId, false)
-                }
+            if (threadId == -1L) {
+                unapplied += address
+            } else if (lastRead > storage.getLastSeen(threadId)) {
+                storage.markConversationAsRead(
+                    threadId,
+                    lastRead,
+                    force = true
+                )
+                storage.updateThread(threadId, false)
+                applied++
             }
         }
+
+        unappliedReadMarkers = unapplied
+        return applied
+    }
+
+    companion object {
+        private const val SYNC_DEBOUNCE_MILLIS = 200L
     }
 }
@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.conversation.v2.mention
+
+/**
+ * An index of the names of the members that can be mentioned, so that finding the ones matching
+ * a query doesn't have to look through every name.
+ *
+ * Every substring of up to [MAX_GRAM_LENGTH] characters of a name points to the member, case
+ * insensitively. A query of up to that length is looked up directly, a longer one is only
+ * checked against the members that have its rarest substring in their name. Both the index and
+ * that check fold case the same way.
+ */
+class MentionCandidateIndex(val members: List<MentionViewModel.Member>) {
+    private val postings = HashMap<Long, Postings>()
+
+    init {
+        members.forEachIndexed { index, member ->
+            val name = member.name
+            for (start in name.indices) {
+                for (length in 1..minOf(MAX_GRAM_LENGTH, name.length - start)) {
+                    postings.getOrPut(gramKey(name, start, length)) { Postings() }.add(index)
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls [onMatch] for every member whose name contains [query], ignoring case, with the
+     * index the query starts at in the name. Members are visited in the order of [members].
+     */
+    fun forEachMatch(query: String, onMatch: (member: MentionViewModel.Member, startIndex: Int) -> Unit) {
+        val candidates = candidatesFor(query) ?: return
+        for (i in 0 until candidates.size) {
+            val member = members[candidates[i]]
+            val startIndex = indexOfFolded(member.name, query)
+            if (startIndex >= 0) {
+                onMatch(member, startIndex)
+            }
+        }
+    }
+
+    private fun candidatesFor(query: String): Postings? {
+        if (query.length <= MAX_GRAM_LENGTH) {
+            return postings[gramKey(query, 0, query.length)]
+        }
+
+        var rarest: Postings? = null
+        for (start in 0..query.length - MAX_GRAM_LENGTH) {
+            val candidates = postings[gramKey(query, start, MAX_GRAM_LENGTH)] ?: return null
+            if (rarest == null || candidates.size < rarest.size) {
+                rarest = candidates
+            }
+        }
+        return rarest
+    }
+
+    /**
+     * The ascending indices of the members having a substring in their name.
+     */
+    private class Postings {
+        private var indices = IntArray(4)
+
+        var size: Int = 0
+            private set
+
+        operator fun get(i: Int): Int = indices[i]
+
+        fun add(index: Int) {
+            // A name can contain the same substring more than once
+            if (size > 0 && indices[size - 1] == index) return
+
+            if (size == indices.size) {
+                indices = indices.copyOf(size * 2)
+            }
+            indices[size++] = index
+        }
+    }
+
+    companion object {
+        private const val MAX_GRAM_LENGTH = 3
+
+        private fun gramKey(text: String, start: Int, length: Int): Long {
+            var key = length.toLong()
+            for (i in start until start + length) {
+                key = (key shl 16) or fold(text[i]).code.toLong()
+            }
+            return key
+        }
+
+        /**
+         * Folds the case of [c] the way `equals(ignoreCase = true)` compares characters, so that
+         * e.g. 'ı' and 'İ' index under the same key as 'i'.
+         */
+        private fun fold(c: Char): Char = c.uppercaseChar().lowercaseChar()
+
+        private fun indexOfFolded(text: String, query: String): Int {
+            for (start in 0..text.length - query.length) {
+                var i = 0
+                while (i < query.length && fold(text[start + i]) == fold(query[i])) i++
+                if (i == query.length) return start
+            }
+            return -1
+        }
+    }
+}
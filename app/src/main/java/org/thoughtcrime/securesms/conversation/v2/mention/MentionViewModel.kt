@@ -15,15 +15,20 @@ import dagger.assisted.AssistedInject
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.mapLatest
+import kotlinx.coroutines.flow.onStart
 import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import network.loki.messenger.R
 import org.session.libsession.utilities.Address
@@ -36,10 +41,10 @@ import org.session.libsession.utilities.toGroupString
 import org.session.libsignal.utilities.AccountId
 import org.thoughtcrime.securesms.conversation.v2.utilities.MentionUtilities
 import org.thoughtcrime.securesms.database.GroupDatabase
-import org.thoughtcrime.securesms.database.MmsSmsDatabase
 import org.thoughtcrime.securesms.database.RecipientRepository
 import org.thoughtcrime.securesms.database.Storage
 import org.thoughtcrime.securesms.database.ThreadDatabase
+import org.thoughtcrime.securesms.database.ThreadSendersRepository
 import org.thoughtcrime.securesms.util.AvatarUIData
 import org.thoughtcrime.securesms.util.AvatarUtils
 
@@ -53,13 +58,13 @@ import org.thoughtcrime.securesms.util.AvatarUtils
 @HiltViewModel(assistedFactory = MentionViewModel.Factory::class)
 class MentionViewModel @AssistedInject constructor(
     application: Application,
-    @Assisted address: Address,
-    threadDatabase: ThreadDatabase,
+    @Assisted private val address: Address,
+    private val threadDatabase: ThreadDatabase,
     groupDatabase: GroupDatabase,
     storage: Storage,
     recipientRepository: RecipientRepository,
     avatarUtils: AvatarUtils,
-    mmsSmsDatabase: MmsSmsDatabase
+    private val threadSendersRepository: ThreadSendersRepository,
 ) : ViewModel() {
     private val editable = MentionEditable()
 
@@ -81,28 +86,52 @@ class MentionViewModel @AssistedInject constructor(
         }
     }
 
-    @Suppress("OPT_IN_USAGE")
-    private val members: StateFlow<List<Member>?> =
-        recipientRepository.observeRecipient(address)
-            .mapLatest { recipient ->
-                val threadID = withContext(Dispatchers.Default) {
-                    threadDatabase.getThreadIdIfExistsFor(address)
+    // The thread of a community may not exist yet, so it's looked up again until it does
+    @Volatile
+    private var resolvedCommunityThreadId = -1L
+
+    private val communityThreadId: Long
+        get() {
+            if (resolvedCommunityThreadId == -1L) {
+                resolvedCommunityThreadId = threadDatabase.getThreadIdIfExistsFor(address)
+            }
+            return resolvedCommunityThreadId
+        }
+
+    init {
+        // Read the posters of a community now, so that typing '@' doesn't wait for a scan of its messages
+        if (address.isCommunity) {
+            viewModelScope.launch(Dispatchers.Default) {
+                val threadId = communityThreadId
+                if (threadId != -1L) {
+                    threadSendersRepository.prefetch(threadId)
                 }
+            }
+        }
+    }
 
-                val memberIDs = when {
-                    address.isLegacyGroup -> {
+    @Suppress("OPT_IN_USAGE")
+    private val members: StateFlow<MentionCandidateIndex?> =
+        recipientRepository.observeRecipient(address)
+            .flatMapLatest { recipient ->
+                val memberIDsFlow: Flow<List<String>> = when {
+                    address.isLegacyGroup -> flowOf(
                         groupDatabase.getGroupMemberAddresses(address.toGroupString(), false)
                             .map { it.toString() }
-                    }
-                    address.isGroupV2 -> {
+                    )
+                    address.isGroupV2 -> flowOf(
                         storage.getMembers(address.toString()).map { it.accountId() }
-                    }
-
-                    address.isCommunity -> mmsSmsDatabase.getRecentChatMemberAddresses(
-                        threadID,
-                        300
                     )
-                    else -> listOf(address.address)
+
+                    // The posters of a community are kept up to date as their messages arrive
+                    address.isCommunity -> threadDatabase.updateNotifications
+                        .onStart { emit(-1L) }
+                        .map { communityThreadId }
+                        .distinctUntilChanged()
+                        .flatMapLatest { threadId ->
+                            if (threadId == -1L) flowOf(emptyList()) else threadSendersRepository.observeRecentSenders(threadId)
+                        }
+                    else -> flowOf(listOf(address.address))
                 }
 
                 val openGroup = (recipient.data as? RecipientData.Community)
@@ -113,31 +142,34 @@ class MentionViewModel @AssistedInject constructor(
                     requireNotNull(storage.getUserPublicKey())
                 }
 
-                (sequenceOf(
-                    Member(
-                        publicKey = myId,
-                        name = application.getString(R.string.you),
-                        showAdminCrown = (recipient.data as? RecipientData.GroupLike)?.shouldShowAdminCrown(
-                            AccountId(myId)
-                        ) == true,
-                        isMe = true,
-                        avatarData = avatarUtils.getUIDataFromRecipient(recipientRepository.getSelf()),
-                    )
-                ) + memberIDs
-                    .asSequence()
-                    .filter { it != myId }
-                    .map { recipientRepository.getRecipientSync(Address.fromSerialized(it)) }
-                    .mapNotNull { m ->
-                        val accountId = (m.address as? Address.WithAccountId)?.accountId ?: return@mapNotNull null
+                memberIDsFlow.map { memberIDs ->
+                    (sequenceOf(
                         Member(
-                            publicKey = accountId.hexString,
-                            name = m.displayName(attachesBlindedId = true),
-                            showAdminCrown = (recipient.data as? RecipientData.GroupLike)?.shouldShowAdminCrown(accountId) == true,
-                            isMe = false,
-                            avatarData = avatarUtils.getUIDataFromRecipient(m)
+                            publicKey = myId,
+                            name = application.getString(R.string.you),
+                            showAdminCrown = (recipient.data as? RecipientData.GroupLike)?.shouldShowAdminCrown(
+                                AccountId(myId)
+                            ) == true,
+                            isMe = true,
+                            avatarData = avatarUtils.getUIDataFromRecipient(recipientRepository.getSelf()),
                         )
-                    })
-                    .toList()
+                    ) + recipientRepository
+                        .getRecipientsSync(memberIDs.filter { it != myId }.map(Address::fromSerialized))
+                        .values
+                        .asSequence()
+                        .mapNotNull { m ->
+                            val accountId = (m.address as? Address.WithAccountId)?.accountId ?: return@mapNotNull null
+                            Member(
+                                publicKey = accountId.hexString,
+                                name = m.displayName(attachesBlindedId = true),
+                                showAdminCrown = (recipient.data as? RecipientData.GroupLike)?.shouldShowAdminCrown(accountId) == true,
+                                isMe = false,
+                                avatarData = avatarUtils.getUIDataFromRecipient(m)
+                            )
+                        })
+                        .toList()
+                        .let(::MentionCandidateIndex)
+                }
             }
             .flowOn(Dispatchers.Default)
             .stateIn(viewModelScope, SharingStarted.WhileSubscribed(10_000L), null)
@@ -157,42 +189,41 @@ class MentionViewModel @AssistedInject constructor(
 
                 withContext(Dispatchers.Default) {
                     val filtered = if (query.query.isBlank()) {
-                        members.mapTo(mutableListOf()) { Candidate(it, it.name, 0) }
+                        members.members.mapTo(mutableListOf()) { Candidate(it, it.name, 0) }
                     } else {
-                        members.mapNotNullTo(mutableListOf()) {
-                            searchAndHighlight(
-                                it,
-                                query.query
-                            )
+                        val matches = mutableListOf<Candidate>()
+                        members.forEachMatch(query.query) { member, startIndex ->
+                            matches += highlight(member, startIndex, query.query.length)
                         }
+                        matches
                     }
 
-                    filtered.sortWith(Candidate.MENTION_LIST_COMPARATOR)
+                    // The posters of a community are only re-read when one joins or leaves, so rank them by their latest activity now
+                    val lastSentTimes = if (address.isCommunity) {
+                        threadSendersRepository.getLastSentTimes(communityThreadId)
+                    } else {
+                        emptyMap()
+                    }
+                    filtered.sortWith(Candidate.MENTION_LIST_COMPARATOR.thenByDescending { lastSentTimes[it.member.publicKey] ?: 0L })
                     AutoCompleteState.Result(filtered, query.query)
                 }
             }
         }
         .stateIn(viewModelScope, SharingStarted.WhileSubscribed(), AutoCompleteState.Idle)
 
-    private fun searchAndHighlight(
-        haystack: Member,
-        needle: String
-    ): Candidate? {
-        val startIndex = haystack.name.indexOf(needle, ignoreCase = true)
-
-        return if (startIndex >= 0) {
-            val endIndex = startIndex + needle.length
-            val spanned = SpannableStringBuilder(haystack.name)
-            spanned.setSpan(
-                StyleSpan(Typeface.BOLD),
-                startIndex,
-                endIndex,
-                Spanned.SPAN_INCLUSIVE_EXCLUSIVE
-            )
-            Candidate(member = haystack, nameHighlighted = spanned, matchScore = startIndex)
-        } else {
-            null
-        }
+    private fun highlight(
+        member: Member,
+        startIndex: Int,
+        length: Int
+    ): Candidate {
+        val spanned = SpannableStringBuilder(member.name)
+        spanned.setSpan(
+            StyleSpan(Typeface.BOLD),
+            startIndex,
+            startIndex + length,
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE
+        )
+        return Candidate(member = member, nameHighlighted = spanned, matchScore = startIndex)
     }
 
     fun onCandidateSelected(candidatePublicKey: String) {
@@ -253,7 +284,7 @@ class MentionViewModel @AssistedInject constructor(
     suspend fun reconstructMentions(raw: String): Editable {
         editable.replace(0, editable.length, raw)
 
-        val memberList = members.filterNotNull().first()
+        val memberList = members.filterNotNull().first().members
 
         MentionUtilities.substituteIdsInPlace(
             editable,
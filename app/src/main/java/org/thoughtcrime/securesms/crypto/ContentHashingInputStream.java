@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Passes the data read through while computing a keyed hash of it, used to find attachments with
+ * the same content. The key is derived from the {@link AttachmentSecret} so that the hashes stored
+ * in the database don't reveal which well known files are on the device.
+ */
+public class ContentHashingInputStream extends FilterInputStream {
+
+  private static final byte[] KEY_INFO = "attachment-content-hash".getBytes(StandardCharsets.UTF_8);
+
+  private final Mac mac;
+
+  public ContentHashingInputStream(@NonNull AttachmentSecret attachmentSecret, @NonNull InputStream in) {
+    super(in);
+
+    try {
+      Mac keyMac = Mac.getInstance("HmacSHA256");
+      keyMac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(keyMac.doFinal(KEY_INFO), "HmacSHA256"));
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = super.read();
+
+    if (read != -1) mac.update((byte) read);
+
+    return read;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    int read = super.read(buffer, offset, length);
+
+    if (read > 0) mac.update(buffer, offset, read);
+
+    return read;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    // Skipped bytes still need to be hashed
+    byte[] buffer  = new byte[(int) Math.min(count, 4096)];
+    long   skipped = 0;
+
+    while (skipped < count) {
+      int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+      if (read == -1) break;
+      skipped += read;
+    }
+
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * @return the hash of everything read so far. Can only be called once.
+   */
+  public @NonNull byte[] getHash() {
+    return mac.doFinal();
+  }
+}
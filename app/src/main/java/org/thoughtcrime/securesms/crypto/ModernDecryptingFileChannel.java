@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+
+import org.session.libsession.utilities.Conversions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access reads over a file written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * The file is kept open and the key derived once. Since the data is encrypted with AES-CTR any
+ * position can be decrypted directly: reads are served from a few decrypted blocks, so the many
+ * small sequential reads issued by media extractors only hit the disk and the cipher once per block.
+ */
+public class ModernDecryptingFileChannel implements Closeable {
+
+  private static final int BLOCK_SIZE        = 32 * 1024; // Must be a multiple of the AES block size
+  private static final int MAX_CACHED_BLOCKS = 4;
+
+  private final FileChannel   channel;
+  private final SecretKeySpec key;
+  private final Cipher        cipher;
+  private final long          size;
+  private final byte[]        iv               = new byte[16];
+  private final byte[]        ciphertextBuffer = new byte[BLOCK_SIZE];
+
+  private final LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(MAX_CACHED_BLOCKS + 1, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+      return size() > MAX_CACHED_BLOCKS;
+    }
+  };
+
+  public ModernDecryptingFileChannel(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.key    = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    this.channel = new FileInputStream(file).getChannel();
+    this.size    = channel.size();
+  }
+
+  /**
+   * @return the size of the decrypted data, which is the same as the size of the file.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Reads up to {@code length} decrypted bytes starting at {@code position}.
+   *
+   * @return the number of bytes read, or -1 if {@code position} is at or past the end of the data.
+   */
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (position >= size) return -1;
+
+    int total = 0;
+
+    while (total < length && position < size) {
+      long   blockIndex    = position / BLOCK_SIZE;
+      byte[] block         = getBlock(blockIndex);
+      int    blockPosition = (int) (position - blockIndex * BLOCK_SIZE);
+      int    count         = Math.min(length - total, block.length - blockPosition);
+
+      System.arraycopy(block, blockPosition, buffer, offset + total, count);
+
+      total    += count;
+      position += count;
+    }
+
+    return total;
+  }
+
+  private byte[] getBlock(long blockIndex) throws IOException {
+    byte[] block = blocks.get(blockIndex);
+
+    if (block != null) return block;
+
+    long       blockStart  = blockIndex * BLOCK_SIZE;
+    int        blockLength = (int) Math.min(BLOCK_SIZE, size - blockStart);
+    ByteBuffer ciphertext  = ByteBuffer.wrap(ciphertextBuffer, 0, blockLength);
+
+    while (ciphertext.hasRemaining()) {
+      int read = channel.read(ciphertext, blockStart + ciphertext.position());
+
+      if (read == -1) throw new IOException("Unexpected end of file at: " + (blockStart + ciphertext.position()));
+    }
+
+    block = new byte[blockLength];
+
+    try {
+      // Same counter layout as ModernDecryptingPartInputStream
+      Conversions.longTo4ByteArray(iv, 12, blockStart / 16);
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+      cipher.doFinal(ciphertextBuffer, 0, blockLength, block, 0);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+
+    blocks.put(blockIndex, block);
+
+    return block;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    blocks.clear();
+    channel.close();
+  }
+}
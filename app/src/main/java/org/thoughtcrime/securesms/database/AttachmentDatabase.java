@@ -21,6 +21,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.media.MediaDataSource;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.text.TextUtils;
@@ -29,6 +30,8 @@ import android.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.collection.LongSparseArray;
 
 import com.bumptech.glide.Glide;
 
@@ -42,6 +45,7 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentState;
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachmentAudioExtras;
+import org.session.libsession.utilities.AudioWaveformAnalyzer;
 import org.session.libsession.utilities.MediaTypes;
 import org.session.libsession.utilities.Util;
 import org.session.libsignal.utilities.ExternalStorageUtil;
@@ -49,9 +53,12 @@ import org.session.libsignal.utilities.JsonUtil;
 import org.session.libsignal.utilities.Log;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ContentHashingInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingFileChannel;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.AttachmentDeduplicationReport;
 import org.thoughtcrime.securesms.database.model.MmsAttachmentInfo;
 import org.thoughtcrime.securesms.mms.MediaStream;
 import org.thoughtcrime.securesms.mms.MmsException;
@@ -60,6 +67,7 @@ import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
+import org.thoughtcrime.securesms.util.PriorityTaskExecutor;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 
 import java.io.File;
@@ -71,14 +79,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.inject.Provider;
 
@@ -124,6 +133,9 @@ public class AttachmentDatabase extends Database {
   // "audio/*" mime type only related columns.
           static final String AUDIO_VISUAL_SAMPLES   = "audio_visual_samples";  // Small amount of audio byte samples to visualise the content (e.g. draw waveform).
           static final String AUDIO_DURATION         = "audio_duration";        // Duration of the audio track in milliseconds.
+  // Set when a thumbnail couldn't be generated from the data, cleared when the data changes.
+          static final String THUMBNAIL_FAILED       = "thumbnail_failed";
+          static final String DATA_HASH              = "data_hash"; // Keyed hash of the plaintext, null until hashed
 
   private static final String PART_ID_WHERE = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
   private static final String ROW_ID_WHERE = ROW_ID + " = ?";
@@ -138,6 +150,10 @@ public class AttachmentDatabase extends Database {
                                                            CAPTION, STICKER_PACK_ID, STICKER_PACK_KEY, STICKER_ID, URL,
                                                            AUDIO_DURATION};
 
+  // Query of getAttachmentsForMessages, the argument is a JSON array of mms ids
+  @VisibleForTesting static final String MESSAGES_SELECTION = MMS_ID + " IN (SELECT value FROM json_each(?))";
+  @VisibleForTesting static final String MESSAGES_ORDER     = MMS_ID + ", " + ROW_ID;
+
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ROW_ID + " INTEGER PRIMARY KEY, " +
     MMS_ID + " INTEGER, " + "seq" + " INTEGER DEFAULT 0, "                        +
     CONTENT_TYPE + " TEXT, " + NAME + " TEXT, " + "chset" + " INTEGER, "             +
@@ -159,7 +175,21 @@ public class AttachmentDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
   };
 
-  final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  public static final String ADD_THUMBNAIL_FAILED_COLUMN = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + THUMBNAIL_FAILED + " INTEGER DEFAULT 0;";
+
+  public static final String[] ADD_DATA_HASH_COLUMN = {
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + DATA_HASH + " BLOB DEFAULT NULL;",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
+  };
+
+  private static final int DEDUPLICATION_BATCH_SIZE = 50;
+
+  // Frame extraction is CPU and memory heavy, so leave a core for the UI and don't go overboard on big devices
+  private static final int THUMBNAIL_THREAD_COUNT = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+  private final PriorityTaskExecutor<AttachmentId, Boolean> thumbnailExecutor =
+      new PriorityTaskExecutor<>("thumbnail", THUMBNAIL_THREAD_COUNT, this::createThumbnail);
 
   private final AttachmentSecret attachmentSecret;
 
@@ -189,26 +219,41 @@ public class AttachmentDatabase extends Database {
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
-    Log.d(TAG, "getThumbnailStream(" + attachmentId + ")");
-    InputStream dataStream = getDataStream(attachmentId, THUMBNAIL, 0);
-
-    if (dataStream != null) {
-      return dataStream;
-    }
-
     try {
-      InputStream generatedStream = thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId)).get();
-
-      if (generatedStream == null) throw new FileNotFoundException("No thumbnail stream available: " + attachmentId);
-      else                         return generatedStream;
+      return getThumbnailStreamAsync(attachmentId).get();
     } catch (InterruptedException ie) {
       throw new AssertionError("interrupted");
     } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof IOException) throw (IOException) ee.getCause();
       Log.w(TAG, ee);
       throw new IOException(ee);
     }
   }
 
+  /**
+   * Opens the thumbnail of the given attachment, generating it first if it doesn't have one yet.
+   * Cancelling the returned future doesn't cancel the generation, which other callers may share.
+   *
+   * @return a future completing with the thumbnail stream, on a thumbnail worker thread if the
+   * thumbnail had to be generated.
+   */
+  public @NonNull CompletableFuture<InputStream> getThumbnailStreamAsync(@NonNull AttachmentId attachmentId) {
+    Log.d(TAG, "getThumbnailStreamAsync(" + attachmentId + ")");
+    InputStream dataStream = getDataStream(attachmentId, THUMBNAIL, 0);
+
+    if (dataStream != null) {
+      return CompletableFuture.completedFuture(dataStream);
+    }
+
+    // Thumbnails are only streamed when they are about to be displayed
+    return generateThumbnail(attachmentId, PriorityTaskExecutor.Priority.VISIBLE).thenApply(generated -> {
+      InputStream generatedStream = generated ? getDataStream(attachmentId, THUMBNAIL, 0) : null;
+
+      if (generatedStream == null) throw new CompletionException(new FileNotFoundException("No thumbnail stream available: " + attachmentId));
+      else                         return generatedStream;
+    });
+  }
+
   public @Nullable DatabaseAttachment getAttachment(@NonNull AttachmentId attachmentId)
   {
     SQLiteDatabase database = getReadableDatabase();
@@ -241,12 +286,12 @@ public class AttachmentDatabase extends Database {
       cursor = database.query(TABLE_NAME, PROJECTION, MMS_ID + " = ?", new String[] {mmsId+""},
                               null, null, null);
 
+      AttachmentColumns columns = cursor != null ? new AttachmentColumns(cursor) : null;
+
       while (cursor != null && cursor.moveToNext()) {
-        List<DatabaseAttachment> attachments = getAttachment(cursor);
-        for (DatabaseAttachment attachment : attachments) {
-          if (attachment.isQuote()) continue;
-          results.add(attachment);
-        }
+        DatabaseAttachment attachment = columns.read(cursor);
+        if (attachment.isQuote()) continue;
+        results.add(attachment);
       }
 
       return results;
@@ -265,11 +310,10 @@ public class AttachmentDatabase extends Database {
       // Query all rows in the attachment table.
       cursor = database.query(TABLE_NAME, PROJECTION, null, null, null, null, null);
 
+      AttachmentColumns columns = cursor != null ? new AttachmentColumns(cursor) : null;
+
       while (cursor != null && cursor.moveToNext()) {
-        List<DatabaseAttachment> list = getAttachment(cursor);
-        if (list != null && !list.isEmpty()) {
-          attachments.addAll(list);
-        }
+        attachments.add(columns.read(cursor));
       }
     } finally {
       if (cursor != null) {
@@ -287,13 +331,27 @@ public class AttachmentDatabase extends Database {
 
     final String arg = new JSONArray(mmsMessageIDs).toString();
 
-    final List<MmsAttachmentInfo> deletedAttachments;
+    final SQLiteDatabase          database           = getWritableDatabase();
+    final List<MmsAttachmentInfo> deletedAttachments = new ArrayList<>();
+
+    database.beginTransaction();
+    try {
+      try (final Cursor cursor = database.rawQuery(sql, arg)) {
+        while (cursor.moveToNext()) {
+          String data = cursor.getString(0);
+
+          // Data files can be shared by several parts, only delete the ones nothing points to anymore
+          if (data != null && isDataFileReferenced(database, data)) {
+            data = null;
+          }
 
-    try (final Cursor cursor = getWritableDatabase().rawQuery(sql, arg)) {
-      deletedAttachments = new ArrayList<>(cursor.getCount());
-      while (cursor.moveToNext()) {
-          deletedAttachments.add(new MmsAttachmentInfo(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+          deletedAttachments.add(new MmsAttachmentInfo(data, cursor.getString(1), cursor.getString(2)));
+        }
       }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
     deleteAttachmentsOnDisk(deletedAttachments);
@@ -310,7 +368,11 @@ public class AttachmentDatabase extends Database {
 
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = getWritableDatabase();
+    String         data;
+    String         thumbnail;
+    String         contentType;
 
+    database.beginTransaction();
     try (Cursor cursor = database.query(TABLE_NAME,
                                         new String[]{DATA, THUMBNAIL, CONTENT_TYPE},
                                         PART_ID_WHERE,
@@ -323,13 +385,33 @@ public class AttachmentDatabase extends Database {
         Log.w(TAG, "Tried to delete an attachment, but it didn't exist.");
         return;
       }
-      String data        = cursor.getString(0);
-      String thumbnail   = cursor.getString(1);
-      String contentType = cursor.getString(2);
+      data        = cursor.getString(0);
+      thumbnail   = cursor.getString(1);
+      contentType = cursor.getString(2);
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
-      deleteAttachmentOnDisk(data, thumbnail, contentType);
-      mutableChangesNotification.tryEmit(id);
+
+      if (data != null && isDataFileReferenced(database, data)) {
+        data = null;
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    deleteAttachmentOnDisk(data, thumbnail, contentType);
+    mutableChangesNotification.tryEmit(id);
+  }
+
+  /**
+   * Data files are shared by all the parts with the same content, so they can only be deleted
+   * once no part points to them. Must be called in the transaction removing the reference,
+   * and the file deleted after it commits.
+   */
+  private boolean isDataFileReferenced(@NonNull SQLiteDatabase database, @NonNull String path) {
+    try (Cursor cursor = database.rawQuery("SELECT 1 FROM " + TABLE_NAME + " WHERE " + DATA + " = ? LIMIT 1", path)) {
+      return cursor.moveToFirst();
     }
   }
 
@@ -379,32 +461,65 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase     database    = getWritableDatabase();
     ContentValues      values      = new ContentValues();
     DataInfo           dataInfo    = setAttachmentData(inputStream);
+    boolean            isThumbnail = placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image");
+    boolean            updated;
 
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
+    database.beginTransaction();
+    try {
+      if (isThumbnail) {
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+      } else {
+        dataInfo = deduplicate(database, dataInfo);
+
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+        values.put(THUMBNAIL_FAILED, 0);
+      }
+
+      values.put(TRANSFER_STATE, AttachmentState.DONE.getValue());
+      values.put(CONTENT_LOCATION, (String)null);
+      values.put(CONTENT_DISPOSITION, (String)null);
+      values.put(DIGEST, (byte[])null);
+      values.put(NAME, (String) null);
+      values.put(FAST_PREFLIGHT_ID, (String)null);
+      values.put(URL, "");
+
+      updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0;
+
+      // The file may be shared with another part after deduplication
+      if (!updated && !isThumbnail && isDataFileReferenced(database, dataInfo.file.getAbsolutePath())) {
+        dataInfo = null;
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    values.put(TRANSFER_STATE, AttachmentState.DONE.getValue());
-    values.put(CONTENT_LOCATION, (String)null);
-    values.put(CONTENT_DISPOSITION, (String)null);
-    values.put(DIGEST, (byte[])null);
-    values.put(NAME, (String) null);
-    values.put(FAST_PREFLIGHT_ID, (String)null);
-    values.put(URL, "");
-
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
+    if (!updated) {
+      if (dataInfo != null) {
+        //noinspection ResultOfMethodCallIgnored
+        dataInfo.file.delete();
+      }
     } else {
       mutableChangesNotification.tryEmit(attachmentId);
     }
 
-    thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+    generateThumbnail(attachmentId, PriorityTaskExecutor.Priority.BACKGROUND);
+  }
+
+  /**
+   * Generates the thumbnail of the given attachment in the background if it doesn't have one yet.
+   *
+   * @return a future completing with whether the attachment has a thumbnail, on a background thread.
+   */
+  public @NonNull CompletableFuture<Boolean> generateThumbnail(@NonNull AttachmentId attachmentId,
+                                                               @NonNull PriorityTaskExecutor.Priority priority)
+  {
+    return thumbnailExecutor.submit(attachmentId, priority);
   }
 
   public void updateAttachmentAfterUploadSucceeded(@NonNull AttachmentId id, @NonNull Attachment attachment) {
@@ -469,19 +584,34 @@ public class AttachmentDatabase extends Database {
       throw new MmsException("No attachment data found!");
     }
 
-    final File oldFile = dataInfo.file;
+    File oldFile = dataInfo.file;
 
     dataInfo = setAttachmentData(mediaStream.getStream());
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
-    contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
-    contentValues.put(WIDTH, mediaStream.getWidth());
-    contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
-    contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+    database.beginTransaction();
+    try {
+      dataInfo = deduplicate(database, dataInfo);
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
+      contentValues.put(WIDTH, mediaStream.getWidth());
+      contentValues.put(HEIGHT, mediaStream.getHeight());
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(DATA_HASH, dataInfo.hash);
+      contentValues.put(THUMBNAIL_FAILED, 0);
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+
+      if (oldFile != null && isDataFileReferenced(database, oldFile.getAbsolutePath())) {
+        oldFile = null;
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
 
     if (oldFile != null && oldFile.exists()) {
         try {
@@ -607,84 +737,224 @@ public class AttachmentDatabase extends Database {
       File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
 
       Log.d("AttachmentDatabase", "Writing attachment data to: " + dataFile.getAbsolutePath());
-      Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
-      long                       length = Util.copy(in, out.second);
+      ContentHashingInputStream  hashingIn = new ContentHashingInputStream(attachmentSecret, in);
+      Pair<byte[], OutputStream> out       = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
+      long                       length    = Util.copy(hashingIn, out.second);
 
-      return new DataInfo(dataFile, length, out.first);
+      return new DataInfo(dataFile, length, out.first, hashingIn.getHash());
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
+  /**
+   * Looks for a data file with the same content as the one just written, in which case the new
+   * file is deleted and the existing one returned to be shared instead.
+   *
+   * Must be called in the transaction writing the returned file to the part table, so that it
+   * can't be deleted as unreferenced in between.
+   */
+  private @NonNull DataInfo deduplicate(@NonNull SQLiteDatabase database, @NonNull DataInfo dataInfo) {
+    DataInfo existing = dataInfo.hash != null ? findDataFile(database, dataInfo.hash) : null;
+
+    if (existing == null || existing.file.equals(dataInfo.file)) {
+      return dataInfo;
+    }
+
+    Log.d(TAG, "Reusing data file with the same content: " + existing.file.getAbsolutePath());
+
+    if (!dataInfo.file.delete()) {
+      Log.w(TAG, "Couldn't delete duplicate data file: " + dataInfo.file.getAbsolutePath());
+    }
+
+    return new DataInfo(existing.file, dataInfo.length, existing.random, dataInfo.hash);
+  }
+
+  private @Nullable DataInfo findDataFile(@NonNull SQLiteDatabase database, @NonNull byte[] hash) {
+    String query = "SELECT " + DATA + ", " + SIZE + ", " + DATA_RANDOM + " FROM " + TABLE_NAME +
+                   " WHERE " + DATA_HASH + " = ? AND " + DATA + " IS NOT NULL" +
+                   " ORDER BY LENGTH(" + DATA_RANDOM + ") DESC LIMIT 1"; // Prefer modern files
+
+    try (Cursor cursor = database.rawQuery(query, hash)) {
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+
+      File file = new File(cursor.getString(0));
+
+      return file.exists() ? new DataInfo(file, cursor.getLong(1), cursor.getBlob(2), hash) : null;
+    }
+  }
+
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
+    if (cursor instanceof PagedAttachmentCursor) {
+      return ((PagedAttachmentCursor) cursor).getAttachments();
+    }
+
     try {
       if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
         if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
           return new LinkedList<>();
         }
 
-        Set<DatabaseAttachment> result = new TreeSet<>((o1, o2) -> o1.getAttachmentId().equals(o2.getAttachmentId()) ? 0 : 1);
-        JSONArray                array  = new JSONArray(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
-
-        for (int i=0;i<array.length();i++) {
-          JsonUtil.SaneJSONObject object = new JsonUtil.SaneJSONObject(array.getJSONObject(i));
-
-          if (!object.isNull(ROW_ID)) {
-            result.add(new DatabaseAttachment(new AttachmentId(object.getLong(ROW_ID), object.getLong(UNIQUE_ID)),
-                                              object.getLong(MMS_ID),
-                                              !TextUtils.isEmpty(object.getString(DATA)),
-                                              !TextUtils.isEmpty(object.getString(THUMBNAIL)),
-                                              object.getString(CONTENT_TYPE),
-                                              object.getInt(TRANSFER_STATE),
-                                              object.getLong(SIZE),
-                                              object.getString(FILE_NAME),
-                                              object.getString(CONTENT_LOCATION),
-                                              object.getString(CONTENT_DISPOSITION),
-                                              object.getString(NAME),
-                                              null,
-                                              object.getString(FAST_PREFLIGHT_ID),
-                                              object.getInt(VOICE_NOTE) == 1,
-                                              object.getInt(WIDTH),
-                                              object.getInt(HEIGHT),
-                                              object.getInt(QUOTE) == 1,
-                                              object.getString(CAPTION),
-                                              "", // TODO: Not sure if this will break something
-                                              object.getLong(AUDIO_DURATION)));
-          }
-        }
-
-        return new ArrayList<>(result);
+        return parseAttachmentJson(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
       } else {
-        int urlIndex = cursor.getColumnIndex(URL);
-        int audioDurationIndex = cursor.getColumnIndexOrThrow(AUDIO_DURATION);
-        return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
-                                                                                 cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
-                                                                cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
-                                                                urlIndex > 0 ? cursor.getString(urlIndex) : "",
-                                                                cursor.isNull(audioDurationIndex) ? -1L : cursor.getLong(audioDurationIndex))
-                );
+        return Collections.singletonList(new AttachmentColumns(cursor).read(cursor));
       }
     } catch (JSONException e) {
       throw new AssertionError(e);
     }
   }
 
+  /**
+   * Loads the attachments of all the given mms messages with a single query on the message id
+   * index, for callers that would otherwise need the attachments of every row aggregated as JSON.
+   *
+   * @return the attachments of each message in {@link #ROW_ID} order, keyed by mms id. Messages
+   * without attachments have no entry.
+   */
+  public @NonNull LongSparseArray<List<DatabaseAttachment>> getAttachmentsForMessages(@NonNull Collection<Long> mmsIds) {
+    if (mmsIds.isEmpty()) {
+      return new LongSparseArray<>(0);
+    }
+
+    SQLiteDatabase database = getReadableDatabase();
+    String[]       args     = new String[] {new JSONArray(mmsIds).toString()};
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, MESSAGES_SELECTION, args, null, null, MESSAGES_ORDER)) {
+      return readAttachmentsByMessage(cursor);
+    }
+  }
+
+  @VisibleForTesting
+  static @NonNull LongSparseArray<List<DatabaseAttachment>> readAttachmentsByMessage(@NonNull Cursor cursor) {
+    LongSparseArray<List<DatabaseAttachment>> result  = new LongSparseArray<>();
+    AttachmentColumns                         columns = new AttachmentColumns(cursor);
+
+    while (cursor.moveToNext()) {
+      DatabaseAttachment       attachment  = columns.read(cursor);
+      List<DatabaseAttachment> attachments = result.get(attachment.getMmsId());
+
+      if (attachments == null) {
+        attachments = new ArrayList<>(1);
+        result.put(attachment.getMmsId(), attachments);
+      }
+
+      attachments.add(attachment);
+    }
+
+    return result;
+  }
+
+  @VisibleForTesting
+  static @NonNull List<DatabaseAttachment> parseAttachmentJson(@NonNull String json) throws JSONException {
+    Set<DatabaseAttachment> result = new TreeSet<>((o1, o2) -> o1.getAttachmentId().equals(o2.getAttachmentId()) ? 0 : 1);
+    JSONArray                array  = new JSONArray(json);
+
+    for (int i=0;i<array.length();i++) {
+      JsonUtil.SaneJSONObject object = new JsonUtil.SaneJSONObject(array.getJSONObject(i));
+
+      if (!object.isNull(ROW_ID)) {
+        result.add(new DatabaseAttachment(new AttachmentId(object.getLong(ROW_ID), object.getLong(UNIQUE_ID)),
+                                          object.getLong(MMS_ID),
+                                          !TextUtils.isEmpty(object.getString(DATA)),
+                                          !TextUtils.isEmpty(object.getString(THUMBNAIL)),
+                                          object.getString(CONTENT_TYPE),
+                                          object.getInt(TRANSFER_STATE),
+                                          object.getLong(SIZE),
+                                          object.getString(FILE_NAME),
+                                          object.getString(CONTENT_LOCATION),
+                                          object.getString(CONTENT_DISPOSITION),
+                                          object.getString(NAME),
+                                          null,
+                                          object.getString(FAST_PREFLIGHT_ID),
+                                          object.getInt(VOICE_NOTE) == 1,
+                                          object.getInt(WIDTH),
+                                          object.getInt(HEIGHT),
+                                          object.getInt(QUOTE) == 1,
+                                          object.getString(CAPTION),
+                                          "", // TODO: Not sure if this will break something
+                                          object.getLong(AUDIO_DURATION)));
+      }
+    }
+
+    return new ArrayList<>(result);
+  }
+
+  /**
+   * The column indices of a cursor over part rows, resolved once instead of for every row.
+   */
+  private static final class AttachmentColumns {
+    private final int rowId;
+    private final int uniqueId;
+    private final int mmsId;
+    private final int data;
+    private final int thumbnail;
+    private final int contentType;
+    private final int transferState;
+    private final int size;
+    private final int fileName;
+    private final int contentLocation;
+    private final int contentDisposition;
+    private final int name;
+    private final int digest;
+    private final int fastPreflightId;
+    private final int voiceNote;
+    private final int width;
+    private final int height;
+    private final int quote;
+    private final int caption;
+    private final int url;
+    private final int audioDuration;
+
+    AttachmentColumns(@NonNull Cursor cursor) {
+      rowId              = cursor.getColumnIndexOrThrow(ROW_ID);
+      uniqueId           = cursor.getColumnIndexOrThrow(UNIQUE_ID);
+      mmsId              = cursor.getColumnIndexOrThrow(MMS_ID);
+      data               = cursor.getColumnIndexOrThrow(DATA);
+      thumbnail          = cursor.getColumnIndexOrThrow(THUMBNAIL);
+      contentType        = cursor.getColumnIndexOrThrow(CONTENT_TYPE);
+      transferState      = cursor.getColumnIndexOrThrow(TRANSFER_STATE);
+      size               = cursor.getColumnIndexOrThrow(SIZE);
+      fileName           = cursor.getColumnIndexOrThrow(FILE_NAME);
+      contentLocation    = cursor.getColumnIndexOrThrow(CONTENT_LOCATION);
+      contentDisposition = cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION);
+      name               = cursor.getColumnIndexOrThrow(NAME);
+      digest             = cursor.getColumnIndexOrThrow(DIGEST);
+      fastPreflightId    = cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID);
+      voiceNote          = cursor.getColumnIndexOrThrow(VOICE_NOTE);
+      width              = cursor.getColumnIndexOrThrow(WIDTH);
+      height             = cursor.getColumnIndexOrThrow(HEIGHT);
+      quote              = cursor.getColumnIndexOrThrow(QUOTE);
+      caption            = cursor.getColumnIndexOrThrow(CAPTION);
+      url                = cursor.getColumnIndex(URL);
+      audioDuration      = cursor.getColumnIndexOrThrow(AUDIO_DURATION);
+    }
+
+    @NonNull DatabaseAttachment read(@NonNull Cursor cursor) {
+      return new DatabaseAttachment(new AttachmentId(cursor.getLong(rowId), cursor.getLong(uniqueId)),
+                                    cursor.getLong(mmsId),
+                                    !cursor.isNull(data),
+                                    !cursor.isNull(thumbnail),
+                                    cursor.getString(contentType),
+                                    cursor.getInt(transferState),
+                                    cursor.getLong(size),
+                                    cursor.getString(fileName),
+                                    cursor.getString(contentLocation),
+                                    cursor.getString(contentDisposition),
+                                    cursor.getString(name),
+                                    cursor.getBlob(digest),
+                                    cursor.getString(fastPreflightId),
+                                    cursor.getInt(voiceNote) == 1,
+                                    cursor.getInt(width),
+                                    cursor.getInt(height),
+                                    cursor.getInt(quote) == 1,
+                                    cursor.getString(caption),
+                                    url > 0 ? cursor.getString(url) : "",
+                                    cursor.isNull(audioDuration) ? -1L : cursor.getLong(audioDuration));
+    }
+  }
+
 
   private AttachmentId insertAttachment(
           long mmsId,
@@ -726,13 +996,25 @@ public class AttachmentDatabase extends Database {
       contentValues.put(AUDIO_DURATION, audioDuration);
     }
 
-    if (dataInfo != null) {
-      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
-      contentValues.put(SIZE, dataInfo.length);
-      contentValues.put(DATA_RANDOM, dataInfo.random);
+    long rowId;
+
+    database.beginTransaction();
+    try {
+      if (dataInfo != null) {
+        dataInfo = deduplicate(database, dataInfo);
+
+        contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+        contentValues.put(SIZE, dataInfo.length);
+        contentValues.put(DATA_RANDOM, dataInfo.random);
+        contentValues.put(DATA_HASH, dataInfo.hash);
+      }
+
+      rowId = database.insert(TABLE_NAME, null, contentValues);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
     Uri          thumbnailUri = attachment.getThumbnailUri();
     boolean      hasThumbnail = false;
@@ -801,16 +1083,14 @@ public class AttachmentDatabase extends Database {
 
   /**
    * Retrieves the audio extra values associated with the attachment. Only "audio/*" mime type attachments are accepted.
-   * @return the related audio extras or null in case any of the audio extra columns are empty or the attachment is not an audio.
+   * @return the related audio extras or null in case the duration isn't known or the attachment is not an audio.
    */
   @Synchronized
   public @Nullable DatabaseAttachmentAudioExtras getAttachmentAudioExtras(@NonNull AttachmentId attachmentId) {
     try (Cursor cursor = getReadableDatabase()
-      // We expect all the audio extra values to be present (not null) or reject the whole record.
       .query(TABLE_NAME,
-          new String[] {AUDIO_VISUAL_SAMPLES, AUDIO_DURATION},
+          new String[] {AUDIO_DURATION},
         PART_ID_WHERE +
-        " AND " + AUDIO_VISUAL_SAMPLES + " IS NOT NULL" +
         " AND " + AUDIO_DURATION + " IS NOT NULL" +
         " AND " + PART_AUDIO_ONLY_WHERE,
         attachmentId.toStrings(),
@@ -818,108 +1098,381 @@ public class AttachmentDatabase extends Database {
 
       if (cursor == null || !cursor.moveToFirst()) return null;
 
-      byte[] audioSamples = cursor.getBlob(cursor.getColumnIndexOrThrow(AUDIO_VISUAL_SAMPLES));
-      long   duration     = cursor.getLong(cursor.getColumnIndexOrThrow(AUDIO_DURATION));
+      long duration = cursor.getLong(cursor.getColumnIndexOrThrow(AUDIO_DURATION));
 
-      return new DatabaseAttachmentAudioExtras(attachmentId, audioSamples, duration);
+      return new DatabaseAttachmentAudioExtras(attachmentId, duration);
     }
   }
 
   /**
-   * Updates audio extra columns for the "audio/*" mime type attachments only.
+   * Updates only the duration of an "audio/*" attachment.
    * @return true if the update operation was successful.
    */
   @Synchronized
-  public boolean setAttachmentAudioExtras(@NonNull DatabaseAttachmentAudioExtras extras) {
-    ContentValues values = new ContentValues();
-    values.put(AUDIO_VISUAL_SAMPLES, extras.getVisualSamples());
-    values.put(AUDIO_DURATION, extras.getDurationMs());
+  public boolean setAttachmentAudioDuration(@NonNull AttachmentId attachmentId, long durationMs) {
+    ContentValues values = new ContentValues(1);
+    values.put(AUDIO_DURATION, durationMs);
 
     int alteredRows = getWritableDatabase().update(TABLE_NAME,
       values,
       PART_ID_WHERE + " AND " + PART_AUDIO_ONLY_WHERE,
-      extras.getAttachmentId().toStrings());
+      attachmentId.toStrings());
 
     if (alteredRows > 0) {
-      mutableChangesNotification.tryEmit(extras.getAttachmentId());
+      mutableChangesNotification.tryEmit(attachmentId);
     }
 
     return alteredRows > 0;
   }
 
-  class ThumbnailFetchCallable implements Callable<InputStream> {
+  /**
+   * Reads the duration of an "audio/*" attachment from its container metadata, which doesn't
+   * decode any audio unless the container doesn't declare one, and stores it.
+   * @return the duration in milliseconds, or null if it couldn't be read.
+   */
+  @WorkerThread
+  public @Nullable Long updateAttachmentAudioDuration(@NonNull AttachmentId attachmentId) {
+    MediaDataSource dataSource = getAttachmentMediaDataSource(attachmentId);
 
-    private final AttachmentId attachmentId;
+    if (dataSource == null) {
+      return null;
+    }
 
-    ThumbnailFetchCallable(AttachmentId attachmentId) {
-      this.attachmentId = attachmentId;
+    long durationMs;
+    try (MediaDataSource source = dataSource) {
+      durationMs = AudioWaveformAnalyzer.readDurationMicroseconds(source) / 1000;
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't read the duration of " + attachmentId, e);
+      return null;
     }
 
-    @Override
-    public @Nullable InputStream call() throws Exception {
-      Log.d(TAG, "Executing thumbnail job...");
-      final InputStream stream = getDataStream(attachmentId, THUMBNAIL, 0);
+    setAttachmentAudioDuration(attachmentId, durationMs);
+    return durationMs;
+  }
 
-      if (stream != null) {
-        return stream;
-      }
+  /**
+   * Opens a random access view over the decrypted attachment data, suitable for
+   * {@link android.media.MediaExtractor} and {@link MediaMetadataRetriever}.
+   */
+  public @Nullable MediaDataSource getAttachmentMediaDataSource(@NonNull AttachmentId attachmentId) {
+    DataInfo dataInfo = getModernAttachmentDataFileInfo(attachmentId);
 
-      DatabaseAttachment attachment = getAttachment(attachmentId);
+    if (dataInfo == null) {
+      return null;
+    }
 
-      if (attachment == null || !attachment.hasData()) {
-        return null;
+    return new EncryptedMediaDataSource(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
+  }
+
+  /**
+   * Opens a seekable decrypting channel over the attachment data, migrating it to the modern
+   * format first if needed.
+   */
+  public @Nullable ModernDecryptingFileChannel getAttachmentDataChannel(@NonNull AttachmentId attachmentId)
+      throws IOException
+  {
+    DataInfo dataInfo = getModernAttachmentDataFileInfo(attachmentId);
+
+    if (dataInfo == null || dataInfo.random == null) {
+      return null;
+    }
+
+    return new ModernDecryptingFileChannel(attachmentSecret, dataInfo.random, dataInfo.file);
+  }
+
+  /**
+   * Classic files can only be decrypted from the start, which makes seeking quadratic, so they
+   * are re-encrypted in the modern format the first time they are opened for playback. Falls
+   * back to the classic file if that fails.
+   */
+  private @Nullable DataInfo getModernAttachmentDataFileInfo(@NonNull AttachmentId attachmentId) {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null || isModernFormat(dataInfo)) {
+      return dataInfo;
+    }
+
+    try {
+      return migrateToModernFormat(attachmentId);
+    } catch (IOException | MmsException e) {
+      Log.w(TAG, "Couldn't migrate classic attachment: " + attachmentId, e);
+      return getAttachmentDataFileInfo(attachmentId, DATA);
+    }
+  }
+
+  private static boolean isModernFormat(@NonNull DataInfo dataInfo) {
+    return dataInfo.random != null && dataInfo.random.length == 32;
+  }
+
+  /**
+   * The file is re-encrypted without holding any lock, only the row update is serialized. When
+   * several callers migrate the same file at once, the first update wins and the others discard
+   * their copy.
+   */
+  private @Nullable DataInfo migrateToModernFormat(@NonNull AttachmentId attachmentId)
+      throws IOException, MmsException
+  {
+    // Re-read as another caller may have migrated the file in the meantime
+    DataInfo classicInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (classicInfo == null || isModernFormat(classicInfo)) {
+      return classicInfo;
+    }
+
+    String   oldPath = classicInfo.file.getAbsolutePath();
+    DataInfo modernInfo;
+
+    try (InputStream in = ClassicDecryptingPartInputStream.createFor(attachmentSecret, classicInfo.file)) {
+      modernInfo = setAttachmentData(in);
+    }
+
+    ContentValues contentValues = new ContentValues(3);
+    contentValues.put(DATA, modernInfo.file.getAbsolutePath());
+    contentValues.put(DATA_RANDOM, modernInfo.random);
+    contentValues.put(DATA_HASH, modernInfo.hash);
+
+    int updated;
+
+    synchronized (this) {
+      // Rows sharing the same file are migrated together, the condition matches isModernFormat
+      updated = getWritableDatabase().update(TABLE_NAME, contentValues,
+                                             DATA + " = ? AND (" + DATA_RANDOM + " IS NULL OR length(" + DATA_RANDOM + ") != 32)",
+                                             new String[] { oldPath });
+    }
+
+    if (updated == 0) {
+      Log.w(TAG, "Classic attachment was changed during migration, discarding: " + modernInfo.file);
+      modernInfo.file.delete();
+
+      DataInfo currentInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+      if (currentInfo != null && isModernFormat(currentInfo)) {
+        return currentInfo;
       }
 
-      ThumbnailData data = null;
+      throw new IOException("Attachment changed during migration");
+    }
+
+    if (!classicInfo.file.delete()) {
+      Log.w(TAG, "Couldn't delete migrated classic attachment: " + oldPath);
+    }
+
+    Log.i(TAG, "Migrated classic attachment to the modern format: " + oldPath);
 
-      if (MediaUtil.isVideoType(attachment.getContentType())) {
-        data = generateVideoThumbnail(attachmentId);
+    return modernInfo;
+  }
+
+  /**
+   * Hashes the data files written before content hashing existed, merging the ones with the same
+   * content. Runs until every data file is hashed, so it's cheap to call again once done. Files
+   * that can't be read are left unhashed and retried on the next run.
+   */
+  @WorkerThread
+  public @NonNull AttachmentDeduplicationReport deduplicateExistingData() {
+    SQLiteDatabase database = getWritableDatabase();
+    String         query    = "SELECT " + ROW_ID + ", " + DATA + ", " + DATA_RANDOM + " FROM " + TABLE_NAME +
+                              " WHERE " + DATA_HASH + " IS NULL AND " + DATA + " IS NOT NULL AND " + ROW_ID + " > ?" +
+                              " ORDER BY " + ROW_ID + " LIMIT " + DEDUPLICATION_BATCH_SIZE;
+
+    Set<String> scannedPaths   = new HashSet<>();
+    long        lastRowId      = 0;
+    int         filesScanned   = 0;
+    int         filesRemoved   = 0;
+    long        bytesReclaimed = 0;
+
+    while (true) {
+      List<DataInfo> batch    = new ArrayList<>(DEDUPLICATION_BATCH_SIZE);
+      int            rowCount = 0;
+
+      try (Cursor cursor = database.rawQuery(query, lastRowId)) {
+        while (cursor.moveToNext()) {
+          lastRowId = cursor.getLong(0);
+          rowCount++;
+
+          // Parts sharing a file that couldn't be read are still unhashed
+          if (scannedPaths.add(cursor.getString(1))) {
+            batch.add(new DataInfo(new File(cursor.getString(1)), 0, cursor.getBlob(2)));
+          }
+        }
       }
 
-      if (data == null) {
-        return null;
+      if (rowCount == 0) {
+        break;
       }
 
-      updateAttachmentThumbnail(attachmentId, data.toDataStream(), data.getAspectRatio());
+      for (DataInfo dataInfo : batch) {
+        String path = dataInfo.file.getAbsolutePath();
+        byte[] hash = hashDataFile(dataInfo);
+        File   duplicate = null;
 
-      return getDataStream(attachmentId, THUMBNAIL, 0);
-    }
+        filesScanned++;
 
-    @SuppressLint("NewApi")
-    private ThumbnailData generateVideoThumbnail(AttachmentId attachmentId) {
-      DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+        // Left unhashed so that it's retried next time, e.g. once the storage is readable again
+        if (hash == null) {
+          continue;
+        }
 
-      if (dataInfo == null) {
-        Log.w(TAG, "No data file found for video thumbnail...");
-        return null;
+        database.beginTransaction();
+        try {
+          DataInfo existing = findDataFile(database, hash);
+
+          if (existing != null && existing.file.equals(dataInfo.file)) {
+            existing = null;
+          }
+
+          ContentValues values = new ContentValues(3);
+          values.put(DATA_HASH, hash);
+
+          if (existing != null) {
+            values.put(DATA, existing.file.getAbsolutePath());
+            values.put(DATA_RANDOM, existing.random);
+          }
+
+          // Zero rows means the parts were deleted in the meantime, along with the file
+          if (database.update(TABLE_NAME, values, DATA + " = ?", new String[] { path }) > 0 && existing != null) {
+            duplicate = dataInfo.file;
+          }
+
+          database.setTransactionSuccessful();
+        } finally {
+          database.endTransaction();
+        }
+
+        if (duplicate != null) {
+          long length = duplicate.length();
+
+          if (duplicate.delete()) {
+            filesRemoved++;
+            bytesReclaimed += length;
+          } else {
+            Log.w(TAG, "Couldn't delete duplicate data file: " + path);
+          }
+        }
       }
+    }
 
-      EncryptedMediaDataSource dataSource = new EncryptedMediaDataSource(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
-      MediaMetadataRetriever   retriever  = new MediaMetadataRetriever();
-      retriever.setDataSource(dataSource);
+    return new AttachmentDeduplicationReport(filesScanned, filesRemoved, bytesReclaimed);
+  }
+
+  private @Nullable byte[] hashDataFile(@NonNull DataInfo dataInfo) {
+    try (InputStream in = isModernFormat(dataInfo) ? ModernDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.random, dataInfo.file, 0)
+                                                   : ClassicDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.file);
+         ContentHashingInputStream hashingIn = new ContentHashingInputStream(attachmentSecret, in))
+    {
+      byte[] buffer = new byte[8192];
+
+      //noinspection StatementWithEmptyBody
+      while (hashingIn.read(buffer) != -1) {}
+
+      return hashingIn.getHash();
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't hash data file: " + dataInfo.file.getAbsolutePath(), e);
+      return null;
+    }
+  }
 
-      Bitmap bitmap = retriever.getFrameAtTime(1000);
+  /**
+   * Runs on the thumbnail executor.
+   *
+   * @return whether the attachment has a thumbnail afterwards.
+   */
+  private boolean createThumbnail(@NonNull AttachmentId attachmentId) {
+    Log.d(TAG, "Executing thumbnail job...");
+    if (getAttachmentDataFileInfo(attachmentId, THUMBNAIL) != null) {
+      return true;
+    }
+
+    DatabaseAttachment attachment = getAttachment(attachmentId);
+
+    if (attachment == null || !attachment.hasData() || !MediaUtil.isVideoType(attachment.getContentType())) {
+      return false;
+    }
+
+    if (hasThumbnailFailed(attachmentId)) {
+      Log.d(TAG, "Skipping thumbnail that previously failed: " + attachmentId);
+      return false;
+    }
+
+    DataInfo dataInfo = getModernAttachmentDataFileInfo(attachmentId);
 
+    // The data may show up later, e.g. once the download is retried, so this isn't a failure
+    if (dataInfo == null || !dataInfo.file.exists()) {
+      Log.w(TAG, "No data file found for video thumbnail: " + attachmentId);
+      return false;
+    }
+
+    ThumbnailData data = generateVideoThumbnail(attachmentId, dataInfo);
+
+    // Only a video that couldn't be decoded is never retried
+    if (data == null) {
+      setThumbnailFailed(attachmentId);
+      return false;
+    }
+
+    try {
+      updateAttachmentThumbnail(attachmentId, data.toDataStream(), data.getAspectRatio());
+      return true;
+    } catch (MmsException e) {
+      Log.w(TAG, "Couldn't save thumbnail for: " + attachmentId, e);
+      return false;
+    }
+  }
+
+  private boolean hasThumbnailFailed(@NonNull AttachmentId attachmentId) {
+    try (Cursor cursor = getReadableDatabase().query(TABLE_NAME, new String[] { THUMBNAIL_FAILED }, PART_ID_WHERE, attachmentId.toStrings(), null, null, null)) {
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) != 0;
+    }
+  }
+
+  private void setThumbnailFailed(@NonNull AttachmentId attachmentId) {
+    ContentValues values = new ContentValues(1);
+    values.put(THUMBNAIL_FAILED, 1);
+    getWritableDatabase().update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+  }
+
+  @SuppressLint("NewApi")
+  private @Nullable ThumbnailData generateVideoThumbnail(@NonNull AttachmentId attachmentId, @NonNull DataInfo dataInfo) {
+    EncryptedMediaDataSource dataSource = new EncryptedMediaDataSource(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
+    MediaMetadataRetriever   retriever  = new MediaMetadataRetriever();
+    Bitmap                   bitmap;
+
+    try {
+      retriever.setDataSource(dataSource);
+      bitmap = retriever.getFrameAtTime(1000);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Couldn't extract a video frame for: " + attachmentId, e);
+      bitmap = null;
+    } finally {
       try {
         retriever.close();
       } catch (IOException e) {
         Log.w(TAG, "Error while closing the retriever in AttachmentDatabase > generateVideoThumbnail: "+e.toString());
       }
+    }
 
-      Log.i(TAG, "Generated video thumbnail...");
-      return new ThumbnailData(bitmap);
+    if (bitmap == null) {
+      return null;
     }
+
+    Log.i(TAG, "Generated video thumbnail...");
+    return new ThumbnailData(bitmap);
   }
 
   private static class DataInfo {
     private final File   file;
     private final long   length;
     private final byte[] random;
+    private final byte[] hash;
 
     private DataInfo(File file, long length, byte[] random) {
+      this(file, length, random, null);
+    }
+
+    private DataInfo(File file, long length, byte[] random, byte[] hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
     }
   }
 }
@@ -3,7 +3,6 @@ package org.thoughtcrime.securesms.database
 import android.content.Context
 import androidx.collection.LruCache
 import dagger.hilt.android.qualifiers.ApplicationContext
-import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.serialization.json.Json
@@ -27,9 +26,9 @@ class CommunityDatabase @Inject constructor(
 
     private val cache = LruCache<Address.Community, Optional<OpenGroupApi.RoomInfo>>(24)
 
+    // Unbounded so that tryEmit never drops a change, caches such as RecipientCache rely on every one
     private val mutableChangeNotification = MutableSharedFlow<Address.Community>(
-        extraBufferCapacity = 24,
-        onBufferOverflow = BufferOverflow.DROP_OLDEST
+        extraBufferCapacity = Int.MAX_VALUE
     )
 
     val changeNotification: SharedFlow<Address.Community> get() = mutableChangeNotification
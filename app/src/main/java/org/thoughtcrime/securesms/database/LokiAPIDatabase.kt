@@ -2,6 +2,15 @@ package org.thoughtcrime.securesms.database
 
 import android.content.ContentValues
 import android.content.Context
+import android.database.Cursor
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.drop
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.launch
+import net.zetetic.database.sqlcipher.SQLiteDatabase.CONFLICT_REPLACE
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.crypto.ecc.DjbECPrivateKey
 import org.session.libsignal.crypto.ecc.DjbECPublicKey
@@ -16,12 +25,22 @@ import org.session.libsignal.utilities.removingIdPrefixIfNeeded
 import org.session.libsignal.utilities.toHexString
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import org.thoughtcrime.securesms.dependencies.OnAppStartupComponent
+import org.thoughtcrime.securesms.util.AppVisibilityManager
 import java.util.Date
 import javax.inject.Provider
 
-class LokiAPIDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>) : Database(context, helper), LokiAPIDatabaseProtocol {
+class LokiAPIDatabase(
+    context: Context,
+    helper: Provider<SQLCipherOpenHelper>,
+    private val scope: CoroutineScope,
+    private val appVisibilityManager: AppVisibilityManager,
+) : Database(context, helper), LokiAPIDatabaseProtocol, OnAppStartupComponent {
 
     companion object {
+        private const val TAG = "LokiAPIDatabase"
+        private const val NETWORK_STATE_FLUSH_DELAY_MILLIS = 5_000L
+
         // Shared
         private const val publicKey = "public_key"
         private const val timestamp = "timestamp"
@@ -40,6 +59,33 @@ class LokiAPIDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>) :
         private val swarmPublicKey = "hex_encoded_public_key"
         private val swarm = "swarm"
         @JvmStatic val createSwarmTableCommand = "CREATE TABLE $swarmTable ($swarmPublicKey TEXT PRIMARY KEY, $swarm TEXT);"
+        // Snodes, one row each, as part of the snode pool, a swarm or an onion request path
+        private const val SNODE_ADDRESS = "address"
+        private const val SNODE_PORT = "port"
+        private const val SNODE_ED25519_KEY = "ed25519_key"
+        private const val SNODE_X25519_KEY = "x25519_key"
+        private const val SNODE_VERSION = "version"
+        private const val SNODE_COLUMNS = "$SNODE_ADDRESS TEXT NOT NULL, $SNODE_PORT INTEGER NOT NULL, " +
+            "$SNODE_ED25519_KEY TEXT, $SNODE_X25519_KEY TEXT, $SNODE_VERSION INTEGER NOT NULL DEFAULT 0"
+        private const val SNODE_POOL_TABLE = "snode_pool"
+        private const val SWARM_SNODE_TABLE = "swarm_snodes"
+        private const val SWARM_PUBLIC_KEY = "public_key"
+        private const val ONION_REQUEST_PATH_SNODE_TABLE = "onion_request_path_snodes"
+        private const val PATH_INDEX = "path_index"
+        private const val HOP_INDEX = "hop_index"
+
+        // The snode pool, swarms and paths are fetched again from the network, so their old tables are dropped
+        // rather than parsed
+        val MIGRATE_TO_SNODE_ROWS = arrayOf(
+            "DROP TABLE IF EXISTS $snodePoolTable",
+            "DROP TABLE IF EXISTS $onionRequestPathTable",
+            "DROP TABLE IF EXISTS $swarmTable",
+            "CREATE TABLE $SNODE_POOL_TABLE ($SNODE_COLUMNS, PRIMARY KEY ($SNODE_ADDRESS, $SNODE_PORT))",
+            "CREATE TABLE $SWARM_SNODE_TABLE ($SWARM_PUBLIC_KEY TEXT NOT NULL, $SNODE_COLUMNS, " +
+                "PRIMARY KEY ($SWARM_PUBLIC_KEY, $SNODE_ADDRESS, $SNODE_PORT))",
+            "CREATE TABLE $ONION_REQUEST_PATH_SNODE_TABLE ($PATH_INDEX INTEGER NOT NULL, $HOP_INDEX INTEGER NOT NULL, " +
+                "$SNODE_COLUMNS, PRIMARY KEY ($PATH_INDEX, $HOP_INDEX))",
+        )
         // Last message hash values
         private const val legacyLastMessageHashValueTable2 = "last_message_hash_value_table"
         private const val lastMessageHashValueTable2 = "session_last_message_hash_value_table"
@@ -171,145 +217,290 @@ class LokiAPIDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>) :
         // endregion
     }
 
-    override fun getSnodePool(): Set<Snode> {
-        val database = readableDatabase
-        return database.get(snodePoolTable, "${Companion.dummyKey} = ?", wrap("dummy_key")) { cursor ->
-            val snodePoolAsString = cursor.getString(cursor.getColumnIndexOrThrow(snodePool))
-            snodePoolAsString.split(", ").mapNotNull(::Snode)
-        }?.toSet() ?: setOf()
+    // region Network state
+    // The pollers read the snode pool, onion request paths, swarms and last message hashes for every namespace on
+    // every tick, so they are served from memory. Each of them is loaded with a single query the first time it's
+    // used, and changes are written back in one transaction shortly after they're made, or as soon as the app goes
+    // to the background.
+
+    private val networkStateLock = Any()
+    private val flushLock = Any()
+    private val flushRequests = Channel<Unit>(Channel.CONFLATED)
+
+    private var cachedSnodePool: Set<Snode>? = null
+    private var cachedOnionRequestPaths: List<List<Snode>>? = null
+    private var cachedSwarms: MutableMap<String, Set<Snode>>? = null
+    private var cachedLastMessageHashes: MutableMap<LastMessageHashKey, String>? = null
+
+    private var isSnodePoolDirty = false
+    private var areOnionRequestPathsDirty = false
+    private val dirtySwarms = hashSetOf<String>()
+    private val dirtyLastMessageHashes = hashSetOf<LastMessageHashKey>()
+
+    private data class LastMessageHashKey(val snode: String, val publicKey: String, val namespace: Int)
+
+    /**
+     * The network state to write to disk. A null swarm or hash is one that was removed.
+     */
+    private class PendingNetworkState(
+        val snodePool: Set<Snode>?,
+        val onionRequestPaths: List<List<Snode>>?,
+        val swarms: Map<String, Set<Snode>?>,
+        val lastMessageHashes: Map<LastMessageHashKey, String?>,
+    ) {
+        val isEmpty: Boolean
+            get() = snodePool == null && onionRequestPaths == null && swarms.isEmpty() && lastMessageHashes.isEmpty()
     }
 
-    override fun setSnodePool(newValue: Set<Snode>) {
-        val database = writableDatabase
-        val snodePoolAsString = newValue.joinToString(", ") { snode ->
-            var string = "${snode.address}-${snode.port}"
-            val keySet = snode.publicKeySet
-            if (keySet != null) {
-                string += "-${keySet.ed25519Key}-${keySet.x25519Key}"
+    override fun onPostAppStarted() {
+        scope.launch(Dispatchers.IO) {
+            for (request in flushRequests) {
+                // Let the writes made around the same time land in the same transaction
+                delay(NETWORK_STATE_FLUSH_DELAY_MILLIS)
+                flushNetworkState()
             }
-            string += "-${snode.version}"
-            string
         }
-        val row = wrap(mapOf( Companion.dummyKey to "dummy_key", snodePool to snodePoolAsString ))
-        database.insertOrUpdate(snodePoolTable, row, "${Companion.dummyKey} = ?", wrap("dummy_key"))
+
+        scope.launch(Dispatchers.IO) {
+            // The process can be killed at any point once the app is in the background
+            appVisibilityManager.isAppVisible
+                .drop(1)
+                .filter { !it }
+                .collect { flushNetworkState() }
+        }
     }
 
-    override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
-        // FIXME: This approach assumes either 1 or 2 paths of length 3 each. We should do better than this.
-        val database = writableDatabase
-        fun set(indexPath: String, snode: Snode) {
-            var snodeAsString = "${snode.address}-${snode.port}"
-            val keySet = snode.publicKeySet
-            if (keySet != null) {
-                snodeAsString += "-${keySet.ed25519Key}-${keySet.x25519Key}"
+    /**
+     * Writes the network state that changed since the last flush to disk in a single transaction.
+     */
+    fun flushNetworkState() {
+        synchronized(flushLock) {
+            val pending = synchronized(networkStateLock) {
+                PendingNetworkState(
+                    snodePool = cachedSnodePool.takeIf { isSnodePoolDirty },
+                    onionRequestPaths = cachedOnionRequestPaths.takeIf { areOnionRequestPathsDirty },
+                    swarms = dirtySwarms.associateWith { cachedSwarms?.get(it) },
+                    lastMessageHashes = dirtyLastMessageHashes.associateWith { cachedLastMessageHashes?.get(it) },
+                ).also {
+                    isSnodePoolDirty = false
+                    areOnionRequestPathsDirty = false
+                    dirtySwarms.clear()
+                    dirtyLastMessageHashes.clear()
+                }
+            }
+            if (pending.isEmpty) { return }
+
+            try {
+                writeNetworkState(pending)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to write network state to disk", e)
+                // Whatever is in memory by the next flush gets written then
+                synchronized(networkStateLock) {
+                    isSnodePoolDirty = isSnodePoolDirty || pending.snodePool != null
+                    areOnionRequestPathsDirty = areOnionRequestPathsDirty || pending.onionRequestPaths != null
+                    dirtySwarms += pending.swarms.keys
+                    dirtyLastMessageHashes += pending.lastMessageHashes.keys
+                }
             }
-            snodeAsString += "-${snode.version}"
-            val row = wrap(mapOf( Companion.indexPath to indexPath, Companion.snode to snodeAsString ))
-            database.insertOrUpdate(onionRequestPathTable, row, "${Companion.indexPath} = ?", wrap(indexPath))
         }
-        Log.d("Loki", "Persisting onion request paths to database.")
-        clearOnionRequestPaths()
-        if (newValue.count() < 1) { return }
-        val path0 = newValue[0]
-        if (path0.count() != 3) { return }
-        set("0-0", path0[0]); set("0-1", path0[1]); set("0-2", path0[2])
-        if (newValue.count() < 2) { return }
-        val path1 = newValue[1]
-        if (path1.count() != 3) { return }
-        set("1-0", path1[0]); set("1-1", path1[1]); set("1-2", path1[2])
     }
 
-    override fun getOnionRequestPaths(): List<List<Snode>> {
-        val database = readableDatabase
-        fun get(indexPath: String): Snode? {
-            return database.get(onionRequestPathTable, "${Companion.indexPath} = ?", wrap(indexPath)) { cursor ->
-                Snode(cursor.getString(cursor.getColumnIndexOrThrow(snode)))
+    private fun writeNetworkState(pending: PendingNetworkState) {
+        val database = writableDatabase
+        database.beginTransaction()
+        try {
+            pending.snodePool?.let { snodePool ->
+                database.delete(SNODE_POOL_TABLE, null, null)
+                snodePool.forEach { database.insert(SNODE_POOL_TABLE, null, snodeRow(it)) }
+            }
+            pending.onionRequestPaths?.let { paths ->
+                database.delete(ONION_REQUEST_PATH_SNODE_TABLE, null, null)
+                paths.forEachIndexed { pathIndex, path ->
+                    path.forEachIndexed { hopIndex, snode ->
+                        val row = snodeRow(snode)
+                        row.put(PATH_INDEX, pathIndex)
+                        row.put(HOP_INDEX, hopIndex)
+                        database.insert(ONION_REQUEST_PATH_SNODE_TABLE, null, row)
+                    }
+                }
             }
+            for ((publicKey, swarm) in pending.swarms) {
+                database.delete(SWARM_SNODE_TABLE, "$SWARM_PUBLIC_KEY = ?", wrap(publicKey))
+                swarm?.forEach { snode ->
+                    val row = snodeRow(snode)
+                    row.put(SWARM_PUBLIC_KEY, publicKey)
+                    database.insert(SWARM_SNODE_TABLE, null, row)
+                }
+            }
+            for ((key, hash) in pending.lastMessageHashes) {
+                if (hash == null) {
+                    val query = "$snode = ? AND $publicKey = ? AND $lastMessageHashNamespace = ?"
+                    database.delete(lastMessageHashValueTable2, query, arrayOf(key.snode, key.publicKey, key.namespace.toString()))
+                } else {
+                    val row = ContentValues(4)
+                    row.put(snode, key.snode)
+                    row.put(publicKey, key.publicKey)
+                    row.put(lastMessageHashValue, hash)
+                    row.put(lastMessageHashNamespace, key.namespace)
+                    database.insertWithOnConflict(lastMessageHashValueTable2, null, row, CONFLICT_REPLACE)
+                }
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+    }
+
+    private fun scheduleNetworkStateFlush() {
+        flushRequests.trySend(Unit)
+    }
+
+    private fun snodeRow(snode: Snode): ContentValues {
+        val row = ContentValues(7)
+        row.put(SNODE_ADDRESS, snode.address)
+        row.put(SNODE_PORT, snode.port)
+        row.put(SNODE_ED25519_KEY, snode.publicKeySet?.ed25519Key)
+        row.put(SNODE_X25519_KEY, snode.publicKeySet?.x25519Key)
+        row.put(SNODE_VERSION, snode.version.value.toLong())
+        return row
+    }
+
+    private fun readSnode(cursor: Cursor): Snode {
+        val ed25519Key = cursor.getStringOrNull(SNODE_ED25519_KEY)
+        val x25519Key = cursor.getStringOrNull(SNODE_X25519_KEY)
+        return Snode(
+            address = cursor.getString(SNODE_ADDRESS),
+            port = cursor.getInt(SNODE_PORT),
+            publicKeySet = if (ed25519Key != null && x25519Key != null) Snode.KeySet(ed25519Key, x25519Key) else null,
+            version = Snode.Version(cursor.getLong(SNODE_VERSION).toULong())
+        )
+    }
+
+    // The functions below load their part of the network state on first use and must be called with the
+    // network state lock held.
+
+    private fun snodePool(): Set<Snode> = cachedSnodePool
+        ?: readableDatabase.getAll(SNODE_POOL_TABLE, null, null, ::readSnode).toSet()
+            .also { cachedSnodePool = it }
+
+    private fun onionRequestPaths(): List<List<Snode>> = cachedOnionRequestPaths
+        ?: readableDatabase.getAll(ONION_REQUEST_PATH_SNODE_TABLE, null, null) { cursor ->
+            Triple(cursor.getInt(PATH_INDEX), cursor.getInt(HOP_INDEX), readSnode(cursor))
+        }
+            .sortedWith(compareBy({ it.first }, { it.second }))
+            .groupBy(keySelector = { it.first }, valueTransform = { it.third })
+            .values
+            .toList()
+            .also { cachedOnionRequestPaths = it }
+
+    private fun swarms(): MutableMap<String, Set<Snode>> = cachedSwarms
+        ?: readableDatabase.getAll(SWARM_SNODE_TABLE, null, null) { cursor ->
+            cursor.getString(SWARM_PUBLIC_KEY) to readSnode(cursor)
+        }
+            .groupBy(keySelector = { it.first }, valueTransform = { it.second })
+            .mapValuesTo(hashMapOf()) { it.value.toSet() }
+            .also { cachedSwarms = it }
+
+    private fun lastMessageHashes(): MutableMap<LastMessageHashKey, String> = cachedLastMessageHashes
+        ?: readableDatabase.getAll(lastMessageHashValueTable2, null, null) { cursor ->
+            LastMessageHashKey(
+                snode = cursor.getString(snode),
+                publicKey = cursor.getString(publicKey),
+                namespace = cursor.getInt(lastMessageHashNamespace)
+            ) to cursor.getString(lastMessageHashValue)
         }
-        val result = mutableListOf<List<Snode>>()
-        val path0Snode0 = get("0-0"); val path0Snode1 = get("0-1"); val path0Snode2 = get("0-2")
-        if (path0Snode0 != null && path0Snode1 != null && path0Snode2 != null) {
-            result.add(listOf( path0Snode0, path0Snode1, path0Snode2 ))
+            .toMap(hashMapOf())
+            .also { cachedLastMessageHashes = it }
+
+    override fun getSnodePool(): Set<Snode> {
+        synchronized(networkStateLock) {
+            return snodePool()
         }
-        val path1Snode0 = get("1-0"); val path1Snode1 = get("1-1"); val path1Snode2 = get("1-2")
-        if (path1Snode0 != null && path1Snode1 != null && path1Snode2 != null) {
-            result.add(listOf( path1Snode0, path1Snode1, path1Snode2 ))
+    }
+
+    override fun setSnodePool(newValue: Set<Snode>) {
+        synchronized(networkStateLock) {
+            cachedSnodePool = newValue.toSet()
+            isSnodePoolDirty = true
+        }
+        scheduleNetworkStateFlush()
+    }
+
+    override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
+        synchronized(networkStateLock) {
+            cachedOnionRequestPaths = newValue.map { it.toList() }
+            areOnionRequestPathsDirty = true
+        }
+        scheduleNetworkStateFlush()
+    }
+
+    override fun getOnionRequestPaths(): List<List<Snode>> {
+        synchronized(networkStateLock) {
+            return onionRequestPaths()
         }
-        return result
     }
 
     override fun clearSnodePool() {
-        val database = writableDatabase
-        database.delete(snodePoolTable, null, null)
+        setSnodePool(emptySet())
     }
 
     override fun clearOnionRequestPaths() {
-        val database = writableDatabase
-        fun delete(indexPath: String) {
-            database.delete(onionRequestPathTable, "${Companion.indexPath} = ?", wrap(indexPath))
-        }
-        delete("0-0"); delete("0-1")
-        delete("0-2"); delete("1-0")
-        delete("1-1"); delete("1-2")
+        setOnionRequestPaths(emptyList())
     }
 
     override fun getSwarm(publicKey: String): Set<Snode>? {
-        val database = readableDatabase
-        return database.get(swarmTable, "${Companion.swarmPublicKey} = ?", wrap(publicKey)) { cursor ->
-            val swarmAsString = cursor.getString(cursor.getColumnIndexOrThrow(swarm))
-            swarmAsString.split(", ").mapNotNull(::Snode)
-        }?.toSet()
+        synchronized(networkStateLock) {
+            return swarms()[publicKey]
+        }
     }
 
     override fun setSwarm(publicKey: String, newValue: Set<Snode>) {
-        val database = writableDatabase
-        val swarmAsString = newValue.joinToString(", ") { target ->
-            var string = "${target.address}-${target.port}"
-            val keySet = target.publicKeySet
-            if (keySet != null) {
-                string += "-${keySet.ed25519Key}-${keySet.x25519Key}"
-            }
-            string
+        synchronized(networkStateLock) {
+            swarms()[publicKey] = newValue.toSet()
+            dirtySwarms += publicKey
         }
-        val row = wrap(mapOf( Companion.swarmPublicKey to publicKey, swarm to swarmAsString ))
-        database.insertOrUpdate(swarmTable, row, "${Companion.swarmPublicKey} = ?", wrap(publicKey))
+        scheduleNetworkStateFlush()
     }
 
     override fun getLastMessageHashValue(snode: Snode, publicKey: String, namespace: Int): String? {
-        val database = readableDatabase
-        val query = "${Companion.snode} = ? AND ${Companion.publicKey} = ? AND $lastMessageHashNamespace = ?"
-        return database.get(lastMessageHashValueTable2, query, arrayOf(snode.toString(), publicKey, namespace.toString())) { cursor ->
-            cursor.getString(cursor.getColumnIndexOrThrow(lastMessageHashValue))
+        synchronized(networkStateLock) {
+            return lastMessageHashes()[LastMessageHashKey(snode.toString(), publicKey, namespace)]
         }
     }
 
     override fun setLastMessageHashValue(snode: Snode, publicKey: String, newValue: String, namespace: Int) {
-        val database = writableDatabase
-        val row = wrap(mapOf(
-            Companion.snode to snode.toString(),
-            Companion.publicKey to publicKey,
-            lastMessageHashValue to newValue,
-            lastMessageHashNamespace to namespace.toString()
-        ))
-        val query = "${Companion.snode} = ? AND ${Companion.publicKey} = ? AND $lastMessageHashNamespace = ?"
-        val lastHash = database.insertOrUpdate(lastMessageHashValueTable2, row, query, arrayOf( snode.toString(), publicKey, namespace.toString() ))
+        val key = LastMessageHashKey(snode.toString(), publicKey, namespace)
+        synchronized(networkStateLock) {
+            // The pollers set the same hash again whenever nothing new came in
+            if (lastMessageHashes().put(key, newValue) == newValue) { return }
+            dirtyLastMessageHashes += key
+        }
+        scheduleNetworkStateFlush()
     }
 
     override fun clearLastMessageHashes(publicKey: String) {
-        writableDatabase
-            .delete(lastMessageHashValueTable2, "${Companion.publicKey} = ?", arrayOf(publicKey))
+        clearLastMessageHashes { it.publicKey == publicKey }
     }
 
     override fun clearLastMessageHashesByNamespaces(vararg namespaces: Int) {
-        // Note that we don't use SQL parameter as the given namespaces are integer anyway so there's little chance of SQL injection
-        writableDatabase
-            .delete(lastMessageHashValueTable2, "$lastMessageHashNamespace IN (${namespaces.joinToString(",")})", null)
+        clearLastMessageHashes { it.namespace in namespaces }
     }
 
     override fun clearAllLastMessageHashes() {
-        val database = writableDatabase
-        database.delete(lastMessageHashValueTable2, null, null)
+        clearLastMessageHashes { true }
+    }
+
+    private inline fun clearLastMessageHashes(predicate: (LastMessageHashKey) -> Boolean) {
+        synchronized(networkStateLock) {
+            val hashes = lastMessageHashes()
+            val removed = hashes.keys.filter(predicate)
+            if (removed.isEmpty()) { return }
+            hashes.keys.removeAll(removed)
+            dirtyLastMessageHashes += removed
+        }
+        scheduleNetworkStateFlush()
     }
+    // endregion
 
     override fun getReceivedMessageHashValues(publicKey: String, namespace: Int): Set<String>? {
         val database = readableDatabase
@@ -62,6 +62,7 @@ import org.thoughtcrime.securesms.database.model.content.DisappearingMessageUpda
 import org.thoughtcrime.securesms.database.model.content.MessageContent
 import org.thoughtcrime.securesms.mms.MmsException
 import org.thoughtcrime.securesms.mms.SlideDeck
+import org.thoughtcrime.securesms.util.PriorityTaskExecutor
 import org.thoughtcrime.securesms.util.asSequence
 import java.io.Closeable
 import java.io.IOException
@@ -886,9 +887,7 @@ class MmsDatabase @Inject constructor(
             // Process thumbnail jobs AFTER transaction commits
             thumbnailJobs.forEach { attachmentId ->
                 Log.i(TAG, "Submitting thumbnail generation job for attachment: $attachmentId")
-                attachmentDatabase.thumbnailExecutor.submit(
-                    attachmentDatabase.ThumbnailFetchCallable(attachmentId)
-                )
+                attachmentDatabase.generateThumbnail(attachmentId, PriorityTaskExecutor.Priority.BACKGROUND)
             }
         }
     }
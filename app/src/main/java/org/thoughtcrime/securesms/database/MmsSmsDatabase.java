@@ -28,6 +28,7 @@ import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 import net.zetetic.database.sqlcipher.SQLiteQueryBuilder;
@@ -47,8 +48,10 @@ import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Provider;
@@ -281,8 +284,8 @@ public class MmsSmsDatabase extends Database {
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
     String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
-    return cursor;
+    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr, false);
+    return new PagedAttachmentCursor(cursor, DatabaseComponent.get(context).attachmentDatabase());
   }
 
   public Cursor getConversation(long threadId, boolean reverse) {
@@ -296,22 +299,47 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
-  public List<String> getRecentChatMemberAddresses(long threadId, int limit) {
-    String[] projection = new String[] { "DISTINCT " + MmsSmsColumns.ADDRESS };
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String limitStr = String.valueOf(limit);
+  /**
+   * Returns the senders of the messages in the thread, merged into the ones of {@code since}.
+   * Only the messages added after the ones read for {@code since} are queried, so a sender list
+   * can be kept up to date cheaply. Pass {@link ThreadSenders#EMPTY} to read all of them.
+   */
+  @NonNull
+  public ThreadSenders getThreadSenders(long threadId, @NonNull ThreadSenders since) {
+    String query = "SELECT " + MmsSmsColumns.ADDRESS + ", MAX(sent), MAX(" + ID + "), is_mms, COUNT(*) FROM (" +
+        "SELECT " + MmsSmsColumns.ADDRESS + ", " + SmsDatabase.DATE_SENT + " AS sent, " + ID + ", 0 AS is_mms" +
+        " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + THREAD_ID + " = ? AND " + ID + " > ?" +
+        " UNION ALL " +
+        "SELECT " + MmsSmsColumns.ADDRESS + ", " + MmsDatabase.DATE_SENT + " AS sent, " + ID + ", 1 AS is_mms" +
+        " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + THREAD_ID + " = ? AND " + ID + " > ?" +
+        ") GROUP BY " + MmsSmsColumns.ADDRESS + ", is_mms";
+
+    Map<String, Long> lastSentTimes = new HashMap<>(since.getLastSentTimes());
+    long lastSmsId = since.getLastSmsId();
+    long lastMmsId = since.getLastMmsId();
+    long messageCount = since.getMessageCount();
+
+    try (Cursor cursor = getReadableDatabase().rawQuery(query, threadId, lastSmsId, threadId, lastMmsId)) {
+      while (cursor.moveToNext()) {
+        if (cursor.getInt(3) == 1) {
+          lastMmsId = Math.max(lastMmsId, cursor.getLong(2));
+        } else {
+          lastSmsId = Math.max(lastSmsId, cursor.getLong(2));
+        }
+        messageCount += cursor.getLong(4);
 
-    try (Cursor cursor = queryTables(projection, selection, order, limitStr)) {
-      List<String> addresses = new ArrayList<>();
-      while (cursor != null && cursor.moveToNext()) {
         String address = cursor.getString(0);
         if (address != null && !address.isEmpty()) {
-          addresses.add(address);
+          Long previous = lastSentTimes.get(address);
+          long sent = cursor.getLong(1);
+          if (previous == null || previous < sent) {
+            lastSentTimes.put(address, sent);
+          }
         }
       }
-      return addresses;
     }
+
+    return new ThreadSenders(lastSentTimes, lastSmsId, lastMmsId, messageCount);
   }
 
   public List<MessageRecord> getUserMessages(long threadId, String sender) {
@@ -409,14 +437,37 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getUnreadIncomingForNotifications(int maxRows) {
+    return getUnreadIncomingForNotifications(null, maxRows);
+  }
+
+  /**
+   * Same as {@link #getUnreadIncomingForNotifications(int)}, limited to a single thread.
+   */
+  public Cursor getUnreadIncomingForNotifications(long threadId, int maxRows) {
+    return getUnreadIncomingForNotifications(MmsSmsColumns.THREAD_ID + " = " + threadId, maxRows);
+  }
+
+  private Cursor getUnreadIncomingForNotifications(@Nullable String threadSelection, int maxRows) {
     String outgoing = buildOutgoingConditionForNotifications();
     String selection = "(" + READ + " = 0 AND " + NOTIFIED + " = 0 AND NOT (" + outgoing + "))";
+    if (threadSelection != null) selection += " AND " + threadSelection;
     String order    = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
     String limitStr = maxRows > 0 ? String.valueOf(maxRows) : null;
     return queryTables(PROJECTION, selection, order, limitStr);
   }
 
   public Cursor getOutgoingWithUnseenReactionsForNotifications(int maxRows) {
+    return getOutgoingWithUnseenReactionsForNotifications(null, maxRows);
+  }
+
+  /**
+   * Same as {@link #getOutgoingWithUnseenReactionsForNotifications(int)}, limited to a single thread.
+   */
+  public Cursor getOutgoingWithUnseenReactionsForNotifications(long threadId, int maxRows) {
+    return getOutgoingWithUnseenReactionsForNotifications(MmsSmsColumns.THREAD_ID + " = " + threadId, maxRows);
+  }
+
+  private Cursor getOutgoingWithUnseenReactionsForNotifications(@Nullable String threadSelection, int maxRows) {
     String outgoing = buildOutgoingConditionForNotifications();
     String lastSeenQuery =
             "SELECT " + ThreadDatabase.LAST_SEEN +
@@ -427,6 +478,7 @@ public class MmsSmsDatabase extends Database {
             "(" + outgoing + ")" +
                     " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_SENT + " IS NOT NULL" +
                     " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_SENT + " > (" + lastSeenQuery + ")";
+    if (threadSelection != null) selection += " AND " + threadSelection;
 
     String order    = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
     String limitStr = maxRows > 0 ? String.valueOf(maxRows) : null;
@@ -655,7 +707,45 @@ public class MmsSmsDatabase extends Database {
     migrateLegacyCommunityAddresses2(db, MmsDatabase.TABLE_NAME);
   }
 
+  /**
+   * The attachments of an mms row aggregated as a JSON array, when the part table is joined.
+   */
+  @VisibleForTesting
+  static final String ATTACHMENTS_JSON_COLUMN =
+      "json_group_array(json_object(" +
+      "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
+      "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
+      "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
+      "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
+      "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
+      "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
+      "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
+      "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
+      "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
+      "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
+      "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
+      "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
+      "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
+      "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
+      "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
+      "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
+      "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
+      "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
+      "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
+      "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
+      "'" + AttachmentDatabase.AUDIO_DURATION + "', ifnull(" + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.AUDIO_DURATION + ", -1), " +
+      "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID +
+      ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, order, limit, true);
+  }
+
+  /**
+   * @param includeAttachments whether mms rows aggregate their attachments as JSON. Without them
+   *                           the result should be wrapped in a {@link PagedAttachmentCursor}.
+   */
+  private Cursor queryTables(String[] projection, String selection, String order, String limit, boolean includeAttachments) {
     String reactionsColumn = "json_group_array(json_object(" +
             "'" + ReactionDatabase.ROW_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.ROW_ID + ", " +
             "'" + ReactionDatabase.MESSAGE_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + ", " +
@@ -668,36 +758,14 @@ public class MmsSmsDatabase extends Database {
             "'" + ReactionDatabase.DATE_SENT + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_SENT + ", " +
             "'" + ReactionDatabase.DATE_RECEIVED + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_RECEIVED +
             ")) AS " + ReactionDatabase.REACTION_JSON_ALIAS;
+    String attachmentsColumn = includeAttachments ? ATTACHMENTS_JSON_COLUMN : "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                                  "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
-                                  "'" + AttachmentDatabase.AUDIO_DURATION + "', ifnull(" + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.AUDIO_DURATION + ", -1), " +
-                                  "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              attachmentsColumn,
                               reactionsColumn,
                               SmsDatabase.BODY,
                               MmsDatabase.MESSAGE_CONTENT,
@@ -764,9 +832,12 @@ public class MmsSmsDatabase extends Database {
                               " ON " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + " = 0" +
                               " LEFT OUTER JOIN " + LokiMessageDatabase.smsHashTable + " AS sms_hash" +
                               " ON sms_hash.message_id = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID);
+    String attachmentsJoin = !includeAttachments ? "" :
+            " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME +
+            " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID;
+
     mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME +
-                              " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+                              attachmentsJoin +
                               " LEFT OUTER JOIN " + ReactionDatabase.TABLE_NAME +
                               " ON " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + " = 1" +
                               " LEFT OUTER JOIN " + LokiMessageDatabase.mmsHashTable + " AS mms_hash" +
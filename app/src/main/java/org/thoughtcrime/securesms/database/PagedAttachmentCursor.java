@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import androidx.annotation.NonNull;
+import androidx.collection.LongSparseArray;
+
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A conversation cursor whose rows don't carry their attachments. They are loaded a page of rows at
+ * a time with {@link AttachmentDatabase#getAttachmentsForMessages(java.util.Collection)} when the
+ * first row of a page is read, instead of being aggregated into JSON by SQLite for every message
+ * and parsed again for every row.
+ *
+ * {@link AttachmentDatabase#getAttachment(Cursor)} returns the attachments of the current row when
+ * given this cursor.
+ */
+public class PagedAttachmentCursor extends CursorWrapper {
+
+  static final int PAGE_SIZE = 50;
+
+  private final AttachmentDatabase                        attachmentDatabase;
+  private final int                                       idIndex;
+  private final int                                       transportIndex;
+  private final LongSparseArray<List<DatabaseAttachment>> attachments = new LongSparseArray<>();
+  private final BitSet                                    loadedPages = new BitSet();
+
+  public PagedAttachmentCursor(@NonNull Cursor cursor, @NonNull AttachmentDatabase attachmentDatabase) {
+    super(cursor);
+    this.attachmentDatabase = attachmentDatabase;
+    this.idIndex            = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+    this.transportIndex     = cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+  }
+
+  /**
+   * @return the attachments of the message at the current position.
+   */
+  public @NonNull List<DatabaseAttachment> getAttachments() {
+    Cursor cursor = getWrappedCursor();
+
+    if (!isMms(cursor)) {
+      return Collections.emptyList();
+    }
+
+    int page = cursor.getPosition() / PAGE_SIZE;
+
+    if (!loadedPages.get(page)) {
+      loadPage(cursor, page);
+    }
+
+    List<DatabaseAttachment> result = attachments.get(cursor.getLong(idIndex));
+
+    return result != null ? result : Collections.emptyList();
+  }
+
+  private void loadPage(@NonNull Cursor cursor, int page) {
+    int        position = cursor.getPosition();
+    int        end      = Math.min((page + 1) * PAGE_SIZE, cursor.getCount());
+    List<Long> mmsIds   = new ArrayList<>(PAGE_SIZE);
+
+    try {
+      for (int i = page * PAGE_SIZE; i < end; i++) {
+        if (cursor.moveToPosition(i) && isMms(cursor)) {
+          mmsIds.add(cursor.getLong(idIndex));
+        }
+      }
+    } finally {
+      cursor.moveToPosition(position);
+    }
+
+    attachments.putAll(attachmentDatabase.getAttachmentsForMessages(mmsIds));
+    loadedPages.set(page);
+  }
+
+  private boolean isMms(@NonNull Cursor cursor) {
+    return MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(transportIndex));
+  }
+}
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.collection.LruCache
+import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.recipients.ProStatus
+import org.session.libsession.utilities.recipients.Recipient
+import org.session.libsession.utilities.recipients.RecipientData
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The recently fetched [Recipient]s of [RecipientRepository.getRecipientSync], so that lists
+ * showing the same recipients on every row don't fetch them again for each row.
+ *
+ * Entries are weighed by the number of recipients they hold, a group counting its members, so
+ * the cache is bounded by memory use rather than by entry count alone.
+ *
+ * Values must be [put] with the [generation] read before they were fetched: a value fetched
+ * before an invalidation is dropped instead of being cached.
+ */
+class RecipientCache(maxWeight: Int) {
+    private val cache = object : LruCache<Address, Recipient>(maxWeight) {
+        override fun sizeOf(key: Address, value: Recipient): Int = weightOf(value)
+    }
+
+    private val generationCounter = AtomicLong()
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    val generation: Long
+        get() = generationCounter.get()
+
+    operator fun get(address: Address): Recipient? {
+        val recipient = cache[address]
+        if (recipient != null) hits.incrementAndGet() else misses.incrementAndGet()
+        return recipient
+    }
+
+    fun put(address: Address, recipient: Recipient, generation: Long) {
+        // Recipients with an expiring pro status would need to be refreshed when it expires
+        if ((recipient.proStatus as? ProStatus.Pro)?.validUntil != null) return
+
+        synchronized(this) {
+            if (generationCounter.get() == generation) {
+                cache.put(address, recipient)
+            }
+        }
+    }
+
+    /**
+     * Removes [address] and every group, as groups hold the recipients of their members.
+     */
+    fun invalidate(address: Address) {
+        synchronized(this) {
+            generationCounter.incrementAndGet()
+            cache.remove(address)
+
+            for ((key, recipient) in cache.snapshot()) {
+                if (recipient.data is RecipientData.GroupLike || key is Address.CommunityBlindedId) {
+                    cache.remove(key)
+                }
+            }
+        }
+    }
+
+    fun invalidateAll() {
+        synchronized(this) {
+            generationCounter.incrementAndGet()
+            cache.evictAll()
+        }
+    }
+
+    fun stats(): Stats = Stats(
+        hits = hits.get(),
+        misses = misses.get(),
+        weight = cache.size(),
+        maxWeight = cache.maxSize(),
+    )
+
+    data class Stats(
+        val hits: Long,
+        val misses: Long,
+        val weight: Int,
+        val maxWeight: Int,
+    ) {
+        val hitRate: Double
+            get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+
+        override fun toString(): String =
+            "hit rate ${"%.1f".format(hitRate * 100)}% ($hits hits, $misses misses), weight $weight/$maxWeight"
+    }
+
+    companion object {
+        private fun weightOf(recipient: Recipient): Int = 1 + when (val data = recipient.data) {
+            is RecipientData.Group -> data.partial.members.size
+            is RecipientData.LegacyGroup -> data.members.size
+            else -> 0
+        }
+    }
+}
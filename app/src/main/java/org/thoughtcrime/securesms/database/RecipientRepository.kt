@@ -21,6 +21,7 @@ import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.merge
 import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.time.delay
 import kotlinx.coroutines.withContext
 import network.loki.messenger.libsession_util.ConfigBase.Companion.PRIORITY_VISIBLE
@@ -78,6 +79,32 @@ class RecipientRepository @Inject constructor(
     @param:ManagerScope private val managerScope: CoroutineScope,
 ) {
     private val recipientFlowCache = LruCache<Address, WeakReference<SharedFlow<Recipient>>>(512)
+    private val recipientCache = RecipientCache(RECIPIENT_CACHE_MAX_WEIGHT)
+
+    init {
+        // Keep the cached recipients of getRecipientSync in line with the sources they were built from
+        managerScope.launch {
+            merge(
+                recipientSettingsDatabase.changeNotification,
+                communityDatabase.changeNotification,
+            ).collect(recipientCache::invalidate)
+        }
+
+        managerScope.launch {
+            merge(
+                configFactory.configUpdateNotifications,
+                groupDatabase.updateNotification,
+                preferences.watchLocalNumber(),
+                TextSecurePreferences.events.filter {
+                    it == TextSecurePreferences.SET_FORCE_CURRENT_USER_PRO ||
+                            it == TextSecurePreferences.SET_FORCE_OTHER_USERS_PRO
+                },
+            ).collect { recipientCache.invalidateAll() }
+        }
+    }
+
+    val recipientCacheStats: RecipientCache.Stats
+        get() = recipientCache.stats()
 
     fun observeRecipient(address: Address): Flow<Recipient> {
         val cache = recipientFlowCache[address]?.get()
@@ -387,11 +414,48 @@ class RecipientRepository @Inject constructor(
      */
     @DelicateCoroutinesApi
     fun getRecipientSync(address: Address): Recipient {
+        recipientCache[address]?.let { return it }
+
+        val generation = recipientCache.generation
         return fetchRecipient(
             address = address,
             settingsFetcher = recipientSettingsDatabase::getSettings,
             communityFetcher = communityDatabase::getRoomInfo
-        ).first
+        ).first.also { recipientCache.put(address, it, generation) }
+    }
+
+    /**
+     * Bulk version of [getRecipientSync], which loads the settings of all the recipients that
+     * aren't cached with one query instead of one query per recipient.
+     *
+     * @return The recipients in the order of [addresses].
+     */
+    @DelicateCoroutinesApi
+    fun getRecipientsSync(addresses: Collection<Address>): Map<Address, Recipient> {
+        val cached = HashMap<Address, Recipient>(addresses.size)
+        val missing = ArrayList<Address>()
+        for (address in addresses) {
+            val recipient = recipientCache[address]
+            if (recipient != null) cached[address] = recipient else missing += address
+        }
+
+        if (missing.isNotEmpty()) {
+            val generation = recipientCache.generation
+            val settings = recipientSettingsDatabase.getSettings(missing)
+
+            for (address in missing) {
+                val recipient = fetchRecipient(
+                    address = address,
+                    settingsFetcher = { settings[it] ?: recipientSettingsDatabase.getSettings(it) },
+                    communityFetcher = communityDatabase::getRoomInfo
+                ).first
+
+                recipientCache.put(address, recipient, generation)
+                cached[address] = recipient
+            }
+        }
+
+        return addresses.associateWith { cached.getValue(it) }
     }
 
     /**
@@ -405,12 +469,12 @@ class RecipientRepository @Inject constructor(
             is Address.Standard -> {
                 // Is this our own address?
                 if (address.address.equals(preferences.getLocalNumber(), ignoreCase = true)) {
-                    configFactory.withUserConfigs { configs ->
+                    configFactory.userConfigsSnapshot().profile.let { profile ->
                         RecipientData.Self(
-                            name = configs.userProfile.getName().orEmpty(),
-                            avatar = configs.userProfile.getPic().toRemoteFile(),
-                            expiryMode = configs.userProfile.getNtsExpiry(),
-                            priority = configs.userProfile.getNtsPriority(),
+                            name = profile.name.orEmpty(),
+                            avatar = profile.pic.toRemoteFile(),
+                            expiryMode = profile.ntsExpiry,
+                            priority = profile.ntsPriority,
                             proStatus = if (preferences.forceCurrentUserAsPro()) {
                                 ProStatus.Pro()
                             } else {
@@ -422,9 +486,7 @@ class RecipientRepository @Inject constructor(
                     }
                 } else {
                     // Is this a contact?
-                    configFactory.withUserConfigs { configs ->
-                        configs.contacts.get(address.accountId.hexString)
-                    }?.let { contact ->
+                    configFactory.userConfigsSnapshot().contacts[address.accountId.hexString]?.let { contact ->
                         RecipientData.Contact(
                             name = contact.name,
                             nickname = contact.nickname.takeIf { it.isNotBlank() },
@@ -608,6 +670,9 @@ class RecipientRepository @Inject constructor(
     companion object {
         private const val TAG = "RecipientRepository"
 
+        // Roughly the number of recipients held, with groups counting their members
+        private const val RECIPIENT_CACHE_MAX_WEIGHT = 1024
+
         private fun createLocalRecipient(address: Address, basic: RecipientData.Self): Recipient {
             return Recipient(
                 address = address,
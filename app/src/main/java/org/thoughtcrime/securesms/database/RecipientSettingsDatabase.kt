@@ -11,6 +11,7 @@ import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.serialization.json.Json
 import network.loki.messenger.libsession_util.util.Bytes
 import network.loki.messenger.libsession_util.util.UserPic
+import org.json.JSONArray
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.recipients.ProStatus
 import org.session.libsession.utilities.recipients.RemoteFile
@@ -31,7 +32,8 @@ class RecipientSettingsDatabase @Inject constructor(
     databaseHelper: Provider<SQLCipherOpenHelper>,
     private val json: Provider<Json>,
 ) : Database(context, databaseHelper) {
-    private val mutableChangeNotification = MutableSharedFlow<Address>(extraBufferCapacity = 256)
+    // Unbounded so that tryEmit never drops a change, caches such as RecipientCache rely on every one
+    private val mutableChangeNotification = MutableSharedFlow<Address>(extraBufferCapacity = Int.MAX_VALUE)
     private val cache = LruCache<Address, RecipientSettings>(256)
 
     val changeNotification: SharedFlow<Address>
@@ -109,6 +111,49 @@ class RecipientSettingsDatabase @Inject constructor(
             }
     }
 
+    /**
+     * Bulk version of [getSettings], which loads the settings missing from the cache with one query.
+     */
+    fun getSettings(addresses: Collection<Address>): Map<Address, RecipientSettings> {
+        val result = HashMap<Address, RecipientSettings>(addresses.size)
+        val missing = HashMap<String, Address>()
+
+        for (address in addresses) {
+            val existing = cache[address]
+            if (existing != null) {
+                result[address] = existing
+            } else {
+                missing[address.address] = address
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return result
+        }
+
+        readableDatabase.rawQuery(
+            "SELECT * FROM $TABLE_NAME WHERE $COL_ADDRESS IN (SELECT value FROM json_each(?))",
+            JSONArray(missing.keys).toString()
+        ).use { cursor ->
+            val addressIndex = cursor.getColumnIndexOrThrow(COL_ADDRESS)
+            while (cursor.moveToNext()) {
+                val address = missing.remove(cursor.getString(addressIndex)) ?: continue
+                val settings = cursor.toRecipientSettings()
+                cache.put(address, settings)
+                result[address] = settings
+            }
+        }
+
+        // Same as getSettings, the addresses without a row get the cached empty settings
+        for (address in missing.values) {
+            val settings = RecipientSettings()
+            cache.put(address, settings)
+            result[address] = settings
+        }
+
+        return result
+    }
+
     private fun Cursor.toRecipientSettings(): RecipientSettings {
         return RecipientSettings(
             muteUntil = getLong(getColumnIndexOrThrow(COL_MUTE_UNTIL)).millsToInstant(),
@@ -160,11 +160,14 @@ open class Storage @Inject constructor(
     }
 
     override fun deleteMessagesByHash(threadId: Long, hashes: List<String>) {
+        var deletedIncoming = false
         for (info in lokiMessageDatabase.getSendersForHashes(threadId, hashes.toSet())) {
             messageDataProvider.deleteMessage(info.messageId)
-            if (!info.isOutgoing) {
-                notificationManager.updateNotification(context)
-            }
+            deletedIncoming = deletedIncoming || !info.isOutgoing
+        }
+
+        if (deletedIncoming) {
+            notificationManager.updateNotification(context, threadId, false)
         }
     }
 
@@ -878,23 +881,23 @@ open class Storage @Inject constructor(
     }
 
     override fun getTotalPinned(): Int {
-        return configFactory.withUserConfigs {
+        return configFactory.userConfigsSnapshot().let {
             var totalPins = 0
 
             // check if the note to self is pinned
-            if (it.userProfile.getNtsPriority() == PRIORITY_PINNED) {
+            if (it.profile.ntsPriority == PRIORITY_PINNED) {
                 totalPins ++
             }
 
             // check for 1on1
-            it.contacts.all().forEach { contact ->
+            it.contacts.values.forEach { contact ->
                 if (contact.priority == PRIORITY_PINNED) {
                     totalPins ++
                 }
             }
 
             // check groups and communities
-            it.userGroups.all().forEach { group ->
+            it.groups.forEach { group ->
                 when(group){
                     is GroupInfo.ClosedGroupInfo -> {
                         if (group.priority == PRIORITY_PINNED) {
@@ -25,6 +25,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 
+import androidx.annotation.WorkerThread;
+
 import com.annimon.stream.Stream;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
@@ -42,6 +44,7 @@ import org.session.libsession.utilities.DistributionTypes;
 import org.session.libsession.utilities.GroupUtil;
 import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.Util;
+import org.session.libsession.utilities.concurrent.SignalExecutors;
 import org.session.libsession.utilities.recipients.Recipient;
 import org.session.libsignal.utilities.AccountId;
 import org.session.libsignal.utilities.Log;
@@ -89,6 +92,8 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
 
   private static final String TAG = ThreadDatabase.class.getSimpleName();
 
+  private static final int SNIPPET_BACKFILL_BATCH_SIZE = 100;
+
   // Map of threadID -> Address
 
   public  static final String TABLE_NAME             = "thread";
@@ -111,6 +116,16 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
    * The column that hold a {@link MessageContent}. See {@link MmsDatabase#MESSAGE_CONTENT} for more information
    */
   public  static final String SNIPPET_CONTENT        = "snippet_content";
+  /**
+   * The serialized address of whoever sent the snippet message.
+   */
+  public  static final String SNIPPET_AUTHOR         = "snippet_author";
+  /**
+   * The sent timestamp of the snippet message, null until the snippet has been re-generated
+   * since this column was added.
+   */
+  public  static final String SNIPPET_TIMESTAMP      = "snippet_timestamp";
+  public  static final String SNIPPET_EXPIRE_STARTED = "snippet_expire_started";
   public  static final String ARCHIVED               = "archived";
   public  static final String STATUS                 = "status";
   public  static final String DELIVERY_RECEIPT_COUNT = "delivery_receipt_count";
@@ -141,6 +156,12 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
 
   public static final String ADD_SNIPPET_CONTENT_COLUMN = "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_CONTENT + " TEXT DEFAULT NULL;";
 
+  public static final String[] ADD_SNIPPET_SNAPSHOT_COLUMNS = {
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_AUTHOR + " TEXT DEFAULT NULL;",
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_TIMESTAMP + " INTEGER DEFAULT NULL;",
+    "ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SNIPPET_EXPIRE_STARTED + " INTEGER DEFAULT 0;",
+  };
+
   public static final String[] CREATE_ADDRESS_INDEX = {
      // First remove duplicated addresses if any - this should not be the case as there's application level protection in place but just to make sure
      "DELETE FROM " + TABLE_NAME + " WHERE " + ID + " NOT IN (SELECT " + ID + " FROM " + TABLE_NAME + " GROUP BY " + ADDRESS + ")",
@@ -151,6 +172,7 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
   private static final String[] THREAD_PROJECTION = {
       ID, THREAD_CREATION_DATE, MESSAGE_COUNT, ADDRESS, SNIPPET, SNIPPET_CHARSET, READ, UNREAD_COUNT, UNREAD_MENTION_COUNT, DISTRIBUTION_TYPE, ERROR, SNIPPET_TYPE,
       SNIPPET_URI, ARCHIVED, STATUS, DELIVERY_RECEIPT_COUNT, EXPIRES_IN, LAST_SEEN, READ_RECEIPT_COUNT, IS_PINNED, SNIPPET_CONTENT,
+      SNIPPET_AUTHOR, SNIPPET_TIMESTAMP, SNIPPET_EXPIRE_STARTED,
   };
 
   private static final List<String> TYPED_THREAD_PROJECTION = Stream.of(THREAD_PROJECTION)
@@ -269,6 +291,10 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
        migrateDisappearingMessagesToMessageContent();
        prefs.setMigratedDisappearingMessagesToMessageContent(true);
     }
+
+    if (!prefs.getBackfilledSnippetSnapshots()) {
+      SignalExecutors.IO.execute(this::backfillSnippetSnapshots);
+    }
   }
 
   @NonNull
@@ -288,11 +314,56 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
     }
   }
 
+  // Threads written before the snippet snapshot columns existed get them filled in once, a batch
+  // per transaction so that other writers aren't held up for long
+  @WorkerThread
+  private void backfillSnippetSnapshots() {
+    String sql = "SELECT " + ID + " FROM " + TABLE_NAME +
+            " WHERE " + SNIPPET_TIMESTAMP + " IS NULL AND " + MESSAGE_COUNT + " > 0 AND " + ID + " > ?" +
+            " ORDER BY " + ID + " LIMIT " + SNIPPET_BACKFILL_BATCH_SIZE;
+    SQLiteDatabase db           = getWritableDatabase();
+    long           lastThreadId = 0;
+
+    while (true) {
+      List<Long> threadIds = new ArrayList<>(SNIPPET_BACKFILL_BATCH_SIZE);
+
+      try (final Cursor cursor = db.rawQuery(sql, lastThreadId)) {
+        while (cursor.moveToNext()) {
+          threadIds.add(cursor.getLong(0));
+        }
+      }
+
+      if (threadIds.isEmpty()) {
+        break;
+      }
+
+      db.beginTransaction();
+      try {
+        for (long threadId : threadIds) {
+          updateSnippet(threadId, false);
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+
+      for (long threadId : threadIds) {
+        notifyThreadUpdated(threadId);
+      }
+
+      // Moving past the batch rather than re-querying from the start skips threads the update
+      // couldn't fill in
+      lastThreadId = threadIds.get(threadIds.size() - 1);
+    }
+
+    prefs.setBackfilledSnippetSnapshots(true);
+  }
+
   private void updateThread(long threadId, long count, String body, @Nullable Uri attachment, @Nullable MessageContent messageContent,
                             long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
+                            long expiresIn, int readReceiptCount, @NonNull Address author, long expireStarted)
   {
-    ContentValues contentValues = new ContentValues(7);
+    ContentValues contentValues = new ContentValues(13);
     contentValues.put(THREAD_CREATION_DATE, date - date % 1000);
     contentValues.put(MESSAGE_COUNT, count);
     if (!body.isEmpty()) {
@@ -305,6 +376,9 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
     contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
     contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
     contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_AUTHOR, author.toString());
+    contentValues.put(SNIPPET_TIMESTAMP, date);
+    contentValues.put(SNIPPET_EXPIRE_STARTED, expireStarted);
 
     if (unarchive) { contentValues.put(ARCHIVED, 0); }
 
@@ -315,10 +389,13 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
   }
 
   public void clearSnippet(long threadId){
-    ContentValues contentValues = new ContentValues(1);
+    ContentValues contentValues = new ContentValues(5);
 
     contentValues.put(SNIPPET, "");
     contentValues.put(SNIPPET_CONTENT, "");
+    contentValues.putNull(SNIPPET_AUTHOR);
+    contentValues.put(SNIPPET_TIMESTAMP, 0);
+    contentValues.put(SNIPPET_EXPIRE_STARTED, 0);
 
     SQLiteDatabase db = getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
@@ -713,6 +790,20 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
 
 
   public boolean update(long threadId, boolean unarchive) {
+    // The snippet is a snapshot of the last message, so read and write it atomically
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      boolean result = updateSnippet(threadId, unarchive);
+      db.setTransactionSuccessful();
+      return result;
+    } finally {
+      db.endTransaction();
+      notifyThreadUpdated(threadId);
+    }
+  }
+
+  private boolean updateSnippet(long threadId, boolean unarchive) {
     long count                    = mmsSmsDatabase.get().getConversationCount(threadId);
 
     try (MmsSmsDatabase.Reader reader = mmsSmsDatabase.get().readerFor(mmsSmsDatabase.get().getConversationSnippet(threadId))) {
@@ -727,15 +818,14 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
       if (record != null && !record.isDeleted()) {
         updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record), record.getMessageContent(),
                      record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount(),
+                     record.getIndividualRecipient().getAddress(), record.getExpireStarted());
         return false;
       } else {
         // for empty threads or if there is only deleted messages, show an empty snippet
         clearSnippet(threadId);
         return false;
       }
-    } finally {
-      notifyThreadUpdated(threadId);
     }
   }
 
@@ -851,15 +941,31 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
       long               lastSeen             = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.LAST_SEEN));
       String             invitingAdmin       = cursor.getString(cursor.getColumnIndexOrThrow(LokiMessageDatabase.invitingSessionId));
       String messageContentJson = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_CONTENT));
+      int                snippetTimestampIndex = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TIMESTAMP);
+      String             snippetAuthor        = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_AUTHOR));
+      long               snippetTimestamp     = cursor.getLong(snippetTimestampIndex);
+      long               snippetExpireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_EXPIRE_STARTED));
 
       if (!TextSecurePreferences.isReadReceiptsEnabled(context)) {
         readReceiptCount = 0;
       }
 
-      MessageRecord lastMessage = null;
+      Address lastMessageAuthor = snippetAuthor == null ? null : Address.fromSerialized(snippetAuthor);
+
+      if (count > 0 && cursor.isNull(snippetTimestampIndex)) {
+        // The snapshot hasn't been backfilled yet
+        MessageRecord lastMessage = mmsSmsDatabase.get().getLastMessage(threadId);
+        if (lastMessage != null) {
+          lastMessageAuthor    = lastMessage.getIndividualRecipient().getAddress();
+          snippetTimestamp     = lastMessage.getTimestamp();
+          snippetExpireStarted = lastMessage.getExpireStarted();
+        }
+      }
 
-      if (count > 0) {
-        lastMessage = mmsSmsDatabase.get().getLastMessage(threadId);
+      // Only group snippets show the author's name
+      Recipient lastMessageAuthorRecipient = null;
+      if (lastMessageAuthor != null && AddressKt.isGroupOrCommunity(address) && !MmsSmsColumns.Types.isOutgoingMessageType(type)) {
+        lastMessageAuthorRecipient = recipientRepository.get().getRecipientSync(lastMessageAuthor);
       }
 
       final GroupThreadStatus groupThreadStatus;
@@ -895,9 +1001,10 @@ public class ThreadDatabase extends Database implements OnAppStartupComponent {
           messageContent = null;
       }
 
-      return new ThreadRecord(body, lastMessage, recipient, date, count,
+      return new ThreadRecord(body, recipient, date, count,
                               unreadCount, unreadMentionCount, threadId, deliveryReceiptCount, status, type,
-              lastSeen, readReceiptCount, invitingAdmin, groupThreadStatus, messageContent, isUnread);
+              lastSeen, readReceiptCount, invitingAdmin, groupThreadStatus, messageContent, isUnread,
+              lastMessageAuthor, lastMessageAuthorRecipient, snippetTimestamp, snippetExpireStarted);
     }
 
     @Override
@@ -0,0 +1,31 @@
+package org.thoughtcrime.securesms.database
+
+/**
+ * The senders of the messages in a thread, see [MmsSmsDatabase.getThreadSenders].
+ *
+ * @param lastSentTimes The sent time of the latest message of each sender, keyed by address.
+ * @param lastSmsId The largest sms row id that has been read, so that the next read only looks at newer messages.
+ * @param lastMmsId The largest mms row id that has been read.
+ * @param messageCount The number of messages that have been read. A thread with fewer messages than
+ * that has had some deleted since.
+ */
+data class ThreadSenders(
+    val lastSentTimes: Map<String, Long>,
+    val lastSmsId: Long,
+    val lastMmsId: Long,
+    val messageCount: Long,
+) {
+    fun mostRecentFirst(limit: Int): List<String> {
+        return lastSentTimes.entries
+            .sortedByDescending { it.value }
+            .asSequence()
+            .take(limit)
+            .map { it.key }
+            .toList()
+    }
+
+    companion object {
+        @JvmField
+        val EMPTY = ThreadSenders(emptyMap(), lastSmsId = 0L, lastMmsId = 0L, messageCount = 0L)
+    }
+}
@@ -0,0 +1,90 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.collection.LruCache
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChangedBy
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.onStart
+import kotlinx.coroutines.launch
+import org.thoughtcrime.securesms.dependencies.ManagerScope
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Keeps the senders of recently opened threads, such as the active posters of a community that
+ * can be mentioned.
+ *
+ * The messages of a thread are only scanned the first time its senders are needed. After that,
+ * the senders are updated with the messages added to the thread since, as they arrive. The thread
+ * is scanned again when messages are deleted from it, as their senders might be gone.
+ */
+@Singleton
+class ThreadSendersRepository @Inject constructor(
+    private val mmsSmsDatabase: MmsSmsDatabase,
+    private val threadDatabase: ThreadDatabase,
+    @param:ManagerScope private val scope: CoroutineScope,
+) {
+    private val senders = LruCache<Long, ThreadSenders>(MAX_THREADS)
+
+    /**
+     * Reads the senders of the thread ahead of [observeRecentSenders], so that observing them
+     * doesn't have to scan the thread.
+     */
+    fun prefetch(threadId: Long) {
+        if (threadId < 0 || senders[threadId] != null) return
+
+        scope.launch(Dispatchers.Default) {
+            refresh(threadId)
+        }
+    }
+
+    /**
+     * Emits the addresses of the [limit] most recently active senders of the thread, and again
+     * whenever a sender joins or leaves them. A change in their order alone isn't emitted, use
+     * [getLastSentTimes] to rank them.
+     */
+    fun observeRecentSenders(threadId: Long, limit: Int = MAX_SENDERS): Flow<List<String>> {
+        return threadDatabase.updateNotifications
+            .filter { it == threadId }
+            .onStart { emit(threadId) }
+            .map { refresh(threadId).mostRecentFirst(limit) }
+            .distinctUntilChangedBy { it.toSet() }
+            .flowOn(Dispatchers.Default)
+    }
+
+    /**
+     * The sent time of the latest message of each sender of the thread, as of the last emission
+     * of [observeRecentSenders] or [prefetch].
+     */
+    fun getLastSentTimes(threadId: Long): Map<String, Long> {
+        return senders[threadId]?.lastSentTimes.orEmpty()
+    }
+
+    private fun refresh(threadId: Long): ThreadSenders {
+        val cached = senders[threadId]
+        var updated = mmsSmsDatabase.getThreadSenders(threadId, cached ?: ThreadSenders.EMPTY)
+
+        if (cached != null && mmsSmsDatabase.getConversationCount(threadId) < updated.messageCount) {
+            updated = mmsSmsDatabase.getThreadSenders(threadId, ThreadSenders.EMPTY)
+        }
+
+        synchronized(senders) {
+            // Another refresh might have read further in the meantime
+            val current = senders[threadId]
+            if (current == null || current.lastSmsId <= updated.lastSmsId && current.lastMmsId <= updated.lastMmsId) {
+                senders.put(threadId, updated)
+            }
+        }
+
+        return updated
+    }
+
+    companion object {
+        private const val MAX_THREADS = 16
+        private const val MAX_SENDERS = 2_000
+    }
+}
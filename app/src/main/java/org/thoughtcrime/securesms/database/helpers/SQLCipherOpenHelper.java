@@ -4,6 +4,7 @@ import android.content.Context;
 import android.database.Cursor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteConnection;
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
@@ -99,18 +100,27 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV51                          = 72;
   private static final int lokiV52                          = 73;
   private static final int lokiV53                          = 74;
+  private static final int lokiV54                          = 75;
+  private static final int lokiV55                          = 76;
+  private static final int lokiV56                          = 77;
+  private static final int lokiV57                          = 78;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION         = lokiV53;
+  private static final int    DATABASE_VERSION         = lokiV57;
   private static final int    MIN_DATABASE_VERSION     = lokiV7;
   public static final String  DATABASE_NAME            = "session.db";
 
   private final Provider<Json> jsonProvider;
 
   public SQLCipherOpenHelper(@NonNull Context context, @NonNull DatabaseSecret databaseSecret, Provider<Json> jsonProvider) {
+    this(context, DATABASE_NAME, databaseSecret, jsonProvider);
+  }
+
+  @VisibleForTesting
+  public SQLCipherOpenHelper(@NonNull Context context, @NonNull String databaseName, @NonNull DatabaseSecret databaseSecret, Provider<Json> jsonProvider) {
     super(
       context,
-      DATABASE_NAME,
+      databaseName,
       databaseSecret.asString(),
       null,
       DATABASE_VERSION,
@@ -247,6 +257,9 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(MmsDatabase.ADD_IS_GROUP_UPDATE_COLUMN);
     db.execSQL(MmsDatabase.ADD_MESSAGE_CONTENT_COLUMN);
     db.execSQL(ThreadDatabase.ADD_SNIPPET_CONTENT_COLUMN);
+    executeStatements(db, ThreadDatabase.ADD_SNIPPET_SNAPSHOT_COLUMNS);
+    db.execSQL(AttachmentDatabase.ADD_THUMBNAIL_FAILED_COLUMN);
+    executeStatements(db, AttachmentDatabase.ADD_DATA_HASH_COLUMN);
 
     executeStatements(db, RecipientSettingsDatabase.Companion.getMIGRATION_CREATE_TABLE());
     ReactionDatabase.Companion.migrateToDropForeignConstraint(db);
@@ -258,6 +271,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
 
     db.execSQL(CommunityDatabase.MIGRATE_CREATE_TABLE);
     executeStatements(db, CommunityDatabase.Companion.getMIGRATE_DROP_OLD_TABLES());
+    executeStatements(db, LokiAPIDatabase.Companion.getMIGRATE_TO_SNODE_ROWS());
   }
 
   @Override
@@ -587,6 +601,22 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         MmsSmsDatabase.migrateLegacyCommunityAddresses2(db);
       }
 
+      if (oldVersion < lokiV54) {
+        executeStatements(db, ThreadDatabase.ADD_SNIPPET_SNAPSHOT_COLUMNS);
+      }
+
+      if (oldVersion < lokiV55) {
+        db.execSQL(AttachmentDatabase.ADD_THUMBNAIL_FAILED_COLUMN);
+      }
+
+      if (oldVersion < lokiV56) {
+        executeStatements(db, AttachmentDatabase.ADD_DATA_HASH_COLUMN);
+      }
+
+      if (oldVersion < lokiV57) {
+        executeStatements(db, LokiAPIDatabase.Companion.getMIGRATE_TO_SNODE_ROWS());
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
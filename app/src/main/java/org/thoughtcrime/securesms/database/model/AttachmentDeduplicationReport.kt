@@ -0,0 +1,13 @@
+package org.thoughtcrime.securesms.database.model
+
+/**
+ * The outcome of merging existing attachment data files with the same content.
+ */
+data class AttachmentDeduplicationReport(
+    val filesScanned: Int,
+    val filesRemoved: Int,
+    val bytesReclaimed: Long,
+) {
+    override fun toString(): String =
+        "scanned $filesScanned files, removed $filesRemoved, reclaimed $bytesReclaimed bytes"
+}
@@ -138,36 +138,13 @@ public abstract class MessageRecord extends DisplayRecord {
   @Override
   public CharSequence getDisplayBody(@NonNull Context context) {
     if (isGroupUpdateMessage()) {
-      UpdateMessageData updateMessageData = getGroupUpdateMessage();
       Address groupRecipient = DatabaseComponent.get(context).threadDatabase().getRecipientForThreadId(getThreadId());
-
-      if (updateMessageData == null || groupRecipient == null) {
-        return "";
-      }
-
-      SpannableString text = new SpannableString(UpdateMessageBuilder.buildGroupUpdateMessage(
-              context,
-              AddressKt.isGroupV2(groupRecipient) ? new AccountId(groupRecipient.toString()) : null, // accountId is only used for GroupsV2
-              updateMessageData,
-              MessagingModuleConfiguration.getShared().getConfigFactory(),
-              isOutgoing(),
-              getTimestamp(),
-              getExpireStarted())
-      );
-
-      if (updateMessageData.isGroupErrorQuitKind()) {
-        text.setSpan(new ForegroundColorSpan(ThemeUtil.getThemedColor(context, R.attr.danger)), 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-      } else if (updateMessageData.isGroupLeavingKind()) {
-        text.setSpan(new ForegroundColorSpan(ThemeUtil.getThemedColor(context, android.R.attr.textColorTertiary)), 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-      }
-
-      return text;
+      if (groupRecipient == null) return "";
+      return buildGroupUpdateDisplayBody(context, groupRecipient, getGroupUpdateMessage(), isOutgoing(), getTimestamp(), getExpireStarted());
     } else if (getMessageContent() instanceof DisappearingMessageUpdate) {
         Address rec = DatabaseComponent.get(context).threadDatabase().getRecipientForThreadId(getThreadId());
         if(rec == null) return "";
-        boolean isGroup = AddressKt.isGroupOrCommunity(rec);
-      return UpdateMessageBuilder.INSTANCE
-              .buildExpirationTimerMessage(context, ((DisappearingMessageUpdate) getMessageContent()).getExpiryMode(), isGroup, getIndividualRecipient().getAddress().toString(), isOutgoing());
+      return buildDisappearingMessageUpdateDisplayBody(context, rec, (DisappearingMessageUpdate) getMessageContent(), getIndividualRecipient().getAddress(), isOutgoing());
     } else if (isDataExtractionNotification()) {
       if (isScreenshotNotification()) return new SpannableString((UpdateMessageBuilder.INSTANCE.buildDataExtractionMessage(context, DataExtractionNotificationInfoMessage.Kind.SCREENSHOT, getIndividualRecipient().getAddress().toString())));
       else if (isMediaSavedNotification()) return new SpannableString((UpdateMessageBuilder.INSTANCE.buildDataExtractionMessage(context, DataExtractionNotificationInfoMessage.Kind.MEDIA_SAVED, getIndividualRecipient().getAddress().toString())));
@@ -188,6 +165,47 @@ public abstract class MessageRecord extends DisplayRecord {
     return new SpannableString(getBody());
   }
 
+  static @NonNull CharSequence buildGroupUpdateDisplayBody(@NonNull Context context,
+                                                          @NonNull Address groupRecipient,
+                                                          @Nullable UpdateMessageData updateMessageData,
+                                                          boolean isOutgoing,
+                                                          long timestamp,
+                                                          long expireStarted)
+  {
+    if (updateMessageData == null) {
+      return "";
+    }
+
+    SpannableString text = new SpannableString(UpdateMessageBuilder.buildGroupUpdateMessage(
+            context,
+            AddressKt.isGroupV2(groupRecipient) ? new AccountId(groupRecipient.toString()) : null, // accountId is only used for GroupsV2
+            updateMessageData,
+            MessagingModuleConfiguration.getShared().getConfigFactory(),
+            isOutgoing,
+            timestamp,
+            expireStarted)
+    );
+
+    if (updateMessageData.isGroupErrorQuitKind()) {
+      text.setSpan(new ForegroundColorSpan(ThemeUtil.getThemedColor(context, R.attr.danger)), 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+    } else if (updateMessageData.isGroupLeavingKind()) {
+      text.setSpan(new ForegroundColorSpan(ThemeUtil.getThemedColor(context, android.R.attr.textColorTertiary)), 0, text.length(), Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+    }
+
+    return text;
+  }
+
+  static @NonNull CharSequence buildDisappearingMessageUpdateDisplayBody(@NonNull Context context,
+                                                                        @NonNull Address threadRecipient,
+                                                                        @NonNull DisappearingMessageUpdate update,
+                                                                        @NonNull Address author,
+                                                                        boolean isOutgoing)
+  {
+    boolean isGroup = AddressKt.isGroupOrCommunity(threadRecipient);
+    return UpdateMessageBuilder.INSTANCE
+            .buildExpirationTimerMessage(context, update.getExpiryMode(), isGroup, author.toString(), isOutgoing);
+  }
+
   public boolean isGroupExpirationTimerUpdate() {
     if (!isGroupUpdateMessage()) {
       return false;
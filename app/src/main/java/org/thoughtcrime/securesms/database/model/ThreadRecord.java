@@ -33,6 +33,7 @@ import androidx.annotation.Nullable;
 import com.squareup.phrase.Phrase;
 
 import org.session.libsession.messaging.utilities.UpdateMessageData;
+import org.session.libsession.utilities.Address;
 import org.session.libsession.utilities.AddressKt;
 import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.recipients.Recipient;
@@ -54,28 +55,42 @@ import network.loki.messenger.R;
  */
 public class ThreadRecord extends DisplayRecord {
 
-  public @Nullable  final MessageRecord lastMessage;
   private           final long    count;
   private           final int     unreadCount;
   private           final int     unreadMentionCount;
   private           final long    lastSeen;
   private           final String invitingAdminId;
   private           final boolean isUnread;
+  private @Nullable final Address   lastMessageAuthor;
+  private @Nullable final Recipient lastMessageAuthorRecipient;
+  private           final long      lastMessageTimestamp;
+  private           final long      lastMessageExpireStarted;
 
   @NonNull
   private           final GroupThreadStatus groupThreadStatus;
 
+  /**
+   * @param lastMessageAuthor          the sender of the snippet message, or null if the thread has no message.
+   * @param lastMessageAuthorRecipient the resolved sender, only needed to prefix group snippets with their name.
+   */
   public ThreadRecord(@NonNull String body,
-                      @Nullable MessageRecord lastMessage, @NonNull Recipient recipient, long date, long count, int unreadCount,
+                      @NonNull Recipient recipient, long date, long count, int unreadCount,
                       int unreadMentionCount, long threadId, int deliveryReceiptCount, int status,
                       long snippetType,
                       long lastSeen, int readReceiptCount, String invitingAdminId,
                       @NonNull GroupThreadStatus groupThreadStatus,
                       @Nullable MessageContent messageContent,
-                      boolean isUnread)
+                      boolean isUnread,
+                      @Nullable Address lastMessageAuthor,
+                      @Nullable Recipient lastMessageAuthorRecipient,
+                      long lastMessageTimestamp,
+                      long lastMessageExpireStarted)
   {
     super(body, recipient, date, date, threadId, status, deliveryReceiptCount, snippetType, readReceiptCount, messageContent);
-    this.lastMessage        = lastMessage;
+    this.lastMessageAuthor          = lastMessageAuthor;
+    this.lastMessageAuthorRecipient = lastMessageAuthorRecipient;
+    this.lastMessageTimestamp       = lastMessageTimestamp;
+    this.lastMessageExpireStarted   = lastMessageExpireStarted;
     this.count              = count;
     this.unreadCount        = unreadCount;
     this.unreadMentionCount = unreadMentionCount;
@@ -101,13 +116,14 @@ public class ThreadRecord extends DisplayRecord {
                     .put(GROUP_NAME_KEY, getName())
                     .format()
                     .toString();
-        } else if (lastMessage == null){
+        } else if (!hasLastMessage()){
             // no need to display anything if there are no messages
             return "";
         }
         else if (isGroupUpdateMessage()) {
-            CharSequence body = lastMessage.getDisplayBody(context);
-            UpdateMessageData updatedMessage = lastMessage.getGroupUpdateMessage();
+            UpdateMessageData updatedMessage = UpdateMessageData.Companion.fromJSON(getBody());
+            CharSequence body = MessageRecord.buildGroupUpdateDisplayBody(context, getRecipient().getAddress(), updatedMessage,
+                    isOutgoing(), lastMessageTimestamp, lastMessageExpireStarted);
 
             // For group leaving and error quit messages, we will leave the message as formatted
             if (updatedMessage != null && (updatedMessage.isGroupLeavingKind() || updatedMessage.isGroupErrorQuitKind())) {
@@ -139,12 +155,8 @@ public class ThreadRecord extends DisplayRecord {
                     .format().toString();
         } else if (getMessageContent() instanceof DisappearingMessageUpdate) {
             // Use the same message as we would for displaying on the conversation screen.
-            // lastMessage shouldn't be null here, but we'll check just in case.
-            if (lastMessage != null) {
-                return lastMessage.getDisplayBody(context).toString();
-            } else {
-                return "";
-            }
+            return MessageRecord.buildDisappearingMessageUpdateDisplayBody(context, getRecipient().getAddress(),
+                    (DisappearingMessageUpdate) getMessageContent(), lastMessageAuthor, isOutgoing()).toString();
         }
         else if (MmsSmsColumns.Types.isMediaSavedExtraction(type)) {
             return Phrase.from(context, R.string.attachmentsMediaSaved)
@@ -158,7 +170,7 @@ public class ThreadRecord extends DisplayRecord {
 
         } else if (MmsSmsColumns.Types.isMessageRequestResponse(type)) {
             try {
-                if (lastMessage.getRecipient().getAddress().toString().equals(
+                if (getRecipient().getAddress().toString().equals(
                         TextSecurePreferences.getLocalNumber(context))) {
                     return UtilKt.getSubbedCharSequence(
                             context,
@@ -196,16 +208,16 @@ public class ThreadRecord extends DisplayRecord {
         // 1-1, note to self and control messages (we shouldn't have any in here, but leaving the
         // logic to be safe) do not need author details
         if (recipient.isLocalNumber() || !AddressKt.isGroupOrCommunity(recipient.getAddress()) ||
-                (lastMessage != null && lastMessage.isControlMessage())
+                (hasLastMessage() && isControlMessage())
         ) {
             return getBody();
         } else { // for groups (new, legacy, communities) show either 'You' or the contact's name
             String prefix = "";
-            if (lastMessage != null && lastMessage.isOutgoing()) {
+            if (hasLastMessage() && isOutgoing()) {
                 prefix = context.getString(R.string.you);
             }
-            else if(lastMessage != null){
-                prefix = RecipientNamesKt.displayName(lastMessage.getIndividualRecipient());
+            else if(lastMessageAuthorRecipient != null){
+                prefix = RecipientNamesKt.displayName(lastMessageAuthorRecipient);
             }
 
             return Phrase.from(context.getString(R.string.messageSnippetGroup))
@@ -217,9 +229,16 @@ public class ThreadRecord extends DisplayRecord {
 
     @Override
     public boolean isGroupUpdateMessage() {
-        return lastMessage != null && lastMessage.isGroupUpdateMessage();
+        return hasLastMessage() && super.isGroupUpdateMessage();
     }
 
+    public boolean hasLastMessage()      { return lastMessageAuthor != null; }
+
+    /**
+     * @return the sent timestamp of the snippet message, or 0 if the thread has no message.
+     */
+    public long getLastMessageTimestamp() { return lastMessageTimestamp; }
+
     public long getCount()               { return count; }
 
     public int getUnreadCount()          { return unreadCount; }
@@ -471,6 +471,18 @@ fun DebugMenu(
                 }
             }
 
+            // Runtime statistics
+            for (diagnostic in uiState.diagnostics) {
+                DebugCell(diagnostic.title) {
+                    for (line in diagnostic.lines) {
+                        Text(
+                            text = line,
+                            style = LocalType.current.small,
+                        )
+                    }
+                }
+            }
+
             // Group deprecation state
             DebugCell("Legacy Group Deprecation Overrides") {
                 DropDown(
@@ -751,6 +763,7 @@ fun PreviewDebugMenu() {
                 debugSubscriptionStatuses = setOf(DebugMenuViewModel.DebugSubscriptionStatus.AUTO_GOOGLE),
                 selectedDebugSubscriptionStatus = DebugMenuViewModel.DebugSubscriptionStatus.AUTO_GOOGLE,
                 debugProPlans = emptyList(),
+                diagnostics = emptyList(),
             ),
             sendCommand = {},
             onClose = {}
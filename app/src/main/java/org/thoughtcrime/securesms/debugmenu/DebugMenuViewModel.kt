@@ -25,15 +25,22 @@ import org.session.libsession.database.StorageProtocol
 import org.session.libsession.messaging.file_server.FileServerApi
 import org.session.libsession.messaging.groups.LegacyGroupDeprecationManager
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentState
+import org.session.libsession.snode.OnionRequestAPI
+import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.Address.Companion.toAddress
 import org.session.libsession.utilities.Environment
 import org.session.libsession.utilities.TextSecurePreferences
+import org.session.libsession.utilities.concurrent.SignalExecutors
 import org.session.libsession.utilities.upsertContact
+import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.hexEncodedPublicKey
+import org.thoughtcrime.securesms.attachments.AttachmentDeduplicator
+import org.thoughtcrime.securesms.configs.ConfigToDatabaseSync
 import org.thoughtcrime.securesms.crypto.KeyPairUtilities
 import org.thoughtcrime.securesms.database.AttachmentDatabase
+import org.thoughtcrime.securesms.database.RecipientRepository
 import org.thoughtcrime.securesms.database.RecipientSettingsDatabase
 import org.thoughtcrime.securesms.database.model.ThreadRecord
 import org.thoughtcrime.securesms.dependencies.ConfigFactory
@@ -59,6 +66,9 @@ class DebugMenuViewModel @Inject constructor(
     private val attachmentDatabase: AttachmentDatabase,
     private val conversationRepository: ConversationRepository,
     private val databaseInspector: DatabaseInspector,
+    private val attachmentDeduplicator: AttachmentDeduplicator,
+    private val configToDatabaseSync: ConfigToDatabaseSync,
+    private val recipientRepository: RecipientRepository,
     subscriptionManagers: Set<@JvmSuppressWildcards SubscriptionManager>,
 ) : ViewModel() {
     private val TAG = "DebugMenu"
@@ -95,12 +105,21 @@ class DebugMenuViewModel @Inject constructor(
             debugProPlans = subscriptionManagers.asSequence()
                 .flatMap { it.availablePlans.asSequence().map { plan -> DebugProPlan(it, plan) } }
                 .toList(),
+            diagnostics = emptyList(),
         )
     )
     val uiState: StateFlow<UIState>
         get() = _uiState
 
     init {
+        viewModelScope.launch {
+            while (true) {
+                val diagnostics = withContext(Dispatchers.Default) { collectDiagnostics() }
+                _uiState.update { it.copy(diagnostics = diagnostics) }
+                delay(DIAGNOSTICS_REFRESH_INTERVAL_MS)
+            }
+        }
+
         if (databaseInspector.available) {
             viewModelScope.launch {
                 databaseInspector.enabled.collectLatest { started ->
@@ -307,6 +326,61 @@ class DebugMenuViewModel @Inject constructor(
         }
     }
 
+    private fun collectDiagnostics(): List<Diagnostic> {
+        val http = HTTP.metrics
+        return listOf(
+            Diagnostic(
+                title = "HTTP",
+                lines = listOf(
+                    "In flight: ${http.inFlightCount}, queued: ${HTTP.queuedCallsCount}",
+                    "Queue delay: ${http.queueDelay.snapshot()}",
+                ) + http.hostLatencies().entries
+                    .sortedByDescending { it.value.count }
+                    .take(MAX_DIAGNOSTIC_HOSTS)
+                    .map { (host, latency) -> "$host: $latency" }
+            ),
+            Diagnostic(
+                title = "Thread pools",
+                lines = SignalExecutors.getPools().map { it.snapshot().toString() }
+            ),
+            Diagnostic(
+                title = "Onion paths",
+                lines = OnionRequestAPI.getPathStats().mapIndexed { index, (path, stats) ->
+                    "#$index via ${path.first().ip}: ${stats ?: "no requests yet"}"
+                } + listOf(
+                    "Spare paths: ${OnionRequestAPI.getSparePaths().size}/${OnionRequestAPI.sparePathCount}",
+                    "Recovery after path failure: ${OnionRequestAPI.pathRecoveryTime.snapshot()}",
+                )
+            ),
+            Diagnostic(
+                title = "Onion requests",
+                lines = listOf(OnionRequestAPI.requestMetrics.snapshot().toString())
+            ),
+            Diagnostic(
+                title = "Swarm snodes",
+                lines = SnodeAPI.swarmSelector.getPreferredSnodes().map { (publicKey, snode, stats) ->
+                    "${publicKey.take(8)}… via ${snode.ip}: ${stats ?: "no requests yet"}"
+                } + SnodeAPI.swarmSelector.getRecentSelections().asReversed().map { "Selected $it" }
+            ),
+            Diagnostic(
+                title = "User config snapshots",
+                lines = listOf("Rebuild time: ${configFactory.snapshotRebuildTime.snapshot()}")
+            ),
+            Diagnostic(
+                title = "Config to database sync",
+                lines = listOf("Last sync: ${configToDatabaseSync.lastSyncStats ?: "Not run yet"}")
+            ),
+            Diagnostic(
+                title = "Recipient cache",
+                lines = listOf(recipientRepository.recipientCacheStats.toString())
+            ),
+            Diagnostic(
+                title = "Attachment deduplication",
+                lines = listOf(attachmentDeduplicator.lastReport.value?.toString() ?: "Not run yet")
+            ),
+        )
+    }
+
     private fun showEnvironmentWarningDialog(environment: String) {
         if(environment == _uiState.value.currentEnvironment) return
         val env = Environment.entries.firstOrNull { it.label == environment } ?: return
@@ -410,8 +484,22 @@ class DebugMenuViewModel @Inject constructor(
         val debugSubscriptionStatuses: Set<DebugSubscriptionStatus>,
         val selectedDebugSubscriptionStatus: DebugSubscriptionStatus,
         val debugProPlans: List<DebugProPlan>,
+        val diagnostics: List<Diagnostic>,
+    )
+
+    /**
+     * A read-only block of runtime statistics shown in the debug menu.
+     */
+    data class Diagnostic(
+        val title: String,
+        val lines: List<String>,
     )
 
+    companion object {
+        private const val DIAGNOSTICS_REFRESH_INTERVAL_MS = 1000L
+        private const val MAX_DIAGNOSTIC_HOSTS = 8
+    }
+
     enum class DatabaseInspectorState {
         NOT_AVAILABLE,
         STARTED,
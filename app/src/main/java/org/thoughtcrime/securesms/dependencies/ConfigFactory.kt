@@ -29,12 +29,15 @@ import org.session.libsession.utilities.MutableUserConfigs
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsession.utilities.UserConfigType
 import org.session.libsession.utilities.UserConfigs
+import org.session.libsession.utilities.UserConfigsSnapshot
 import org.session.libsession.utilities.getGroup
 import org.session.libsignal.utilities.AccountId
+import org.session.libsignal.utilities.LatencyHistogram
 import org.thoughtcrime.securesms.configs.ConfigToDatabaseSync
 import org.thoughtcrime.securesms.database.ConfigDatabase
 import org.thoughtcrime.securesms.database.ConfigVariant
 import java.util.EnumSet
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -69,6 +72,16 @@ class ConfigFactory @Inject constructor(
     private val userConfigs = HashMap<AccountId, Pair<ReentrantReadWriteLock, UserConfigsImpl>>()
     private val groupConfigs = HashMap<AccountId, Pair<ReentrantReadWriteLock, GroupConfigsImpl>>()
 
+    // Only changed while holding the write lock of the user configs, so a snapshot built while
+    // holding the read lock matches the version read at the same time.
+    private val userConfigsVersion = AtomicLong()
+
+    @Volatile
+    private var userConfigsSnapshot: UserConfigsSnapshot? = null
+
+    /** Time taken to rebuild [userConfigsSnapshot] after a change. */
+    val snapshotRebuildTime = LatencyHistogram()
+
     private val _configUpdateNotifications = MutableSharedFlow<ConfigUpdateNotification>()
     override val configUpdateNotifications get() = _configUpdateNotifications
 
@@ -144,6 +157,22 @@ class ConfigFactory @Inject constructor(
         }
     }
 
+    override fun userConfigsSnapshot(): UserConfigsSnapshot {
+        userConfigsSnapshot?.takeIf { it.version == userConfigsVersion.get() }?.let { return it }
+
+        val (lock, configs) = ensureUserConfigsInitialized()
+        return lock.read {
+            val version = userConfigsVersion.get()
+            userConfigsSnapshot?.takeIf { it.version == version } ?: run {
+                val start = System.nanoTime()
+                UserConfigsSnapshot.of(version, configs).also {
+                    snapshotRebuildTime.record((System.nanoTime() - start) / 1_000_000)
+                    userConfigsSnapshot = it
+                }
+            }
+        }
+    }
+
     /**
      * Perform an operation on the user configs, and notify listeners if the configs were changed.
      *
@@ -152,7 +181,9 @@ class ConfigFactory @Inject constructor(
     private fun <T> doWithMutableUserConfigs(fromMerge: Boolean, cb: (UserConfigsImpl) -> Pair<T, Set<UserConfigType>>): T {
         val (lock, configs) = ensureUserConfigsInitialized()
         val (result, changed) = lock.write {
-            cb(configs)
+            cb(configs).also { (_, changed) ->
+                if (changed.isNotEmpty()) userConfigsVersion.incrementAndGet()
+            }
         }
 
         if (changed.isNotEmpty()) {
@@ -460,6 +491,8 @@ class ConfigFactory @Inject constructor(
     fun clearAll() {
         synchronized(userConfigs) {
             userConfigs.clear()
+            userConfigsSnapshot = null
+            userConfigsVersion.incrementAndGet()
         }
 
         synchronized(groupConfigs) {
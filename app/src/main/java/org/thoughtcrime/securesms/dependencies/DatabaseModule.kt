@@ -6,6 +6,7 @@ import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.android.qualifiers.ApplicationContext
 import dagger.hilt.components.SingletonComponent
+import kotlinx.coroutines.CoroutineScope
 import org.session.libsession.database.MessageDataProvider
 import org.thoughtcrime.securesms.attachments.DatabaseAttachmentProvider
 import org.thoughtcrime.securesms.crypto.AttachmentSecret
@@ -33,6 +34,7 @@ import org.thoughtcrime.securesms.database.SessionContactDatabase
 import org.thoughtcrime.securesms.database.SmsDatabase
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.migration.DatabaseMigrationManager
+import org.thoughtcrime.securesms.util.AppVisibilityManager
 import javax.inject.Provider
 import javax.inject.Singleton
 
@@ -95,7 +97,12 @@ object DatabaseModule {
 
     @Provides
     @Singleton
-    fun provideLokiApiDatabase(@ApplicationContext context: Context, openHelper: Provider<SQLCipherOpenHelper>) = LokiAPIDatabase(context,openHelper)
+    fun provideLokiApiDatabase(
+        @ApplicationContext context: Context,
+        openHelper: Provider<SQLCipherOpenHelper>,
+        @ManagerScope scope: CoroutineScope,
+        appVisibilityManager: AppVisibilityManager,
+    ) = LokiAPIDatabase(context, openHelper, scope, appVisibilityManager)
 
     @Provides
     @Singleton
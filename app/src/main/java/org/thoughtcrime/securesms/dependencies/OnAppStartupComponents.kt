@@ -4,9 +4,11 @@ import org.session.libsession.messaging.notifications.TokenFetcher
 import org.session.libsession.messaging.sending_receiving.pollers.OpenGroupPollerManager
 import org.session.libsession.messaging.sending_receiving.pollers.PollerManager
 import org.session.libsession.snode.SnodeClock
+import org.thoughtcrime.securesms.attachments.AttachmentDeduplicator
 import org.thoughtcrime.securesms.attachments.AvatarUploadManager
 import org.thoughtcrime.securesms.configs.ConfigToDatabaseSync
 import org.thoughtcrime.securesms.configs.ConfigUploader
+import org.thoughtcrime.securesms.database.LokiAPIDatabase
 import org.thoughtcrime.securesms.database.ThreadDatabase
 import org.thoughtcrime.securesms.disguise.AppDisguiseManager
 import org.thoughtcrime.securesms.emoji.EmojiIndexLoader
@@ -69,6 +71,8 @@ class OnAppStartupComponents private constructor(
         subscriptionCoordinator: SubscriptionCoordinator,
         avatarUploadManager: AvatarUploadManager,
         configToDatabaseSync: ConfigToDatabaseSync,
+        attachmentDeduplicator: AttachmentDeduplicator,
+        lokiAPIDatabase: LokiAPIDatabase,
         subscriptionManagers: Set<@JvmSuppressWildcards SubscriptionManager>,
     ): this(
         components = listOf(
@@ -101,6 +105,8 @@ class OnAppStartupComponents private constructor(
             subscriptionCoordinator,
             avatarUploadManager,
             configToDatabaseSync,
+            attachmentDeduplicator,
+            lokiAPIDatabase,
         ) + subscriptionManagers
     )
 }
@@ -21,7 +21,6 @@ import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveParameters
 import org.session.libsession.messaging.messages.Destination
-import org.session.libsession.snode.RawResponse
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.snode.SnodeClock
 import org.session.libsession.snode.model.BatchResponse
@@ -78,9 +77,6 @@ class GroupPoller @AssistedInject constructor(
     private class InternalPollState(
         // The nodes for current swarm
         var swarmNodes: Set<Snode> = emptySet(),
-
-        // The pool of snodes that are currently being used for polling
-        val pollPool: MutableSet<Snode> = hashSetOf()
     ) {
         fun shouldFetchSwarmNodes(): Boolean {
             return swarmNodes.isEmpty()
@@ -191,14 +187,8 @@ class GroupPoller @AssistedInject constructor(
                     "No swarm nodes found for $groupId"
                 }
 
-                // Fill the pool if it's empty
-                if (pollState.pollPool.isEmpty()) {
-                    pollState.pollPool.addAll(swarmNodes)
-                }
-
-                // Take a random snode from the pool
-                val snode = pollState.pollPool.random().also {
-                    pollState.pollPool.remove(it)
+                // Stick to the same swarm member for as long as it stays healthy
+                val snode = SnodeAPI.swarmSelector.select(groupId.hexString, swarmNodes).also {
                     currentSnode = it
                 }
 
@@ -276,8 +266,8 @@ class GroupPoller @AssistedInject constructor(
                             namespace = Namespace.GROUP_MESSAGES(),
                             maxSize = null,
                         ),
-                        responseType = Map::class.java
-                    )
+                        responseType = RetrieveMessageResponse::class.java
+                    ).messages.filterNotNull()
                 }
 
                 val groupConfigRetrieval = listOf(
@@ -427,14 +417,14 @@ class GroupPoller @AssistedInject constructor(
         )
     }
 
-    private fun handleMessages(body: RawResponse, snode: Snode) {
+    private fun handleMessages(retrieved: List<RetrieveMessageResponse.Message>, snode: Snode) {
         val messages = configFactoryProtocol.withGroupConfigs(groupId) {
-            SnodeAPI.parseRawMessagesResponse(
-                rawResponse = body,
+            SnodeAPI.parseRetrievedMessages(
+                messages = retrieved,
                 snode = snode,
                 publicKey = groupId.hexString,
                 decrypt = { data ->
-                    val (decrypted, sender) = it.groupKeys.decrypt(data) ?: return@parseRawMessagesResponse null
+                    val (decrypted, sender) = it.groupKeys.decrypt(data) ?: return@parseRetrievedMessages null
                     decrypted to AccountId(sender)
                 },
                 namespace = Namespace.GROUP_MESSAGES(),
@@ -33,8 +33,11 @@ import kotlinx.coroutines.withContext
 import network.loki.messenger.R
 import network.loki.messenger.databinding.ActivityPathBinding
 import org.session.libsession.snode.OnionRequestAPI
+import org.session.libsession.snode.utilities.HealthTracker
 import org.session.libsession.utilities.NonTranslatableStringConstants.APP_NAME
 import org.session.libsession.utilities.StringSubstitutionConstants.APP_NAME_KEY
+import org.session.libsession.utilities.StringSubstitutionConstants.COUNTRY_KEY
+import org.session.libsession.utilities.StringSubstitutionConstants.TIME_KEY
 import org.session.libsession.utilities.getColorFromAttr
 import org.session.libsignal.utilities.Snode
 import org.thoughtcrime.securesms.ScreenLockActionBarActivity
@@ -126,11 +129,13 @@ class PathActivity : ScreenLockActionBarActivity() {
 
         val paths = OnionRequestAPI.paths.value
         if (paths.isNotEmpty()) {
-            val path = paths.firstOrNull() ?: return finish()
+            // Show the path requests are currently favouring
+            val path = OnionRequestAPI.getPreferredPath() ?: paths.firstOrNull() ?: return finish()
+            val pathStats = OnionRequestAPI.getPathStats().firstOrNull { it.first == path }?.second
             val dotAnimationRepeatInterval = path.count().toLong() * 1000 + 1000
             val pathRows = path.mapIndexed { index, snode ->
                 val isGuardSnode = (OnionRequestAPI.guardSnodes.contains(snode))
-                getPathRow(snode, LineView.Location.Middle, index.toLong() * 1000 + 2000, dotAnimationRepeatInterval, isGuardSnode)
+                getPathRow(snode, LineView.Location.Middle, index.toLong() * 1000 + 2000, dotAnimationRepeatInterval, isGuardSnode, pathStats.takeIf { isGuardSnode })
             }
             val youRow = getPathRow(resources.getString(R.string.you), null, LineView.Location.Top, 1000, dotAnimationRepeatInterval)
             val destinationRow = getPathRow(resources.getString(R.string.onionRoutingPathDestination), null, LineView.Location.Bottom, path.count().toLong() * 1000 + 2000, dotAnimationRepeatInterval)
@@ -188,13 +193,20 @@ class PathActivity : ScreenLockActionBarActivity() {
         return mainContainer
     }
 
-    private fun getPathRow(snode: Snode, location: LineView.Location, dotAnimationStartDelay: Long, dotAnimationRepeatInterval: Long, isGuardSnode: Boolean): LinearLayout {
+    private fun getPathRow(snode: Snode, location: LineView.Location, dotAnimationStartDelay: Long, dotAnimationRepeatInterval: Long, isGuardSnode: Boolean, pathStats: HealthTracker.Stats?): LinearLayout {
         val title = if (isGuardSnode) resources.getString(R.string.onionRoutingPathEntryNode) else resources.getString(R.string.onionRoutingPathServiceNode)
-        val subtitle = if (IP2Country.isInitialized) {
+        val country = if (IP2Country.isInitialized) {
             IP2Country.shared.countryNamesCache[snode.ip] ?: resources.getString(R.string.resolving)
         } else {
             resources.getString(R.string.resolving)
         }
+        // Round trip latency of the whole path, shown on the entry node
+        val latencyMs = pathStats?.latencyMs?.toLong()
+        val subtitle = if (latencyMs != null) {
+            getSubbedString(R.string.onionRoutingPathLatency, COUNTRY_KEY to country, TIME_KEY to latencyMs.toString())
+        } else {
+            country
+        }
         return getPathRow(title, subtitle, location, dotAnimationStartDelay, dotAnimationRepeatInterval)
     }
     // endregion
@@ -136,7 +136,7 @@ public class LinkPreviewRepository {
     Call                  call       = client.newCall(new Request.Builder().url(imageUrl).build());
     CallRequestController controller = new CallRequestController(call);
 
-    SignalExecutors.UNBOUNDED.execute(() -> {
+    SignalExecutors.IO.execute(() -> {
       try {
         Response response = call.execute();
         if (!response.isSuccessful() || response.body() == null) {
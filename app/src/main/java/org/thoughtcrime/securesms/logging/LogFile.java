@@ -1,9 +1,9 @@
 package org.thoughtcrime.securesms.logging;
 
 import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
-import static org.session.libsignal.utilities.Util.SECURE_RANDOM;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.session.libsession.utilities.Conversions;
 import org.session.libsession.utilities.Util;
@@ -17,9 +17,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -29,8 +36,31 @@ import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Encrypted log file format.
+ *
+ * Block files start with {@link #BLOCK_MAGIC} followed by a sequence of frames. Each frame holds
+ * a whole batch of entries and is laid out as:
+ *
+ * <pre>
+ *   IV (16 bytes) | ciphertext length (4 bytes) | AES-CBC(uncompressed length (4 bytes) | deflate(entries))
+ * </pre>
+ *
+ * where every entry inside the deflated payload is a 4-byte length followed by its UTF-8 bytes.
+ * The frame header is in plaintext so frame boundaries can be walked without decrypting.
+ *
+ * Files without the magic are in the legacy format, where every entry is its own
+ * IV | length | ciphertext record. Those can still be read but are never written.
+ */
 class LogFile {
 
+  static final byte[] BLOCK_MAGIC = { 'S', 'L', 'O', 'G', 'B', 'L', 'K', '1' };
+
+  private static final int IV_LENGTH = 16;
+
+  // Upper bound on a frame's ciphertext or uncompressed payload, anything bigger is treated as corruption.
+  private static final int MAX_FRAME_PLAINTEXT_SIZE = 16 * 1024 * 1024;
+
   public static class GrowingBuffer {
 
     private byte[] buffer;
@@ -43,19 +73,52 @@ class LogFile {
     }
   }
 
+  /**
+   * Whether the given file was written in the block format. Empty or missing files count as
+   * block files, as that's what a new writer would produce.
+   */
+  static boolean isBlockFormat(@NonNull File file) throws IOException {
+    if (!file.exists() || file.length() == 0) return true;
+    if (file.length() < BLOCK_MAGIC.length) return false;
+
+    byte[] header = new byte[BLOCK_MAGIC.length];
+    try (FileInputStream in = new FileInputStream(file)) {
+      Util.readFully(in, header);
+    }
+    return Arrays.equals(header, BLOCK_MAGIC);
+  }
+
+  /**
+   * Writes entries in the block format. Entries are staged with {@link #addEntry(CharSequence)}
+   * and sealed into a single compressed, encrypted frame on {@link #flush()}.
+   *
+   * A writer owns its cipher, deflater and random source, so it never contends with other crypto
+   * users of the app. It's not thread safe and is expected to be driven by a single consumer.
+   */
   public static class Writer {
 
-    private final byte[]        ivBuffer         = new byte[16];
-    private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final byte[]        ivBuffer          = new byte[IV_LENGTH];
+    private final byte[]        intBuffer         = new byte[4];
+    private final GrowingBuffer compressedBuffer  = new GrowingBuffer();
+    private final GrowingBuffer ciphertextBuffer  = new GrowingBuffer();
+    private final FrameBuffer   pendingPlaintext  = new FrameBuffer();
 
-    private final byte[]               secret;
-    final File                 file;
+    final File                         file;
+    private final SecretKeySpec        key;
     private final Cipher               cipher;
+    private final Deflater             deflater;
+    private final SecureRandom         random;
     private final BufferedOutputStream outputStream;
 
+    private int pendingEntryCount;
+
     Writer(@NonNull byte[] secret, @NonNull File file, boolean append) throws IOException {
-      this.secret       = secret;
+      boolean writeMagic = !append || !file.exists() || file.length() == 0;
+
+      this.key          = new SecretKeySpec(secret, "AES");
       this.file         = file;
+      this.deflater     = new Deflater(Deflater.BEST_SPEED);
+      this.random       = new SecureRandom();
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, append));
 
       try {
@@ -63,58 +126,111 @@ class LogFile {
       } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
         throw new AssertionError(e);
       }
+
+      if (writeMagic) {
+        outputStream.write(BLOCK_MAGIC);
+      }
     }
 
-    void writeEntry(@NonNull String entry, boolean flush) throws IOException {
-      SECURE_RANDOM.nextBytes(ivBuffer);
+    /**
+     * Stages an entry for the next frame. Nothing reaches the disk until {@link #flush()}.
+     */
+    void addEntry(@NonNull CharSequence entry) {
+      pendingPlaintext.writeEntry(entry);
+      pendingEntryCount++;
+    }
 
-      byte[] plaintext = entry.getBytes();
-      try {
-        synchronized (CIPHER_LOCK) {
-          cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+    int getPendingEntryCount() {
+      return pendingEntryCount;
+    }
 
-          int cipherLength = cipher.getOutputSize(plaintext.length);
-          byte[] ciphertext = ciphertextBuffer.get(cipherLength);
-          cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
+    /**
+     * Compresses and encrypts all staged entries as one frame and flushes it to the file.
+     */
+    void flush() throws IOException {
+      if (pendingEntryCount > 0) {
+        writeFrame();
+      }
+      outputStream.flush();
+    }
 
-          outputStream.write(ivBuffer);
-          outputStream.write(Conversions.intToByteArray(cipherLength));
-          outputStream.write(ciphertext, 0, cipherLength);
+    private void writeFrame() throws IOException {
+      final int plaintextLength = pendingPlaintext.size();
+
+      deflater.reset();
+      deflater.setInput(pendingPlaintext.array(), 0, plaintextLength);
+      deflater.finish();
+
+      // Reserve the first 4 bytes for the uncompressed length
+      byte[] compressed       = compressedBuffer.get(4 + plaintextLength + plaintextLength / 1000 + 64);
+      int    compressedLength = 4;
+      while (!deflater.finished()) {
+        if (compressedLength == compressed.length) {
+          byte[] grown = compressedBuffer.get(compressed.length * 2);
+          System.arraycopy(compressed, 0, grown, 0, compressedLength);
+          compressed = grown;
         }
+        compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+      }
+      Conversions.intToByteArray(compressed, 0, plaintextLength);
+
+      random.nextBytes(ivBuffer);
+
+      try {
+        byte[] ciphertext;
+        int    cipherLength;
 
-        if (flush) {
-          outputStream.flush();
+        synchronized (CIPHER_LOCK) {
+          cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ivBuffer));
+
+          ciphertext   = ciphertextBuffer.get(cipher.getOutputSize(compressedLength));
+          cipherLength = cipher.doFinal(compressed, 0, compressedLength, ciphertext);
         }
+
+        Conversions.intToByteArray(intBuffer, 0, cipherLength);
+        outputStream.write(ivBuffer);
+        outputStream.write(intBuffer);
+        outputStream.write(ciphertext, 0, cipherLength);
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
+      } finally {
+        pendingPlaintext.reset();
+        pendingEntryCount = 0;
       }
     }
 
-    void flush() throws IOException {
-      outputStream.flush();
-    }
-
     long getLogSize() {
       return file.length();
     }
 
     void close() {
       Util.close(outputStream);
+      deflater.end();
     }
   }
 
+  /**
+   * Reads both block and legacy log files. Entries are returned one at a time by
+   * {@link #readEntryBytes()} regardless of the format; for block files whole frames can also be
+   * walked with {@link #skipFrame()} without decrypting them.
+   */
   static class Reader implements Closeable {
 
-    private final byte[]        ivBuffer         = new byte[16];
+    private final byte[]        ivBuffer         = new byte[IV_LENGTH];
     private final byte[]        intBuffer        = new byte[4];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final ArrayDeque<byte[]> frameEntries = new ArrayDeque<>();
 
-    private final byte[]              secret;
+    private final SecretKeySpec       key;
     private final Cipher              cipher;
+    private final Inflater            inflater;
     private final BufferedInputStream inputStream;
+    private final boolean             blockFormat;
 
     Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret      = secret;
+      this.key         = new SecretKeySpec(secret, "AES");
+      this.inflater    = new Inflater();
+      this.blockFormat = LogFile.isBlockFormat(file);
       // Limit the input stream to the file size to prevent endless reading in the case of a streaming file.
       this.inputStream = new BufferedInputStream(new LimitedInputStream(new FileInputStream(file), file.length()));
 
@@ -123,14 +239,132 @@ class LogFile {
       } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
         throw new AssertionError(e);
       }
+
+      if (blockFormat && file.length() > 0) {
+        Util.readFully(inputStream, new byte[BLOCK_MAGIC.length]);
+      }
+    }
+
+    boolean isBlockFormat() {
+      return blockFormat;
     }
 
     @Override
     public void close() throws IOException {
       Util.close(inputStream);
+      inflater.end();
     }
 
     byte[] readEntryBytes() throws IOException {
+      if (!blockFormat) {
+        return readLegacyEntryBytes();
+      }
+
+      while (frameEntries.isEmpty()) {
+        if (!readFrame()) return null;
+      }
+
+      return frameEntries.pollFirst();
+    }
+
+    /**
+     * Skips over the next frame without decrypting it. Entries already decoded from the current
+     * frame are discarded.
+     *
+     * @return false if there are no more complete frames.
+     */
+    boolean skipFrame() throws IOException {
+      if (!blockFormat) throw new IllegalStateException("Legacy log files have no frames");
+
+      frameEntries.clear();
+
+      int length = readFrameHeader();
+      if (length < 0) return false;
+
+      long remaining = length;
+      while (remaining > 0) {
+        long skipped = inputStream.skip(remaining);
+        if (skipped <= 0) return false;
+        remaining -= skipped;
+      }
+      return true;
+    }
+
+    /**
+     * Reads the IV and ciphertext length of the next frame into {@link #ivBuffer}.
+     *
+     * @return the ciphertext length, or -1 if there's no complete header left.
+     */
+    private int readFrameHeader() throws IOException {
+      try {
+        Util.readFully(inputStream, ivBuffer);
+        Util.readFully(inputStream, intBuffer);
+      } catch (EOFException e) {
+        return -1;
+      }
+
+      int length = Conversions.byteArrayToInt(intBuffer);
+      return length > 0 && length <= MAX_FRAME_PLAINTEXT_SIZE ? length : -1;
+    }
+
+    private boolean readFrame() throws IOException {
+      int length = readFrameHeader();
+      if (length < 0) return false;
+
+      byte[] ciphertext = ciphertextBuffer.get(length);
+      try {
+        Util.readFully(inputStream, ciphertext, length);
+      } catch (EOFException e) {
+        // Incomplete frame – likely the process died while writing it.
+        return false;
+      }
+
+      byte[] compressed;
+      try {
+        synchronized (CIPHER_LOCK) {
+          cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBuffer));
+          compressed = cipher.doFinal(ciphertext, 0, length);
+        }
+      } catch (BadPaddingException e) {
+        return false;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException e) {
+        throw new AssertionError(e);
+      }
+
+      if (compressed.length < 4) return false;
+
+      int plaintextLength = Conversions.byteArrayToInt(compressed, 0);
+      if (plaintextLength < 0 || plaintextLength > MAX_FRAME_PLAINTEXT_SIZE) return false;
+
+      byte[] plaintext = new byte[plaintextLength];
+      try {
+        inflater.reset();
+        inflater.setInput(compressed, 4, compressed.length - 4);
+        int inflated = 0;
+        while (inflated < plaintextLength && !inflater.finished()) {
+          int n = inflater.inflate(plaintext, inflated, plaintextLength - inflated);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+          inflated += n;
+        }
+        if (inflated != plaintextLength) return false;
+      } catch (DataFormatException e) {
+        return false;
+      }
+
+      int offset = 0;
+      while (offset + 4 <= plaintextLength) {
+        int entryLength = Conversions.byteArrayToInt(plaintext, offset);
+        offset += 4;
+        if (entryLength < 0 || offset + entryLength > plaintextLength) break;
+        frameEntries.addLast(Arrays.copyOfRange(plaintext, offset, offset + entryLength));
+        offset += entryLength;
+      }
+
+      return true;
+    }
+
+    @Nullable
+    private byte[] readLegacyEntryBytes() throws IOException {
       try {
         // Read the IV and length
         Util.readFully(inputStream, ivBuffer);
@@ -152,9 +386,8 @@ class LogFile {
 
       try {
         synchronized (CIPHER_LOCK) {
-          cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
-          byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
-          return plaintext;
+          cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBuffer));
+          return cipher.doFinal(ciphertext, 0, length);
         }
       } catch (BadPaddingException e) {
         // Bad padding likely indicates a corrupted or incomplete entry.
@@ -166,4 +399,39 @@ class LogFile {
       }
     }
   }
+
+  /**
+   * A growable byte array that length-prefixes each UTF-8 encoded entry written to it.
+   */
+  private static class FrameBuffer {
+
+    private byte[] buffer = new byte[16 * 1024];
+    private int    size;
+
+    void writeEntry(@NonNull CharSequence entry) {
+      byte[] bytes = entry.toString().getBytes(StandardCharsets.UTF_8);
+      ensureCapacity(size + 4 + bytes.length);
+      Conversions.intToByteArray(buffer, size, bytes.length);
+      System.arraycopy(bytes, 0, buffer, size + 4, bytes.length);
+      size += 4 + bytes.length;
+    }
+
+    byte[] array() {
+      return buffer;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (buffer.length < capacity) {
+        buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+      }
+    }
+  }
 }
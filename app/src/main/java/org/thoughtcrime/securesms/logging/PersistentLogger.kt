@@ -66,9 +66,19 @@ class PersistentLogger @Inject constructor(
                         if (logWriter == null) {
                             val currentFile = File(logFolder, CURRENT_LOG_FILE_NAME)
 
+                            // A current file in the legacy per-entry format can't be appended
+                            // to, so retire it as a permanent log and start a block file.
+                            if (!LogFile.isBlockFormat(currentFile)) {
+                                rotateAndTrimLogFiles(currentFile)
+                            }
+
                             // If current file exist, we need to make sure we can decrypt it
-                            // as this file can come from a previous session.
-                            val append = if (currentFile.exists() && currentFile.length() > 0) {
+                            // as this file can come from a previous session. A legacy file that
+                            // couldn't be retired above is overwritten rather than appended to,
+                            // as frames following its entries could never be read back.
+                            val append = if (!LogFile.isBlockFormat(currentFile)) {
+                                false
+                            } else if (currentFile.exists() && currentFile.length() > 0) {
                                 LogFile.Reader(secret, currentFile).use {
                                     it.readEntryBytes() != null
                                 }
@@ -149,18 +159,20 @@ class PersistentLogger @Inject constructor(
                 sb.append('\n')
                 sb.append(it.stackTraceToString())
             }
-            writer.writeEntry(sb.toString(), false)
+            writer.addEntry(sb)
         }
 
+        // The whole batch goes out as one compressed, encrypted frame
         writer.flush()
     }
 
     private suspend fun ReceiveChannel<LogEntry>.receiveBulkLogs(out: MutableList<LogEntry>) {
         out += receive()
 
+        // Gather what arrives within a short window so a burst is sealed as a single frame
         withTimeoutOrNull(500.milliseconds) {
-            repeat(15) {
-                out += receiveCatching().getOrNull() ?: return@repeat
+            while (out.size < MAX_LOG_ENTRIES_PER_FRAME) {
+                out += tryReceive().getOrNull() ?: receive()
             }
         }
     }
@@ -333,6 +345,9 @@ class PersistentLogger @Inject constructor(
         // Maximum number of log files to keep
         private const val MAX_LOG_FILE_COUNT = 10
 
+        // Maximum number of entries compressed and encrypted together as one frame
+        private const val MAX_LOG_ENTRIES_PER_FRAME = 512
+
         private const val MAX_LOG_ENTRIES_POOL_SIZE = 64
         private const val MAX_PENDING_LOG_ENTRIES = 65536
     }
@@ -179,6 +179,7 @@ fun MediaOverviewScreen(
                             content = content.value?.mediaContent,
                             selectedItemIDs = selectedItems,
                             onItemClicked = viewModel::onItemClicked,
+                            onThumbnailsComposed = viewModel::onThumbnailsComposed,
                             nestedScrollConnection = appBarScrollBehavior.nestedScrollConnection,
                             onItemLongClicked = if(canLongPress){{
                                     haptics.performHapticFeedback(HapticFeedbackType.LongPress)
@@ -37,6 +37,7 @@ import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.isGroupOrCommunity
 import org.session.libsession.utilities.recipients.displayName
 import org.thoughtcrime.securesms.MediaPreviewActivity
+import org.thoughtcrime.securesms.database.AttachmentDatabase
 import org.thoughtcrime.securesms.database.DatabaseContentProviders
 import org.thoughtcrime.securesms.database.MediaDatabase
 import org.thoughtcrime.securesms.database.MediaDatabase.MediaRecord
@@ -47,6 +48,7 @@ import org.thoughtcrime.securesms.mms.Slide
 import org.thoughtcrime.securesms.util.AttachmentUtil
 import org.thoughtcrime.securesms.util.DateUtils
 import org.thoughtcrime.securesms.util.MediaUtil
+import org.thoughtcrime.securesms.util.PriorityTaskExecutor
 import org.thoughtcrime.securesms.util.SaveAttachmentTask
 import org.thoughtcrime.securesms.util.asSequence
 
@@ -56,6 +58,7 @@ class MediaOverviewViewModel @AssistedInject constructor(
     private val application: Application,
     private val threadDatabase: ThreadDatabase,
     private val mediaDatabase: MediaDatabase,
+    private val attachmentDatabase: AttachmentDatabase,
     private val dateUtils: DateUtils,
     private val recipientRepository: RecipientRepository,
 ) : AndroidViewModel(application) {
@@ -176,6 +179,19 @@ class MediaOverviewViewModel @AssistedInject constructor(
             }
     }
 
+    /**
+     * Called for the thumbnails about to be displayed, so that the missing ones are generated
+     * ahead of the rest.
+     */
+    fun onThumbnailsComposed(items: List<MediaOverviewItem>) {
+        for (item in items) {
+            val attachment = item.mediaRecord.attachment
+            if (!attachment.hasThumbnail() && MediaUtil.isVideoType(attachment.contentType)) {
+                attachmentDatabase.generateThumbnail(attachment.attachmentId, PriorityTaskExecutor.Priority.PREFETCH)
+            }
+        }
+    }
+
     fun onItemClicked(item: MediaOverviewItem) {
         if (inSelectionMode.value) {
             if (item.slide.hasDocument()) {
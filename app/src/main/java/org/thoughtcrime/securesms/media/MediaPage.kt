@@ -21,6 +21,8 @@ import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.shape.CircleShape
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.remember
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
@@ -53,6 +55,7 @@ fun MediaPage(
     selectedItemIDs: Set<Long>,
     onItemClicked: (MediaOverviewItem) -> Unit,
     onItemLongClicked: ((Long) -> Unit)?,
+    onThumbnailsComposed: (List<MediaOverviewItem>) -> Unit = {},
 ) {
     val columnCount = LocalContext.current.resources.getInteger(R.integer.media_overview_cols)
 
@@ -95,6 +98,7 @@ fun MediaPage(
                                 rowIndex = rowIndex,
                                 onItemClicked = onItemClicked,
                                 onItemLongClicked = onItemLongClicked,
+                                onThumbnailsComposed = onThumbnailsComposed,
                                 selectedItemIDs = selectedItemIDs
                             )
                         }
@@ -119,8 +123,18 @@ private fun ThumbnailRow(
     rowIndex: Int,
     onItemClicked: (MediaOverviewItem) -> Unit,
     onItemLongClicked: ((Long) -> Unit)?,
+    onThumbnailsComposed: (List<MediaOverviewItem>) -> Unit,
     selectedItemIDs: Set<Long>
 ) {
+    // Rows are composed slightly before they scroll into view
+    val rowItems = remember(thumbnails, rowIndex, columnCount) {
+        thumbnails.subList(
+            (rowIndex * columnCount).coerceAtMost(thumbnails.size),
+            ((rowIndex + 1) * columnCount).coerceAtMost(thumbnails.size)
+        )
+    }
+    LaunchedEffect(rowItems) { onThumbnailsComposed(rowItems) }
+
     Row(horizontalArrangement = Arrangement.spacedBy(MEDIA_SPACING)) {
         repeat(columnCount) { columnIndex ->
             val item = thumbnails.getOrNull(rowIndex * columnCount + columnIndex)
@@ -70,6 +70,15 @@ public class MediaPickerItemAdapter extends RecyclerView.Adapter<MediaPickerItem
   }
 
   void setMedia(@NonNull List<Media> media) {
+    int oldSize = this.media.size();
+
+    // Media is loaded a page at a time, so most updates only add a page at the end
+    if (oldSize > 0 && media.size() > oldSize && media.get(0).equals(this.media.get(0)) && media.get(oldSize - 1).equals(this.media.get(oldSize - 1))) {
+      this.media.addAll(media.subList(oldSize, media.size()));
+      notifyItemRangeInserted(oldSize, media.size() - oldSize);
+      return;
+    }
+
     this.media.clear();
     this.media.addAll(media);
     notifyDataSetChanged();
@@ -41,6 +41,8 @@ public class MediaPickerItemFragment extends Fragment implements MediaPickerItem
   private static final String KEY_FOLDER_TITLE  = "folder_title";
   private static final String KEY_MAX_SELECTION = "max_selection";
 
+  private static final int PRELOAD_ROWS = 4;
+
   private String                 bucketId;
   private String                 folderTitle;
   private int                    maxSelection;
@@ -110,7 +112,16 @@ public class MediaPickerItemFragment extends Fragment implements MediaPickerItem
       onMediaSelectionChanged(new ArrayList<>(viewModel.getSelectedMedia().getValue()));
     }
 
-    viewModel.getMediaInBucket(requireContext(), bucketId).observe(getViewLifecycleOwner(), adapter::setMedia);
+    viewModel.getMediaInBucket(requireContext(), bucketId, getPageSize()).observe(getViewLifecycleOwner(), adapter::setMedia);
+
+    imageList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+      @Override
+      public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - layoutManager.getSpanCount() * PRELOAD_ROWS) {
+          viewModel.loadMoreMedia();
+        }
+      }
+    });
 
     initMediaObserver(viewModel);
   }
@@ -193,9 +204,26 @@ public class MediaPickerItemFragment extends Fragment implements MediaPickerItem
   }
 
   private int getScreenWidth() {
+    return getScreenSize().x;
+  }
+
+  private Point getScreenSize() {
     Point size = new Point();
     requireActivity().getWindowManager().getDefaultDisplay().getSize(size);
-    return size.x;
+    return size;
+  }
+
+  /**
+   * Enough media items to fill the grid twice, so that the next page is there by the time it's
+   * scrolled to.
+   */
+  private int getPageSize() {
+    Point size     = getScreenSize();
+    int   itemSize = getResources().getDimensionPixelSize(R.dimen.media_picker_item_width);
+    int   columns  = Math.max(1, size.x / itemSize);
+    int   rows     = size.y / itemSize + 1;
+
+    return columns * rows * 2;
   }
 
   public interface Controller {
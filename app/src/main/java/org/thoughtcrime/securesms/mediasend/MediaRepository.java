@@ -2,9 +2,9 @@ package org.thoughtcrime.securesms.mediasend;
 
 import android.content.ContentUris;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
 import android.provider.OpenableColumns;
@@ -12,7 +12,9 @@ import android.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
+import androidx.collection.LruCache;
 import com.annimon.stream.Stream;
+import org.session.libsession.utilities.concurrent.SignalExecutors;
 import org.session.libsignal.utilities.guava.Optional;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.MediaUtil;
@@ -20,7 +22,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import network.loki.messenger.R;
@@ -30,18 +31,49 @@ import network.loki.messenger.R;
  */
 class MediaRepository {
 
+    // The folders are kept between picker openings, until MediaStore reports a change
+    private static final Object FOLDERS_LOCK = new Object();
+    private static @Nullable List<MediaFolder> cachedFolders;
+    private static @Nullable ContentObserver foldersObserver;
+    private static int foldersGeneration;
+
+    // Selected media whose size or dimensions had to be resolved, so it's only done once per item
+    private static final LruCache<Uri, Media> POPULATED_MEDIA = new LruCache<>(MediaSendViewModel.MAX_SELECTED_FILES * 2);
+
     /**
      * Retrieves a list of folders that contain media.
      */
     void getFolders(@NonNull Context context, @NonNull Callback<List<MediaFolder>> callback) {
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> callback.onComplete(getFolders(context)));
+        List<MediaFolder> folders;
+        synchronized (FOLDERS_LOCK) {
+            folders = cachedFolders;
+        }
+
+        if (folders != null) {
+            callback.onComplete(folders);
+            return;
+        }
+
+        SignalExecutors.IO.execute(() -> callback.onComplete(getCachedFolders(context.getApplicationContext())));
+    }
+
+    /**
+     * Opens the media items (images and videos) that are present in the specified bucket, to be
+     * read a page at a time with {@link #getNextMediaPage}.
+     */
+    @NonNull PagedMediaSource openMediaInBucket(@NonNull Context context, @NonNull String bucketId) {
+        return new PagedMediaSource(context.getApplicationContext(), bucketId);
     }
 
     /**
-     * Retrieves a list of media items (images and videos) that are present int he specified bucket.
+     * Retrieves the next page of media items of the source, newest first.
      */
-    void getMediaInBucket(@NonNull Context context, @NonNull String bucketId, @NonNull Callback<List<Media>> callback) {
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> callback.onComplete(getMediaInBucket(context, bucketId)));
+    void getNextMediaPage(@NonNull PagedMediaSource source, int pageSize, @NonNull Callback<List<Media>> callback) {
+        SignalExecutors.IO.execute(() -> callback.onComplete(source.loadNextPage(pageSize)));
+    }
+
+    void closeMediaSource(@NonNull PagedMediaSource source) {
+        SignalExecutors.IO.execute(source::close);
     }
 
     /**
@@ -54,7 +86,43 @@ class MediaRepository {
             return;
         }
 
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> callback.onComplete(getPopulatedMedia(context, media)));
+        SignalExecutors.IO.execute(() -> callback.onComplete(getPopulatedMedia(context, media)));
+    }
+
+    @WorkerThread
+    private @NonNull List<MediaFolder> getCachedFolders(@NonNull Context context) {
+        int generation;
+
+        synchronized (FOLDERS_LOCK) {
+            if (cachedFolders != null) return cachedFolders;
+
+            if (foldersObserver == null) {
+                foldersObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        synchronized (FOLDERS_LOCK) {
+                            cachedFolders = null;
+                            foldersGeneration++;
+                        }
+                    }
+                };
+                context.getContentResolver().registerContentObserver(Images.Media.EXTERNAL_CONTENT_URI, true, foldersObserver);
+                context.getContentResolver().registerContentObserver(Video.Media.EXTERNAL_CONTENT_URI, true, foldersObserver);
+            }
+
+            generation = foldersGeneration;
+        }
+
+        List<MediaFolder> folders = Collections.unmodifiableList(getFolders(context));
+
+        synchronized (FOLDERS_LOCK) {
+            // Don't keep folders that were read while the media was changing
+            if (generation == foldersGeneration) {
+                cachedFolders = folders;
+            }
+        }
+
+        return folders;
     }
 
     @WorkerThread
@@ -151,89 +219,27 @@ class MediaRepository {
         return new FolderResult(globalThumbnail, thumbnailTimestamp, folders);
     }
     @WorkerThread
-    private @NonNull List<Media> getMediaInBucket(@NonNull Context context, @NonNull String bucketId) {
-        List<Media> images = getMediaInBucket(context, bucketId, Images.Media.EXTERNAL_CONTENT_URI, true);
-        List<Media> videos = getMediaInBucket(context, bucketId, Video.Media.EXTERNAL_CONTENT_URI, false);
-        List<Media> media  = new ArrayList<>(images.size() + videos.size());
-
-        media.addAll(images);
-        media.addAll(videos);
-        Collections.sort(media, (o1, o2) -> Long.compare(o2.getDate(), o1.getDate()));
-
-        return media;
-    }
-    @WorkerThread
-    private @NonNull List<Media> getMediaInBucket(@NonNull Context context, @NonNull String bucketId, @NonNull Uri contentUri, boolean isImage) {
-        List<Media> media         = new LinkedList<>();
-        String      selection     = Images.Media.BUCKET_ID + " = ?";
-        String[]    selectionArgs = new String[] { bucketId};
-        String      sortBy        = Images.Media.DATE_MODIFIED + " DESC";
-
-        String[] projection;
-
-        if (isImage) {
-            projection = new String[]{Images.Media._ID, Images.Media.MIME_TYPE, Images.Media.DATE_MODIFIED, Images.Media.ORIENTATION, Images.Media.WIDTH, Images.Media.HEIGHT, Images.Media.SIZE, Images.Media.DISPLAY_NAME};
-        } else {
-            projection = new String[]{Images.Media._ID, Images.Media.MIME_TYPE, Images.Media.DATE_MODIFIED, Images.Media.WIDTH, Images.Media.HEIGHT, Images.Media.SIZE, Images.Media.DISPLAY_NAME};
-        }
-
-        if (Media.ALL_MEDIA_BUCKET_ID.equals(bucketId)) {
-            selection     = null;
-            selectionArgs = null;
-        }
-
-        try (Cursor cursor = context.getContentResolver().query(contentUri, projection, selection, selectionArgs, sortBy)) {
-            while (cursor != null && cursor.moveToNext()) {
-                long   rowId       = cursor.getLong(cursor.getColumnIndexOrThrow(projection[0]));
-                Uri    uri         = ContentUris.withAppendedId(contentUri, rowId);
-                String mimetype    = cursor.getString(cursor.getColumnIndexOrThrow(Images.Media.MIME_TYPE));
-                long   date        = cursor.getLong(cursor.getColumnIndexOrThrow(Images.Media.DATE_MODIFIED));
-                int    orientation = isImage ? cursor.getInt(cursor.getColumnIndexOrThrow(Images.Media.ORIENTATION)) : 0;
-                int    width       = cursor.getInt(cursor.getColumnIndexOrThrow(getWidthColumn(orientation)));
-                int    height      = cursor.getInt(cursor.getColumnIndexOrThrow(getHeightColumn(orientation)));
-                long   size        = cursor.getLong(cursor.getColumnIndexOrThrow(Images.Media.SIZE));
-                String filename    = cursor.getString(cursor.getColumnIndexOrThrow(Images.Media.DISPLAY_NAME));
-
-                // skip media if the filename or mimetype is null here
-                if (filename == null || mimetype == null) {
-                    continue;
-                }
-
-                media.add(new Media(uri, filename, mimetype, date, width, height, size, bucketId, null));
-            }
-        }
-
-        return media;
-    }
-    @WorkerThread
     private List<Media> getPopulatedMedia(@NonNull Context context, @NonNull List<Media> media) {
         return Stream.of(media).map(m -> {
             try {
                 if (isPopulated(m)) {
                     return m;
-                } else if (PartAuthority.isLocalUri(m.getUri())) {
-                    return getLocallyPopulatedMedia(context, m);
-                } else {
-                    return getContentResolverPopulatedMedia(context, m);
                 }
+
+                Media populated = POPULATED_MEDIA.get(m.getUri());
+                if (populated == null) {
+                    populated = PartAuthority.isLocalUri(m.getUri()) ? getLocallyPopulatedMedia(context, m)
+                                                                      : getContentResolverPopulatedMedia(context, m);
+                    POPULATED_MEDIA.put(m.getUri(), populated);
+                }
+
+                return new Media(m.getUri(), m.getFilename(), m.getMimeType(), m.getDate(), populated.getWidth(), populated.getHeight(), populated.getSize(), m.getBucketId(), m.getCaption());
             } catch (IOException e) {
                 return m;
             }
         }).toList();
     }
 
-    @SuppressWarnings("SuspiciousNameCombination")
-    private String getWidthColumn(int orientation) {
-        if (orientation == 0 || orientation == 180) return Images.Media.WIDTH;
-        else                                        return Images.Media.HEIGHT;
-    }
-
-    @SuppressWarnings("SuspiciousNameCombination")
-    private String getHeightColumn(int orientation) {
-        if (orientation == 0 || orientation == 180) return Images.Media.HEIGHT;
-        else                                        return Images.Media.WIDTH;
-    }
-
     private boolean isPopulated(@NonNull Media media) {
         return media.getWidth() > 0 && media.getHeight() > 0 && media.getSize() > 0;
     }
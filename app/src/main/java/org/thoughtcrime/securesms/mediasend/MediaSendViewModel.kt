@@ -19,6 +19,7 @@ import org.thoughtcrime.securesms.pro.ProStatusManager
 import org.thoughtcrime.securesms.providers.BlobUtils
 import org.thoughtcrime.securesms.util.MediaUtil
 import org.thoughtcrime.securesms.util.SingleLiveEvent
+import java.util.Collections
 import java.util.LinkedList
 import javax.inject.Inject
 
@@ -48,6 +49,13 @@ internal class MediaSendViewModel @Inject constructor(
 
     private val mediaConstraints: MediaConstraints = MediaConstraints.getPushMediaConstraints()
     private val repository: MediaRepository = MediaRepository()
+    private var mediaSource: PagedMediaSource? = null
+    private var mediaPageSize: Int = 0
+    private var isLoadingMediaPage: Boolean = false
+
+    // The pages of the bucket read so far, appended in place so that each page only costs its own size.
+    // Observers get a read only view of it and copy what they keep.
+    private val loadedBucketMedia = ArrayList<Media>()
 
     var body: CharSequence
         private set
@@ -183,6 +191,7 @@ internal class MediaSendViewModel @Inject constructor(
 
     fun onFolderSelected(bucketId: String) {
         this.bucketId.value = bucketId
+        loadedBucketMedia.clear()
         bucketMedia.value =
             emptyList()
     }
@@ -272,12 +281,40 @@ internal class MediaSendViewModel @Inject constructor(
         return selectedMedia
     }
 
-    fun getMediaInBucket(context: Context, bucketId: String): LiveData<List<Media>> {
-        repository.getMediaInBucket(context, bucketId,
-            { value: List<Media> -> bucketMedia.postValue(value) })
+    /**
+     * The media of the bucket, read [pageSize] items at a time: the first page straight away and
+     * the next ones as [loadMoreMedia] is called.
+     */
+    fun getMediaInBucket(context: Context, bucketId: String, pageSize: Int): LiveData<List<Media>> {
+        mediaSource?.let { repository.closeMediaSource(it) }
+        mediaSource = repository.openMediaInBucket(context, bucketId)
+        mediaPageSize = pageSize
+        isLoadingMediaPage = false
+        loadedBucketMedia.clear()
+        bucketMedia.value = emptyList()
+        loadMoreMedia()
         return bucketMedia
     }
 
+    fun loadMoreMedia() {
+        val source = mediaSource ?: return
+        if (isLoadingMediaPage || source.isExhausted) return
+
+        isLoadingMediaPage = true
+        repository.getNextMediaPage(source, mediaPageSize,
+            { page: List<Media> ->
+                runOnMain(
+                    {
+                        // The bucket may have changed while the page was being read
+                        if (source === mediaSource) {
+                            isLoadingMediaPage = false
+                            loadedBucketMedia.addAll(page)
+                            bucketMedia.value = Collections.unmodifiableList(loadedBucketMedia)
+                        }
+                    })
+            })
+    }
+
     fun getFolders(context: Context): LiveData<List<MediaFolder>> {
         repository.getFolders(context,
             { value: List<MediaFolder> -> folders.postValue(value) })
@@ -331,6 +368,9 @@ internal class MediaSendViewModel @Inject constructor(
     }
 
     override fun onCleared() {
+        mediaSource?.let { repository.closeMediaSource(it) }
+        mediaSource = null
+
         if (!sentMedia) {
             Stream.of(selectedMediaOrDefault)
                 .map({ obj: Media -> obj.uri })
@@ -0,0 +1,179 @@
+package org.thoughtcrime.securesms.mediasend;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Video;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the media items (images and videos) of a bucket from MediaStore a page at a time, newest
+ * first, so that a bucket with many items can be shown before all of them have been read.
+ *
+ * The images and videos cursors stay open between pages and are merged by date as pages are read.
+ */
+class PagedMediaSource implements Closeable {
+
+  private final Context context;
+  private final String  bucketId;
+
+  private MediaCursor images;
+  private MediaCursor videos;
+  private boolean     exhausted;
+  private boolean     closed;
+
+  PagedMediaSource(@NonNull Context context, @NonNull String bucketId) {
+    this.context  = context;
+    this.bucketId = bucketId;
+  }
+
+  /**
+   * Reads the next {@code pageSize} media items, or fewer once the end of the bucket is reached.
+   */
+  @WorkerThread
+  synchronized @NonNull List<Media> loadNextPage(int pageSize) {
+    List<Media> page = new ArrayList<>(pageSize);
+    if (closed || exhausted) return page;
+
+    if (images == null) {
+      images = new MediaCursor(context, bucketId, Images.Media.EXTERNAL_CONTENT_URI, true);
+      videos = new MediaCursor(context, bucketId, Video.Media.EXTERNAL_CONTENT_URI, false);
+    }
+
+    while (page.size() < pageSize) {
+      Media image = images.peek();
+      Media video = videos.peek();
+
+      if (image == null && video == null) {
+        exhausted = true;
+        break;
+      }
+
+      if (video == null || (image != null && image.getDate() >= video.getDate())) {
+        page.add(images.take());
+      } else {
+        page.add(videos.take());
+      }
+    }
+
+    return page;
+  }
+
+  synchronized boolean isExhausted() {
+    return exhausted || closed;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (images != null) images.close();
+    if (videos != null) videos.close();
+  }
+
+  private static class MediaCursor implements Closeable {
+
+    private final Uri     contentUri;
+    private final String  bucketId;
+    private final boolean isImage;
+    private final Cursor  cursor;
+
+    private final int idIndex;
+    private final int mimeTypeIndex;
+    private final int dateIndex;
+    private final int orientationIndex;
+    private final int widthIndex;
+    private final int heightIndex;
+    private final int sizeIndex;
+    private final int filenameIndex;
+
+    private Media next;
+
+    MediaCursor(@NonNull Context context, @NonNull String bucketId, @NonNull Uri contentUri, boolean isImage) {
+      String   selection     = Images.Media.BUCKET_ID + " = ?";
+      String[] selectionArgs = new String[] { bucketId };
+      String   sortBy        = Images.Media.DATE_MODIFIED + " DESC";
+
+      String[] projection;
+
+      if (isImage) {
+        projection = new String[]{Images.Media._ID, Images.Media.MIME_TYPE, Images.Media.DATE_MODIFIED, Images.Media.ORIENTATION, Images.Media.WIDTH, Images.Media.HEIGHT, Images.Media.SIZE, Images.Media.DISPLAY_NAME};
+      } else {
+        projection = new String[]{Images.Media._ID, Images.Media.MIME_TYPE, Images.Media.DATE_MODIFIED, Images.Media.WIDTH, Images.Media.HEIGHT, Images.Media.SIZE, Images.Media.DISPLAY_NAME};
+      }
+
+      if (Media.ALL_MEDIA_BUCKET_ID.equals(bucketId)) {
+        selection     = null;
+        selectionArgs = null;
+      }
+
+      this.contentUri = contentUri;
+      this.bucketId   = bucketId;
+      this.isImage    = isImage;
+      this.cursor     = context.getContentResolver().query(contentUri, projection, selection, selectionArgs, sortBy);
+
+      if (cursor != null) {
+        idIndex          = cursor.getColumnIndexOrThrow(Images.Media._ID);
+        mimeTypeIndex    = cursor.getColumnIndexOrThrow(Images.Media.MIME_TYPE);
+        dateIndex        = cursor.getColumnIndexOrThrow(Images.Media.DATE_MODIFIED);
+        orientationIndex = isImage ? cursor.getColumnIndexOrThrow(Images.Media.ORIENTATION) : -1;
+        widthIndex       = cursor.getColumnIndexOrThrow(Images.Media.WIDTH);
+        heightIndex      = cursor.getColumnIndexOrThrow(Images.Media.HEIGHT);
+        sizeIndex        = cursor.getColumnIndexOrThrow(Images.Media.SIZE);
+        filenameIndex    = cursor.getColumnIndexOrThrow(Images.Media.DISPLAY_NAME);
+      } else {
+        idIndex = mimeTypeIndex = dateIndex = orientationIndex = widthIndex = heightIndex = sizeIndex = filenameIndex = -1;
+      }
+    }
+
+    /**
+     * The next media item of the cursor, without moving past it.
+     */
+    @Nullable Media peek() {
+      while (next == null && cursor != null && cursor.moveToNext()) {
+        next = readMedia();
+      }
+      return next;
+    }
+
+    @NonNull Media take() {
+      Media media = peek();
+      if (media == null) throw new IllegalStateException("No more media");
+      next = null;
+      return media;
+    }
+
+    @Override
+    public void close() {
+      if (cursor != null) cursor.close();
+    }
+
+    private @Nullable Media readMedia() {
+      long   rowId       = cursor.getLong(idIndex);
+      Uri    uri         = ContentUris.withAppendedId(contentUri, rowId);
+      String mimetype    = cursor.getString(mimeTypeIndex);
+      long   date        = cursor.getLong(dateIndex);
+      int    orientation = isImage ? cursor.getInt(orientationIndex) : 0;
+      boolean rotated    = orientation != 0 && orientation != 180;
+      int    width       = cursor.getInt(rotated ? heightIndex : widthIndex);
+      int    height      = cursor.getInt(rotated ? widthIndex : heightIndex);
+      long   size        = cursor.getLong(sizeIndex);
+      String filename    = cursor.getString(filenameIndex);
+
+      // skip media if the filename or mimetype is null here
+      if (filename == null || mimetype == null) {
+        return null;
+      }
+
+      return new Media(uri, filename, mimetype, date, width, height, size, bucketId, null);
+    }
+  }
+}
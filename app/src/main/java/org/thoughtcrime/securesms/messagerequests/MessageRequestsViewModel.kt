@@ -56,7 +56,7 @@ class MessageRequestsViewModel @Inject constructor(
 
     companion object {
         private val COMPARATOR get() = compareByDescending<ThreadRecord> { it.unreadCount + it.unreadMentionCount }
-            .thenByDescending { it.lastMessage?.timestamp ?: 0L }
+            .thenByDescending { it.lastMessageTimestamp }
             .thenByDescending { it.date }
             .thenBy { it.recipient.displayName() }
     }
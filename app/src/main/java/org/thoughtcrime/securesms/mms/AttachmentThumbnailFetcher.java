@@ -0,0 +1,83 @@
+package org.thoughtcrime.securesms.mms;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.data.DataFetcher;
+
+import org.session.libsignal.utilities.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Loads attachment thumbnails without holding a Glide thread while they're being generated: the
+ * data is delivered from the thumbnail worker once it's done.
+ */
+class AttachmentThumbnailFetcher implements DataFetcher<InputStream> {
+
+  private static final String TAG = AttachmentThumbnailFetcher.class.getSimpleName();
+
+  private final Context context;
+  private final Uri     uri;
+
+  private volatile boolean     cancelled;
+  private volatile InputStream is;
+
+  AttachmentThumbnailFetcher(Context context, Uri uri) {
+    this.context = context;
+    this.uri     = uri;
+  }
+
+  @Override
+  public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super InputStream> callback) {
+    PartAuthority.getThumbnailStreamAsync(context, uri).whenComplete((stream, error) -> {
+      if (error != null) {
+        Log.w(TAG, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        if (!cancelled) callback.onLoadFailed(new FileNotFoundException("PartAuthority couldn't load Uri resource."));
+      } else if (cancelled) {
+        closeQuietly(stream);
+      } else {
+        is = stream;
+        callback.onDataReady(stream);
+      }
+    });
+  }
+
+  @Override
+  public void cleanup() {
+    InputStream stream = is;
+    is = null;
+    if (stream != null) closeQuietly(stream);
+  }
+
+  @Override
+  public void cancel() {
+    // The thumbnail may be shared with other requests, so let it finish and drop the result
+    cancelled = true;
+  }
+
+  @Override
+  public @NonNull Class<InputStream> getDataClass() {
+    return InputStream.class;
+  }
+
+  @Override
+  public @NonNull DataSource getDataSource() {
+    return DataSource.LOCAL;
+  }
+
+  private static void closeQuietly(@NonNull InputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+  }
+}
@@ -27,6 +27,10 @@ public class DecryptableStreamUriLoader implements ModelLoader<DecryptableUri, I
   @Nullable
   @Override
   public LoadData<InputStream> buildLoadData(@NonNull DecryptableUri decryptableUri, int width, int height, @NonNull Options options) {
+    if (PartAuthority.isAttachmentThumbnailUri(decryptableUri.uri)) {
+      return new LoadData<>(decryptableUri, new AttachmentThumbnailFetcher(context, decryptableUri.uri));
+    }
+
     return new LoadData<>(decryptableUri, new DecryptableStreamLocalUriFetcher(context, decryptableUri.uri));
   }
 
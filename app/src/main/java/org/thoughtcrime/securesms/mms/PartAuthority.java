@@ -8,6 +8,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment;
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId;
 import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
@@ -57,6 +58,13 @@ public class PartAuthority {
     }
   }
 
+  /**
+   * Opens an attachment thumbnail without blocking while it's being generated.
+   */
+  public static @NonNull CompletableFuture<InputStream> getThumbnailStreamAsync(@NonNull Context context, @NonNull Uri uri) {
+    return DatabaseComponent.get(context).attachmentDatabase().getThumbnailStreamAsync(new PartUriParser(uri).getPartId());
+  }
+
   public static @Nullable String getAttachmentFileName(@NonNull Context context, @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
 
@@ -123,6 +131,14 @@ public class PartAuthority {
     return ContentUris.withAppendedId(uri, attachmentId.getRowId());
   }
 
+  public static boolean isAttachmentDataUri(final @NonNull Uri uri) {
+    return uriMatcher.match(uri) == PART_ROW;
+  }
+
+  public static boolean isAttachmentThumbnailUri(final @NonNull Uri uri) {
+    return uriMatcher.match(uri) == THUMB_ROW;
+  }
+
   public static boolean isLocalUri(final @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
     switch (match) {
@@ -1,10 +1,10 @@
 package org.thoughtcrime.securesms.net;
 
-import android.os.AsyncTask;
 import androidx.annotation.NonNull;
 import androidx.annotation.WorkerThread;
 
 import org.session.libsession.utilities.Util;
+import org.session.libsession.utilities.concurrent.SignalExecutors;
 import org.session.libsignal.utilities.guava.Optional;
 
 import java.io.InputStream;
@@ -24,7 +24,7 @@ public class CallRequestController implements RequestController {
 
   @Override
   public void cancel() {
-    AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+    SignalExecutors.IO.execute(() -> {
       synchronized (CallRequestController.this) {
         if (canceled) return;
         
@@ -14,15 +14,29 @@ import org.session.libsession.utilities.concurrent.SignalExecutors;
 import org.session.libsignal.utilities.Pair;
 import org.session.libsignal.utilities.guava.Optional;
 
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import okhttp3.CacheControl;
 import okhttp3.Call;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -36,6 +50,18 @@ public class ChunkedDataFetcher {
   private static final long MB = 1024 * 1024;
   private static final long KB = 1024;
 
+  private static final int BUFFER_SIZE                 = 16 * 1024;
+  private static final int MAX_RANGE_ATTEMPTS          = 3;
+  private static final int MAX_RANGE_REQUESTS_PER_HOST = 4;
+
+  private static final HostLimiter HOST_LIMITER = new HostLimiter(MAX_RANGE_REQUESTS_PER_HOST);
+
+  /**
+   * Hands finished first ranges to the callback, which may read the stream for as long as it likes,
+   * so that it never holds one of the host's range request slots or an IO thread.
+   */
+  private static final Executor DELIVERY_EXECUTOR = Executors.newCachedThreadPool(r -> new Thread(r, "chunked-delivery"));
+
   private final OkHttpClient client;
 
   public ChunkedDataFetcher(@NonNull OkHttpClient client) {
@@ -108,6 +134,7 @@ public class ChunkedDataFetcher {
           Log.w(TAG, "Unable to parse length from Content-Range.");
           callback.onFailure(new IOException("Unable to get parse length from Content-Range."));
           compositeController.cancel();
+          response.body().close();
           return;
         }
 
@@ -137,11 +164,13 @@ public class ChunkedDataFetcher {
     List<ByteRange> requestPattern;
     try {
       if (firstChunk.isPresent()) {
-        requestPattern = Stream.of(getRequestPattern(contentLength - firstChunk.get().second()))
-                               .map(b -> new ByteRange(b.start + firstChunk.get().second(),
-                                                       b.end   + firstChunk.get().second(),
-                                                       b.ignoreFirst))
-                               .toList();
+        requestPattern = new ArrayList<>();
+        requestPattern.add(new ByteRange(0, firstChunk.get().second() - 1, 0));
+        requestPattern.addAll(Stream.of(getRequestPattern(contentLength - firstChunk.get().second()))
+                                    .map(b -> new ByteRange(b.start + firstChunk.get().second(),
+                                                            b.end   + firstChunk.get().second(),
+                                                            b.ignoreFirst))
+                                    .toList());
       } else {
         requestPattern = getRequestPattern(contentLength);
       }
@@ -151,75 +180,23 @@ public class ChunkedDataFetcher {
       return;
     }
 
-    SignalExecutors.UNBOUNDED.execute(() -> {
-      List<CallRequestController> controllers = Stream.of(requestPattern).map(range -> makeChunkRequest(client, url, range)).toList();
-      List<InputStream>           streams     = new ArrayList<>(controllers.size() + (firstChunk.isPresent() ? 1 : 0));
-
-      if (firstChunk.isPresent()) {
-        streams.add(firstChunk.get().first());
-      }
-
-      Stream.of(controllers).forEach(compositeController::addController);
-
-      for (CallRequestController controller : controllers) {
-        Optional<InputStream> stream = controller.getStream();
-
-        if (!stream.isPresent()) {
-          Log.w(TAG, "Stream was canceled.");
-          callback.onFailure(new IOException("Failure"));
-          compositeController.cancel();
-          return;
-        }
-
-        streams.add(stream.get());
-      }
-
-      try {
-        callback.onSuccess(new InputStreamList(streams));
-      } catch (IOException e) {
-        callback.onFailure(e);
-        compositeController.cancel();
-      }
-    });
-  }
-
-  private CallRequestController makeChunkRequest(@NonNull OkHttpClient client, @NonNull String url, @NonNull ByteRange range) {
-    Request request = new Request.Builder()
-                                 .url(url)
-                                 .cacheControl(NO_CACHE)
-                                 .addHeader("Range", "bytes=" + range.start + "-" + range.end)
-                                 .addHeader("Accept-Encoding", "identity")
-                                 .build();
-
-    Call                  call           = client.newCall(request);
-    CallRequestController callController = new CallRequestController(call);
+    RangeDownload download;
+    try {
+      download = new RangeDownload(url, contentLength, requestPattern, callback);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to create download file.", e);
+      callback.onFailure(e);
+      compositeController.cancel();
+      return;
+    }
 
-    call.enqueue(new okhttp3.Callback() {
-      @Override
-      public void onFailure(@NonNull Call call, @NonNull IOException e) {
-        callController.cancel();
-      }
+    compositeController.addController(download);
 
-      @Override
-      public void onResponse(@NonNull Call call, @NonNull Response response) {
-        if (!response.isSuccessful()) {
-          callController.cancel();
-          if (response.body() != null) response.body().close();
-          return;
-        }
-
-        if (response.body() == null) {
-          callController.cancel();
-          if (response.body() != null) response.body().close();
-          return;
-        }
-
-        InputStream stream = new SkippingInputStream(ContentLengthInputStream.obtain(response.body().byteStream(), response.body().contentLength()), range.ignoreFirst);
-        callController.setStream(stream);
-      }
-    });
+    if (firstChunk.isPresent()) {
+      download.ranges.get(0).initialBody = firstChunk.get().first();
+    }
 
-    return callController;
+    download.start();
   }
 
   private Optional<Long> parseLengthFromContentRange(@NonNull String contentRange) {
@@ -334,67 +311,359 @@ public class ChunkedDataFetcher {
     }
   }
 
-  private static class InputStreamList extends InputStream {
+  /**
+   * Downloads the ranges of one file in parallel into a temporary file, which is read back in order
+   * by {@link DownloadInputStream} while the later ranges are still coming in.
+   *
+   * The temporary file is deleted as soon as it's opened, so it goes away with the download however
+   * it ends.
+   */
+  private class RangeDownload implements RequestController {
+
+    private final String           url;
+    private final String           host;
+    private final long             contentLength;
+    private final List<RangeTask>  ranges;
+    private final Callback         callback;
+    private final RandomAccessFile file;
+    private final FileChannel      channel;
+    private final Set<Call>        calls = new HashSet<>();
+
+    private boolean     canceled;
+    private boolean     delivered;
+    private IOException failure;
+
+    RangeDownload(@NonNull String url, long contentLength, @NonNull List<ByteRange> pattern, @NonNull Callback callback) throws IOException {
+      HttpUrl httpUrl = HttpUrl.parse(url);
+
+      this.url           = url;
+      this.host          = httpUrl != null ? httpUrl.host() : url;
+      this.contentLength = contentLength;
+      this.ranges        = Stream.of(pattern).map(RangeTask::new).toList();
+      this.callback      = callback;
+
+      File tempFile = File.createTempFile("chunked", ".tmp");
+      try {
+        this.file    = new RandomAccessFile(tempFile, "rw");
+        this.channel = file.getChannel();
+      } finally {
+        if (!tempFile.delete()) Log.w(TAG, "Unable to delete temporary file.");
+      }
+    }
 
-    private final List<InputStream> inputStreams;
+    void start() {
+      for (RangeTask range : ranges) {
+        HOST_LIMITER.execute(host, () -> download(range));
+      }
+    }
 
-    private int currentStreamIndex = 0;
+    @Override
+    public void cancel() {
+      List<Call> toCancel;
+
+      synchronized (this) {
+        if (canceled) return;
+        canceled = true;
+        toCancel = new ArrayList<>(calls);
+        notifyAll();
+      }
 
-    InputStreamList(List<InputStream> inputStreams) {
-      this.inputStreams = inputStreams;
+      for (Call call : toCancel) {
+        call.cancel();
+      }
+
+      for (RangeTask range : ranges) {
+        InputStream initialBody = range.initialBody;
+        if (initialBody != null) Util.close(initialBody);
+      }
+
+      Util.close(file);
     }
 
-    @Override
-    public int read() throws IOException {
-      while (currentStreamIndex < inputStreams.size()) {
-        int result = inputStreams.get(currentStreamIndex).read();
+    private synchronized boolean isCanceled() {
+      return canceled;
+    }
+
+    /**
+     * Downloads a range, resuming it from where it stopped when an attempt fails.
+     */
+    private void download(@NonNull RangeTask range) {
+      IOException lastError = null;
+
+      for (int attempt = 1; attempt <= MAX_RANGE_ATTEMPTS && !isCanceled(); attempt++) {
+        try {
+          InputStream initialBody = range.initialBody;
+          range.initialBody = null;
 
-        if (result == -1) currentStreamIndex++;
-        else              return result;
+          if (initialBody != null) writeRange(range, initialBody);
+          else                     fetchRange(range);
+
+          return;
+        } catch (IOException e) {
+          if (isCanceled()) return;
+          Log.w(TAG, "Attempt " + attempt + " of range " + range.start + "-" + range.end + " failed at " + range.written + " bytes.", e);
+          lastError = e;
+        }
       }
 
-      return -1;
+      if (lastError != null) fail(lastError);
     }
 
-    @Override
-    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
-      while (currentStreamIndex < inputStreams.size()) {
-        int result = inputStreams.get(currentStreamIndex).read(buffer, offset, length);
+    private void fetchRange(@NonNull RangeTask range) throws IOException {
+      // A range is requested whole the first time so that requests keep the same size
+      long start = range.written == 0 ? range.start       : range.ownStart() + range.written;
+      long skip  = range.written == 0 ? range.ignoreFirst : 0;
+
+      Request request = new Request.Builder()
+                                   .url(url)
+                                   .cacheControl(NO_CACHE)
+                                   .addHeader("Range", "bytes=" + start + "-" + range.end)
+                                   .addHeader("Accept-Encoding", "identity")
+                                   .build();
+
+      Call call = client.newCall(request);
 
-        if (result == -1) currentStreamIndex++;
-        else              return result;
+      synchronized (this) {
+        if (canceled) return;
+        calls.add(call);
       }
 
-      return -1;
+      try (Response response = call.execute()) {
+        if (response.code() != 206 || response.body() == null) {
+          throw new IOException("Unexpected response code: " + response.code());
+        }
+
+        writeRange(range, new SkippingInputStream(response.body().byteStream(), skip));
+      } finally {
+        synchronized (this) {
+          calls.remove(call);
+        }
+      }
+    }
+
+    private void writeRange(@NonNull RangeTask range, @NonNull InputStream in) throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+
+      try {
+        while (range.remaining() > 0) {
+          int read = in.read(buffer, 0, (int) Math.min(buffer.length, range.remaining()));
+          if (read == -1) throw new IOException("Range ended after " + range.written + " bytes.");
+
+          ByteBuffer source   = ByteBuffer.wrap(buffer, 0, read);
+          long       position = range.ownStart() + range.written;
+
+          while (source.hasRemaining()) {
+            position += channel.write(source, position);
+          }
+
+          onWritten(range, read);
+        }
+      } finally {
+        Util.close(in);
+      }
+    }
+
+    private void onWritten(@NonNull RangeTask range, int count) {
+      boolean deliver;
+
+      synchronized (this) {
+        range.written += count;
+        notifyAll();
+
+        deliver = !delivered && !canceled && ranges.get(0).remaining() == 0;
+        if (deliver) delivered = true;
+      }
+
+      if (deliver) {
+        DELIVERY_EXECUTOR.execute(this::deliver);
+      }
+    }
+
+    private void deliver() {
+      if (isCanceled()) return;
+
+      try {
+        callback.onSuccess(new DownloadInputStream(this));
+      } catch (IOException e) {
+        callback.onFailure(e);
+        cancel();
+      }
+    }
+
+    private void fail(@NonNull IOException e) {
+      boolean notify;
+
+      synchronized (this) {
+        if (canceled || failure != null) return;
+        failure = e;
+        notify    = !delivered;
+        delivered = true;
+        notifyAll();
+      }
+
+      if (notify) callback.onFailure(e);
+
+      cancel();
+    }
+
+    /**
+     * Where the data written so far without gaps ends.
+     */
+    private synchronized long contiguousEnd() {
+      for (RangeTask range : ranges) {
+        if (range.remaining() > 0) return range.ownStart() + range.written;
+      }
+      return contentLength;
+    }
+  }
+
+  private static class RangeTask {
+    private final long start;
+    private final long end;
+    private final long ignoreFirst;
+
+    private volatile long        written;
+    private volatile InputStream initialBody;
+
+    RangeTask(@NonNull ByteRange range) {
+      this.start       = range.start;
+      this.end         = range.end;
+      this.ignoreFirst = range.ignoreFirst;
+    }
+
+    /**
+     * Where the bytes this range writes start, past the ones it only requests to keep its size.
+     */
+    long ownStart() {
+      return start + ignoreFirst;
+    }
+
+    long remaining() {
+      return end + 1 - ownStart() - written;
+    }
+  }
+
+  /**
+   * Reads a {@link RangeDownload} in order, waiting for the ranges that haven't been written yet.
+   */
+  private static class DownloadInputStream extends InputStream {
+
+    private final RangeDownload download;
+
+    private long position;
+
+    DownloadInputStream(@NonNull RangeDownload download) {
+      this.download = download;
     }
 
     @Override
-    public int read(@NonNull byte[] buffer) throws IOException {
-      return read(buffer, 0, buffer.length);
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return read == -1 ? -1 : buffer[0] & 0xFF;
     }
 
     @Override
-    public void close() throws IOException {
-      for (InputStream stream : inputStreams) {
-        try {
-          stream.close();
-        } catch (IOException ignored) {}
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+
+      long available;
+
+      synchronized (download) {
+        while (!download.canceled && download.failure == null && position < download.contentLength && position >= download.contiguousEnd()) {
+          try {
+            download.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+
+        if (download.failure != null) throw new IOException(download.failure);
+        if (download.canceled)         throw new IOException("Canceled");
+        if (position >= download.contentLength) return -1;
+
+        available = download.contiguousEnd() - position;
       }
+
+      int read = download.channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, available)), position);
+      if (read > 0) position += read;
+
+      return read;
     }
 
     @Override
     public int available() {
-      int total = 0;
+      synchronized (download) {
+        return (int) Math.min(Integer.MAX_VALUE, download.contiguousEnd() - position);
+      }
+    }
+
+    @Override
+    public void close() {
+      download.cancel();
+    }
+  }
+
+  /**
+   * Runs range requests on {@link SignalExecutors#IO}, at most {@code maxPerHost} at a time for any
+   * host so that they share the client's pooled connections instead of each opening a new one.
+   */
+  private static class HostLimiter {
+
+    private final int                         maxPerHost;
+    private final Map<String, Integer>        running = new HashMap<>();
+    private final Map<String, Queue<Runnable>> pending = new HashMap<>();
+
+    HostLimiter(int maxPerHost) {
+      this.maxPerHost = maxPerHost;
+    }
 
-      for (int i=currentStreamIndex;i<inputStreams.size();i++) {
+    void execute(@NonNull String host, @NonNull Runnable task) {
+      synchronized (this) {
+        int count = running.getOrDefault(host, 0);
+
+        if (count >= maxPerHost) {
+          pending.computeIfAbsent(host, h -> new ArrayDeque<>()).add(task);
+          return;
+        }
+
+        running.put(host, count + 1);
+      }
+
+      run(host, task);
+    }
+
+    private void run(@NonNull String host, @NonNull Runnable task) {
+      SignalExecutors.IO.execute(() -> {
         try {
-          int available = inputStreams.get(i).available();
+          task.run();
+        } finally {
+          onFinished(host);
+        }
+      });
+    }
 
-          if (available != -1) total += available;
-        } catch (IOException ignored) {}
+    private void onFinished(@NonNull String host) {
+      Runnable next;
+
+      synchronized (this) {
+        Queue<Runnable> queue = pending.get(host);
+        next = queue != null ? queue.poll() : null;
+
+        if (queue != null && queue.isEmpty()) {
+          pending.remove(host);
+        }
+
+        if (next == null) {
+          int count = running.get(host) - 1;
+          if (count == 0) running.remove(host);
+          else            running.put(host, count);
+        }
       }
 
-      return total;
+      if (next != null) run(host, next);
     }
   }
 
@@ -14,13 +14,17 @@ import androidx.work.WorkerParameters
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
 import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.async
 import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.withContext
 import org.session.libsession.database.StorageProtocol
 import org.session.libsession.database.userAuth
 import org.session.libsession.messaging.sending_receiving.pollers.OpenGroupPollerManager
 import org.session.libsession.messaging.sending_receiving.pollers.PollerManager
 import org.session.libsignal.utilities.Log
+import org.thoughtcrime.securesms.database.LokiAPIDatabase
 import org.thoughtcrime.securesms.groups.GroupPollerManager
 import java.util.concurrent.TimeUnit
 import kotlin.time.Duration.Companion.minutes
@@ -33,6 +37,7 @@ class BackgroundPollWorker @AssistedInject constructor(
     private val groupPollerManager: GroupPollerManager,
     private val openGroupPollerManager: OpenGroupPollerManager,
     private val pollerManager: PollerManager,
+    private val lokiAPIDatabase: LokiAPIDatabase,
 ) : CoroutineWorker(context, params) {
     enum class Target {
         ONE_TO_ONE,
@@ -142,6 +147,10 @@ class BackgroundPollWorker @AssistedInject constructor(
         } catch (exception: Exception) {
             Log.e(TAG, "Background poll failed due to error: ${exception.message}.", exception)
             return Result.retry()
+        } finally {
+            // The app never becomes visible in a process started for the poll, which can be killed
+            // as soon as it's done, so the new last message hashes are written now
+            withContext(NonCancellable + Dispatchers.IO) { lokiAPIDatabase.flushNetworkState() }
         }
     }
 
@@ -72,6 +72,7 @@ import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
+import javax.inject.Singleton
 import kotlin.concurrent.Volatile
 
 /**
@@ -82,6 +83,7 @@ import kotlin.concurrent.Volatile
  */
 private const val CONTENT_SIGNATURE = "content_signature"
 
+@Singleton
 class DefaultMessageNotifier @Inject constructor(
     val avatarUtils: AvatarUtils,
     private val threadDatabase: ThreadDatabase,
@@ -89,6 +91,15 @@ class DefaultMessageNotifier @Inject constructor(
     private val mmsSmsDatabase: MmsSmsDatabase,
     private val textSecurePreferences: TextSecurePreferences
 ) : MessageNotifier {
+    private val notificationCache = ThreadNotificationCache<NotificationItem>(
+        threadIdOf = { it.threadId },
+        timestampOf = { it.timestamp },
+    )
+
+    // Whether the last update posted a bundled notification per thread under a summary
+    @Volatile
+    private var lastPostedMultipleThreads = false
+
     override fun setVisibleThread(threadId: Long) {
         visibleThread = threadId
     }
@@ -105,6 +116,25 @@ class DefaultMessageNotifier @Inject constructor(
         executor.cancel()
     }
 
+    override fun onNotificationsDismissed() {
+        invalidateNotificationState()
+    }
+
+    /**
+     * Records that messages of [threadId] were inserted, read or deleted, so that the next update
+     * reloads that thread only.
+     */
+    fun markThreadChanged(threadId: Long) {
+        notificationCache.markThreadChanged(threadId)
+    }
+
+    /**
+     * Makes the next update reload the notifications of every thread.
+     */
+    fun invalidateNotificationState() {
+        notificationCache.invalidate()
+    }
+
     private fun cancelActiveNotifications(context: Context): Boolean {
         val notifications = ServiceUtil.getNotificationManager(context)
         val hasNotifications = notifications.activeNotifications.size > 0
@@ -167,6 +197,8 @@ class DefaultMessageNotifier @Inject constructor(
     }
 
     override fun updateNotification(context: Context) {
+        invalidateNotificationState()
+
         if (!isNotificationsEnabled(context)) {
             return
         }
@@ -175,6 +207,8 @@ class DefaultMessageNotifier @Inject constructor(
     }
 
     override fun updateNotification(context: Context, threadId: Long) {
+        markThreadChanged(threadId)
+
         if (System.currentTimeMillis() - lastDesktopActivityTimestamp < DESKTOP_ACTIVITY_PERIOD) {
             Log.i(TAG, "Scheduling delayed notification...")
             executor.execute(DelayedNotification(context, threadId))
@@ -184,6 +218,8 @@ class DefaultMessageNotifier @Inject constructor(
     }
 
     override fun updateNotification(context: Context, threadId: Long, signal: Boolean) {
+        markThreadChanged(threadId)
+
         val isVisible = visibleThread == threadId
 
         val recipient = threadDatabase.getRecipientForThreadId(threadId)
@@ -221,78 +257,129 @@ class DefaultMessageNotifier @Inject constructor(
     override fun updateNotification(context: Context, signal: Boolean, reminderCount: Int) {
         var playNotificationAudio = signal // Local copy of the argument so we can modify it
 
-        var incomingCursor: Cursor? = null
-        var reactionsCursor: Cursor? = null
+        val localNumber = textSecurePreferences.getLocalNumber()
 
-        try {
-            incomingCursor  = mmsSmsDatabase.getUnreadIncomingForNotifications(MAX_ROWS)
-            reactionsCursor = mmsSmsDatabase.getOutgoingWithUnseenReactionsForNotifications(MAX_ROWS)
+        val changedThreads = try {
+            notificationCache.refresh(
+                loadAll = {
+                    loadNotificationItems(
+                        context,
+                        mmsSmsDatabase.getUnreadIncomingForNotifications(MAX_ROWS),
+                        mmsSmsDatabase.getOutgoingWithUnseenReactionsForNotifications(MAX_ROWS)
+                    )
+                },
+                loadThread = { threadId ->
+                    loadNotificationItems(
+                        context,
+                        mmsSmsDatabase.getUnreadIncomingForNotifications(threadId, MAX_ROWS),
+                        mmsSmsDatabase.getOutgoingWithUnseenReactionsForNotifications(threadId, MAX_ROWS)
+                    )
+                }
+            )
+        } catch (e: Exception) {
+            Log.e(TAG, "Error loading notifications", e)
+            return
+        }
 
-            val localNumber = textSecurePreferences.getLocalNumber()
-            val hasIncoming  = incomingCursor  != null && incomingCursor.count  > 0
-            val hasReactions = reactionsCursor != null && reactionsCursor.count > 0
-            val nothingToDo  = !hasIncoming && !hasReactions
+        val items = notificationCache.items(MAX_ROWS)
+
+        if (changedThreads != null) {
+            cancelEmptyThreadNotifications(context, changedThreads - items.mapTo(HashSet()) { it.threadId })
+        }
 
-            // early exit
-            if (nothingToDo || localNumber == null) {
+        // early exit
+        if (items.isEmpty() || localNumber == null) {
+            if (changedThreads == null) {
                 cancelActiveNotifications(context)
-                clearReminder(context)
-                return
+            } else {
+                // Request-aware cleanup (keeps active request notifs alive)
+                cancelOrphanedNotifications(context, NotificationState())
             }
+            clearReminder(context)
+            lastPostedMultipleThreads = false
+            return
+        }
 
-            try {
-                val notificationState = constructNotificationState(
-                    context,
-                    incomingCursor,
-                    reactionsCursor
-                )
+        try {
+            val notificationState = NotificationState(items)
 
-                // split into normal vs request without touching NotificationState class
-                val requestItems = NotificationState().apply {
-                    notificationState.notifications.asSequence().filter { it.isMessageRequest }.forEach { addNotification(it) }
-                }
-                val normalItems = NotificationState().apply {
-                    notificationState.notifications.asSequence().filter { !it.isMessageRequest }.forEach { addNotification(it) }
-                }
+            // split into normal vs request without touching NotificationState class
+            val requestItems = NotificationState().apply {
+                notificationState.notifications.asSequence().filter { it.isMessageRequest }.forEach { addNotification(it) }
+            }
+            val normalItems = NotificationState().apply {
+                notificationState.notifications.asSequence().filter { !it.isMessageRequest }.forEach { addNotification(it) }
+            }
 
-                if (playNotificationAudio && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
-                    playNotificationAudio = false
-                } else if (playNotificationAudio) {
-                    lastAudibleNotification = System.currentTimeMillis()
-                }
+            if (playNotificationAudio && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
+                playNotificationAudio = false
+            } else if (playNotificationAudio) {
+                lastAudibleNotification = System.currentTimeMillis()
+            }
 
-                // Normal notifications (unchanged behavior, but uses normalItems)
-                if (normalItems.hasMultipleThreads()) {
-                    for (threadId in normalItems.threads) {
-                        val perThread = NotificationState(normalItems.getNotificationsForThread(threadId))
-                        sendSingleThreadNotification(context, perThread, false, true)
-                    }
-                    sendMultipleThreadNotification(context, normalItems, playNotificationAudio)
-                } else if (normalItems.notificationCount > 0) {
-                    sendSingleThreadNotification(context, normalItems, playNotificationAudio, false)
-                }
+            // Threads that didn't change still have the same notification posted, unless the
+            // previous update only posted a single un-bundled one
+            fun hasChanged(threadId: Long) = changedThreads == null || threadId in changedThreads
 
-                // Post request notifications per thread (no sound, not bundled)
-                for (threadId in requestItems.threads) {
-                    val perThread = NotificationState(requestItems.getNotificationsForThread(threadId))
-                    sendSingleThreadNotification(context, perThread,false,false)
+            // Normal notifications (unchanged behavior, but uses normalItems)
+            if (normalItems.hasMultipleThreads()) {
+                for (threadId in normalItems.threads) {
+                    if (lastPostedMultipleThreads && !hasChanged(threadId)) continue
+                    val perThread = NotificationState(normalItems.getNotificationsForThread(threadId))
+                    sendSingleThreadNotification(context, perThread, false, true)
                 }
+                sendMultipleThreadNotification(context, normalItems, playNotificationAudio)
+            } else if (normalItems.notificationCount > 0) {
+                sendSingleThreadNotification(context, normalItems, playNotificationAudio, false)
+            }
+            lastPostedMultipleThreads = normalItems.hasMultipleThreads()
 
-                // If nothing to display at all, clear everything (including reminders)
-                if (normalItems.notificationCount == 0 && requestItems.notificationCount == 0) {
-                    // Request-aware cleanup (keeps active request notifs alive)
-                    cancelOrphanedNotifications(context, normalItems)
-                    clearReminder(context)
-                    return
-                }
+            // Post request notifications per thread (no sound, not bundled)
+            for (threadId in requestItems.threads) {
+                if (!hasChanged(threadId)) continue
+                val perThread = NotificationState(requestItems.getNotificationsForThread(threadId))
+                sendSingleThreadNotification(context, perThread,false,false)
+            }
 
-                if (playNotificationAudio) {
-                    scheduleReminder(context, reminderCount)
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Error creating notification", e)
+            // If nothing to display at all, clear everything (including reminders)
+            if (normalItems.notificationCount == 0 && requestItems.notificationCount == 0) {
+                // Request-aware cleanup (keeps active request notifs alive)
+                cancelOrphanedNotifications(context, normalItems)
+                clearReminder(context)
+                return
             }
 
+            if (playNotificationAudio) {
+                scheduleReminder(context, reminderCount)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error creating notification", e)
+        }
+    }
+
+    /**
+     * Removes the notifications of threads that no longer have anything to notify about, e.g.
+     * because their messages were read or deleted.
+     */
+    private fun cancelEmptyThreadNotifications(context: Context, threadIds: Set<Long>) {
+        if (threadIds.isEmpty()) return
+
+        val notificationManager = ServiceUtil.getNotificationManager(context)
+
+        for (threadId in threadIds) {
+            val notificationId = (SUMMARY_NOTIFICATION_ID + threadId).toInt()
+            notificationManager.cancel(notificationId)
+
+            // Request notifications intentionally outlive later messages, only remove them once read
+            if (mmsSmsDatabase.getUnreadCount(threadId) == 0) {
+                notificationManager.cancel(REQUEST_TAG, notificationId)
+            }
+        }
+    }
+
+    private fun loadNotificationItems(context: Context, incomingCursor: Cursor?, reactionsCursor: Cursor?): List<NotificationItem> {
+        try {
+            return constructNotificationState(context, incomingCursor, reactionsCursor).notifications.toList()
         } finally {
             incomingCursor?.close()
             reactionsCursor?.close()
@@ -33,6 +33,8 @@ public class DeleteNotificationReceiver extends BroadcastReceiver {
             else         DatabaseComponent.get(context).mmsDatabase().markAsNotified(ids[i]);
           }
 
+          ApplicationContext.getInstance(context).getMessageNotifier().onNotificationsDismissed();
+
           return null;
         }
       }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
@@ -23,7 +23,7 @@ import kotlin.Unit;
 
 @Singleton
 public class OptimizedMessageNotifier implements MessageNotifier {
-  private final MessageNotifier         wrapped;
+  private final DefaultMessageNotifier  wrapped;
   private final Debouncer               debouncer;
 
   private final OpenGroupPollerManager  openGroupPollerManager;
@@ -58,6 +58,9 @@ public class OptimizedMessageNotifier implements MessageNotifier {
 
   @Override
   public void updateNotification(@NonNull Context context) {
+    // Recorded right away as the debouncer only runs the last update of a burst
+    wrapped.invalidateNotificationState();
+
     boolean isCaughtUp = true;
     isCaughtUp = isCaughtUp && !pollerManager.isPolling();
 
@@ -72,6 +75,8 @@ public class OptimizedMessageNotifier implements MessageNotifier {
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId) {
+    wrapped.markThreadChanged(threadId);
+
     boolean isCaughtUp = true;
     isCaughtUp = isCaughtUp && !pollerManager.isPolling();
 
@@ -86,6 +91,8 @@ public class OptimizedMessageNotifier implements MessageNotifier {
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId, boolean signal) {
+    wrapped.markThreadChanged(threadId);
+
     boolean isCaughtUp = true;
     isCaughtUp = isCaughtUp && !pollerManager.isPolling();
 
@@ -115,6 +122,9 @@ public class OptimizedMessageNotifier implements MessageNotifier {
   @Override
   public void clearReminder(@NonNull Context context) { wrapped.clearReminder(context); }
 
+  @Override
+  public void onNotificationsDismissed() { wrapped.onNotificationsDismissed(); }
+
   private void performOnBackgroundThreadIfNeeded(Runnable r) {
     if (Looper.myLooper() == Looper.getMainLooper()) {
       ThreadUtils.queue(() -> {
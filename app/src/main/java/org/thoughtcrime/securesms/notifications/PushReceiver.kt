@@ -240,8 +240,8 @@ class PushReceiver @Inject constructor(
         val expectedList = (bencoded.decode() as? BencodeList)?.values
             ?: error("Failed to decode bencoded list from payload")
 
-        val metadataJson = (expectedList.getOrNull(0) as? BencodeString)?.value ?: error("no metadata")
-        val metadata: PushNotificationMetadata = json.decodeFromString(String(metadataJson))
+        val metadataJson = (expectedList.getOrNull(0) as? BencodeString)?.decodeToString() ?: error("no metadata")
+        val metadata: PushNotificationMetadata = json.decodeFromString(metadataJson)
 
         return PushData(
             data = (expectedList.getOrNull(1) as? BencodeString)?.value,
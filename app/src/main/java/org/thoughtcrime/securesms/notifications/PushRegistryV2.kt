@@ -23,7 +23,6 @@ import org.session.libsession.snode.OnionRequestAPI
 import org.session.libsession.snode.SnodeClock
 import org.session.libsession.snode.SwarmAuth
 import org.session.libsession.snode.Version
-import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.Device
 import org.session.libsignal.utilities.retryWithUniformInterval
 import org.session.libsignal.utilities.toHexString
@@ -113,12 +112,12 @@ class PushRegistryV2 @Inject constructor(
         val url = "${server.url}/$path"
         val body = requestParameters.toRequestBody("application/json".toMediaType())
         val request = Request.Builder().url(url).post(body).build()
-        val response = OnionRequestAPI.sendOnionRequest(
+        val response = OnionRequestAPI.sendOnionRequestSuspend(
             request = request,
             server = server.url,
             x25519PublicKey = server.publicKey,
             version = Version.V4
-        ).await()
+        )
 
         return withContext(Dispatchers.IO) {
             requireNotNull(response.body) { "Response doesn't have a body" }
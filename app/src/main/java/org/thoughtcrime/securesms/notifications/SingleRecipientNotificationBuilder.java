@@ -4,14 +4,6 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
-import android.graphics.RectF;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.text.SpannableStringBuilder;
 
@@ -35,7 +27,6 @@ import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader;
 import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.util.AvatarUtils;
-import org.thoughtcrime.securesms.util.BitmapUtil;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -91,15 +82,15 @@ public class SingleRecipientNotificationBuilder extends AbstractNotificationBuil
           setLargeIcon(iconBitmap);
         } catch (InterruptedException | ExecutionException e) {
           Log.w(TAG, "get iconBitmap in getThread failed", e);
-          setLargeIcon(getPlaceholderDrawable(avatarUtils, recipient));
+          setLargeIcon(getPlaceholderBitmap(avatarUtils, recipient));
         }
       } else {
-        setLargeIcon(getPlaceholderDrawable(avatarUtils, recipient));
+        setLargeIcon(getPlaceholderBitmap(avatarUtils, recipient));
       }
 
     } else {
       setContentTitle(context.getString(R.string.app_name));
-      setLargeIcon(avatarUtils.generateTextBitmap(ICON_SIZE, "", "Unknown"));
+      setLargeIcon(avatarUtils.getPlaceholderBitmap(ICON_SIZE, "", "Unknown"));
     }
   }
 
@@ -228,37 +219,6 @@ public class SingleRecipientNotificationBuilder extends AbstractNotificationBuil
     return super.build();
   }
 
-  private void setLargeIcon(@Nullable Drawable drawable) {
-    if (drawable != null) {
-      int    largeIconTargetSize  = context.getResources().getDimensionPixelSize(R.dimen.contact_photo_target_size);
-      Bitmap recipientPhotoBitmap = BitmapUtil.createFromDrawable(drawable, largeIconTargetSize, largeIconTargetSize);
-
-      if (recipientPhotoBitmap != null) {
-        setLargeIcon(getCircularBitmap(recipientPhotoBitmap));
-      }
-    }
-  }
-
-  private Bitmap getCircularBitmap(Bitmap bitmap) {
-    final Bitmap output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-    final Canvas canvas = new Canvas(output);
-    final int color = Color.RED;
-    final Paint paint = new Paint();
-    final Rect rect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-    final RectF rectF = new RectF(rect);
-
-    paint.setAntiAlias(true);
-    canvas.drawARGB(0, 0, 0, 0);
-    paint.setColor(color);
-    canvas.drawOval(rectF, paint);
-    paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-    canvas.drawBitmap(bitmap, rect, rect, paint);
-
-    bitmap.recycle();
-
-    return output;
-  }
-
   private boolean hasBigPictureSlide(@Nullable SlideDeck slideDeck) {
     if (slideDeck == null) {
       return false;
@@ -314,9 +274,10 @@ public class SingleRecipientNotificationBuilder extends AbstractNotificationBuil
     return content;
   }
 
-  private static Drawable getPlaceholderDrawable(AvatarUtils avatarUtils, Recipient recipient) {
+  // Placeholders are drawn round already, and are shared so they must not be recycled
+  private static Bitmap getPlaceholderBitmap(AvatarUtils avatarUtils, Recipient recipient) {
     String publicKey = recipient.getAddress().toString();
     String displayName = RecipientNamesKt.displayName(recipient);
-    return avatarUtils.generateTextBitmap(ICON_SIZE, publicKey, displayName);
+    return avatarUtils.getPlaceholderBitmap(ICON_SIZE, publicKey, displayName);
   }
 }
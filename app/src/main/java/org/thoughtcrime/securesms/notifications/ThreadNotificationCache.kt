@@ -0,0 +1,95 @@
+package org.thoughtcrime.securesms.notifications
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The unread notification items of every thread, kept between notification updates so that a
+ * change in one thread only requires reloading that thread instead of rescanning every unread message.
+ *
+ * Changes are recorded with [markThreadChanged] and [invalidate] as they happen and applied in one go
+ * by [refresh], so a burst of changes results in a single reload of each affected thread.
+ */
+class ThreadNotificationCache<T>(
+    private val threadIdOf: (T) -> Long,
+    private val timestampOf: (T) -> Long,
+) {
+    private val itemsByThread = HashMap<Long, List<T>>()
+    private val changedThreads: MutableSet<Long> = ConcurrentHashMap.newKeySet()
+
+    @Volatile
+    private var needsFullReload = true
+
+    fun markThreadChanged(threadId: Long) {
+        changedThreads += threadId
+    }
+
+    /**
+     * For changes that can't be attributed to a thread, the next [refresh] reloads everything.
+     */
+    fun invalidate() {
+        needsFullReload = true
+    }
+
+    /**
+     * Applies the pending changes.
+     *
+     * @return the threads whose items were reloaded, or null if everything was.
+     */
+    fun refresh(loadAll: () -> List<T>, loadThread: (Long) -> List<T>): Set<Long>? = synchronized(itemsByThread) {
+        refreshLocked(loadAll, loadThread)
+    }
+
+    private fun refreshLocked(loadAll: () -> List<T>, loadThread: (Long) -> List<T>): Set<Long>? {
+        if (needsFullReload) {
+            // Cleared first so that an invalidation happening while loading isn't lost
+            needsFullReload = false
+            changedThreads.clear()
+
+            try {
+                itemsByThread.clear()
+                itemsByThread.putAll(loadAll().groupBy(threadIdOf))
+            } catch (e: Exception) {
+                needsFullReload = true
+                throw e
+            }
+
+            return null
+        }
+
+        val changed = HashSet<Long>()
+        val iterator = changedThreads.iterator()
+        while (iterator.hasNext()) {
+            changed += iterator.next()
+            iterator.remove()
+        }
+
+        for (threadId in changed) {
+            val items = try {
+                loadThread(threadId)
+            } catch (e: Exception) {
+                // Retried on the next refresh
+                changedThreads += changed
+                throw e
+            }
+
+            if (items.isEmpty()) {
+                itemsByThread.remove(threadId)
+            } else {
+                itemsByThread[threadId] = items
+            }
+        }
+
+        return changed
+    }
+
+    /**
+     * @return up to [limit] items of all threads, newest first.
+     */
+    fun items(limit: Int): List<T> = synchronized(itemsByThread) {
+        itemsByThread.values.asSequence()
+            .flatten()
+            .sortedByDescending(timestampOf)
+            .take(limit)
+            .toList()
+    }
+}
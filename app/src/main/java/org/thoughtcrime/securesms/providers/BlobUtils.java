@@ -203,7 +203,7 @@ public class BlobUtils {
 
         throw new RuntimeException(e);
       }
-    }, SignalExecutors.UNBOUNDED);
+    }, SignalExecutors.IO);
   }
 
   private synchronized @NonNull Uri writeBlobSpecToMemory(@NonNull BlobSpec blobSpec, @NonNull byte[] data) {
@@ -90,14 +90,14 @@ class SearchRepository @Inject constructor(
     }
 
     fun queryContacts(searchName: String? = null): List<Recipient> {
-        return configFactory.withUserConfigs { configs ->
-            (configs.contacts.all().asSequence()
+        return configFactory.userConfigsSnapshot().let { configs ->
+            (configs.contacts.values.asSequence()
                 .filter { !it.blocked &&
                         // If we are searching for contacts - we will include the unapproved ones
                         (!searchName.isNullOrBlank() || it.approved)
                 }
                 .map { it.id.toAddress() }) +
-                    configs.contacts.allBlinded().asSequence()
+                    configs.blindedContacts.asSequence()
                         .map {
                             Address.CommunityBlindedId(
                                 serverUrl = it.communityServer,
@@ -11,7 +11,6 @@ import okhttp3.RequestBody.Companion.toRequestBody
 import org.session.libsession.database.StorageProtocol
 import org.session.libsession.messaging.file_server.FileServerApi
 import org.session.libsession.snode.OnionRequestAPI
-import org.session.libsession.snode.utilities.await
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.toHexString
@@ -89,11 +88,11 @@ class TokenRepositoryImpl @Inject constructor(
 
         var response: T? = null
         try {
-            val rawResponse = OnionRequestAPI.sendOnionRequest(
+            val rawResponse = OnionRequestAPI.sendOnionRequestSuspend(
                 request = request,
                 server = TOKEN_SERVER_URL, // Note: The `request` contains the actual endpoint we'll hit
                 x25519PublicKey = SERVER_PUBLIC_KEY
-            ).await()
+            )
 
             val resultJsonString = rawResponse.body?.decodeToString()
             if (resultJsonString == null) {
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.util
 
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Rect
@@ -10,6 +11,8 @@ import android.graphics.drawable.BitmapDrawable
 import android.text.TextPaint
 import android.text.TextUtils
 import androidx.annotation.DrawableRes
+import androidx.annotation.VisibleForTesting
+import androidx.collection.LruCache
 import androidx.compose.ui.graphics.Color
 import androidx.core.content.ContextCompat
 import androidx.core.graphics.createBitmap
@@ -18,9 +21,11 @@ import coil3.request.ImageRequest
 import coil3.size.Precision
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.withContext
 import network.loki.messenger.R
 import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.concurrent.SignalExecutors
 import org.session.libsession.utilities.recipients.Recipient
 import org.session.libsession.utilities.recipients.RecipientData
 import org.session.libsession.utilities.recipients.RemoteFile
@@ -28,7 +33,6 @@ import org.session.libsession.utilities.recipients.displayName
 import org.session.libsignal.utilities.IdPrefix
 import org.thoughtcrime.securesms.database.RecipientRepository
 import org.thoughtcrime.securesms.pro.ProStatusManager
-import java.math.BigInteger
 import java.security.MessageDigest
 import java.util.Locale
 import javax.inject.Inject
@@ -51,6 +55,20 @@ class AvatarUtils @Inject constructor(
         ContextCompat.getColor(context, R.color.accent_red),
     )
 
+    // Working out the color of an account ID takes a SHA-512 digest, so remember the recent ones
+    private val colorIndexCache = LruCache<String, Int>(COLOR_CACHE_SIZE)
+
+    private val placeholderCache = object : LruCache<PlaceholderKey, Bitmap>(PLACEHOLDER_CACHE_BYTES) {
+        override fun sizeOf(key: PlaceholderKey, value: Bitmap): Int = value.allocationByteCount
+    }
+
+    // Reused for every placeholder, only used while holding the lock of textPaint
+    private val circlePaint = Paint(Paint.ANTI_ALIAS_FLAG)
+    private val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG).apply {
+        typeface = Typeface.create(Typeface.DEFAULT, Typeface.NORMAL)
+        color = android.graphics.Color.WHITE
+    }
+
     suspend fun getUIDataFromAccountId(accountId: String): AvatarUIData =
         withContext(Dispatchers.Default) {
             getUIDataFromRecipient(recipientRepository.getRecipient(Address.fromSerialized(accountId)))
@@ -118,72 +136,98 @@ class AvatarUtils @Inject constructor(
     }
 
     fun getColorFromKey(hashString: String): Int {
-        val hash: Long
-        if (hashString.length >= 12 && hashString.matches(Regex("^[0-9A-Fa-f]+\$"))) {
-            hash = getSha512(hashString).substring(0 until 12).toLong(16)
-        } else {
-            hash = 0
-        }
-
-        return avatarBgColors[(hash % avatarBgColors.size).toInt()]
+        val index = colorIndexCache[hashString]
+            ?: colorIndexForKey(hashString, avatarBgColors.size).also { colorIndexCache.put(hashString, it) }
+        return avatarBgColors[index]
     }
 
     fun generateTextBitmap(pixelSize: Int, hashString: String, displayName: String?): BitmapDrawable {
-        val colorPrimary = getColorFromKey(hashString)
+        return BitmapDrawable(context.resources, getPlaceholderBitmap(pixelSize, hashString, displayName))
+    }
 
+    /**
+     * The placeholder avatar of [hashString]: its label drawn on a circle of its color.
+     *
+     * The bitmap is cached and shared with the other callers, so it must not be modified or recycled.
+     */
+    fun getPlaceholderBitmap(pixelSize: Int, hashString: String, displayName: String?): Bitmap {
         val labelText = when {
             !TextUtils.isEmpty(displayName) -> extractLabel(displayName!!.capitalize(Locale.ROOT))
             !TextUtils.isEmpty(hashString) -> extractLabel(hashString)
             else -> EMPTY_LABEL
         }
+        val key = PlaceholderKey(labelText, getColorFromKey(hashString), pixelSize)
 
-        val bitmap = createBitmap(pixelSize, pixelSize)
-        val canvas = Canvas(bitmap)
-
-        // Draw background/frame
-        val paint = Paint(Paint.ANTI_ALIAS_FLAG)
-        paint.color = colorPrimary
-        canvas.drawCircle(pixelSize.toFloat() / 2, pixelSize.toFloat() / 2, pixelSize.toFloat() / 2, paint)
-
-        // Draw text
-        val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
-        textPaint.typeface = Typeface.create(Typeface.DEFAULT, Typeface.NORMAL)
-        textPaint.textSize = pixelSize * 0.5f
-        textPaint.color = android.graphics.Color.WHITE
-        val areaRect = Rect(0, 0, pixelSize, pixelSize)
-        val textBounds = RectF(areaRect)
-        textBounds.right = textPaint.measureText(labelText)
-        textBounds.bottom = textPaint.descent() - textPaint.ascent()
-        textBounds.left += (areaRect.width() - textBounds.right) * 0.5f
-        textBounds.top += (areaRect.height() - textBounds.bottom) * 0.5f
-        canvas.drawText(labelText, textBounds.left, textBounds.top - textPaint.ascent(), textPaint)
-
-        return BitmapDrawable(context.resources, bitmap)
+        return placeholderCache[key] ?: renderPlaceholder(key).also { placeholderCache.put(key, it) }
     }
 
-    private fun getSha512(input: String): String {
-        val messageDigest = MessageDigest.getInstance("SHA-512").digest(input.toByteArray())
-
-        // Convert byte array into signum representation
-        val no = BigInteger(1, messageDigest)
+    /**
+     * Works out the placeholders of [recipients] ahead of them being shown in a list: their colors,
+     * and their bitmaps too when [pixelSize] is given.
+     */
+    suspend fun preparePlaceholders(recipients: Collection<Recipient>, pixelSize: Int? = null) {
+        withContext(SignalExecutors.CPU_DISPATCHER) {
+            for (recipient in recipients) {
+                ensureActive()
+
+                val groupData = recipient.data as? RecipientData.GroupLike
+                getColorFromKey(recipient.address.toString())
+                groupData?.firstMember?.let { getColorFromKey(it.address.toString()) }
+                groupData?.secondMember?.let { getColorFromKey(it.address.toString()) }
+
+                if (pixelSize != null && recipient.avatar == null) {
+                    getPlaceholderBitmap(pixelSize, recipient.address.toString(), recipient.displayName())
+                }
+            }
+        }
+    }
 
-        // Convert message digest into hex value
-        var hashText: String = no.toString(16)
+    private fun renderPlaceholder(key: PlaceholderKey): Bitmap {
+        val pixelSize = key.pixelSize
+        val bitmap = createBitmap(pixelSize, pixelSize)
+        val canvas = Canvas(bitmap)
 
-        // Add preceding 0s to make it 32 bytes
-        if (hashText.length < 128) {
-            val sb = StringBuilder()
-            for (i in 0 until 128 - hashText.length) {
-                sb.append('0')
-            }
-            hashText = sb.append(hashText).toString()
+        synchronized(textPaint) {
+            // Draw background/frame
+            circlePaint.color = key.color
+            canvas.drawCircle(pixelSize.toFloat() / 2, pixelSize.toFloat() / 2, pixelSize.toFloat() / 2, circlePaint)
+
+            // Draw text
+            textPaint.textSize = pixelSize * 0.5f
+            val areaRect = Rect(0, 0, pixelSize, pixelSize)
+            val textBounds = RectF(areaRect)
+            textBounds.right = textPaint.measureText(key.label)
+            textBounds.bottom = textPaint.descent() - textPaint.ascent()
+            textBounds.left += (areaRect.width() - textBounds.right) * 0.5f
+            textBounds.top += (areaRect.height() - textBounds.bottom) * 0.5f
+            canvas.drawText(key.label, textBounds.left, textBounds.top - textPaint.ascent(), textPaint)
         }
 
-        return hashText
+        return bitmap
     }
 
+    private data class PlaceholderKey(val label: String, val color: Int, val pixelSize: Int)
+
     companion object {
         private val EMPTY_LABEL = "0"
+        private const val COLOR_CACHE_SIZE = 1024
+        private const val PLACEHOLDER_CACHE_BYTES = 4 * 1024 * 1024
+
+        /**
+         * The index of the color of [key] among [colorCount] colors. For an hex key, it's the first
+         * 12 hex digits of its SHA-512 digest, like the other clients do, and 0 for anything else.
+         */
+        @VisibleForTesting
+        fun colorIndexForKey(key: String, colorCount: Int): Int {
+            if (key.length < 12 || !key.all { it in '0'..'9' || it in 'a'..'f' || it in 'A'..'F' }) return 0
+
+            val digest = MessageDigest.getInstance("SHA-512").digest(key.toByteArray())
+            var hash = 0L
+            for (i in 0 until 6) {
+                hash = (hash shl 8) or (digest[i].toLong() and 0xFF)
+            }
+            return (hash % colorCount).toInt()
+        }
 
         fun extractLabel(content: String): String {
             val trimmedContent = content.trim()
@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.util
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs [task] for keys on a bounded pool of background threads, the highest [Priority] first
+ * and the most recently requested first within the same priority.
+ *
+ * Requesting a key that is already queued or running returns the same future instead of
+ * running the task twice. Requesting a queued key again with a higher priority moves it up.
+ */
+class PriorityTaskExecutor<K : Any, V>(
+    name: String,
+    threadCount: Int,
+    private val task: (K) -> V,
+) {
+    enum class Priority {
+        /** On screen right now. */
+        VISIBLE,
+        /** About to be on screen. */
+        PREFETCH,
+        BACKGROUND,
+    }
+
+    private val sequence = AtomicLong()
+    private val threadIds = AtomicInteger()
+    private val inFlight = ConcurrentHashMap<K, Job>()
+
+    private val executor = ThreadPoolExecutor(
+        threadCount, threadCount,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        PriorityBlockingQueue<Runnable>()
+    ) { runnable ->
+        Thread(runnable, "$name-${threadIds.incrementAndGet()}").apply { priority = Thread.MIN_PRIORITY }
+    }.apply { allowCoreThreadTimeOut(true) }
+
+    /**
+     * The returned future completes on one of the worker threads.
+     */
+    fun submit(key: K, priority: Priority): CompletableFuture<V> {
+        while (true) {
+            val existing = inFlight[key]
+            if (existing != null) {
+                existing.raisePriority(priority)
+                return existing.future
+            }
+
+            val job = Job(key, priority)
+            if (inFlight.putIfAbsent(key, job) == null) {
+                executor.execute(job)
+                return job.future
+            }
+        }
+    }
+
+    val queuedCount: Int
+        get() = executor.queue.size
+
+    private inner class Job(val key: K, @Volatile var priority: Priority) : Runnable, Comparable<Job> {
+        val future = CompletableFuture<V>()
+
+        @Volatile
+        private var order = sequence.incrementAndGet()
+
+        override fun run() {
+            try {
+                future.complete(task(key))
+            } catch (e: Throwable) {
+                future.completeExceptionally(e)
+            } finally {
+                inFlight.remove(key, this)
+            }
+        }
+
+        fun raisePriority(newPriority: Priority) {
+            synchronized(this) {
+                if (newPriority > priority) return
+
+                // The queue only orders elements on insertion, so re-insert with the new priority.
+                // If the job isn't queued anymore it's already running.
+                if (executor.queue.remove(this)) {
+                    priority = newPriority
+                    order = sequence.incrementAndGet()
+                    executor.execute(this)
+                }
+            }
+        }
+
+        override fun compareTo(other: Job): Int {
+            val byPriority = priority.compareTo(other.priority)
+            return if (byPriority != 0) byPriority else other.order.compareTo(order)
+        }
+    }
+
+    companion object {
+        private const val KEEP_ALIVE_SECONDS = 30L
+    }
+}
@@ -0,0 +1,121 @@
+package org.thoughtcrime.securesms.video;
+
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.BaseDataSource;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceException;
+import androidx.media3.datasource.DataSpec;
+
+import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingFileChannel;
+import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
+import org.thoughtcrime.securesms.mms.PartUriParser;
+
+import java.io.IOException;
+
+/**
+ * A media3 {@link DataSource} reading attachment part uris straight from the encrypted file, so
+ * that seeking doesn't require decrypting the attachment from the start.
+ */
+@UnstableApi
+public class AttachmentDataSource extends BaseDataSource {
+
+  private final Context context;
+
+  private @Nullable Uri                         uri;
+  private @Nullable ModernDecryptingFileChannel channel;
+  private           long                        position;
+  private           long                        bytesRemaining;
+  private           boolean                     opened;
+
+  public AttachmentDataSource(@NonNull Context context) {
+    super(false);
+    this.context = context.getApplicationContext();
+  }
+
+  @Override
+  public long open(@NonNull DataSpec dataSpec) throws IOException {
+    uri = dataSpec.uri;
+    transferInitializing(dataSpec);
+
+    AttachmentId attachmentId = new PartUriParser(dataSpec.uri).getPartId();
+
+    channel = DatabaseComponent.get(context).attachmentDatabase().getAttachmentDataChannel(attachmentId);
+
+    if (channel == null) {
+      throw new DataSourceException(new IOException("No data for: " + attachmentId), PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND);
+    }
+
+    if (dataSpec.position > channel.size()) {
+      throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+    }
+
+    position       = dataSpec.position;
+    bytesRemaining = dataSpec.length != C.LENGTH_UNSET ? dataSpec.length : channel.size() - position;
+    opened         = true;
+
+    transferStarted(dataSpec);
+
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0)         return 0;
+    if (bytesRemaining == 0) return C.RESULT_END_OF_INPUT;
+    if (channel == null)     throw new IOException("Not opened");
+
+    int read = channel.read(position, buffer, offset, (int) Math.min(length, bytesRemaining));
+
+    if (read == -1) return C.RESULT_END_OF_INPUT;
+
+    position       += read;
+    bytesRemaining -= read;
+    bytesTransferred(read);
+
+    return read;
+  }
+
+  @Override
+  public @Nullable Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws IOException {
+    uri = null;
+
+    try {
+      if (channel != null) channel.close();
+    } finally {
+      channel = null;
+
+      if (opened) {
+        opened = false;
+        transferEnded();
+      }
+    }
+  }
+
+  public static class Factory implements DataSource.Factory {
+
+    private final Context context;
+
+    public Factory(@NonNull Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public @NonNull DataSource createDataSource() {
+      return new AttachmentDataSource(context);
+    }
+  }
+}
@@ -9,7 +9,7 @@ import androidx.annotation.Nullable;
 import org.session.libsession.utilities.Util;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingFileChannel;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,6 +22,10 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private @Nullable ModernDecryptingFileChannel modernChannel;
+  private @Nullable InputStream                 classicStream;
+  private           long                        classicPosition;
+
   public EncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -30,38 +34,46 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+  public synchronized int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
     if (random == null) return readAtClassic(position, bytes, offset, length);
     else                return readAtModern(position, bytes, offset, length);
   }
 
   private int readAtClassic(long position, byte[] bytes, int offset, int length) throws IOException {
-    InputStream inputStream     = ClassicDecryptingPartInputStream.createFor(attachmentSecret, mediaFile);
-    byte[]      buffer          = new byte[4096];
-    long        headerRemaining = position;
+    // The classic format can only be decrypted from the start, so keep the stream around
+    // and only re-open it when seeking backwards
+    if (classicStream == null || position < classicPosition) {
+      if (classicStream != null) classicStream.close();
+
+      classicStream   = ClassicDecryptingPartInputStream.createFor(attachmentSecret, mediaFile);
+      classicPosition = 0;
+    }
 
-    while (headerRemaining > 0) {
-      int read = inputStream.read(buffer, 0, Util.toIntExact(Math.min((long)buffer.length, headerRemaining)));
+    byte[] buffer = new byte[4096];
+
+    while (classicPosition < position) {
+      int read = classicStream.read(buffer, 0, Util.toIntExact(Math.min((long)buffer.length, position - classicPosition)));
 
       if (read == -1) return -1;
 
-      headerRemaining -= read;
+      classicPosition += read;
     }
 
-    int returnValue = inputStream.read(bytes, offset, length);
-    inputStream.close();
+    int returnValue = classicStream.read(bytes, offset, length);
+
+    if (returnValue > 0) classicPosition += returnValue;
+
     return returnValue;
   }
 
   private int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
     assert(random != null);
 
-    InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
-    int         returnValue = inputStream.read(bytes, offset, length);
-
-    inputStream.close();
+    if (modernChannel == null) {
+      modernChannel = new ModernDecryptingFileChannel(attachmentSecret, random, mediaFile);
+    }
 
-    return returnValue;
+    return modernChannel.read(position, bytes, offset, length);
   }
 
   @Override
@@ -70,7 +82,15 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
+    if (modernChannel != null) {
+      modernChannel.close();
+      modernChannel = null;
+    }
 
+    if (classicStream != null) {
+      classicStream.close();
+      classicStream = null;
+    }
   }
 }
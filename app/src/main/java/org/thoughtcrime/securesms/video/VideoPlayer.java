@@ -17,6 +17,7 @@
 package org.thoughtcrime.securesms.video;
 
 import android.content.Context;
+import android.net.Uri;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.View;
@@ -33,9 +34,11 @@ import androidx.media3.common.MediaItem;
 import androidx.media3.common.Player;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.source.ProgressiveMediaSource;
 import androidx.media3.ui.PlayerView;
 
 import org.session.libsession.utilities.ViewUtil;
+import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.mms.VideoSlide;
 
 import java.io.IOException;
@@ -140,9 +143,14 @@ public class VideoPlayer extends FrameLayout {
     exoView.setPlayer(exoPlayer); //todo this should be optimised as it creates a small lag in the viewpager
     //noinspection ConstantConditions
 
-    if(videoSource.getUri() != null){
-      MediaItem mediaItem = MediaItem.fromUri(videoSource.getUri());
-      exoPlayer.setMediaItem(mediaItem);
+    Uri uri = videoSource.getUri();
+    if(uri != null){
+      MediaItem mediaItem = MediaItem.fromUri(uri);
+      if (PartAuthority.isAttachmentDataUri(uri)) {
+        exoPlayer.setMediaSource(new ProgressiveMediaSource.Factory(new AttachmentDataSource.Factory(getContext())).createMediaSource(mediaItem));
+      } else {
+        exoPlayer.setMediaItem(mediaItem);
+      }
     }
 
     exoPlayer.prepare();
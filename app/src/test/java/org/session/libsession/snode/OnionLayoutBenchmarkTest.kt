@@ -0,0 +1,120 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.session.libsession.utilities.AESGCM
+import org.thoughtcrime.securesms.util.Benchmark
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.random.Random
+
+/**
+ * Checks the single buffer onion layout against peeling it layer by layer, and compares how much
+ * it allocates with encoding every layer into a new array.
+ */
+class OnionLayoutBenchmarkTest {
+
+    private val random = Random(42)
+
+    private fun layers(wrapPayload: Boolean) = List(HOP_COUNT + 1) { i ->
+        OnionRequestEncryption.Layer(
+            symmetricKey = random.nextBytes(32),
+            json = if (i == 0 && !wrapPayload) null else """{"destination":"hop$i","ephemeral_key":"${"ab".repeat(32)}"}""".toByteArray()
+        )
+    }
+
+    private val finalJson = """{"ephemeral_key":"${"cd".repeat(32)}"}""".toByteArray()
+
+    @Test
+    fun `every layer decrypts to the next one`() {
+        for (wrapPayload in listOf(false, true)) {
+            val payload = random.nextBytes(1_000)
+            val layers = layers(wrapPayload)
+
+            var (inner, json) = decode(OnionRequestEncryption.layOut(payload, layers, finalJson))
+            assertArrayEquals(finalJson, json)
+
+            for (layer in layers.asReversed()) {
+                val plaintext = AESGCM.decrypt(inner, symmetricKey = layer.symmetricKey)
+                if (layer.json == null) {
+                    inner = plaintext
+                } else {
+                    decode(plaintext).let { (layerInner, layerJson) ->
+                        assertArrayEquals(layer.json, layerJson)
+                        inner = layerInner
+                    }
+                }
+            }
+
+            assertArrayEquals(payload, inner)
+        }
+    }
+
+    @Test
+    @Category(Benchmark::class)
+    fun `benchmark allocations of the single buffer layout`() {
+        val payload = random.nextBytes(PAYLOAD_SIZE)
+        val layers = layers(wrapPayload = false)
+
+        repeat(WARM_UP_ROUNDS) {
+            encodeLayerByLayer(payload, layers)
+            OnionRequestEncryption.layOut(payload, layers, finalJson)
+        }
+
+        val layerByLayer = measureAllocatedBytes { encodeLayerByLayer(payload, layers) }
+        val singleBuffer = measureAllocatedBytes { OnionRequestEncryption.layOut(payload, layers, finalJson) }
+        println(
+            "Onion for a ${PAYLOAD_SIZE / 1024}KiB payload over $HOP_COUNT hops: " +
+                "layer by layer ${layerByLayer / 1024}KiB, single buffer ${singleBuffer / 1024}KiB allocated"
+        )
+
+        assertEquals(
+            encodeLayerByLayer(payload, layers).size,
+            OnionRequestEncryption.layOut(payload, layers, finalJson).size
+        )
+        // Each layer by layer copy of the payload is about its size, the single buffer needs one
+        assertTrue(singleBuffer < layerByLayer / 2)
+    }
+
+    /**
+     * How the onion used to be built: every layer encoded and encrypted into new arrays.
+     */
+    private fun encodeLayerByLayer(payload: ByteArray, layers: List<OnionRequestEncryption.Layer>): ByteArray {
+        var inner = payload
+        for (layer in layers) {
+            val plaintext = layer.json?.let { encode(inner, it) } ?: inner
+            inner = AESGCM.encrypt(plaintext, layer.symmetricKey)
+        }
+        return encode(inner, finalJson)
+    }
+
+    private fun encode(ciphertext: ByteArray, json: ByteArray): ByteArray {
+        val size = ByteBuffer.allocate(Int.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(ciphertext.size).array()
+        return size + ciphertext + json
+    }
+
+    private fun decode(encoded: ByteArray): Pair<ByteArray, ByteArray> {
+        val size = ByteBuffer.wrap(encoded, 0, Int.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN).int
+        return encoded.copyOfRange(Int.SIZE_BYTES, Int.SIZE_BYTES + size) to
+            encoded.copyOfRange(Int.SIZE_BYTES + size, encoded.size)
+    }
+
+    private fun measureAllocatedBytes(block: () -> Unit): Long {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val start = threads.getThreadAllocatedBytes(threadId)
+        repeat(MEASURED_ROUNDS) { block() }
+        return (threads.getThreadAllocatedBytes(threadId) - start) / MEASURED_ROUNDS
+    }
+
+    companion object {
+        private const val HOP_COUNT = 3
+        private const val PAYLOAD_SIZE = 1024 * 1024
+        private const val WARM_UP_ROUNDS = 3
+        private const val MEASURED_ROUNDS = 5
+    }
+}
@@ -0,0 +1,134 @@
+package org.session.libsession.snode.model
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.JsonUtil
+import org.thoughtcrime.securesms.util.Benchmark
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+/**
+ * Checks the typed decoding of retrieve responses, and compares what it allocates with reading
+ * them as maps and decoding each message from its Base64 string.
+ */
+class RetrieveMessageDecodingBenchmarkTest {
+
+    private val random = Random(42)
+
+    private val payloads = List(MESSAGE_COUNT) { random.nextBytes(random.nextInt(100, 2_000)) }
+
+    private val batchResponse: ByteArray = JsonUtil.toJson(
+        mapOf(
+            "results" to listOf(
+                mapOf(
+                    "code" to 200,
+                    "body" to mapOf(
+                        "messages" to payloads.mapIndexed { index, payload ->
+                            mapOf(
+                                "hash" to "hash$index",
+                                "t" to 1_700_000_000_000L + index,
+                                "expiration" to 1_700_100_000_000L + index,
+                                "data" to java.util.Base64.getEncoder().encodeToString(payload),
+                            )
+                        },
+                        "more" to false,
+                    )
+                )
+            )
+        )
+    ).toByteArray()
+
+    @Test
+    fun `typed decoding reads every message`() {
+        val messages = decodeTyped().messages
+
+        assertEquals(MESSAGE_COUNT, messages.size)
+        messages.forEachIndexed { index, message ->
+            assertEquals("hash$index", message!!.hash)
+            assertEquals(1_700_000_000_000L + index, message.timestamp)
+            assertEquals(1_700_100_000_000L + index, message.expiry)
+            assertArrayEquals(payloads[index], message.data)
+        }
+        assertEquals(decodeAsMaps().map { it.second.toList() }, messages.map { it!!.data.toList() })
+    }
+
+    @Test
+    fun `an invalid message doesn't fail the others`() {
+        val response = JsonUtil.fromJson(
+            """{"messages":[{"hash":"a","data":"AQID"},{"hash":"b","data":"not base64!"},{"data":"AQID"},{"hash":"c","data":"AQ"}]}""",
+            RetrieveMessageResponse::class.java
+        )
+
+        assertEquals(listOf("a", null, null, "c"), response.messages.map { it?.hash })
+        assertArrayEquals(byteArrayOf(1, 2, 3), response.messages[0]!!.data)
+        assertArrayEquals(byteArrayOf(1), response.messages[3]!!.data)
+    }
+
+    @Test
+    fun `base64 decoding matches the reference decoder`() {
+        for (size in 0..64) {
+            val bytes = random.nextBytes(size)
+            val encoded = java.util.Base64.getMimeEncoder(8, "\n".toByteArray()).encodeToString(bytes)
+            assertArrayEquals(bytes, decodeBase64(encoded))
+            assertArrayEquals(bytes, decodeBase64(encoded.trimEnd('=')))
+        }
+        assertNull(decodeBase64("AQI=D"))
+        assertNull(decodeBase64("A"))
+        assertNull(decodeBase64("AQ-_"))
+    }
+
+    @Test
+    @Category(Benchmark::class)
+    fun `benchmark allocations of a 500 message retrieve response`() {
+        repeat(WARM_UP_ROUNDS) {
+            decodeAsMaps()
+            decodeTyped()
+        }
+
+        val asMaps = measureAllocatedBytes { decodeAsMaps() }
+        val typed = measureAllocatedBytes { decodeTyped() }
+        println(
+            "Retrieve response of $MESSAGE_COUNT messages (${batchResponse.size / 1024}KiB): " +
+                "as maps ${asMaps / 1024}KiB, typed ${typed / 1024}KiB allocated"
+        )
+
+        assertTrue("typed decoding allocated ${typed}B, as maps ${asMaps}B", typed < asMaps)
+    }
+
+    /**
+     * How retrieve responses used to be read: into maps, then each message decoded from its string.
+     */
+    private fun decodeAsMaps(): List<Pair<String, ByteArray>> {
+        val batch = JsonUtil.fromJson(batchResponse, BatchResponse::class.java)
+        val body = JsonUtil.fromJson(batch.results.first().body, Map::class.java)
+        return (body["messages"] as List<*>).mapNotNull { rawMessage ->
+            val json = rawMessage as Map<*, *>
+            val data = (json["data"] as? String)?.let { Base64.decode(it) } ?: return@mapNotNull null
+            (json["hash"] as String) to data
+        }
+    }
+
+    private fun decodeTyped(): RetrieveMessageResponse {
+        val batch = JsonUtil.fromJson(batchResponse, BatchResponse::class.java)
+        return JsonUtil.fromJson(batch.results.first().body, RetrieveMessageResponse::class.java)
+    }
+
+    private fun measureAllocatedBytes(block: () -> Unit): Long {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val start = threads.getThreadAllocatedBytes(threadId)
+        repeat(MEASURED_ROUNDS) { block() }
+        return (threads.getThreadAllocatedBytes(threadId) - start) / MEASURED_ROUNDS
+    }
+
+    companion object {
+        private const val MESSAGE_COUNT = 500
+        private const val WARM_UP_ROUNDS = 3
+        private const val MEASURED_ROUNDS = 5
+    }
+}
@@ -0,0 +1,63 @@
+package org.session.libsession.snode.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class HealthTrackerTest {
+
+    @Test
+    fun `first sample sets the latency and later ones are smoothed`() {
+        val tracker = HealthTracker<String>(latencyWeight = 0.5)
+        tracker.recordSuccess("a", 100)
+        assertEquals(100.0, tracker["a"]!!.latencyMs!!, 0.001)
+
+        tracker.recordSuccess("a", 300)
+        assertEquals(200.0, tracker["a"]!!.latencyMs!!, 0.001)
+    }
+
+    @Test
+    fun `successes without a latency sample keep the latency`() {
+        val tracker = HealthTracker<String>()
+        tracker.recordSuccess("a", null)
+        assertNull(tracker["a"]!!.latencyMs)
+
+        tracker.recordSuccess("a", 100)
+        tracker.recordSuccess("a", null)
+        assertEquals(100.0, tracker["a"]!!.latencyMs!!, 0.001)
+        assertEquals(3L, tracker["a"]!!.successCount)
+    }
+
+    @Test
+    fun `failures raise the error rate and the score`() {
+        val tracker = HealthTracker<String>()
+        tracker.recordSuccess("fast", 100)
+        tracker.recordSuccess("flaky", 100)
+        assertEquals(1, tracker.recordFailure("flaky"))
+        assertEquals(2, tracker.recordFailure("flaky"))
+
+        assertTrue(tracker["flaky"]!!.errorRate > 0.0)
+        assertTrue(tracker.score("flaky", 1000.0) > tracker.score("fast", 1000.0))
+
+        tracker.resetFailures("flaky")
+        assertEquals(0, tracker["flaky"]!!.failureCount)
+    }
+
+    @Test
+    fun `unknown keys use the default latency`() {
+        val tracker = HealthTracker<String>()
+        assertEquals(1000.0, tracker.score("unknown", 1000.0), 0.001)
+    }
+
+    @Test
+    fun `retain all drops stale keys`() {
+        val tracker = HealthTracker<String>()
+        tracker.recordSuccess("a", 10)
+        tracker.recordSuccess("b", 10)
+
+        tracker.retainAll(listOf("a"))
+
+        assertNull(tracker["b"])
+    }
+}
@@ -0,0 +1,27 @@
+package org.session.libsession.snode.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsession.snode.utilities.OnionRequestMetrics.DestinationType
+
+class OnionRequestMetricsTest {
+
+    @Test
+    fun `latencies are kept by destination type`() {
+        val metrics = OnionRequestMetrics()
+
+        metrics.onCompleted(DestinationType.SNODE, latencyMs = 100)
+        metrics.onCompleted(DestinationType.SNODE, latencyMs = 300)
+        metrics.onCompleted(DestinationType.SERVER, latencyMs = 2_000)
+        metrics.onFailed()
+        metrics.onCancelled()
+
+        val snapshot = metrics.snapshot()
+        assertEquals(3, snapshot.completed)
+        assertEquals(1, snapshot.failed)
+        assertEquals(1, snapshot.cancelled)
+        assertEquals(2, snapshot.latencies.getValue(DestinationType.SNODE).count)
+        assertEquals(200, snapshot.latencies.getValue(DestinationType.SNODE).meanMs)
+        assertEquals(2_000, snapshot.latencies.getValue(DestinationType.SERVER).meanMs)
+    }
+}
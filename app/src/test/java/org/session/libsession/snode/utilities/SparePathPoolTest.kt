@@ -0,0 +1,117 @@
+package org.session.libsession.snode.utilities
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.session.libsignal.utilities.Snode
+import org.thoughtcrime.securesms.util.MockLoggingRule
+
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class SparePathPoolTest {
+
+    @get:Rule
+    val logging = MockLoggingRule()
+
+    private val snodes = (1..30).map { Snode("https://10.0.0.$it", 443, null, Snode.Version.ZERO) }
+    private val droppedSnodes = mutableSetOf<Snode>()
+    private var buildCount = 0
+    private var failBuilds = false
+
+    private fun TestScope.pool(targetCount: Int = 2) = SparePathPool(
+        targetCount = targetCount,
+        scope = this,
+        isUsable = { it !in droppedSnodes },
+        buildPath = { excludedSnodes ->
+            check(!failBuilds) { "No snodes" }
+            buildCount++
+            (snodes - excludedSnodes).take(3)
+        }
+    )
+
+    @Test
+    fun `fill builds spare paths that don't share snodes`() = runTest {
+        val pool = pool()
+
+        pool.fill()
+        advanceUntilIdle()
+
+        assertEquals(2, pool.paths.size)
+        assertEquals(6, pool.paths.flatten().toSet().size)
+    }
+
+    @Test
+    fun `a spare path is promoted when an active path is dropped`() = runTest {
+        val pool = pool()
+        pool.fill()
+        advanceUntilIdle()
+        val spare = pool.paths.first()
+        val remainingPath = snodes.takeLast(3)
+
+        val paths = pool.promote(listOf(remainingPath), count = 2)
+
+        assertEquals(listOf(remainingPath, spare), paths)
+        assertEquals(1, pool.paths.size)
+
+        advanceUntilIdle()
+        assertEquals(2, pool.paths.size)
+        assertEquals(3, buildCount)
+    }
+
+    @Test
+    fun `promote leaves full paths untouched`() = runTest {
+        val pool = pool()
+        pool.fill()
+        advanceUntilIdle()
+        val activePaths = listOf(snodes.takeLast(3), snodes.takeLast(6).take(3))
+
+        assertEquals(activePaths, pool.promote(activePaths, count = 2))
+        assertEquals(2, pool.paths.size)
+    }
+
+    @Test
+    fun `spare paths through dropped snodes are discarded`() = runTest {
+        val pool = pool(targetCount = 1)
+        pool.fill()
+        advanceUntilIdle()
+        droppedSnodes += pool.paths.first().last()
+        failBuilds = true
+
+        assertNull(pool.take(emptyList()))
+        assertTrue(pool.paths.isEmpty())
+    }
+
+    @Test
+    fun `spare paths sharing a snode with the active paths are discarded`() = runTest {
+        val pool = pool(targetCount = 1)
+        pool.fill()
+        advanceUntilIdle()
+        val activePath = listOf(pool.paths.first().first()) + snodes.takeLast(2)
+        failBuilds = true
+
+        assertEquals(listOf(activePath), pool.promote(listOf(activePath), count = 2))
+        assertTrue(pool.paths.isEmpty())
+    }
+
+    @Test
+    fun `a failed build is retried on the next fill`() = runTest {
+        val pool = pool(targetCount = 1)
+        failBuilds = true
+        pool.fill()
+        advanceUntilIdle()
+        assertTrue(pool.paths.isEmpty())
+
+        failBuilds = false
+        pool.fill()
+        advanceUntilIdle()
+        assertEquals(1, pool.paths.size)
+    }
+}
@@ -0,0 +1,102 @@
+package org.session.libsession.snode.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.session.libsignal.utilities.Snode
+import org.thoughtcrime.securesms.util.MockLoggingRule
+
+@RunWith(RobolectricTestRunner::class)
+class SwarmSnodeSelectorTest {
+
+    @get:Rule
+    val logging = MockLoggingRule()
+
+    private val selector = SwarmSnodeSelector()
+    private val swarm = (1..5).map { Snode("https://10.0.0.$it", 443, null, Snode.Version.ZERO) }.toSet()
+
+    @Test
+    fun `keeps selecting the same snode while it is healthy`() {
+        val first = selector.select(PUBLIC_KEY, swarm)
+        repeat(20) {
+            selector.recordSuccess(first, 100)
+            assertEquals(first, selector.select(PUBLIC_KEY, swarm))
+        }
+        assertEquals(1, selector.getRecentSelections().size)
+    }
+
+    @Test
+    fun `fails over after consecutive failures`() {
+        val first = selector.select(PUBLIC_KEY, swarm)
+        selector.recordSuccess(first, 100)
+        selector.recordFailure(first)
+        assertEquals(first, selector.select(PUBLIC_KEY, swarm))
+
+        selector.recordFailure(first)
+        val second = selector.select(PUBLIC_KEY, swarm)
+        assertNotEquals(first, second)
+        assertEquals(first, selector.getRecentSelections().last().previous)
+    }
+
+    @Test
+    fun `a success in between resets the consecutive failures`() {
+        val first = selector.select(PUBLIC_KEY, swarm)
+        repeat(3) {
+            selector.recordSuccess(first, 100)
+            selector.recordFailure(first)
+        }
+        selector.recordSuccess(first, 100)
+
+        assertEquals(first, selector.select(PUBLIC_KEY, swarm))
+    }
+
+    @Test
+    fun `fails over when the selected snode becomes much slower than the others`() {
+        swarm.forEach { selector.recordSuccess(it, 100) }
+        val first = selector.select(PUBLIC_KEY, swarm)
+
+        repeat(10) { selector.recordSuccess(first, 3_000) }
+
+        assertNotEquals(first, selector.select(PUBLIC_KEY, swarm))
+        assertTrue(selector.getRecentSelections().last().reason.startsWith("latency"))
+    }
+
+    @Test
+    fun `successes without a latency sample keep the snode and reset its failures`() {
+        swarm.forEach { selector.recordSuccess(it, 100) }
+        val first = selector.select(PUBLIC_KEY, swarm)
+
+        selector.recordFailure(first)
+        selector.recordSuccess(first, null)
+        selector.recordFailure(first)
+
+        assertEquals(first, selector.select(PUBLIC_KEY, swarm))
+        assertEquals(100.0, selector.getPreferredSnodes().single().third!!.latencyMs!!, 0.0)
+    }
+
+    @Test
+    fun `selects another snode once the selected one leaves the swarm`() {
+        val first = selector.select(PUBLIC_KEY, swarm)
+
+        assertNotEquals(first, selector.select(PUBLIC_KEY, swarm - first))
+    }
+
+    @Test
+    fun `swarms keep their own selection`() {
+        val first = selector.select(PUBLIC_KEY, swarm)
+        selector.select(OTHER_PUBLIC_KEY, swarm)
+        selector.recordFailure(first)
+
+        assertEquals(first, selector.select(PUBLIC_KEY, swarm))
+        assertEquals(setOf(PUBLIC_KEY, OTHER_PUBLIC_KEY), selector.getPreferredSnodes().map { it.first }.toSet())
+    }
+
+    companion object {
+        private const val PUBLIC_KEY = "05aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"
+        private const val OTHER_PUBLIC_KEY = "05bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb"
+    }
+}
@@ -0,0 +1,60 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ShortBuffer
+
+class WaveformRmsAccumulatorTest {
+
+    private fun ramp(samplesPerChannel: Int, channels: Int): ShortBuffer {
+        val data = ShortArray(samplesPerChannel * channels) { i ->
+            // First channel ramps up, the others are loud noise that must be ignored
+            if (i % channels == 0) (i / channels / 2 % Short.MAX_VALUE).toShort() else Short.MIN_VALUE
+        }
+        return ShortBuffer.wrap(data)
+    }
+
+    @Test
+    fun `short input yields one value per sample`() {
+        val accumulator = WaveformRmsAccumulator(maxFrames = 100)
+        accumulator.add(ShortBuffer.wrap(shortArrayOf(0, 10, 20)), channels = 1)
+
+        val rms = accumulator.finish()
+
+        assertEquals(3, rms.size)
+        assertEquals(-128, rms.first().toInt())
+        assertEquals(127, rms.last().toInt())
+    }
+
+    @Test
+    fun `known length fills exactly max frames`() {
+        val accumulator = WaveformRmsAccumulator(maxFrames = 100, expectedSamplesPerChannel = 48_000)
+        accumulator.add(ramp(48_000, channels = 2), channels = 2)
+
+        val rms = accumulator.finish()
+
+        assertEquals(48_000L, accumulator.numSamples)
+        assertEquals(100, rms.size)
+        assertTrue(rms.asList().zipWithNext().all { (a, b) -> a <= b })
+    }
+
+    @Test
+    fun `unknown length stays bounded across many buffers`() {
+        val accumulator = WaveformRmsAccumulator(maxFrames = 50)
+        repeat(1_000) { accumulator.add(ramp(1_024, channels = 1), channels = 1) }
+
+        val rms = accumulator.finish()
+
+        assertEquals(1_024_000L, accumulator.numSamples)
+        assertEquals(50, rms.size)
+    }
+
+    @Test
+    fun `silence normalizes to the lowest value`() {
+        val accumulator = WaveformRmsAccumulator(maxFrames = 10, expectedSamplesPerChannel = 1_000)
+        accumulator.add(ShortBuffer.wrap(ShortArray(1_000)), channels = 1)
+
+        assertTrue(accumulator.finish().all { it == normalizedFloatToByte(0f) })
+    }
+}
@@ -0,0 +1,126 @@
+package org.session.libsession.utilities.bencode
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.thoughtcrime.securesms.util.Benchmark
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+/**
+ * Compares what decoding group update payloads costs when only their top level fields are read, when
+ * every member is read, and when every field of every member is looked up, as the member list grows.
+ *
+ * Decoding checks the whole payload, so even reading the top level takes time linear in its size.
+ */
+class BencodeBenchmarkTest {
+
+    private val random = Random(42)
+
+    private fun groupUpdate(memberCount: Int): ByteArray {
+        val members = List(memberCount) { index ->
+            BencodeDict(
+                "id" to BencodeString(byteArrayOf(0x05) + random.nextBytes(32)),
+                "invited" to (1_700_000_000_000L + index).bencode(),
+                "name" to "Member $index".bencode(),
+                "profile_pic" to BencodeDict(
+                    "key" to BencodeString(random.nextBytes(32)),
+                    "url" to "http://filev2.getsession.org/file/${random.nextLong()}".bencode(),
+                ),
+                "promoted" to (if (index % 10 == 0) 1 else 0).bencode(),
+            )
+        }
+
+        return Bencode.Encoder().write(
+            BencodeDict(
+                "admin_sig" to BencodeString(random.nextBytes(64)),
+                "members" to BencodeList(members),
+                "name" to "Benchmark group".bencode(),
+                "timestamp" to 1_700_000_000_000L.bencode(),
+            )
+        ).toByteArray()
+    }
+
+    private fun readTopLevel(payload: ByteArray): Long {
+        val update = (Bencode.Decoder(payload).decode() as BencodeDict).values
+        check((update["admin_sig"] as BencodeString).slice.len == 64)
+        return (update["timestamp"] as BencodeInteger).value
+    }
+
+    private fun readEveryMember(payload: ByteArray): Int {
+        val update = (Bencode.Decoder(payload).decode() as BencodeDict).values
+        return (update["members"] as BencodeList).values.count { member ->
+            ((member as BencodeDict).values["id"] as BencodeString).slice.len == 33
+        }
+    }
+
+    private fun readEveryField(payload: ByteArray): Int {
+        val update = (Bencode.Decoder(payload).decode() as BencodeDict).values
+        return (update["members"] as BencodeList).values.count { member ->
+            val fields = (member as BencodeDict).values
+            check((fields["id"] as BencodeString).slice.len == 33)
+            check(fields["invited"] is BencodeInteger)
+            check(fields["name"] is BencodeString)
+            check(fields["profile_pic"] is BencodeDict)
+            (fields["promoted"] as BencodeInteger).value == 1L
+        }
+    }
+
+    @Test
+    @Category(Benchmark::class)
+    fun `benchmark decoding group updates of growing size`() {
+        val topLevelAllocations = mutableMapOf<Int, Long>()
+        val everyMemberAllocations = mutableMapOf<Int, Long>()
+
+        for (memberCount in MEMBER_COUNTS) {
+            val payload = groupUpdate(memberCount)
+            assertEquals(1_700_000_000_000L, readTopLevel(payload))
+            assertEquals(memberCount, readEveryMember(payload))
+            assertEquals((memberCount + 9) / 10, readEveryField(payload))
+
+            repeat(WARM_UP_ROUNDS) {
+                readTopLevel(payload)
+                readEveryMember(payload)
+                readEveryField(payload)
+            }
+
+            val (topLevelBytes, topLevelNanos) = measure { readTopLevel(payload) }
+            val (everyMemberBytes, everyMemberNanos) = measure { readEveryMember(payload) }
+            val (everyFieldBytes, everyFieldNanos) = measure { readEveryField(payload) }
+            topLevelAllocations[memberCount] = topLevelBytes
+            everyMemberAllocations[memberCount] = everyMemberBytes
+
+            println(
+                "Group update of $memberCount members (${payload.size / 1024}KiB): " +
+                    "top level ${topLevelBytes}B in ${topLevelNanos / 1000}µs " +
+                    "(${topLevelNanos * 1024 / payload.size}ns/KiB), " +
+                    "every member ${everyMemberBytes / 1024}KiB in ${everyMemberNanos / 1000}µs, " +
+                    "every field ${everyFieldBytes / 1024}KiB in ${everyFieldNanos / 1000}µs"
+            )
+        }
+
+        // Reading the top level doesn't allocate anything for the members it skips
+        val largest = MEMBER_COUNTS.last()
+        assertTrue(topLevelAllocations.getValue(largest) < everyMemberAllocations.getValue(largest) / 100)
+    }
+
+    /**
+     * The bytes allocated and the time taken by one call to [block], averaged over several.
+     */
+    private fun measure(block: () -> Unit): Pair<Long, Long> {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val startBytes = threads.getThreadAllocatedBytes(threadId)
+        val startNanos = System.nanoTime()
+        repeat(MEASURED_ROUNDS) { block() }
+        val nanos = System.nanoTime() - startNanos
+        return (threads.getThreadAllocatedBytes(threadId) - startBytes) / MEASURED_ROUNDS to nanos / MEASURED_ROUNDS
+    }
+
+    companion object {
+        private val MEMBER_COUNTS = listOf(10, 100, 1_000, 5_000)
+        private const val WARM_UP_ROUNDS = 5
+        private const val MEASURED_ROUNDS = 20
+    }
+}
@@ -0,0 +1,150 @@
+package org.session.libsession.utilities.bencode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import kotlin.random.Random
+
+class BencodeTest {
+
+    private val random = Random(42)
+
+    private fun decode(encoded: String) = Bencode.Decoder(encoded.toByteArray()).decode()
+
+    @Test
+    fun `decodes every type of element`() {
+        assertEquals(BencodeInteger(-42), decode("i-42e"))
+        assertEquals(BencodeInteger(Long.MIN_VALUE), decode("i-9223372036854775808e"))
+        assertEquals("".bencode(), decode("0:"))
+        assertEquals("hello".bencode(), decode("5:hello"))
+        assertEquals(BencodeList(), decode("le"))
+        assertEquals(BencodeDict(), decode("de"))
+        assertEquals(
+            BencodeDict("a" to BencodeList(1.bencode(), "b".bencode()), "c" to BencodeDict("d" to 2.bencode())),
+            decode("d1:ali1e1:be1:cd1:di2eee")
+        )
+    }
+
+    @Test
+    fun `rejects malformed elements`() {
+        for (malformed in listOf("", "x", "i42", "ie", "i-e", "i4x2e", "i9223372036854775808e", "5:abc", "5abc", ":abc",
+            "l", "li1e", "d1:a", "d1:ae", "di1ei2ee", "9999999999:a")) {
+            assertNull(malformed, decode(malformed))
+        }
+    }
+
+    @Test
+    fun `decodes consecutive elements`() {
+        val decoder = Bencode.Decoder("i1e3:twoli3ee".toByteArray())
+
+        assertEquals(1.bencode(), decoder.decode())
+        assertEquals("two".bencode(), decoder.decode())
+        assertEquals(BencodeList(3.bencode()), decoder.decode())
+        assertNull(decoder.decode())
+    }
+
+    @Test
+    fun `strings are views of the decoded bytes`() {
+        val encoded = "l5:hello5:worlde".toByteArray()
+        val hello = (Bencode.Decoder(encoded).decode() as BencodeList).values[0] as BencodeString
+
+        assertSame(encoded, hello.slice.data)
+        assertEquals("hello", hello.decodeToString())
+        assertArrayEquals("hello".toByteArray(), hello.value)
+    }
+
+    @Test
+    fun `looks up dict keys without decoding the other values`() {
+        val dict = decode("d1:ali1ei2ee1:bi3e1:c3:abce") as BencodeDict
+
+        assertEquals(3.bencode(), dict.values["b"])
+        assertNull(dict.values["d"])
+        assertEquals(setOf("a", "b", "c"), dict.values.keys)
+    }
+
+    @Test
+    fun `encodes dict keys in order`() {
+        val dict = BencodeDict("b" to 1.bencode(), "a" to 2.bencode(), "ab" to 3.bencode())
+
+        assertEquals("d1:ai2e2:abi3e1:bi1ee", dict.encode().decodeToString())
+    }
+
+    @Test
+    fun `encoder can be reused`() {
+        val encoder = Bencode.Encoder(initialCapacity = 1)
+
+        encoder.write("spam".bencode()).write(Long.MAX_VALUE.bencode())
+        assertEquals("4:spami9223372036854775807e", encoder.toByteArray().decodeToString())
+
+        encoder.reset().write(BencodeList(0.bencode()))
+        assertEquals("li0ee", encoder.toSlice().decodeToString())
+    }
+
+    @Test
+    fun `random elements round trip`() {
+        repeat(FUZZ_ROUNDS) {
+            val element = randomElement(depth = 0)
+            val encoded = element.encode()
+
+            // Written back as decoded, then re-encoded once read
+            val decoded = Bencode.Decoder(encoded).decode()!!
+            assertArrayEquals(encoded, decoded.encode())
+            assertEquals(element, decoded)
+            assertArrayEquals(encoded, decoded.encode())
+        }
+    }
+
+    @Test
+    fun `mutated elements decode without throwing`() {
+        repeat(FUZZ_ROUNDS) {
+            val encoded = randomElement(depth = 0).encode()
+            val mutated = when (random.nextInt(3)) {
+                0 -> encoded.copyOf(random.nextInt(encoded.size))
+                1 -> encoded.copyOf().also { it[random.nextInt(it.size)] = random.nextInt(256).toByte() }
+                else -> encoded.copyOfRange(random.nextInt(encoded.size), encoded.size)
+            }
+
+            Bencode.Decoder(mutated).decode()?.let(::readFully)
+        }
+    }
+
+    @Test
+    fun `deeply nested elements are rejected`() {
+        val nested = "l".repeat(10_000) + "e".repeat(10_000)
+
+        assertNull(decode(nested))
+    }
+
+    private fun readFully(element: BencodeElement) {
+        when (element) {
+            is BencodeString -> element.value
+            is BencodeInteger -> element.value
+            is BencodeList -> element.values.forEach(::readFully)
+            is BencodeDict -> element.values.forEach { (_, value) -> readFully(value) }
+        }
+    }
+
+    private fun randomElement(depth: Int): BencodeElement = when (if (depth >= 4) random.nextInt(2) else random.nextInt(4)) {
+        0 -> BencodeString(random.nextBytes(random.nextInt(40)))
+        1 -> BencodeInteger(
+            when (random.nextInt(3)) {
+                0 -> random.nextLong()
+                1 -> random.nextLong(-1000, 1000)
+                else -> listOf(0L, Long.MIN_VALUE, Long.MAX_VALUE).random(random)
+            }
+        )
+        2 -> BencodeList(List(random.nextInt(6)) { randomElement(depth + 1) })
+        else -> BencodeDict(List(random.nextInt(6)) { randomKey() to randomElement(depth + 1) }.toMap())
+    }
+
+    private fun randomKey(): String = buildString {
+        repeat(random.nextInt(8)) { append(KEY_CHARACTERS.random(random)) }
+    }
+
+    companion object {
+        private const val FUZZ_ROUNDS = 2_000
+        private const val KEY_CHARACTERS = "abcdefghijklmnopqrstuvwxyz_0123456789éß雪"
+    }
+}
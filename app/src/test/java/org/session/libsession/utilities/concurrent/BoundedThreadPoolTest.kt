@@ -0,0 +1,113 @@
+package org.session.libsession.utilities.concurrent
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import kotlin.coroutines.EmptyCoroutineContext
+
+@RunWith(RobolectricTestRunner::class)
+class BoundedThreadPoolTest {
+
+    private val pool = BoundedThreadPool("test", threadCount = 1, queueCapacity = 1, Executors.defaultThreadFactory())
+    private val blocker = CountDownLatch(1)
+
+    @After
+    fun tearDown() {
+        blocker.countDown()
+        pool.shutdownNow()
+    }
+
+    /**
+     * Blocks the pool's thread and fills its queue, so that the next task is rejected.
+     */
+    private fun saturate() {
+        val started = CountDownLatch(1)
+        pool.execute {
+            started.countDown()
+            blocker.await()
+        }
+        started.await(5, TimeUnit.SECONDS)
+        pool.execute {}
+    }
+
+    /**
+     * Runs [block] on a background thread, as the test runs on the main looper.
+     */
+    private fun <T> onBackgroundThread(block: () -> T): T {
+        var result: T? = null
+        thread { result = block() }.join(5_000)
+        @Suppress("UNCHECKED_CAST")
+        return result as T
+    }
+
+    @Test
+    fun `a background submitter runs the task itself when the pool is saturated`() {
+        saturate()
+
+        val (submitter, runner) = onBackgroundThread {
+            var runner: Thread? = null
+            pool.execute { runner = Thread.currentThread() }
+            Thread.currentThread() to runner
+        }
+
+        assertEquals(submitter, runner)
+        assertEquals(1, pool.snapshot().callerRuns)
+    }
+
+    @Test
+    fun `dispatcher tasks are queued past the bound`() {
+        saturate()
+        val finished = CountDownLatch(1)
+        var runner: Thread? = null
+
+        val submitter = onBackgroundThread {
+            pool.dispatcher.dispatch(EmptyCoroutineContext) {
+                runner = Thread.currentThread()
+                finished.countDown()
+            }
+            Thread.currentThread()
+        }
+
+        assertEquals(1, finished.count)
+        assertEquals(0, pool.snapshot().callerRuns)
+        assertEquals(1, pool.snapshot().overflows)
+
+        blocker.countDown()
+        assertTrue(finished.await(5, TimeUnit.SECONDS))
+        assertNotEquals(submitter, runner)
+    }
+
+    @Test
+    fun `tasks submitted by the pool's own tasks are queued past the bound`() {
+        saturate()
+        val finished = CountDownLatch(1)
+        var runner: Thread? = null
+
+        // The outer task is run by its submitter, which then counts as running on the pool
+        val submitter = onBackgroundThread {
+            pool.execute {
+                pool.execute {
+                    runner = Thread.currentThread()
+                    finished.countDown()
+                }
+            }
+            Thread.currentThread()
+        }
+
+        assertEquals(1, finished.count)
+        assertEquals(1, pool.snapshot().callerRuns)
+        assertEquals(1, pool.snapshot().overflows)
+
+        blocker.countDown()
+        assertTrue(finished.await(5, TimeUnit.SECONDS))
+        assertNotEquals(submitter, runner)
+    }
+}
@@ -0,0 +1,38 @@
+package org.session.libsignal.utilities
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class LatencyHistogramTest {
+
+    @Test
+    fun `percentiles fall in the expected buckets`() {
+        val histogram = LatencyHistogram()
+        repeat(90) { histogram.record(40) }
+        repeat(10) { histogram.record(4_000) }
+
+        val snapshot = histogram.snapshot()
+
+        assertEquals(100L, snapshot.count)
+        assertEquals(50L, snapshot.percentileMs(0.5))
+        assertEquals(5_000L, snapshot.percentileMs(0.95))
+        assertEquals((90 * 40 + 10 * 4_000) / 100L, snapshot.meanMs)
+    }
+
+    @Test
+    fun `values beyond the last bucket overflow`() {
+        val histogram = LatencyHistogram()
+        histogram.record(500_000)
+
+        assertEquals(Long.MAX_VALUE, histogram.snapshot().percentileMs(0.5))
+    }
+
+    @Test
+    fun `reset clears all counts`() {
+        val histogram = LatencyHistogram()
+        histogram.record(10)
+        histogram.reset()
+
+        assertEquals(0L, histogram.snapshot().count)
+    }
+}
@@ -0,0 +1,57 @@
+package org.thoughtcrime.securesms.configs
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsession.utilities.Address
+
+class ConfigSyncChangeSetTest {
+
+    private val first = Address.Community(serverUrl = "https://example.com", room = "first")
+    private val second = Address.Community(serverUrl = "https://example.com", room = "second")
+
+    @Test
+    fun `the first sync includes everything`() {
+        val state = ConfigSyncState(setOf(first, second), mapOf(first to 10L))
+
+        val changes = ConfigSyncChangeSet.between(null, state)
+
+        assertTrue(changes.initial)
+        assertTrue(changes.conversationsChanged)
+        assertEquals(setOf(first, second), changes.addedConversations)
+        assertEquals(mapOf(first to 10L), changes.changedReadMarkers)
+    }
+
+    @Test
+    fun `an unchanged state has nothing to sync`() {
+        val state = ConfigSyncState(setOf(first, second), mapOf(first to 10L, second to 20L))
+
+        val changes = ConfigSyncChangeSet.between(state, state.copy())
+
+        assertTrue(changes.isEmpty)
+    }
+
+    @Test
+    fun `only moved read markers are synced`() {
+        val previous = ConfigSyncState(setOf(first, second), mapOf(first to 10L, second to 20L))
+        val current = previous.copy(readMarkers = mapOf(first to 10L, second to 25L))
+
+        val changes = ConfigSyncChangeSet.between(previous, current)
+
+        assertEquals(false, changes.conversationsChanged)
+        assertEquals(mapOf(second to 25L), changes.changedReadMarkers)
+    }
+
+    @Test
+    fun `added and removed conversations are detected`() {
+        val previous = ConfigSyncState(setOf(first), mapOf(first to 10L, second to 20L))
+        val current = ConfigSyncState(setOf(second), mapOf(first to 10L, second to 20L))
+
+        val changes = ConfigSyncChangeSet.between(previous, current)
+
+        assertEquals(setOf(second), changes.addedConversations)
+        assertEquals(setOf(first), changes.removedConversations)
+        // The read marker of the new conversation is applied now that its thread exists
+        assertEquals(mapOf(second to 20L), changes.changedReadMarkers)
+    }
+}
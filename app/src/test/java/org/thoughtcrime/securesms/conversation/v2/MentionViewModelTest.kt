@@ -5,6 +5,8 @@ import androidx.test.platform.app.InstrumentationRegistry
 import app.cash.turbine.test
 import com.google.common.truth.Truth.assertThat
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.test.runTest
 import network.loki.messenger.libsession_util.ConfigBase.Companion.PRIORITY_VISIBLE
@@ -83,13 +85,21 @@ class MentionViewModelTest : BaseViewModelTest() {
         )
     )
 
+    private var existingThreadId = threadID
+    private val threadUpdates = MutableSharedFlow<Long>()
+
     @Before
     fun setUp() {
+        mentionViewModel = createViewModel()
+    }
+
+    private fun createViewModel(): MentionViewModel {
         @Suppress("UNCHECKED_CAST")
-        mentionViewModel = MentionViewModel(
+        return MentionViewModel(
             threadDatabase = mock {
                 on { getRecipientForThreadId(threadID) } doReturn communityRecipient.address
-                on { getThreadIdIfExistsFor(communityRecipient.address) } doReturn threadID
+                on { getThreadIdIfExistsFor(communityRecipient.address) } doAnswer { existingThreadId }
+                on { updateNotifications } doReturn threadUpdates
             },
             groupDatabase = mock {
             },
@@ -98,10 +108,10 @@ class MentionViewModelTest : BaseViewModelTest() {
                 on { getUserPublicKey() } doReturn myId.hexString
             },
             application = InstrumentationRegistry.getInstrumentation().context as android.app.Application,
-            mmsSmsDatabase = mock {
-                on { getRecentChatMemberAddresses(eq(threadID), any())} doAnswer {
+            threadSendersRepository = mock {
+                on { observeRecentSenders(eq(threadID), any()) } doAnswer {
                     val limit = it.arguments[1] as Int
-                    threadMembers.take(limit).map { m -> m.pubKey }
+                    flowOf(threadMembers.take(limit).map { m -> m.pubKey })
                 }
             },
             address = communityRecipient.address,
@@ -112,15 +122,15 @@ class MentionViewModelTest : BaseViewModelTest() {
                     if (address == communityRecipient.address) {
                         communityRecipient
                     } else {
-                        threadMembers.firstOrNull { m -> m.pubKey == address.address }
-                            ?.let { m ->
-                                Recipient(
-                                    address = m.pubKey.toAddress(),
-                                    data = RecipientData.Generic(displayName = m.name)
-                                )
-                            }
+                        threadMemberRecipient(address)
                     }
                 }
+                on { getRecipientsSync(any()) } doAnswer {
+                    @Suppress("UNCHECKED_CAST")
+                    (it.arguments[0] as Collection<Address>)
+                        .mapNotNull { address -> threadMemberRecipient(address)?.let { r -> address to r } }
+                        .toMap()
+                }
                 on { observeRecipient(communityRecipient.address) } doAnswer {
                     flowOf(communityRecipient)
                 }
@@ -143,6 +153,15 @@ class MentionViewModelTest : BaseViewModelTest() {
         )
     }
 
+    private fun threadMemberRecipient(address: Address): Recipient? =
+        threadMembers.firstOrNull { m -> m.pubKey == address.address }
+            ?.let { m ->
+                Recipient(
+                    address = m.pubKey.toAddress(),
+                    data = RecipientData.Generic(displayName = m.name)
+                )
+            }
+
     @Test
     fun `should show candidates after 'at' symbol`() = runTest {
         mentionViewModel.autoCompleteState.test {
@@ -197,6 +216,37 @@ class MentionViewModelTest : BaseViewModelTest() {
         }
     }
 
+    @Test
+    fun `posters of a community are shown once its thread exists`() = runTest {
+        existingThreadId = -1L
+        mentionViewModel = createViewModel()
+
+        mentionViewModel.autoCompleteState.test {
+            assertThat(awaitItem())
+                .isEqualTo(MentionViewModel.AutoCompleteState.Idle)
+
+            val editable = mentionViewModel.editableFactory.newEditable("")
+            editable.append("Hi @")
+            Selection.setSelection(editable, editable.length)
+
+            assertThat(awaitItem())
+                .isEqualTo(MentionViewModel.AutoCompleteState.Loading)
+
+            // Only yourself until the thread exists
+            (awaitItem() as MentionViewModel.AutoCompleteState.Result).let { result ->
+                assertThat(result.members.map { it.member.isMe }).isEqualTo(listOf(true))
+            }
+
+            existingThreadId = threadID
+            threadUpdates.subscriptionCount.first { it > 0 }
+            threadUpdates.emit(threadID)
+
+            (awaitItem() as MentionViewModel.AutoCompleteState.Result).let { result ->
+                assertThat(result.members.map { it.member.publicKey }).isEqualTo(threadMembers.map { it.pubKey })
+            }
+        }
+    }
+
     @Test
     fun `should have normalised message with candidates selected`() = runTest {
         mentionViewModel.autoCompleteState.test {
@@ -0,0 +1,46 @@
+package org.thoughtcrime.securesms.conversation.v2.mention
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.thoughtcrime.securesms.util.AvatarUIData
+
+class MentionCandidateIndexTest {
+
+    private val members = listOf("Alice", "Bob", "Charlie", "alicia", "Malik", "李云海", "Bobby Tables", "Işık", "İlkay")
+        .mapIndexed { index, name ->
+            MentionViewModel.Member(
+                publicKey = "05$index",
+                name = name,
+                showAdminCrown = false,
+                isMe = false,
+                avatarData = AvatarUIData(emptyList()),
+            )
+        }
+
+    private val index = MentionCandidateIndex(members)
+
+    private fun search(query: String): List<Pair<String, Int>> {
+        val matches = mutableListOf<Pair<String, Int>>()
+        index.forEachMatch(query) { member, startIndex -> matches += member.name to startIndex }
+        return matches
+    }
+
+    private fun scan(query: String): List<Pair<String, Int>> {
+        return members.mapNotNull { member ->
+            val startIndex = member.name.indexOf(query, ignoreCase = true)
+            if (startIndex >= 0) member.name to startIndex else null
+        }
+    }
+
+    @Test
+    fun `matches the same members as scanning every name`() {
+        for (query in listOf("a", "li", "ALI", "alic", "lie", "bob", "by tab", "云海", "z", "charliex", "ik", "IŞI", "ilk", "ıl")) {
+            assertEquals(query, scan(query), search(query))
+        }
+    }
+
+    @Test
+    fun `a name containing the query more than once is matched once`() {
+        assertEquals(listOf("Bob" to 0, "Bobby Tables" to 0), search("b"))
+    }
+}
@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.crypto
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import kotlin.random.Random
+
+class ContentHashingInputStreamTest {
+
+    private val attachmentSecret = AttachmentSecret(null, null, Random(1).nextBytes(32))
+    private val data = Random(2).nextBytes(20_000)
+
+    private fun hash(secret: AttachmentSecret = attachmentSecret, read: (ContentHashingInputStream) -> Unit): ByteArray {
+        val stream = ContentHashingInputStream(secret, ByteArrayInputStream(data))
+        read(stream)
+        return stream.hash
+    }
+
+    @Test
+    fun `passes the data through unchanged`() {
+        val stream = ContentHashingInputStream(attachmentSecret, ByteArrayInputStream(data))
+
+        assertArrayEquals(data, stream.readBytes())
+        assertEquals(32, stream.hash.size)
+    }
+
+    @Test
+    fun `hash does not depend on how the data is read`() {
+        val bulk = hash { it.readBytes() }
+        val byByte = hash { while (it.read() != -1) Unit }
+        val withSkips = hash {
+            it.skip(1234)
+            it.read(ByteArray(10))
+            it.skip(Long.MAX_VALUE)
+        }
+
+        assertArrayEquals(bulk, byByte)
+        assertArrayEquals(bulk, withSkips)
+    }
+
+    @Test
+    fun `hash depends on the attachment secret`() {
+        val other = AttachmentSecret(null, null, Random(3).nextBytes(32))
+
+        assertFalse(hash { it.readBytes() }.contentEquals(hash(other) { it.readBytes() }))
+    }
+}
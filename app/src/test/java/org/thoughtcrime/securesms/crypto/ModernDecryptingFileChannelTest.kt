@@ -0,0 +1,66 @@
+package org.thoughtcrime.securesms.crypto
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class ModernDecryptingFileChannelTest {
+
+    private val attachmentSecret = AttachmentSecret(null, null, Random(1).nextBytes(32))
+    private val plaintext = Random(2).nextBytes(100_003)
+    private lateinit var file: File
+    private lateinit var random: ByteArray
+
+    @Before
+    fun setUp() {
+        // Same scheme as ModernEncryptingPartOutputStream, which can't run without android.util.Pair
+        random = Random(4).nextBytes(32)
+        val mac = Mac.getInstance("HmacSHA256")
+        mac.init(SecretKeySpec(attachmentSecret.modernKey, "HmacSHA256"))
+        val cipher = Cipher.getInstance("AES/CTR/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(mac.doFinal(random), "AES"), IvParameterSpec(ByteArray(16)))
+
+        file = File.createTempFile("channel", ".mms")
+        file.writeBytes(cipher.doFinal(plaintext))
+    }
+
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+
+    @Test
+    fun `random reads match the plaintext`() {
+        val rng = Random(3)
+        ModernDecryptingFileChannel(attachmentSecret, random, file).use { channel ->
+            assertEquals(plaintext.size.toLong(), channel.size())
+
+            repeat(500) {
+                val position = rng.nextInt(plaintext.size)
+                val length = rng.nextInt(70_000)
+                val buffer = ByteArray(length)
+
+                val read = channel.read(position.toLong(), buffer, 0, length)
+
+                val expected = minOf(length, plaintext.size - position)
+                assertEquals(expected, read)
+                assertArrayEquals(plaintext.copyOfRange(position, position + read), buffer.copyOf(read))
+            }
+        }
+    }
+
+    @Test
+    fun `reading at the end returns -1`() {
+        ModernDecryptingFileChannel(attachmentSecret, random, file).use { channel ->
+            assertEquals(-1, channel.read(plaintext.size.toLong(), ByteArray(4), 0, 4))
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import org.json.JSONArray
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.util.Benchmark
+
+/**
+ * Compares loading the attachments of a media heavy thread through [PagedAttachmentCursor] against
+ * aggregating them as JSON for every message row, as [MmsSmsDatabase] does without it.
+ *
+ * SQLCipher can't be loaded on the JVM, so both run on a plain SQLite database with the same
+ * queries as the app.
+ */
+@RunWith(RobolectricTestRunner::class)
+class AttachmentPageLoadingBenchmarkTest {
+
+    private lateinit var db: SQLiteDatabase
+
+    private val attachmentDatabase = mock<AttachmentDatabase> {
+        on { getAttachmentsForMessages(any()) } doAnswer { invocation ->
+            db.query(
+                AttachmentDatabase.TABLE_NAME, null, AttachmentDatabase.MESSAGES_SELECTION,
+                arrayOf(JSONArray(invocation.getArgument<Collection<Long>>(0)).toString()), null, null,
+                AttachmentDatabase.MESSAGES_ORDER
+            ).use(AttachmentDatabase::readAttachmentsByMessage)
+        }
+    }
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+        db.execSQL(AttachmentDatabase.CREATE_TABLE)
+        AttachmentDatabase.CREATE_INDEXS.forEach(db::execSQL)
+        db.execSQL("CREATE TABLE mms (_id INTEGER PRIMARY KEY, thread_id INTEGER, date INTEGER)")
+
+        db.beginTransaction()
+        try {
+            for (message in 1..MESSAGE_COUNT) {
+                db.insert("mms", null, ContentValues().apply {
+                    put("_id", message)
+                    put("thread_id", THREAD_ID)
+                    put("date", message)
+                })
+
+                // Every other message is an album, the rest are text only
+                if (message % 2 == 0) {
+                    repeat(ATTACHMENTS_PER_ALBUM) { insertAttachment(message.toLong(), it) }
+                }
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun `page loading returns the same attachments as the json aggregation`() {
+        assertSameAttachments(loadWithJson(), loadWithPages())
+    }
+
+    @Test
+    @Category(Benchmark::class)
+    fun `benchmark json aggregation against page loading`() {
+        repeat(WARM_UP_ROUNDS) {
+            loadWithJson()
+            loadWithPages()
+        }
+
+        val jsonNanos = measure { loadWithJson() }
+        val pageNanos = measure { loadWithPages() }
+        println(
+            "Loading $MESSAGE_COUNT messages with ${MESSAGE_COUNT / 2 * ATTACHMENTS_PER_ALBUM} attachments: " +
+                "json aggregation ${jsonNanos / 1_000}us, page loading ${pageNanos / 1_000}us per round"
+        )
+
+        assertSameAttachments(loadWithJson(), loadWithPages())
+    }
+
+    private fun assertSameAttachments(
+        fromJson: List<Pair<Long, List<DatabaseAttachment>>>,
+        fromPages: List<Pair<Long, List<DatabaseAttachment>>>,
+    ) {
+        assertEquals(fromJson.map { it.first }, fromPages.map { it.first })
+        fromJson.zip(fromPages).forEach { (json, pages) ->
+            assertEquals(json.second.map { it.attachmentId }, pages.second.map { it.attachmentId })
+            assertEquals(json.second.map { it.contentType }, pages.second.map { it.contentType })
+            assertEquals(json.second.map { it.size }, pages.second.map { it.size })
+        }
+    }
+
+    private fun measure(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        repeat(MEASURED_ROUNDS) { block() }
+        return (System.nanoTime() - start) / MEASURED_ROUNDS
+    }
+
+    private fun loadWithJson(): List<Pair<Long, List<DatabaseAttachment>>> {
+        val result = ArrayList<Pair<Long, List<DatabaseAttachment>>>(MESSAGE_COUNT)
+
+        db.rawQuery(
+            "SELECT mms._id, ${MmsSmsDatabase.ATTACHMENTS_JSON_COLUMN} " +
+                "FROM mms LEFT OUTER JOIN part ON part.mid = mms._id " +
+                "WHERE mms.thread_id = $THREAD_ID GROUP BY mms._id ORDER BY mms.date DESC",
+            null
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                result += cursor.getLong(0) to AttachmentDatabase.parseAttachmentJson(cursor.getString(1))
+            }
+        }
+
+        return result
+    }
+
+    private fun loadWithPages(): List<Pair<Long, List<DatabaseAttachment>>> {
+        val result = ArrayList<Pair<Long, List<DatabaseAttachment>>>(MESSAGE_COUNT)
+        val cursor = db.rawQuery(
+            "SELECT _id AS ${MmsSmsColumns.ID}, '${MmsSmsDatabase.MMS_TRANSPORT}' AS ${MmsSmsDatabase.TRANSPORT} " +
+                "FROM mms WHERE thread_id = $THREAD_ID ORDER BY date DESC",
+            null
+        )
+
+        PagedAttachmentCursor(cursor, attachmentDatabase).use { paged ->
+            while (paged.moveToNext()) {
+                result += paged.getLong(0) to paged.attachments
+            }
+        }
+
+        return result
+    }
+
+    private fun insertAttachment(mmsId: Long, index: Int) {
+        db.insert(AttachmentDatabase.TABLE_NAME, null, ContentValues().apply {
+            put(AttachmentDatabase.MMS_ID, mmsId)
+            put(AttachmentDatabase.UNIQUE_ID, mmsId * 10 + index)
+            put(AttachmentDatabase.CONTENT_TYPE, if (index % 2 == 0) "image/jpeg" else "video/mp4")
+            put(AttachmentDatabase.TRANSFER_STATE, 0)
+            put(AttachmentDatabase.SIZE, 100_000L + index)
+            put(AttachmentDatabase.DATA, "/data/parts/part$mmsId-$index.mms")
+            put(AttachmentDatabase.FILE_NAME, "IMG_$mmsId-$index.jpg")
+            put(AttachmentDatabase.CONTENT_LOCATION, "https://example.com/$mmsId/$index")
+            put(AttachmentDatabase.CONTENT_DISPOSITION, "key$index")
+            put(AttachmentDatabase.DIGEST, byteArrayOf(index.toByte()))
+            put(AttachmentDatabase.WIDTH, 1024)
+            put(AttachmentDatabase.HEIGHT, 768)
+            put(AttachmentDatabase.CAPTION, "caption $index")
+        })
+    }
+
+    companion object {
+        private const val THREAD_ID = 1
+        private const val MESSAGE_COUNT = 2_000
+        private const val ATTACHMENTS_PER_ALBUM = 4
+        private const val WARM_UP_ROUNDS = 3
+        private const val MEASURED_ROUNDS = 10
+    }
+}
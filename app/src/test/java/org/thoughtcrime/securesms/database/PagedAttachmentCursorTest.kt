@@ -0,0 +1,146 @@
+package org.thoughtcrime.securesms.database
+
+import android.content.ContentValues
+import android.database.MatrixCursor
+import android.database.sqlite.SQLiteDatabase
+import org.json.JSONArray
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.mock
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class PagedAttachmentCursorTest {
+
+    private lateinit var db: SQLiteDatabase
+    private val loadedPages = mutableListOf<List<Long>>()
+
+    // Runs the part query of AttachmentDatabase.getAttachmentsForMessages on a plain SQLite database,
+    // the query itself is tested against SQLCipher by AttachmentsForMessagesTest
+    private val attachmentDatabase = mock<AttachmentDatabase> {
+        on { getAttachmentsForMessages(any()) } doAnswer { invocation ->
+            val mmsIds = invocation.getArgument<Collection<Long>>(0).toList()
+            loadedPages += mmsIds
+            db.query(
+                AttachmentDatabase.TABLE_NAME, null, AttachmentDatabase.MESSAGES_SELECTION,
+                arrayOf(JSONArray(mmsIds).toString()), null, null, AttachmentDatabase.MESSAGES_ORDER
+            ).use(AttachmentDatabase::readAttachmentsByMessage)
+        }
+    }
+
+    @Before
+    fun setUp() {
+        db = SQLiteDatabase.create(null)
+        db.execSQL(AttachmentDatabase.CREATE_TABLE)
+        AttachmentDatabase.CREATE_INDEXS.forEach(db::execSQL)
+    }
+
+    @After
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun `every row gets the attachments of its own message across page boundaries`() {
+        val rows = (1L..120L).map { Row(it, if (it % 3 == 0L) SMS else MMS) }
+        rows.filter { it.transport == MMS && it.id % 2 == 0L }.forEach { insertAttachments(it.id, count = 2) }
+        val cursor = cursorOf(rows)
+
+        for (row in rows) {
+            assertTrue(cursor.moveToNext())
+            val expectedCount = if (row.transport == MMS && row.id % 2 == 0L) 2 else 0
+            val attachments = cursor.getAttachments()
+
+            assertEquals("row ${row.id}", expectedCount, attachments.size)
+            assertTrue(attachments.all { it.mmsId == row.id })
+            assertEquals(attachments.sortedBy { it.attachmentId.rowId }, attachments)
+        }
+        assertEquals(3, loadedPages.size)
+    }
+
+    @Test
+    fun `a page is loaded once, with the mms ids of its rows only`() {
+        val rows = (1L..121L).map { Row(it, if (it % 2 == 0L) SMS else MMS) }
+        val cursor = cursorOf(rows)
+
+        cursor.moveToPosition(0)
+        cursor.getAttachments()
+        cursor.moveToPosition(PagedAttachmentCursor.PAGE_SIZE - 1)
+        cursor.getAttachments()
+        cursor.moveToPosition(0)
+        cursor.getAttachments()
+        assertEquals(listOf(pageIds(rows, 0)), loadedPages)
+
+        cursor.moveToPosition(rows.size - 1)
+        cursor.getAttachments()
+        cursor.moveToPosition(PagedAttachmentCursor.PAGE_SIZE)
+        cursor.getAttachments()
+        assertEquals(listOf(pageIds(rows, 0), pageIds(rows, 2), pageIds(rows, 1)), loadedPages)
+    }
+
+    @Test
+    fun `sms rows don't get the attachments of an mms with the same id`() {
+        insertAttachments(7, count = 1)
+        val cursor = cursorOf(listOf(Row(7, SMS), Row(7, MMS)))
+
+        cursor.moveToPosition(0)
+        assertTrue(cursor.getAttachments().isEmpty())
+        assertTrue(loadedPages.isEmpty())
+
+        cursor.moveToPosition(1)
+        assertEquals(1, cursor.getAttachments().size)
+        assertEquals(listOf(listOf(7L)), loadedPages)
+    }
+
+    @Test
+    fun `loading a page restores the cursor position`() {
+        val rows = (1L..80L).map { Row(it, MMS) }
+        rows.forEach { insertAttachments(it.id, count = 1) }
+        val cursor = cursorOf(rows)
+
+        cursor.moveToPosition(PagedAttachmentCursor.PAGE_SIZE + 10)
+        val attachments = cursor.getAttachments()
+
+        assertEquals(PagedAttachmentCursor.PAGE_SIZE + 10, cursor.position)
+        assertEquals(rows[PagedAttachmentCursor.PAGE_SIZE + 10].id, cursor.getLong(0))
+        assertEquals(rows[PagedAttachmentCursor.PAGE_SIZE + 10].id, attachments.single().mmsId)
+    }
+
+    private fun cursorOf(rows: List<Row>): PagedAttachmentCursor {
+        val cursor = MatrixCursor(arrayOf(MmsSmsColumns.ID, MmsSmsDatabase.TRANSPORT))
+        rows.forEach { cursor.addRow(arrayOf<Any>(it.id, it.transport)) }
+        return PagedAttachmentCursor(cursor, attachmentDatabase)
+    }
+
+    private fun pageIds(rows: List<Row>, page: Int): List<Long> = rows
+        .drop(page * PagedAttachmentCursor.PAGE_SIZE)
+        .take(PagedAttachmentCursor.PAGE_SIZE)
+        .filter { it.transport == MMS }
+        .map { it.id }
+
+    private fun insertAttachments(mmsId: Long, count: Int) {
+        repeat(count) { index ->
+            db.insert(AttachmentDatabase.TABLE_NAME, null, ContentValues().apply {
+                put(AttachmentDatabase.MMS_ID, mmsId)
+                put(AttachmentDatabase.UNIQUE_ID, mmsId * 10 + index)
+                put(AttachmentDatabase.CONTENT_TYPE, "image/jpeg")
+                put(AttachmentDatabase.TRANSFER_STATE, 0)
+                put(AttachmentDatabase.SIZE, 1_000L)
+                put(AttachmentDatabase.DATA, "/data/parts/part$mmsId-$index.mms")
+            })
+        }
+    }
+
+    private data class Row(val id: Long, val transport: String)
+
+    companion object {
+        private const val MMS = MmsSmsDatabase.MMS_TRANSPORT
+        private const val SMS = MmsSmsDatabase.SMS_TRANSPORT
+    }
+}
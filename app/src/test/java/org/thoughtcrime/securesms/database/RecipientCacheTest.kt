@@ -0,0 +1,65 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.recipients.Recipient
+import org.session.libsession.utilities.recipients.RecipientData
+
+class RecipientCacheTest {
+
+    private val first = Address.Community(serverUrl = "https://example.com", room = "first")
+    private val second = Address.Community(serverUrl = "https://example.com", room = "second")
+
+    private fun recipient(address: Address, name: String) = Recipient(
+        address = address,
+        data = RecipientData.Generic(displayName = name),
+    )
+
+    @Test
+    fun `cached recipients are returned and counted as hits`() {
+        val cache = RecipientCache(maxWeight = 16)
+        val recipient = recipient(first, "First")
+
+        assertNull(cache[first])
+        cache.put(first, recipient, cache.generation)
+
+        assertEquals(recipient, cache[first])
+        assertEquals(1L, cache.stats().hits)
+        assertEquals(1L, cache.stats().misses)
+    }
+
+    @Test
+    fun `a recipient fetched before an invalidation is not cached`() {
+        val cache = RecipientCache(maxWeight = 16)
+        val generation = cache.generation
+
+        cache.invalidate(second)
+        cache.put(first, recipient(first, "First"), generation)
+
+        assertNull(cache[first])
+    }
+
+    @Test
+    fun `invalidating an address keeps unrelated recipients`() {
+        val cache = RecipientCache(maxWeight = 16)
+        cache.put(first, recipient(first, "First"), cache.generation)
+        cache.put(second, recipient(second, "Second"), cache.generation)
+
+        cache.invalidate(second)
+
+        assertEquals(recipient(first, "First"), cache[first])
+        assertNull(cache[second])
+    }
+
+    @Test
+    fun `the least recently used recipients are evicted past the max weight`() {
+        val cache = RecipientCache(maxWeight = 1)
+        cache.put(first, recipient(first, "First"), cache.generation)
+        cache.put(second, recipient(second, "Second"), cache.generation)
+
+        assertNull(cache[first])
+        assertEquals(1, cache.stats().weight)
+    }
+}
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.database
+
+import app.cash.turbine.test
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+
+class ThreadSendersRepositoryTest {
+
+    private data class Message(val id: Long, val sender: String, val sentTime: Long)
+
+    private val messages = mutableListOf<Message>()
+    private val updateNotifications = MutableSharedFlow<Long>(extraBufferCapacity = 16)
+
+    // Reads the messages like MmsSmsDatabase.getThreadSenders, as if they were all mms
+    private val mmsSmsDatabase = mock<MmsSmsDatabase> {
+        on { getThreadSenders(eq(THREAD_ID), any()) } doAnswer { invocation ->
+            val since = invocation.getArgument<ThreadSenders>(1)
+            val newMessages = messages.filter { it.id > since.lastMmsId }
+            ThreadSenders(
+                lastSentTimes = since.lastSentTimes + newMessages
+                    .groupBy { it.sender }
+                    .mapValues { (sender, sent) -> maxOf(sent.maxOf { it.sentTime }, since.lastSentTimes[sender] ?: 0L) },
+                lastSmsId = 0L,
+                lastMmsId = newMessages.maxOfOrNull { it.id } ?: since.lastMmsId,
+                messageCount = since.messageCount + newMessages.size,
+            )
+        }
+        on { getConversationCount(THREAD_ID) } doAnswer { messages.size.toLong() }
+    }
+
+    private val threadDatabase = mock<ThreadDatabase> {
+        on { updateNotifications } doReturn updateNotifications
+    }
+
+    private fun TestScope.repository() = ThreadSendersRepository(mmsSmsDatabase, threadDatabase, backgroundScope)
+
+    private fun addMessage(sender: String, sentTime: Long) {
+        messages += Message(id = (messages.maxOfOrNull { it.id } ?: 0L) + 1, sender = sender, sentTime = sentTime)
+        updateNotifications.tryEmit(THREAD_ID)
+    }
+
+    // Notifications sent before the repository listens to them would be lost
+    private suspend fun awaitSubscription() {
+        updateNotifications.subscriptionCount.first { it > 0 }
+    }
+
+    @Test
+    fun `a change of order alone isn't emitted`() = runTest {
+        addMessage(ALICE, 1)
+        addMessage(BOB, 2)
+        val repository = repository()
+
+        repository.observeRecentSenders(THREAD_ID).test {
+            assertEquals(listOf(BOB, ALICE), awaitItem())
+            awaitSubscription()
+
+            addMessage(ALICE, 3)
+            addMessage(CHARLIE, 4)
+
+            assertEquals(listOf(CHARLIE, ALICE, BOB), awaitItem())
+            assertEquals(mapOf(ALICE to 3L, BOB to 2L, CHARLIE to 4L), repository.getLastSentTimes(THREAD_ID))
+        }
+    }
+
+    @Test
+    fun `senders whose messages were all deleted are removed`() = runTest {
+        addMessage(ALICE, 1)
+        addMessage(BOB, 2)
+        addMessage(ALICE, 3)
+        val repository = repository()
+
+        repository.observeRecentSenders(THREAD_ID).test {
+            assertEquals(listOf(ALICE, BOB), awaitItem())
+            awaitSubscription()
+
+            messages.removeAll { it.sender == BOB }
+            updateNotifications.emit(THREAD_ID)
+
+            assertEquals(listOf(ALICE), awaitItem())
+            assertEquals(mapOf(ALICE to 3L), repository.getLastSentTimes(THREAD_ID))
+        }
+    }
+
+    companion object {
+        private const val THREAD_ID = 1L
+        private const val ALICE = "alice"
+        private const val BOB = "bob"
+        private const val CHARLIE = "charlie"
+    }
+}
@@ -0,0 +1,139 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.session.libsession.utilities.Conversions
+import org.thoughtcrime.securesms.util.Benchmark
+import java.io.File
+import java.lang.management.ManagementFactory
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+class LogFileTest {
+
+    private val secret = ByteArray(32) { it.toByte() }
+    private val file = File.createTempFile("log-file", ".log")
+
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+
+    private fun readAll(): List<String> = LogFile.Reader(secret, file).use { reader ->
+        generateSequence { reader.readEntryBytes() }.map { String(it) }.toList()
+    }
+
+    @Test
+    fun `entries round trip across frames and appends`() {
+        val expected = (0 until 3).flatMap { frame -> (0 until 100).map { "frame $frame entry $it ✓" } }
+
+        LogFile.Writer(secret, file, true).apply {
+            expected.chunked(100).forEach { frame ->
+                frame.forEach(::addEntry)
+                flush()
+            }
+            close()
+        }
+
+        LogFile.Writer(secret, file, true).apply {
+            addEntry("appended")
+            flush()
+            close()
+        }
+
+        assertTrue(LogFile.isBlockFormat(file))
+        assertEquals(expected + "appended", readAll())
+    }
+
+    @Test
+    fun `frames can be skipped without decrypting`() {
+        LogFile.Writer(secret, file, false).apply {
+            repeat(3) { frame ->
+                addEntry("first of $frame")
+                addEntry("second of $frame")
+                flush()
+            }
+            close()
+        }
+
+        LogFile.Reader(secret, file).use { reader ->
+            assertTrue(reader.skipFrame())
+            assertTrue(reader.skipFrame())
+            assertEquals("first of 2", String(reader.readEntryBytes()))
+            assertEquals("second of 2", String(reader.readEntryBytes()))
+            assertNull(reader.readEntryBytes())
+        }
+    }
+
+    @Test
+    fun `truncated trailing frame is ignored`() {
+        LogFile.Writer(secret, file, false).apply {
+            addEntry("complete")
+            flush()
+            addEntry("partial")
+            flush()
+            close()
+        }
+
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() - 5))
+
+        assertEquals(listOf("complete"), readAll())
+    }
+
+    @Test
+    fun `legacy per entry files are still readable`() {
+        val cipher = Cipher.getInstance("AES/CBC/PKCS5Padding")
+        file.outputStream().use { out ->
+            listOf("legacy one", "legacy two").forEach { entry ->
+                val iv = ByteArray(16) { 7 }
+                cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(secret, "AES"), IvParameterSpec(iv))
+                val ciphertext = cipher.doFinal(entry.toByteArray())
+                out.write(iv)
+                out.write(Conversions.intToByteArray(ciphertext.size))
+                out.write(ciphertext)
+            }
+        }
+
+        assertFalse(LogFile.isBlockFormat(file))
+        assertEquals(listOf("legacy one", "legacy two"), readAll())
+    }
+
+    @Test
+    @Category(Benchmark::class)
+    fun `benchmark block writes`() {
+        val entry = "2025-01-01 12:00:00.000 UTC D SnodeAPI: Retrieved 12 messages from namespace 0 of snode https://1.2.3.4:22021\n"
+        val frames = 2_000
+        val entriesPerFrame = 64
+        val threadBean = ManagementFactory.getThreadMXBean()
+
+        val writer = LogFile.Writer(secret, file, false)
+        val startNanos = System.nanoTime()
+        val startCpuNanos = threadBean.currentThreadCpuTime
+        repeat(frames) {
+            repeat(entriesPerFrame) { writer.addEntry(entry) }
+            writer.flush()
+        }
+        val cpuNanos = threadBean.currentThreadCpuTime - startCpuNanos
+        val wallNanos = System.nanoTime() - startNanos
+        writer.close()
+
+        val total = frames * entriesPerFrame
+        println(
+            "LogFile block writer: %.0f entries/s, %d ns CPU/entry, %.2f bytes/entry on disk".format(
+                total * 1_000_000_000.0 / wallNanos,
+                cpuNanos / total,
+                file.length().toDouble() / total
+            )
+        )
+
+        assertEquals(total, readAll().size)
+        // Repeated entries compress to a fraction of their size
+        assertTrue(file.length() < total.toLong() * entry.length / 4)
+    }
+}
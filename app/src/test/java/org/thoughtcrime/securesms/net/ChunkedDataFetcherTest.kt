@@ -0,0 +1,229 @@
+package org.thoughtcrime.securesms.net
+
+import mockwebserver3.Dispatcher
+import mockwebserver3.MockResponse
+import mockwebserver3.MockWebServer
+import mockwebserver3.RecordedRequest
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Rule
+import org.junit.Test
+import org.junit.experimental.categories.Category
+import org.thoughtcrime.securesms.util.Benchmark
+import org.thoughtcrime.securesms.util.MockLoggingRule
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.InputStream
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+import kotlin.system.measureNanoTime
+
+/**
+ * Runs [ChunkedDataFetcher] against a local server, and compares its throughput with requesting
+ * every range at once and reading the responses one after the other.
+ */
+class ChunkedDataFetcherTest {
+
+    @get:Rule
+    val logging = MockLoggingRule()
+
+    private val content = Random(42).nextBytes(CONTENT_SIZE)
+
+    private val requestedRanges = Collections.synchronizedList(mutableListOf<String>())
+    private val failuresLeft = mutableMapOf<String, Int>()
+    private val heldRanges = mutableMapOf<String, CountDownLatch>()
+
+    @Volatile
+    private var throttleBytesPerPeriod: Long? = null
+
+    private val server = MockWebServer().apply {
+        dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse = serve(request.headers["Range"]!!)
+        }
+        start()
+    }
+
+    private val client = OkHttpClient()
+    private val url = server.url("/media.gif").toString()
+
+    @After
+    fun tearDown() {
+        synchronized(heldRanges) { heldRanges.values.forEach { it.countDown() } }
+        server.close()
+    }
+
+    private fun serve(range: String): MockResponse {
+        requestedRanges += range
+
+        val failing = synchronized(failuresLeft) {
+            val left = failuresLeft[range] ?: 0
+            if (left > 0) failuresLeft[range] = left - 1
+            left > 0
+        }
+        if (failing) {
+            return MockResponse.Builder().code(503).build()
+        }
+
+        synchronized(heldRanges) { heldRanges[range] }?.await(10, TimeUnit.SECONDS)
+
+        val (start, end) = range.removePrefix("bytes=").split('-').map { it.toLong() }
+        val last = minOf(end, content.size - 1L)
+        return MockResponse.Builder()
+            .code(206)
+            .addHeader("Content-Range", "bytes $start-$last/${content.size}")
+            .body(Buffer().write(content, start.toInt(), (last - start + 1).toInt()))
+            .apply { throttleBytesPerPeriod?.let { throttleBody(it, 10, TimeUnit.MILLISECONDS) } }
+            .build()
+    }
+
+    private fun fetchStream(contentLength: Long): InputStream {
+        val result = CompletableFuture<InputStream>()
+        ChunkedDataFetcher(client).fetch(url, contentLength, object : ChunkedDataFetcher.Callback {
+            override fun onSuccess(stream: InputStream) {
+                result.complete(stream)
+            }
+
+            override fun onFailure(e: Exception) {
+                result.completeExceptionally(e)
+            }
+        })
+        return result.get(10, TimeUnit.SECONDS)
+    }
+
+    private fun fetch(contentLength: Long): ByteArray = fetchStream(contentLength).use { it.readBytes() }
+
+    @Test
+    fun `downloads a file of known size`() {
+        assertArrayEquals(content, fetch(CONTENT_SIZE.toLong()))
+        assertEquals(RANGES.sorted(), requestedRanges.sorted())
+    }
+
+    @Test
+    fun `downloads a file of unknown size`() {
+        assertArrayEquals(content, fetch(0))
+    }
+
+    @Test
+    fun `retries only the range that failed`() {
+        failuresLeft[RANGES[1]] = 2
+
+        assertArrayEquals(content, fetch(CONTENT_SIZE.toLong()))
+        assertEquals(3, requestedRanges.count { it == RANGES[1] })
+        assertEquals(RANGES.size + 2, requestedRanges.size)
+    }
+
+    @Test
+    fun `fails when a range keeps failing`() {
+        failuresLeft[RANGES[1]] = Int.MAX_VALUE
+
+        assertThrows(Exception::class.java) { fetch(CONTENT_SIZE.toLong()) }
+    }
+
+    @Test
+    fun `can be read before the last range is in`() {
+        val lastRange = CountDownLatch(1)
+        synchronized(heldRanges) { heldRanges[RANGES.last()] = lastRange }
+
+        fetchStream(CONTENT_SIZE.toLong()).use { stream ->
+            val start = ByteArray(CHUNK_SIZE)
+            DataInputStream(stream).readFully(start)
+            assertArrayEquals(content.copyOf(CHUNK_SIZE), start)
+
+            lastRange.countDown()
+            assertArrayEquals(content.copyOfRange(CHUNK_SIZE, content.size), stream.readBytes())
+        }
+    }
+
+    @Test
+    fun `delivers the stream off the range request threads`() {
+        val result = CompletableFuture<ByteArray>()
+        ChunkedDataFetcher(client).fetch(url, CONTENT_SIZE.toLong(), object : ChunkedDataFetcher.Callback {
+            override fun onSuccess(stream: InputStream) {
+                if (Thread.currentThread().name.startsWith("signal-io")) {
+                    result.completeExceptionally(AssertionError("Delivered on ${Thread.currentThread().name}"))
+                }
+                // Reading it all here must not hold up the ranges still coming in
+                result.complete(stream.use { it.readBytes() })
+            }
+
+            override fun onFailure(e: Exception) {
+                result.completeExceptionally(e)
+            }
+        })
+
+        assertArrayEquals(content, result.get(10, TimeUnit.SECONDS))
+    }
+
+    @Test
+    @Category(Benchmark::class)
+    fun `benchmark throughput against reading every range in turn`() {
+        throttleBytesPerPeriod = 64L * 1024
+
+        repeat(WARM_UP_ROUNDS) {
+            fetchEveryRangeInTurn()
+            fetch(CONTENT_SIZE.toLong())
+        }
+
+        val inTurn = measureNanoTime { assertArrayEquals(content, fetchEveryRangeInTurn()) }
+        val chunked = measureNanoTime { assertArrayEquals(content, fetch(CONTENT_SIZE.toLong())) }
+
+        fun throughput(nanos: Long) = "%.1fMiB/s".format(CONTENT_SIZE / (1024.0 * 1024.0) / (nanos / 1e9))
+        println(
+            "Download of ${CONTENT_SIZE / 1024}KiB in ${RANGES.size} ranges: " +
+                "every range in turn ${throughput(inTurn)}, chunked ${throughput(chunked)}"
+        )
+    }
+
+    /**
+     * How files used to be fetched: every range requested at once, then their responses read in order.
+     */
+    private fun fetchEveryRangeInTurn(): ByteArray {
+        val responses = RANGES.map { range ->
+            val result = CompletableFuture<InputStream>()
+            client.newCall(Request.Builder().url(url).addHeader("Range", range).build())
+                .enqueue(object : okhttp3.Callback {
+                    override fun onFailure(call: okhttp3.Call, e: java.io.IOException) {
+                        result.completeExceptionally(e)
+                    }
+
+                    override fun onResponse(call: okhttp3.Call, response: okhttp3.Response) {
+                        result.complete(response.body.byteStream())
+                    }
+                })
+            result
+        }
+
+        val output = ByteArrayOutputStream(CONTENT_SIZE)
+        responses.forEachIndexed { index, response ->
+            response.get(10, TimeUnit.SECONDS).use { stream ->
+                if (index == RANGES.lastIndex) {
+                    var overlap = (RANGES.size * CHUNK_SIZE - CONTENT_SIZE).toLong()
+                    while (overlap > 0) overlap -= stream.skip(overlap)
+                }
+                stream.copyTo(output)
+            }
+        }
+        return output.toByteArray()
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 1024 * 1024
+        private const val CONTENT_SIZE = 3 * CHUNK_SIZE + CHUNK_SIZE / 2
+        private const val WARM_UP_ROUNDS = 1
+
+        private val RANGES = listOf(
+            "bytes=0-${CHUNK_SIZE - 1}",
+            "bytes=$CHUNK_SIZE-${2 * CHUNK_SIZE - 1}",
+            "bytes=${2 * CHUNK_SIZE}-${3 * CHUNK_SIZE - 1}",
+            "bytes=${CONTENT_SIZE - CHUNK_SIZE}-${CONTENT_SIZE - 1}",
+        )
+    }
+}
@@ -0,0 +1,86 @@
+package org.thoughtcrime.securesms.notifications
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class ThreadNotificationCacheTest {
+
+    private data class Item(val threadId: Long, val timestamp: Long)
+
+    private val cache = ThreadNotificationCache<Item>(threadIdOf = { it.threadId }, timestampOf = { it.timestamp })
+
+    private var unread = mutableListOf<Item>()
+    private var fullLoads = 0
+    private val threadLoads = mutableListOf<Long>()
+
+    private fun refresh() = cache.refresh(
+        loadAll = { fullLoads++; unread.toList() },
+        loadThread = { threadId -> threadLoads += threadId; unread.filter { it.threadId == threadId } },
+    )
+
+    @Test
+    fun `first refresh loads everything`() {
+        unread = mutableListOf(Item(1, 10), Item(2, 30), Item(1, 20))
+
+        assertNull(refresh())
+        assertEquals(1, fullLoads)
+        assertEquals(listOf(Item(2, 30), Item(1, 20), Item(1, 10)), cache.items(10))
+    }
+
+    @Test
+    fun `changes only reload the changed threads`() {
+        unread = mutableListOf(Item(1, 10), Item(2, 20))
+        refresh()
+
+        unread += Item(3, 30)
+        unread.remove(Item(1, 10))
+        cache.markThreadChanged(3)
+        cache.markThreadChanged(1)
+        cache.markThreadChanged(3)
+
+        assertEquals(setOf(1L, 3L), refresh())
+        assertEquals(1, fullLoads)
+        assertEquals(setOf(1L, 3L), threadLoads.toSet())
+        assertEquals(2, threadLoads.size)
+        assertEquals(listOf(Item(3, 30), Item(2, 20)), cache.items(10))
+    }
+
+    @Test
+    fun `nothing is reloaded without changes`() {
+        refresh()
+
+        assertEquals(emptySet<Long>(), refresh())
+        assertEquals(1, fullLoads)
+        assertEquals(emptyList<Long>(), threadLoads)
+    }
+
+    @Test
+    fun `invalidating reloads everything`() {
+        refresh()
+        cache.markThreadChanged(1)
+        cache.invalidate()
+
+        assertNull(refresh())
+        assertEquals(2, fullLoads)
+        assertEquals(emptyList<Long>(), threadLoads)
+    }
+
+    @Test
+    fun `failed loads are retried`() {
+        refresh()
+        cache.markThreadChanged(1)
+
+        runCatching { cache.refresh(loadAll = { error("unused") }, loadThread = { error("failed") }) }
+
+        assertEquals(setOf(1L), refresh())
+    }
+
+    @Test
+    fun `items are limited to the newest`() {
+        unread = MutableList(5) { Item(it.toLong(), it.toLong()) }
+        refresh()
+
+        assertEquals(listOf(Item(4, 4), Item(3, 3)), cache.items(2))
+    }
+}
@@ -3,6 +3,8 @@ package org.thoughtcrime.securesms.recipients
 import org.junit.Assert.assertEquals
 import org.junit.Test
 import org.thoughtcrime.securesms.util.AvatarUtils
+import java.math.BigInteger
+import java.security.MessageDigest
 
 class AvatarGeneratorTest {
 
@@ -23,4 +25,24 @@ class AvatarGeneratorTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    fun `color index matches the hex digest of the key`() {
+        val keys = listOf("05" + "ab".repeat(32), "03" + "0f".repeat(32), "15" + "9c".repeat(32), "05ABCDEF0123", "0123456789a")
+        keys.forEach { key ->
+            assertEquals(key, colorIndexFromHexDigest(key), AvatarUtils.colorIndexForKey(key, COLOR_COUNT))
+        }
+        assertEquals(0, AvatarUtils.colorIndexForKey("not an account id", COLOR_COUNT))
+    }
+
+    // How the color used to be worked out, through the zero padded hex string of the digest
+    private fun colorIndexFromHexDigest(key: String): Int {
+        if (key.length < 12 || !key.matches(Regex("^[0-9A-Fa-f]+$"))) return 0
+        val digest = MessageDigest.getInstance("SHA-512").digest(key.toByteArray())
+        val hex = BigInteger(1, digest).toString(16).padStart(128, '0')
+        return (hex.substring(0 until 12).toLong(16) % COLOR_COUNT).toInt()
+    }
+
+    companion object {
+        private const val COLOR_COUNT = 7
+    }
+}
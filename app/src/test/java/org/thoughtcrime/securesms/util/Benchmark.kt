@@ -0,0 +1,7 @@
+package org.thoughtcrime.securesms.util
+
+/**
+ * JUnit category of the tests that measure and print performance figures. They're left out of the
+ * unit test runs unless the build is given `-PrunBenchmarks`.
+ */
+interface Benchmark
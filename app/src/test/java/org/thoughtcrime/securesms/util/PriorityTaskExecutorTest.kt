@@ -0,0 +1,77 @@
+package org.thoughtcrime.securesms.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.thoughtcrime.securesms.util.PriorityTaskExecutor.Priority
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class PriorityTaskExecutorTest {
+
+    private val blocker = CountDownLatch(1)
+    private val executed = Collections.synchronizedList(mutableListOf<String>())
+    private val runCount = AtomicInteger()
+
+    private val executor = PriorityTaskExecutor<String, String>("test", threadCount = 1) { key ->
+        if (key == BLOCKER) blocker.await()
+        executed += key
+        runCount.incrementAndGet()
+        key.uppercase()
+    }
+
+    @Test
+    fun `higher priorities run first and newest first within a priority`() {
+        executor.submit(BLOCKER, Priority.VISIBLE)
+        val last = executor.submit("background", Priority.BACKGROUND)
+        executor.submit("prefetch", Priority.PREFETCH)
+        executor.submit("visible-old", Priority.VISIBLE)
+        executor.submit("visible-new", Priority.VISIBLE)
+
+        blocker.countDown()
+        last.get(5, TimeUnit.SECONDS)
+
+        assertEquals(listOf(BLOCKER, "visible-new", "visible-old", "prefetch", "background"), executed)
+    }
+
+    @Test
+    fun `requests for an in-flight key share the same task`() {
+        executor.submit(BLOCKER, Priority.VISIBLE)
+        val first = executor.submit("a", Priority.BACKGROUND)
+        val second = executor.submit("a", Priority.BACKGROUND)
+
+        blocker.countDown()
+
+        assertSame(first, second)
+        assertEquals("A", second.get(5, TimeUnit.SECONDS))
+        assertEquals(2, runCount.get())
+    }
+
+    @Test
+    fun `requesting a queued key again raises its priority`() {
+        executor.submit(BLOCKER, Priority.VISIBLE)
+        executor.submit("a", Priority.BACKGROUND)
+        val last = executor.submit("b", Priority.PREFETCH)
+        executor.submit("a", Priority.VISIBLE)
+
+        blocker.countDown()
+        last.get(5, TimeUnit.SECONDS)
+
+        assertEquals(listOf(BLOCKER, "a", "b"), executed)
+    }
+
+    @Test
+    fun `failures complete the future exceptionally`() {
+        val failing = PriorityTaskExecutor<String, String>("test", threadCount = 1) { error("nope") }
+
+        val result = failing.submit("a", Priority.VISIBLE).handle { _, e -> e?.message }.get(5, TimeUnit.SECONDS)
+
+        assertEquals("nope", result)
+    }
+
+    companion object {
+        private const val BLOCKER = "blocker"
+    }
+}